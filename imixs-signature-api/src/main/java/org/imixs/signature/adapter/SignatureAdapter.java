@@ -34,6 +34,7 @@ import org.imixs.workflow.xml.XMLDocumentAdapter;
  * {@code
         <signature name="autocreate">true</signature>
         <signature name="rootsignature">true</signature>
+        <signature name="appendrootsignature">true</signature>
         <signature name="filepattern">order.pdf</signature>
         <signature name="position-x">50</signature>
         <signature name="position-y">650</signature>
@@ -55,6 +56,7 @@ public class SignatureAdapter implements SignalAdapter {
 
     public static final String OPTION_AUTOCREATE = "autocreate";
     public static final String OPTION_ROOTSIGNATURE = "rootsignature";
+    public static final String OPTION_APPEND_ROOTSIGNATURE = "appendrootsignature";
     public static final String OPTION_POSITION_X = "position-x";
     public static final String OPTION_POSITION_Y = "position-y";
     public static final String OPTION_DIMENSION_W = "dimension-w";
@@ -120,6 +122,10 @@ public class SignatureAdapter implements SignalAdapter {
                         signingWorkitem.setItemValue(OPTION_ROOTSIGNATURE,
                                 evalItemCollection.getItemValueBoolean(OPTION_ROOTSIGNATURE));
                     }
+                    if (evalItemCollection.hasItem(OPTION_APPEND_ROOTSIGNATURE)) {
+                        signingWorkitem.setItemValue(OPTION_APPEND_ROOTSIGNATURE,
+                                evalItemCollection.getItemValueBoolean(OPTION_APPEND_ROOTSIGNATURE));
+                    }
                     // page and position for visual signature
                     if (evalItemCollection.hasItem(OPTION_PAGE)) {
                         signingWorkitem.setItemValue(OPTION_PAGE, evalItemCollection.getItemValueInteger(OPTION_PAGE));
@@ -1,7 +1,11 @@
 package org.imixs.signature.api;
 
 import java.awt.geom.Rectangle2D;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.InvalidKeyException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -9,26 +13,49 @@ import java.security.NoSuchProviderException;
 import java.security.SignatureException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.tsp.TimeStampToken;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.imixs.signature.ca.CAService;
+import org.imixs.signature.ers.EvidenceRecord;
+import org.imixs.signature.ers.EvidenceRecordService;
+import org.imixs.signature.pdf.DocumentTimestampJob;
+import org.imixs.signature.pdf.ExternalSigningSession;
+import org.imixs.signature.pdf.PdfInspection;
+import org.imixs.signature.pdf.SignatureReport;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.SignedDigest;
+import org.imixs.signature.pdf.SignedRevision;
 import org.imixs.signature.pdf.SigningService;
 import org.imixs.signature.pdf.cert.CertificateVerificationException;
+import org.imixs.signature.pdf.cert.OcspBatchClient;
+import org.imixs.signature.pdf.cert.OcspCache;
 import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.pdf.util.LatencyHistogram;
+import org.imixs.signature.pdf.util.TSAHttpTransport;
 import org.imixs.workflow.FileData;
 import org.imixs.workflow.ItemCollection;
 import org.imixs.workflow.WorkflowKernel;
@@ -52,6 +79,7 @@ public class SignatureResource {
 
     public static final String OPTION_AUTOCREATE = "autocreate";
     public static final String OPTION_ROOTSIGNATURE = "rootsignature";
+    public static final String OPTION_APPEND_ROOTSIGNATURE = "appendrootsignature";
     public static final String OPTION_POSITION_X = "position-x";
     public static final String OPTION_POSITION_Y = "position-y";
     public static final String OPTION_DIMENSION_W = "dimension-w";
@@ -60,6 +88,8 @@ public class SignatureResource {
     public static final String OPTION_AUTO_ALIGNMENT = "autoAlignment";
     public static final String OPTION_PAGE = "page";
     public static final String OPTION_FILEPATTERN = "filepattern";
+    public static final String OPTION_INCREMENTAL = "incremental";
+    public static final String ATTRIBUTE_REVISION = "signature.revision";
 
     @Inject
     @ConfigProperty(name = SigningService.ENV_SIGNATURE_ROOTCERT_ALIAS)
@@ -75,6 +105,9 @@ public class SignatureResource {
     @Inject
     CAService caService;
 
+    @Inject
+    EvidenceRecordService evidenceRecordService;
+
     private static Logger logger = Logger.getLogger(SignatureResource.class.getName());
 
     /**
@@ -86,6 +119,9 @@ public class SignatureResource {
      * <li>$fileData - containing the pdf file to sign
      * <li>autocreate - true|false
      * <li>rootsignature - true|false
+     * <li>appendrootsignature - true|false - adds the root signature as an
+     * approval signature after the visual signature in the same call. The root
+     * certificate is validated before a file is signed
      * <li>page - page number for the visual signature (beginning with 1)
      * <li>position-x
      * <li>position-y
@@ -99,7 +135,12 @@ public class SignatureResource {
      * 
      * 
      * </p>
-     * The method returns a XMLDocument with the signed document
+     * The method returns a XMLDocument with the signed document. The file
+     * attribute 'signature.revision' holds the token of the signed revision. If
+     * the file is sent unchanged with this attribute for the next signature, only
+     * the new revision is hashed. If the timestamp
+     * is deferred (SIGNATURE_TSA_DEFERRED), the item 'signature.pending' contains
+     * the keys of the documents to be passed to 'flush'.
      * 
      * 
      * @param requestXML - workitem data
@@ -112,13 +153,6 @@ public class SignatureResource {
         boolean autocreate = true;
         boolean rootsignature = false;
         String file_pattern = PDF_REGEX;
-        float positionx = 30;
-        float positiony = 700;
-        float dimensionw = 170;
-        float dimensionh = 100;
-        int page = 0;
-        boolean verticalAlignment = false;
-        boolean autoAlignment = true;
 
         ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
         ItemCollection signedDocument = new ItemCollection();
@@ -135,27 +169,6 @@ public class SignatureResource {
                 if (document.hasItem(OPTION_ROOTSIGNATURE)) {
                     rootsignature = document.getItemValueBoolean(OPTION_ROOTSIGNATURE);
                 }
-                if (document.hasItem(OPTION_POSITION_X)) {
-                    positionx = document.getItemValueFloat(OPTION_POSITION_X);
-                }
-                if (document.hasItem(OPTION_POSITION_Y)) {
-                    positiony = document.getItemValueFloat(OPTION_POSITION_Y);
-                }
-                if (document.hasItem(OPTION_DIMENSION_W)) {
-                    dimensionw = document.getItemValueFloat(OPTION_DIMENSION_W);
-                }
-                if (document.hasItem(OPTION_DIMENSION_H)) {
-                    dimensionh = document.getItemValueFloat(OPTION_DIMENSION_H);
-                }
-                if (document.hasItem(OPTION_VERTICAL_ALIGNMENT)) {
-                    verticalAlignment = document.getItemValueBoolean(OPTION_VERTICAL_ALIGNMENT);
-                }
-                if (document.hasItem(OPTION_AUTO_ALIGNMENT)) {
-                    autoAlignment = document.getItemValueBoolean(OPTION_AUTO_ALIGNMENT);
-                }
-                if (document.hasItem(OPTION_PAGE)) {
-                    page = document.getItemValueInteger(OPTION_PAGE);
-                }
                 if (document.hasItem(OPTION_FILEPATTERN)) {
                     // the file pattern is optional
                     file_pattern = document.getItemValueString(OPTION_FILEPATTERN);
@@ -164,6 +177,16 @@ public class SignatureResource {
                 // signature count used for positioning multiple signatrues
                 int signatureCount = document.getItemValueInteger("signature.count");
 
+                // the appended root signature is validated before a file is signed
+                String appendRootAlias = null;
+                if (!rootsignature && document.getItemValueBoolean(OPTION_APPEND_ROOTSIGNATURE)) {
+                    if (!rootCertAlias.isPresent()) {
+                        throw new ProcessingErrorException(this.getClass().getSimpleName(), "SIGNING_ERROR",
+                                "No root certificate defined - set " + SigningService.ENV_SIGNATURE_ROOTCERT_ALIAS);
+                    }
+                    appendRootAlias = resolveCertAlias(document, true, false);
+                }
+
                 // do we have files matching the file pattern?
                 Pattern filePatternMatcher = Pattern.compile(file_pattern);
                 for (String fileName : fileNames) {
@@ -172,45 +195,15 @@ public class SignatureResource {
                         // yes! start signing....
                         // we assume an empty password for certificate
                         String certPassword = "";
-                        String certAlias = null;
-
-                        // Test if the a signature with the root certificate is requested
+                        String certAlias = resolveCertAlias(document, rootsignature, autocreate);
                         if (rootsignature && rootCertAlias.isPresent()) {
-                            certAlias = rootCertAlias.get();
                             // set SIGNATURE_ROOTCERT_PASSWORD
                             if (rootCertPassword.isPresent()) {
                                 certPassword = rootCertPassword.get();
                             }
-
-                            // test existence of default certificate
-                            if (!caService.existsCertificate(certAlias)) {
-                                throw new ProcessingErrorException(this.getClass().getSimpleName(), "SIGNING_ERROR",
-                                        "Root certificate '" + certAlias + "' does not exist!");
-                            }
                             logger.info("......signing " + fileName + " with root certificate '" + certAlias + "'...");
                         } else {
-                            // signature with user certificate....
-                            // compute alias validate existence of certificate
-                            certAlias = document.getItemValueString("certAlias");
                             logger.info("......signing " + fileName + " by '" + certAlias + "'...");
-
-                            // test if a certificate exits....
-                            if (!caService.existsCertificate(certAlias)) {
-                                if (autocreate) {
-                                    // create new certificate....
-                                    // we expect that the document provides the correspondign x509 items
-                                    // (o,ou,city,state,country)
-                                    caService.createCertificate(certAlias, document);
-                                } else {
-                                    throw new CertificateVerificationException(
-                                            "certificate for alias '" + certAlias + "' not found.");
-                                }
-                                // test existence of default certificate
-                                if (!caService.existsCertificate(certAlias)) {
-                                    throw new ProcessingErrorException(this.getClass().getSimpleName(), "SIGNING_ERROR",
-                                            "No certificate exists for user '" + certAlias + "'");
-                                }
-                            }
                         }
 
                         // read the file data...
@@ -218,9 +211,10 @@ public class SignatureResource {
                         byte[] sourceContent = fileData.getContent();
 
                         byte[] signedContent = null;
+                        String revisionToken = null;
                         // in case of a rootsignature we do not generate a signature visual!
                         if (rootsignature) {
-                            signedContent = signatureService.signPDF(sourceContent, certAlias, certPassword, false);
+                            signedContent = signatureService.signPDF(sourceContent, certAlias, certPassword);
                         } else {
                             byte[] signatureImage = null;
                             // we reisize the signature image to a maximum height of the half of the
@@ -231,28 +225,40 @@ public class SignatureResource {
                                 signatureImage = fileDataSignature.getContent();
                             }
 
-                            // compute vertical / alignment if second visual..
-                            // if we have already a signature we move the y position....
-
-                            if (autoAlignment && signatureCount > 0) {
-                                if (verticalAlignment) {
-                                    positiony = positiony + (signatureCount * dimensionh + 10);
-                                } else {
-                                    positionx = positionx + (signatureCount * dimensionw + 10);
-                                }
-                            }
-
-                            Rectangle2D humanRect = new Rectangle2D.Float(positionx, positiony, dimensionw, dimensionh);
+                            Rectangle2D humanRect = createHumanRect(document, signatureCount);
                             // create signature withvisual
-                            signedContent = signatureService.signPDF(sourceContent, certAlias, certPassword, false,
-                                    humanRect, page, "Signature" + signatureCount, signatureImage,
-                                    document.getItemValueString(WorkflowKernel.WORKFLOWSTATUS));
-
+                            List<SignatureSpec> signatureSpecs = new ArrayList<SignatureSpec>();
+                            signatureSpecs.add(new SignatureSpec(certAlias, certPassword)
+                                    .setHumanRect(humanRect).setPage(document.getItemValueInteger(OPTION_PAGE))
+                                    .setSignatureFieldName("Signature" + signatureCount)
+                                    .setImageFile(signatureImage)
+                                    .setReason(document.getItemValueString(WorkflowKernel.WORKFLOWSTATUS)));
+                            // append the root signature as approval signature in the same call
+                            if (appendRootAlias != null) {
+                                logger.info("......append root signature '" + appendRootAlias + "'...");
+                                signatureSpecs.add(SignatureSpec.createRootSignature(appendRootAlias,
+                                        rootCertPassword.isPresent() ? rootCertPassword.get() : "",
+                                        "RootSignature" + signatureCount));
+                            }
+                            SignedRevision signedRevision = signatureService.signPDF(sourceContent,
+                                    getRevisionToken(fileData), signatureSpecs);
+                            signedContent = signedRevision.getContent();
+                            revisionToken = signedRevision.getRevisionToken();
                         }
 
                         // add the signed pdf file to the signed workitem
-                        FileData signedFileData = new FileData(fileName, signedContent, "application/pdf", null);
+                        Map<String, List<Object>> attributes = null;
+                        if (revisionToken != null) {
+                            attributes = new HashMap<String, List<Object>>();
+                            attributes.put(ATTRIBUTE_REVISION, new ArrayList<Object>(Arrays.asList(revisionToken)));
+                        }
+                        FileData signedFileData = new FileData(fileName, signedContent, "application/pdf",
+                                attributes);
                         signedDocument.addFileData(signedFileData);
+                        if (signatureService.isTimestampDeferred()) {
+                            signedDocument.appendItemValue("signature.pending",
+                                    signatureService.getDeferredKey(signedContent));
+                        }
                         logger.info("......" + fileName + " signed");
                     }
 
@@ -268,8 +274,7 @@ public class SignatureResource {
         } catch (CertificateVerificationException | UnrecoverableKeyException | InvalidKeyException | KeyStoreException
                 | NoSuchAlgorithmException | NoSuchProviderException | OperatorCreationException | CertificateException
                 | SignatureException | IOException | SigningException e) {
-            logger.warning("Failed to query documents: " + e.getMessage());
-            e.printStackTrace();
+            logger.log(Level.WARNING, "Failed to query documents: " + e.getMessage(), e);
         }
 
         // return response signedDocument
@@ -277,6 +282,936 @@ public class SignatureResource {
                 .build();
     }
 
+    /**
+     * POST Request to prepare the PDF files of an ItemCollection with empty
+     * signature fields.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     * 
+     * <ul>
+     * <li>$fileData - containing the pdf files to prepare
+     * <li>signature.fields - number of signature fields to be added (default 1)
+     * <li>signature.count - index of the first signature field (default 0)
+     * <li>page, position-x, position-y, dimension-w, dimension-h, autoAlignment,
+     * verticalAlignment - layout of the signature fields
+     * <li>filepattern - optional file pattern
+     * </ul>
+     * 
+     * The fields are placed following the same alignment rules as the visual
+     * signatures. The method returns a XMLDocument with the prepared documents.
+     * 
+     * @param requestXML - workitem data
+     * @return - XMLDocument with the prepared documents
+     */
+    @POST
+    @Path("fields")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response prepareSignatureFields(XMLDocument xmlDocument) {
+        String file_pattern = PDF_REGEX;
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection preparedDocument = new ItemCollection();
+        try {
+            if (document.hasItem(OPTION_FILEPATTERN)) {
+                file_pattern = document.getItemValueString(OPTION_FILEPATTERN);
+            }
+            int fieldCount = 1;
+            if (document.hasItem("signature.fields")) {
+                fieldCount = document.getItemValueInteger("signature.fields");
+            }
+            int signatureCount = document.getItemValueInteger("signature.count");
+            List<Rectangle2D> humanRects = new ArrayList<Rectangle2D>(fieldCount);
+            for (int i = 0; i < fieldCount; i++) {
+                humanRects.add(createHumanRect(document, signatureCount + i));
+            }
+
+            Pattern filePatternMatcher = Pattern.compile(file_pattern);
+            for (String fileName : document.getFileNames()) {
+                if (filePatternMatcher.matcher(fileName).find()) {
+                    logger.info("......prepare " + fieldCount + " signature fields in " + fileName + "...");
+                    byte[] preparedContent = signatureService.prepareSignatureFields(
+                            document.getFileData(fileName).getContent(), humanRects,
+                            document.getItemValueInteger(OPTION_PAGE), signatureCount);
+                    preparedDocument.addFileData(new FileData(fileName, preparedContent, "application/pdf", null));
+                }
+            }
+        } catch (SigningException e) {
+            logger.log(Level.WARNING, "Failed to prepare signature fields: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(preparedDocument), MediaType.APPLICATION_XML)
+                .build();
+    }
+
+    /**
+     * POST Request to inspect the PDF files of an ItemCollection before signing.
+     * <p>
+     * The inspection reads only the trailer, the catalog /Perms entry, the
+     * /AcroForm fields and the /Encrypt entry of each PDF file. The documents are
+     * not loaded by PDFBox. The method returns a XMLDataCollection with one entry
+     * for each file containing the following items:
+     * 
+     * <ul>
+     * <li>signature.file - the file name
+     * <li>signature.reject - the reason why the file can not be signed (empty if
+     * the file can be signed). If the option 'signature.count' is set, a file is
+     * also rejected if the signature field of the next visual signature is
+     * already signed.
+     * <li>signature.incremental - true if the file can be signed on byte level
+     * <li>signature.encrypted - true if the file is encrypted
+     * <li>signature.mdp - the DocMDP permission (0 = not certified)
+     * <li>signature.version - the PDF version
+     * <li>signature.pages - number of pages
+     * <li>signature.signedfields - names of the signed signature fields
+     * <li>signature.emptyfields - names of the empty signature fields
+     * <li>signature.error - optional error if the file could not be inspected
+     * completely. A file which can not be inspected at all is rejected.
+     * </ul>
+     * 
+     * @param requestXML - workitem data
+     * @return - XMLDataCollection with the inspection results
+     */
+    @POST
+    @Path("inspect")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response inspectPDF(XMLDocument xmlDocument) {
+        String file_pattern = PDF_REGEX;
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        List<ItemCollection> result = new ArrayList<ItemCollection>();
+        if (document.hasItem(OPTION_FILEPATTERN)) {
+            file_pattern = document.getItemValueString(OPTION_FILEPATTERN);
+        }
+        // the field name of the next visual signature
+        String signatureFieldName = null;
+        if (document.hasItem("signature.count")) {
+            signatureFieldName = "Signature" + document.getItemValueInteger("signature.count");
+        }
+        Pattern filePatternMatcher = Pattern.compile(file_pattern);
+        for (String fileName : document.getFileNames()) {
+            if (filePatternMatcher.matcher(fileName).find()) {
+                try {
+                    result.add(createInspectionResult(fileName,
+                            signatureService.inspectPDF(document.getFileData(fileName).getContent()),
+                            signatureFieldName));
+                } catch (SigningException e) {
+                    logger.log(Level.WARNING, "Failed to inspect " + fileName + ": " + e.getMessage(), e);
+                    result.add(createInspectionError(fileName, e));
+                }
+            }
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to inspect a single PDF file posted as raw content. This avoids
+     * the base64 encoding of the file data in a XMLDocument. If the file can not
+     * be inspected, the method returns the status BAD_REQUEST with the item
+     * 'signature.error'.
+     * 
+     * @see #inspectPDF(XMLDocument)
+     * @param content - the PDF file
+     * @param field   - optional name of the signature field to be signed
+     * @return - XMLDataCollection with the inspection result
+     */
+    @POST
+    @Path("inspect")
+    @Consumes({ "application/pdf", MediaType.APPLICATION_OCTET_STREAM })
+    public Response inspectPDF(byte[] content, @QueryParam("field") String field) {
+        try {
+            ItemCollection result = createInspectionResult(null, signatureService.inspectPDF(content), field);
+            return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML)
+                    .build();
+        } catch (SigningException e) {
+            logger.log(Level.WARNING, "Failed to inspect document: " + e.getMessage(), e);
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(XMLDataCollectionAdapter.getDataCollection(createInspectionError(null, e)))
+                    .type(MediaType.APPLICATION_XML).build();
+        }
+    }
+
+    /**
+     * POST Request to verify the signatures of the PDF files of an ItemCollection.
+     * <p>
+     * The request supports the options 'signature.filepattern' and
+     * 'signature.incremental'. If 'signature.incremental' is true and the
+     * workitem has a $uniqueid, only the signatures added since the last
+     * verification of a file are verified. The method returns
+     * a XMLDataCollection with one entry for each signature or document
+     * timestamp containing the following items:
+     * 
+     * <ul>
+     * <li>verify.file - the file name
+     * <li>verify.field - the name of the signature field
+     * <li>verify.type - 'signature' or 'timestamp' for a document timestamp
+     * <li>verify.subfilter - the subfilter of the signature
+     * <li>verify.signer - the subject of the signing certificate
+     * <li>verify.time - the signing time
+     * <li>verify.revision - the length of the signed revision
+     * <li>verify.coversdocument - true if the signature covers the whole file
+     * <li>verify.byterange - true if the byte range is intact
+     * <li>verify.cms - true if the CMS signature is valid
+     * <li>verify.chain - true if the certificate chain is valid
+     * <li>verify.revocation - good, revoked, unavailable, unknown or empty if not
+     * checked
+     * <li>verify.timestamp - true if the signature has a valid timestamp
+     * <li>verify.timestamp.time - the time of the timestamp
+     * <li>verify.valid - true if the signature is valid
+     * <li>verify.error - the reasons of failed checks
+     * </ul>
+     * 
+     * @param requestXML - workitem data
+     * @return - XMLDataCollection with the verification results
+     */
+    @POST
+    @Path("verify")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response verifyPDF(XMLDocument xmlDocument) {
+        String file_pattern = PDF_REGEX;
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        List<ItemCollection> result = new ArrayList<ItemCollection>();
+        try {
+            if (document.hasItem(OPTION_FILEPATTERN)) {
+                file_pattern = document.getItemValueString(OPTION_FILEPATTERN);
+            }
+            boolean incremental = document.getItemValueBoolean(OPTION_INCREMENTAL);
+            Pattern filePatternMatcher = Pattern.compile(file_pattern);
+            for (String fileName : document.getFileNames()) {
+                if (filePatternMatcher.matcher(fileName).find()) {
+                    // signatures verified before are taken from the verification state
+                    String documentId = !incremental || document.getUniqueID().isEmpty() ? null
+                            : document.getUniqueID() + "/" + fileName;
+                    for (SignatureReport report : signatureService
+                            .verifyPDF(document.getFileData(fileName).getContent(), documentId)) {
+                        result.add(createVerificationResult(fileName, report));
+                    }
+                }
+            }
+        } catch (SigningException e) {
+            logger.log(Level.WARNING, "Failed to verify documents: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to verify the signatures of a single PDF file posted as raw
+     * content. The request body is streamed into a temp file, so large documents
+     * are not held in memory. The byte ranges are digested from a memory-mapped
+     * view of the temp file.
+     * 
+     * @see #verifyPDF(XMLDocument)
+     * @param content - the PDF file
+     * @param id      - optional identity of the document to verify only the
+     *                signatures added since the last verification
+     * @return - XMLDataCollection with the verification results
+     */
+    @POST
+    @Path("verify")
+    @Consumes({ "application/pdf", MediaType.APPLICATION_OCTET_STREAM })
+    public Response verifyPDF(InputStream content, @QueryParam("id") String id) {
+        List<ItemCollection> result = new ArrayList<ItemCollection>();
+        File tempFile = null;
+        try {
+            tempFile = File.createTempFile("imixs-verify-", ".pdf");
+            Files.copy(content, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            for (SignatureReport report : signatureService.verifyPDF(tempFile, id)) {
+                result.add(createVerificationResult(null, report));
+            }
+        } catch (SigningException | IOException e) {
+            logger.log(Level.WARNING, "Failed to verify document: " + e.getMessage(), e);
+        } finally {
+            if (tempFile != null && !tempFile.delete()) {
+                tempFile.deleteOnExit();
+            }
+        }
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to prepare the PDF files of an ItemCollection for an external
+     * signing process.
+     * <p>
+     * The request supports the same options as the signPDF method. For each
+     * matching PDF file the service adds an empty signature and holds the prepared
+     * file in a session with a limited time to live (SIGNATURE_EXTERNAL_TTL). The
+     * method returns a XMLDocument with the following items for each file:
+     * 
+     * <ul>
+     * <li>signature.file - the file name
+     * <li>signature.token - the session token to be passed to 'complete'
+     * <li>signature.digest - base64 encoded SHA-256 digest of the signed byte
+     * range
+     * <li>signature.data - base64 encoded DER signed attributes to be signed by a
+     * remote signer (SHA256WithRSA)
+     * </ul>
+     * 
+     * @param requestXML - workitem data
+     * @return - XMLDocument with the session data
+     */
+    @POST
+    @Path("prepare")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response prepareExternalSigning(XMLDocument xmlDocument) {
+        boolean autocreate = true;
+        boolean rootsignature = false;
+        String file_pattern = PDF_REGEX;
+
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection result = new ItemCollection();
+        try {
+            if (document.hasItem(OPTION_AUTOCREATE)) {
+                autocreate = document.getItemValueBoolean(OPTION_AUTOCREATE);
+            }
+            if (document.hasItem(OPTION_ROOTSIGNATURE)) {
+                rootsignature = document.getItemValueBoolean(OPTION_ROOTSIGNATURE);
+            }
+            if (document.hasItem(OPTION_FILEPATTERN)) {
+                file_pattern = document.getItemValueString(OPTION_FILEPATTERN);
+            }
+            int signatureCount = document.getItemValueInteger("signature.count");
+
+            Pattern filePatternMatcher = Pattern.compile(file_pattern);
+            for (String fileName : document.getFileNames()) {
+                if (filePatternMatcher.matcher(fileName).find()) {
+                    String certAlias = resolveCertAlias(document, rootsignature, autocreate);
+                    logger.info("......prepare " + fileName + " for external signing by '" + certAlias + "'...");
+                    byte[] sourceContent = document.getFileData(fileName).getContent();
+
+                    ExternalSigningSession session = null;
+                    // in case of a rootsignature we do not generate a signature visual!
+                    if (rootsignature) {
+                        session = signatureService.prepareExternalSigning(sourceContent, certAlias, null, 0,
+                                "Signature1", null, null, fileName);
+                    } else {
+                        byte[] signatureImage = null;
+                        FileData fileDataSignature = getSignatureImage(document);
+                        if (fileDataSignature != null) {
+                            signatureImage = fileDataSignature.getContent();
+                        }
+                        session = signatureService.prepareExternalSigning(sourceContent, certAlias,
+                                createHumanRect(document, signatureCount), document.getItemValueInteger(OPTION_PAGE),
+                                "Signature" + signatureCount, signatureImage,
+                                document.getItemValueString(WorkflowKernel.WORKFLOWSTATUS), fileName);
+                    }
+                    result.appendItemValue("signature.file", fileName);
+                    result.appendItemValue("signature.token", session.getToken());
+                    result.appendItemValue("signature.digest",
+                            Base64.getEncoder().encodeToString(session.getContentDigest()));
+                    result.appendItemValue("signature.data",
+                            Base64.getEncoder().encodeToString(session.getSignedAttributes()));
+                }
+            }
+            if (!rootsignature) {
+                result.setItemValue("signature.count", signatureCount + 1);
+            }
+        } catch (CertificateVerificationException | UnrecoverableKeyException | InvalidKeyException | KeyStoreException
+                | NoSuchAlgorithmException | NoSuchProviderException | OperatorCreationException | CertificateException
+                | SignatureException | IOException | SigningException e) {
+            logger.log(Level.WARNING, "Failed to prepare external signing: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to sign a batch of byte range digests of documents prepared for
+     * external signing under one identity.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     * 
+     * <ul>
+     * <li>signature.digest - list of base64 encoded SHA-256 digests
+     * <li>autocreate - true|false
+     * <li>rootsignature - true|false
+     * <li>certAlias - alias of the user certificate
+     * </ul>
+     * 
+     * The method returns a XMLDocument with the item 'signature.cms' containing
+     * the base64 encoded CMS signatures in the order of the digests. The
+     * signatures can be passed to the 'complete' method. A digest which could not
+     * be signed has an empty entry in 'signature.cms' and the reason in the entry
+     * of 'signature.error' at the same position.
+     * 
+     * @param requestXML - digest data
+     * @return - XMLDocument with the CMS signatures
+     */
+    @POST
+    @Path("digests")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response signDigests(XMLDocument xmlDocument) {
+        boolean autocreate = true;
+        boolean rootsignature = false;
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection result = new ItemCollection();
+        try {
+            if (document.hasItem(OPTION_AUTOCREATE)) {
+                autocreate = document.getItemValueBoolean(OPTION_AUTOCREATE);
+            }
+            if (document.hasItem(OPTION_ROOTSIGNATURE)) {
+                rootsignature = document.getItemValueBoolean(OPTION_ROOTSIGNATURE);
+            }
+            String certPassword = "";
+            String certAlias = resolveCertAlias(document, rootsignature, autocreate);
+            if (rootsignature && rootCertAlias.isPresent() && rootCertPassword.isPresent()) {
+                certPassword = rootCertPassword.get();
+            }
+
+            List<?> values = document.getItemValue("signature.digest");
+            List<byte[]> digests = new ArrayList<byte[]>(values.size());
+            for (Object value : values) {
+                try {
+                    digests.add(Base64.getDecoder().decode(value.toString()));
+                } catch (IllegalArgumentException e) {
+                    // rejected as invalid digest
+                    digests.add(null);
+                }
+            }
+            logger.info("......signing " + digests.size() + " digests by '" + certAlias + "'...");
+            List<String> signatures = new ArrayList<String>(digests.size());
+            List<String> errors = new ArrayList<String>(digests.size());
+            for (SignedDigest signedDigest : signatureService.signDigests(digests, certAlias, certPassword)) {
+                if (signedDigest.getCmsSignature() != null) {
+                    signatures.add(Base64.getEncoder().encodeToString(signedDigest.getCmsSignature()));
+                    errors.add("");
+                } else {
+                    logger.warning("...digest " + signatures.size() + " not signed: " + signedDigest.getError());
+                    signatures.add("");
+                    errors.add(signedDigest.getError());
+                }
+            }
+            result.setItemValue("signature.cms", signatures);
+            result.setItemValue("signature.error", errors);
+        } catch (CertificateVerificationException | UnrecoverableKeyException | InvalidKeyException | KeyStoreException
+                | NoSuchAlgorithmException | NoSuchProviderException | OperatorCreationException | CertificateException
+                | SignatureException | IOException | SigningException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Failed to sign digests: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to complete an external signing process.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     * 
+     * <ul>
+     * <li>signature.token - list of session tokens returned by 'prepare'
+     * <li>signature.cms - list of base64 encoded CMS signatures, or
+     * <li>signature.value - list of base64 encoded raw signature values over the
+     * signed attributes 'signature.data'
+     * </ul>
+     * 
+     * The method returns a XMLDocument with the signed documents
+     * 
+     * @param requestXML - signature data
+     * @return - XMLDocument with the signed documents
+     */
+    @POST
+    @Path("complete")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response completeExternalSigning(XMLDocument xmlDocument) {
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection signedDocument = new ItemCollection();
+        List<?> tokens = document.getItemValue("signature.token");
+        boolean raw = !document.hasItem("signature.cms");
+        List<?> signatures = raw ? document.getItemValue("signature.value") : document.getItemValue("signature.cms");
+        try {
+            if (tokens.size() != signatures.size()) {
+                throw new SigningException("number of tokens and signatures does not match");
+            }
+            for (int i = 0; i < tokens.size(); i++) {
+                String token = tokens.get(i).toString();
+                ExternalSigningSession session = signatureService.consumeExternalSigningSession(token);
+                byte[] signedContent = signatureService.completeExternalSigning(session,
+                        Base64.getDecoder().decode(signatures.get(i).toString()), raw);
+                String fileName = session.getFileName() != null ? session.getFileName() : token + ".pdf";
+                signedDocument.addFileData(new FileData(fileName, signedContent, "application/pdf", null));
+                logger.info("......" + fileName + " signed");
+            }
+        } catch (CertificateVerificationException | SigningException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Failed to complete external signing: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(signedDocument), MediaType.APPLICATION_XML)
+                .build();
+    }
+
+    /**
+     * POST Request to fetch the final form of documents signed with a deferred
+     * timestamp.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     *
+     * <ul>
+     * <li>$fileData - signed pdf files returned by the signPDF method, or
+     * <li>signature.pending - list of keys returned by the signPDF method
+     * <li>signature.timeout - optional maximum time to wait for a pending
+     * timestamp in milliseconds (default 30000)
+     * </ul>
+     *
+     * The method returns a XMLDocument with the timestamped documents. Files
+     * without a deferred timestamp are returned unchanged.
+     *
+     * @param requestXML - document data
+     * @return - XMLDocument with the timestamped documents
+     */
+    @POST
+    @Path("flush")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response flushTimestamps(XMLDocument xmlDocument) {
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection result = new ItemCollection();
+        long timeout = document.hasItem("signature.timeout") ? document.getItemValueLong("signature.timeout")
+                : 30000;
+        try {
+            for (String fileName : document.getFileNames()) {
+                byte[] content = document.getFileData(fileName).getContent();
+                byte[] timestampedContent = signatureService
+                        .flushTimestamp(signatureService.getDeferredKey(content), timeout);
+                result.addFileData(new FileData(fileName,
+                        timestampedContent != null ? timestampedContent : content, "application/pdf", null));
+            }
+            for (Object key : document.getItemValue("signature.pending")) {
+                byte[] timestampedContent = signatureService.flushTimestamp(key.toString(), timeout);
+                if (timestampedContent == null) {
+                    throw new SigningException("no deferred timestamp for document " + key);
+                }
+                result.addFileData(new FileData(key + ".pdf", timestampedContent, "application/pdf", null));
+            }
+        } catch (SigningException e) {
+            logger.log(Level.WARNING, "Failed to flush timestamps: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * GET Request returning the keys of all documents waiting for a deferred
+     * timestamp in the item 'signature.pending'.
+     *
+     * @return - XMLDocument with the pending documents
+     */
+    @GET
+    @Path("pending")
+    public Response getPendingTimestamps() {
+        ItemCollection result = new ItemCollection();
+        result.setItemValue("signature.pending", signatureService.getPendingTimestamps());
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to append a document timestamp to archived PDF documents on
+     * the server file system.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     *
+     * <ul>
+     * <li>archive.path - list of PDF files or directories within
+     * SIGNATURE_ARCHIVE_PATH
+     * <li>archive.job - optional job id of a previous run to be resumed
+     * </ul>
+     *
+     * The job runs in the background. The method returns a XMLDocument with the
+     * job id 'archive.job' and the number of documents 'archive.total'. The
+     * progress can be queried with GET /sign/timestamp?job=... Documents already
+     * timestamped by a previous run of the same job are skipped. If the job can
+     * not be started, the item 'archive.error' contains the reason.
+     *
+     * @param requestXML - job data
+     * @return - XMLDocument with the job id
+     */
+    @POST
+    @Path("timestamp")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response timestampDocuments(XMLDocument xmlDocument) {
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection result = new ItemCollection();
+        String job = document.getItemValueString("archive.job");
+        if (job.isEmpty()) {
+            job = UUID.randomUUID().toString();
+        }
+        result.setItemValue("archive.job", job);
+        List<String> paths = new ArrayList<String>();
+        for (Object path : document.getItemValue("archive.path")) {
+            paths.add(path.toString());
+        }
+        try {
+            DocumentTimestampJob.Result jobResult = signatureService.timestampDocuments(paths, job);
+            result.setItemValue("archive.total", jobResult.getTotal());
+        } catch (SigningException e) {
+            logger.log(Level.WARNING, "Failed to timestamp documents: " + e.getMessage(), e);
+            result.setItemValue("archive.error", e.getMessage());
+            return Response.status(Response.Status.BAD_REQUEST)
+                    .entity(XMLDataCollectionAdapter.getDataCollection(result)).type(MediaType.APPLICATION_XML)
+                    .build();
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * GET Request returning the progress of a document timestamp job.
+     * <p>
+     * The method returns a XMLDocument with the items 'archive.job',
+     * 'archive.done', 'archive.total', 'archive.documents', 'archive.skipped',
+     * 'archive.failed' and 'archive.rate' (documents per second).
+     *
+     * @param job - the job id
+     * @return - XMLDocument with the result of the job
+     */
+    @GET
+    @Path("timestamp")
+    public Response getTimestampJob(@QueryParam("job") String job) {
+        DocumentTimestampJob.Result jobResult = signatureService.getTimestampJob(job);
+        if (jobResult == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        ItemCollection result = new ItemCollection();
+        result.setItemValue("archive.job", job);
+        result.setItemValue("archive.done", jobResult.isDone());
+        result.setItemValue("archive.total", jobResult.getTotal());
+        result.setItemValue("archive.documents", jobResult.getTimestamped());
+        result.setItemValue("archive.skipped", jobResult.getSkipped());
+        result.setItemValue("archive.failed", jobResult.getFailed());
+        result.setItemValue("archive.rate", jobResult.getDocumentsPerSecond());
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to create RFC 4998 evidence records for a batch of documents.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     *
+     * <ul>
+     * <li>evidence.digest - list of base64 encoded SHA-256 document digests
+     * </ul>
+     *
+     * The method returns a XMLDocument with the item 'evidence.record' containing
+     * the base64 encoded evidence records in the order of the digests. All
+     * records are covered by a single timestamp over the root of a hash tree.
+     *
+     * @param requestXML - digest data
+     * @return - XMLDocument with the evidence records
+     */
+    @POST
+    @Path("evidence")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response createEvidenceRecords(XMLDocument xmlDocument) {
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection result = new ItemCollection();
+        try {
+            List<?> values = document.getItemValue("evidence.digest");
+            List<byte[]> digests = new ArrayList<byte[]>(values.size());
+            for (Object value : values) {
+                digests.add(Base64.getDecoder().decode(value.toString()));
+            }
+            List<String> records = new ArrayList<String>(digests.size());
+            for (EvidenceRecord evidenceRecord : evidenceRecordService.createEvidenceRecords(digests)) {
+                records.add(Base64.getEncoder().encodeToString(evidenceRecord.getEncoded()));
+            }
+            result.setItemValue("evidence.record", records);
+        } catch (SigningException | IOException | IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Failed to create evidence records: " + e.getMessage(), e);
+        }
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * POST Request to verify RFC 4998 evidence records.
+     * <p>
+     * A valid xml document structure is expected with the following items:
+     *
+     * <ul>
+     * <li>evidence.digest - list of base64 encoded SHA-256 document digests
+     * <li>evidence.record - list of base64 encoded evidence records
+     * </ul>
+     *
+     * The method returns a XMLDocument with the items 'evidence.valid' and
+     * 'evidence.time' (timestamp of the TSA) for each record. The reason of a
+     * failed verification is returned in 'evidence.error'. The TSA certificate
+     * must be issued by a root certificate of the keystore.
+     *
+     * @param requestXML - evidence data
+     * @return - XMLDocument with the verification results
+     */
+    @POST
+    @Path("evidence/verify")
+    @Consumes({ MediaType.APPLICATION_XML, MediaType.APPLICATION_JSON })
+    public Response verifyEvidenceRecords(XMLDocument xmlDocument) {
+        ItemCollection document = XMLDocumentAdapter.putDocument(xmlDocument);
+        ItemCollection result = new ItemCollection();
+        List<?> digests = document.getItemValue("evidence.digest");
+        List<?> records = document.getItemValue("evidence.record");
+        List<Boolean> valid = new ArrayList<Boolean>();
+        List<Object> times = new ArrayList<Object>();
+        List<String> errors = new ArrayList<String>();
+        for (int i = 0; i < records.size(); i++) {
+            try {
+                if (i >= digests.size()) {
+                    throw new CertificateVerificationException("missing document digest");
+                }
+                TimeStampToken token = evidenceRecordService.verifyEvidenceRecord(
+                        EvidenceRecord.getInstance(Base64.getDecoder().decode(records.get(i).toString())),
+                        Base64.getDecoder().decode(digests.get(i).toString()));
+                valid.add(true);
+                times.add(token.getTimeStampInfo().getGenTime());
+                errors.add("");
+            } catch (CertificateVerificationException | IOException | IllegalArgumentException e) {
+                logger.warning("...evidence record " + i + " is invalid: " + e.getMessage());
+                valid.add(false);
+                times.add("");
+                errors.add(e.getMessage());
+            }
+        }
+        result.setItemValue("evidence.valid", valid);
+        result.setItemValue("evidence.time", times);
+        result.setItemValue("evidence.error", errors);
+
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * GET Request returning the request statistics of all TSA hosts.
+     * <p>
+     * The method returns a XMLDocument with one entry per host containing the
+     * items 'tsa.host', 'tsa.requests', 'tsa.errors' and the latencies
+     * 'tsa.p50', 'tsa.p95', 'tsa.p99' and 'tsa.max' in milliseconds.
+     *
+     * @return - XMLDocument with the TSA statistics
+     */
+    @GET
+    @Path("tsa")
+    public Response getTSAStatistics() {
+        List<ItemCollection> result = new ArrayList<ItemCollection>();
+        for (Map.Entry<String, LatencyHistogram> entry : TSAHttpTransport.getHistograms().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            ItemCollection statistics = new ItemCollection();
+            statistics.setItemValue("tsa.host", entry.getKey());
+            statistics.setItemValue("tsa.requests", histogram.getCount());
+            statistics.setItemValue("tsa.errors", histogram.getErrors());
+            statistics.setItemValue("tsa.p50", histogram.getPercentile(50));
+            statistics.setItemValue("tsa.p95", histogram.getPercentile(95));
+            statistics.setItemValue("tsa.p99", histogram.getPercentile(99));
+            statistics.setItemValue("tsa.max", histogram.getMax());
+            result.add(statistics);
+        }
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(result), MediaType.APPLICATION_XML).build();
+    }
+
+    /**
+     * GET Request returning the statistics of the OCSP response cache.
+     * <p>
+     * The method returns a XMLDocument with the items 'ocsp.hits', 'ocsp.misses'
+     * (requests sent), 'ocsp.collapsed' (requests waiting for a concurrent
+     * request), 'ocsp.hitrate' and 'ocsp.cached' (number of cached responses).
+     * The items 'ocsp.batch.requests' and 'ocsp.batch.certificates' count the
+     * batched requests and the certificates checked with them.
+     *
+     * @return - XMLDocument with the OCSP cache statistics
+     */
+    @GET
+    @Path("ocsp")
+    public Response getOCSPStatistics() {
+        ItemCollection statistics = new ItemCollection();
+        statistics.setItemValue("ocsp.hits", OcspCache.getHitCount());
+        statistics.setItemValue("ocsp.misses", OcspCache.getMissCount());
+        statistics.setItemValue("ocsp.collapsed", OcspCache.getCollapsedCount());
+        statistics.setItemValue("ocsp.hitrate", OcspCache.getHitRate());
+        statistics.setItemValue("ocsp.cached", OcspCache.getCachedResponseCount());
+        statistics.setItemValue("ocsp.batch.requests", OcspBatchClient.getRequestCount());
+        statistics.setItemValue("ocsp.batch.certificates", OcspBatchClient.getCertificateCount());
+        return Response.ok(XMLDataCollectionAdapter.getDataCollection(statistics), MediaType.APPLICATION_XML)
+                .build();
+    }
+
+    /**
+     * Converts a SignatureReport into an ItemCollection
+     */
+    private ItemCollection createVerificationResult(String fileName, SignatureReport report) {
+        ItemCollection result = new ItemCollection();
+        if (fileName != null) {
+            result.setItemValue("verify.file", fileName);
+        }
+        result.setItemValue("verify.field", report.getFieldName());
+        result.setItemValue("verify.type", report.getType());
+        result.setItemValue("verify.subfilter", report.getSubFilter() != null ? report.getSubFilter() : "");
+        result.setItemValue("verify.signer", report.getSigner() != null ? report.getSigner() : "");
+        if (report.getSigningTime() != null) {
+            result.setItemValue("verify.time", report.getSigningTime());
+        }
+        result.setItemValue("verify.revision", report.getRevisionLength());
+        result.setItemValue("verify.coversdocument", report.isCoversDocument());
+        result.setItemValue("verify.byterange", report.isByteRangeValid());
+        result.setItemValue("verify.cms", report.isCmsValid());
+        result.setItemValue("verify.chain", report.isChainValid());
+        result.setItemValue("verify.revocation", report.getRevocationStatus());
+        result.setItemValue("verify.timestamp", report.isTimestamp() && report.isTimestampValid());
+        if (report.getTimestampTime() != null) {
+            result.setItemValue("verify.timestamp.time", report.getTimestampTime());
+        }
+        result.setItemValue("verify.valid", report.isValid());
+        result.setItemValue("verify.error", report.getErrors());
+        return result;
+    }
+
+    /**
+     * This helper method converts a PdfInspection into an ItemCollection
+     */
+    private ItemCollection createInspectionResult(String fileName, PdfInspection inspection,
+            String signatureFieldName) {
+        ItemCollection result = new ItemCollection();
+        if (fileName != null) {
+            result.setItemValue("signature.file", fileName);
+        }
+        String rejectReason = inspection.getRejectReason(signatureFieldName);
+        result.setItemValue("signature.reject", rejectReason != null ? rejectReason : "");
+        result.setItemValue("signature.incremental", inspection.isIncremental());
+        result.setItemValue("signature.encrypted", inspection.isEncrypted());
+        result.setItemValue("signature.mdp", inspection.getMDPPermission());
+        result.setItemValue("signature.version", inspection.getVersion());
+        result.setItemValue("signature.pages", inspection.getPageCount());
+        result.setItemValue("signature.signedfields", inspection.getSignedFields());
+        result.setItemValue("signature.emptyfields", inspection.getEmptySignatureFields());
+        if (inspection.getError() != null) {
+            result.setItemValue("signature.error", inspection.getError());
+        }
+        return result;
+    }
+
+    /**
+     * This helper method creates the inspection result of a file which could not
+     * be inspected. The file is rejected.
+     */
+    private ItemCollection createInspectionError(String fileName, SigningException e) {
+        ItemCollection result = new ItemCollection();
+        if (fileName != null) {
+            result.setItemValue("signature.file", fileName);
+        }
+        result.setItemValue("signature.reject", e.getMessage());
+        result.setItemValue("signature.error", e.getMessage());
+        return result;
+    }
+
+    /**
+     * This helper method computes the rectangle of a visual signature based on the
+     * options position-x, position-y, dimension-w, dimension-h, autoAlignment and
+     * verticalAlignment. If the document already contains signatures, the
+     * position is moved by the given signature count.
+     * 
+     * @param document       - the signature request
+     * @param signatureCount - number of existing visual signatures
+     * @return rectangle from a human viewpoint (coordinates start at top left)
+     */
+    private Rectangle2D createHumanRect(ItemCollection document, int signatureCount) {
+        float positionx = 30;
+        float positiony = 700;
+        float dimensionw = 170;
+        float dimensionh = 100;
+        boolean verticalAlignment = false;
+        boolean autoAlignment = true;
+        if (document.hasItem(OPTION_POSITION_X)) {
+            positionx = document.getItemValueFloat(OPTION_POSITION_X);
+        }
+        if (document.hasItem(OPTION_POSITION_Y)) {
+            positiony = document.getItemValueFloat(OPTION_POSITION_Y);
+        }
+        if (document.hasItem(OPTION_DIMENSION_W)) {
+            dimensionw = document.getItemValueFloat(OPTION_DIMENSION_W);
+        }
+        if (document.hasItem(OPTION_DIMENSION_H)) {
+            dimensionh = document.getItemValueFloat(OPTION_DIMENSION_H);
+        }
+        if (document.hasItem(OPTION_VERTICAL_ALIGNMENT)) {
+            verticalAlignment = document.getItemValueBoolean(OPTION_VERTICAL_ALIGNMENT);
+        }
+        if (document.hasItem(OPTION_AUTO_ALIGNMENT)) {
+            autoAlignment = document.getItemValueBoolean(OPTION_AUTO_ALIGNMENT);
+        }
+
+        // compute vertical / alignment if second visual..
+        // if we have already a signature we move the y position....
+        if (autoAlignment && signatureCount > 0) {
+            if (verticalAlignment) {
+                positiony = positiony + (signatureCount * dimensionh + 10);
+            } else {
+                positionx = positionx + (signatureCount * dimensionw + 10);
+            }
+        }
+        return new Rectangle2D.Float(positionx, positiony, dimensionw, dimensionh);
+    }
+
+    /**
+     * This helper method resolves the certificate alias for a signature request.
+     * If a signature with the root certificate is requested, the alias
+     * SIGNATURE_ROOTCERT_ALIAS is returned. Otherwise the alias is taken from the
+     * item 'certAlias'. If no certificate exists for this alias and the option
+     * 'autocreate' is set, a new certificate is created.
+     * 
+     * @param document      - the signature request
+     * @param rootsignature - true if the root certificate should be used
+     * @param autocreate    - true if a missing certificate should be created
+     * @return the certificate alias
+     */
+    private String resolveCertAlias(ItemCollection document, boolean rootsignature, boolean autocreate)
+            throws CertificateVerificationException, UnrecoverableKeyException, InvalidKeyException,
+            KeyStoreException, NoSuchAlgorithmException, NoSuchProviderException, OperatorCreationException,
+            CertificateException, SignatureException, IOException {
+        String certAlias = null;
+        // Test if the a signature with the root certificate is requested
+        if (rootsignature && rootCertAlias.isPresent()) {
+            certAlias = rootCertAlias.get();
+            // test existence of default certificate
+            if (!caService.existsCertificate(certAlias)) {
+                throw new ProcessingErrorException(this.getClass().getSimpleName(), "SIGNING_ERROR",
+                        "Root certificate '" + certAlias + "' does not exist!");
+            }
+        } else {
+            // signature with user certificate....
+            // compute alias validate existence of certificate
+            certAlias = document.getItemValueString("certAlias");
+
+            // test if a certificate exits....
+            if (!caService.existsCertificate(certAlias)) {
+                if (autocreate) {
+                    // create new certificate....
+                    // we expect that the document provides the correspondign x509 items
+                    // (o,ou,city,state,country)
+                    caService.createCertificate(certAlias, document);
+                } else {
+                    throw new CertificateVerificationException(
+                            "certificate for alias '" + certAlias + "' not found.");
+                }
+                // test existence of default certificate
+                if (!caService.existsCertificate(certAlias)) {
+                    throw new ProcessingErrorException(this.getClass().getSimpleName(), "SIGNING_ERROR",
+                            "No certificate exists for user '" + certAlias + "'");
+                }
+            }
+        }
+        return certAlias;
+    }
+
+    /**
+     * Returns the revision token stored in the attribute 'signature.revision' of a
+     * signed file, or null if the file was not signed by this service.
+     * 
+     * @param fileData
+     * @return revision token or null
+     */
+    private String getRevisionToken(FileData fileData) {
+        Map<String, List<Object>> attributes = fileData.getAttributes();
+        if (attributes == null) {
+            return null;
+        }
+        List<Object> values = attributes.get(ATTRIBUTE_REVISION);
+        if (values == null || values.isEmpty() || values.get(0) == null) {
+            return null;
+        }
+        return values.get(0).toString();
+    }
+
     /**
      * This helper method test if the current document holds a signature image. The
      * expected file name is 'signature.jpg|png|gif'
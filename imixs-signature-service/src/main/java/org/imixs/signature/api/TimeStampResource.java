@@ -0,0 +1,57 @@
+package org.imixs.signature.api;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.Response;
+
+import org.imixs.signature.ca.TimeStampAuthority;
+
+/**
+ * The TimeStampResource is the RFC 3161 http endpoint of the embedded
+ * TimeStampAuthority. The endpoint can be used as SIGNATURE_TSA_URL, e.g.
+ * 'http://localhost:8080/api/timestamp'.
+ *
+ * @author rsoika
+ *
+ */
+@Named
+@Path("timestamp")
+public class TimeStampResource {
+
+    public static final String MEDIA_TYPE_TIMESTAMP_QUERY = "application/timestamp-query";
+    public static final String MEDIA_TYPE_TIMESTAMP_REPLY = "application/timestamp-reply";
+
+    @Inject
+    TimeStampAuthority timeStampAuthority;
+
+    private static Logger logger = Logger.getLogger(TimeStampResource.class.getName());
+
+    /**
+     * POST Request with a DER encoded RFC 3161 TimeStampReq.
+     * <p>
+     * The method returns the DER encoded TimeStampResp. An invalid request is
+     * answered with a rejection response. If the TSA certificate is not
+     * available the method returns the status 503.
+     *
+     * @param request - DER encoded timestamp request
+     * @return - DER encoded timestamp response
+     */
+    @POST
+    @Consumes(MEDIA_TYPE_TIMESTAMP_QUERY)
+    @Produces(MEDIA_TYPE_TIMESTAMP_REPLY)
+    public Response timestamp(byte[] request) {
+        try {
+            return Response.ok(timeStampAuthority.timestamp(request), MEDIA_TYPE_TIMESTAMP_REPLY).build();
+        } catch (IOException e) {
+            logger.warning("Failed to create timestamp: " + e.getMessage());
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+        }
+    }
+}
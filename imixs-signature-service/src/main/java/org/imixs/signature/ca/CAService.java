@@ -159,4 +159,51 @@ public class CAService {
 
     }
 
+    /**
+     * This method generates a new X509 certificate for the embedded time stamping
+     * authority. The certificate has the critical extended key usage
+     * 'timeStamping' and is signed with the root certificate referred by the
+     * SIGNATURE_ROOTCERT_ALIAS.
+     * 
+     * @param alias - the alias the new certificate will be stored into the
+     *              keystore
+     * @param cn    - the common name of the TSA
+     * @return the certificate chain
+     * @throws NoSuchProviderException
+     * @throws NoSuchAlgorithmException
+     * @throws KeyStoreException
+     * @throws UnrecoverableKeyException
+     * @throws SignatureException
+     * @throws CertificateException
+     * @throws OperatorCreationException
+     * @throws InvalidKeyException
+     * @throws IOException
+     */
+    public X509Certificate[] createTimeStampingCertificate(String alias, String cn)
+            throws UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, NoSuchProviderException,
+            InvalidKeyException, OperatorCreationException, CertificateException, SignatureException, IOException {
+        if (!rootCertAlias.isPresent()) {
+            throw new KeyStoreException("no root certificate defined - set " + SigningService.ENV_SIGNATURE_ROOTCERT_ALIAS);
+        }
+        logger.info("...generating new time stamping certificate for alias '" + alias + "'...");
+        X509CertificateGenerator x509CertificateGenerator = new X509CertificateGenerator();
+
+        // load the root cert and private key...
+        Certificate[] rootCertChain = keystoreService.loadCertificate(rootCertAlias.get());
+        if (rootCertChain == null || rootCertChain.length == 0) {
+            throw new KeyStoreException("root certificate '" + rootCertAlias.get() + "' not found in keystore");
+        }
+        X509Certificate rootCert = (X509Certificate) rootCertChain[0];
+        PrivateKey rootPrivKey = keystoreService.loadPrivateKey(rootCertAlias.get(),
+                rootCertPassword.isPresent() ? rootCertPassword.get() : "");
+
+        KeyPair issueKeyPair = x509CertificateGenerator.generateKeyPair();
+        X509Certificate[] certificateChain = x509CertificateGenerator.generateTimeStampingCertificate(rootCert,
+                rootPrivKey, issueKeyPair, cn);
+
+        // store results to the keystore
+        keystoreService.storeCertificate(certificateChain, issueKeyPair.getPrivate(), "", alias);
+        return certificateChain;
+    }
+
 }
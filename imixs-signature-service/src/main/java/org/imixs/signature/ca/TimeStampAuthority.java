@@ -0,0 +1,267 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.ca;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.imixs.signature.service.KeystoreService;
+
+/**
+ * The TimeStampAuthority is an embedded RFC 3161 time stamping authority. The
+ * timestamp tokens are signed with a dedicated TSA certificate issued by the
+ * CAService. If the certificate for the alias SIGNATURE_TSA_ALIAS does not
+ * exist in the keystore or is expired, a new certificate is created and signed
+ * with the root certificate SIGNATURE_ROOTCERT_ALIAS.
+ * <p>
+ * Building a TimeStampTokenGenerator loads the key and encodes the certificate
+ * chain, so the generators are created once per alias and reused. A generator
+ * holds a content signer which can not be shared between threads. For that
+ * reason the generators are held in a lock-free pool and a request takes a
+ * generator from the pool and returns it afterwards. The response generator
+ * keeps the failure info of a rejected request, so it is created per request.
+ * The serial numbers are taken from an atomic counter prefixed with the start
+ * time of the service.
+ * <p>
+ * The service supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_TSA_ALIAS - keystore alias of the TSA certificate (default
+ * 'imixs-tsa')</li>
+ * <li>SIGNATURE_TSA_POLICY - policy OID of the issued tokens (default
+ * 0.4.0.2023.1.1)</li>
+ * </ul>
+ *
+ * @see CAService
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class TimeStampAuthority {
+
+    public final static String ENV_SIGNATURE_TSA_ALIAS = "signature.tsa.alias";
+    public final static String ENV_SIGNATURE_TSA_POLICY = "signature.tsa.policy";
+
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_TSA_ALIAS, defaultValue = "imixs-tsa")
+    String tsaAlias;
+
+    // ETSI EN 319 421 best practices policy for time-stamps
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_TSA_POLICY, defaultValue = "0.4.0.2023.1.1")
+    String tsaPolicy;
+
+    @Inject
+    KeystoreService keystoreService;
+
+    @Inject
+    CAService caService;
+
+    private final Map<String, Issuer> issuers = new ConcurrentHashMap<String, Issuer>();
+    private final BigInteger serialPrefix = BigInteger.valueOf(System.currentTimeMillis()).shiftLeft(32);
+    private final AtomicLong serialCounter = new AtomicLong();
+
+    private static Logger logger = Logger.getLogger(TimeStampAuthority.class.getName());
+
+    public TimeStampAuthority() {
+        super();
+    }
+
+    /**
+     * Creates a TimeStampAuthority without a container, e.g. in a unit test.
+     *
+     * @param keystoreService - the keystore providing the TSA certificate
+     * @param caService       - the CAService issuing a missing TSA certificate
+     * @param tsaAlias        - keystore alias of the TSA certificate
+     * @param tsaPolicy       - policy OID of the issued tokens
+     */
+    public TimeStampAuthority(KeystoreService keystoreService, CAService caService, String tsaAlias,
+            String tsaPolicy) {
+        super();
+        this.keystoreService = keystoreService;
+        this.caService = caService;
+        this.tsaAlias = tsaAlias;
+        this.tsaPolicy = tsaPolicy;
+    }
+
+    /**
+     * Creates a RFC 3161 timestamp response for the given DER encoded timestamp
+     * request. The token is signed with the certificate SIGNATURE_TSA_ALIAS.
+     * <p>
+     * A request which can not be parsed or uses an unsupported hash algorithm is
+     * answered with a rejection response.
+     *
+     * @param request DER encoded TimeStampReq
+     * @return DER encoded TimeStampResp
+     * @throws IOException if the TSA certificate can not be loaded or created
+     */
+    public byte[] timestamp(byte[] request) throws IOException {
+        return timestamp(request, tsaAlias);
+    }
+
+    /**
+     * Creates a RFC 3161 timestamp response for the given DER encoded timestamp
+     * request. The token is signed with the certificate of the given alias.
+     *
+     * @param request DER encoded TimeStampReq
+     * @param alias   keystore alias of the TSA certificate
+     * @return DER encoded TimeStampResp
+     * @throws IOException if the TSA certificate can not be loaded or created
+     */
+    public byte[] timestamp(byte[] request, String alias) throws IOException {
+        Issuer issuer = getIssuer(alias);
+        TimeStampTokenGenerator tokenGenerator = issuer.take();
+        try {
+            TimeStampResponseGenerator generator = new TimeStampResponseGenerator(tokenGenerator,
+                    TSPAlgorithms.ALLOWED);
+            TimeStampRequest timeStampRequest;
+            try {
+                timeStampRequest = new TimeStampRequest(request);
+            } catch (IOException | IllegalArgumentException e) {
+                return generator.generateFailResponse(PKIStatus.REJECTION, PKIFailureInfo.badDataFormat,
+                        "invalid request - " + e.getMessage()).getEncoded();
+            }
+            BigInteger serial = serialPrefix.or(BigInteger.valueOf(serialCounter.incrementAndGet()));
+            return generator.generate(timeStampRequest, serial, new Date()).getEncoded();
+        } catch (TSPException e) {
+            throw new IOException("Failed to create timestamp - " + e.getMessage(), e);
+        } finally {
+            issuer.release(tokenGenerator);
+        }
+    }
+
+    /**
+     * Returns the issuer for the given alias. The certificate is loaded from the
+     * keystore or created by the CAService if it does not exist or is expired.
+     */
+    private Issuer getIssuer(String alias) throws IOException {
+        Issuer issuer = issuers.get(alias);
+        if (issuer == null || issuer.notAfter < System.currentTimeMillis()) {
+            issuer = loadIssuer(alias);
+        }
+        return issuer;
+    }
+
+    private synchronized Issuer loadIssuer(String alias) throws IOException {
+        Issuer issuer = issuers.get(alias);
+        if (issuer != null && issuer.notAfter >= System.currentTimeMillis()) {
+            return issuer;
+        }
+        try {
+            Certificate[] certificateChain = keystoreService.loadCertificate(alias);
+            if (certificateChain == null || certificateChain.length == 0
+                    || ((X509Certificate) certificateChain[0]).getNotAfter().getTime() < System.currentTimeMillis()) {
+                certificateChain = caService.createTimeStampingCertificate(alias, alias);
+            }
+            PrivateKey privateKey = keystoreService.loadPrivateKey(alias);
+            if (privateKey == null) {
+                throw new IOException("private key for TSA alias '" + alias + "' not found in keystore");
+            }
+            X509Certificate[] chain = Arrays.copyOf(certificateChain, certificateChain.length,
+                    X509Certificate[].class);
+            issuer = new Issuer(chain, privateKey, new ASN1ObjectIdentifier(tsaPolicy));
+            // build the first generator to validate the certificate
+            issuer.release(issuer.take());
+            issuers.put(alias, issuer);
+            logger.info("...embedded TSA started with certificate '" + chain[0].getSubjectX500Principal() + "'");
+            return issuer;
+        } catch (GeneralSecurityException | OperatorCreationException e) {
+            throw new IOException("Failed to load TSA certificate '" + alias + "' - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * The certificate and key of one TSA alias with a pool of prebuilt
+     * TimeStampTokenGenerators
+     */
+    private static class Issuer {
+        private final X509Certificate[] certificateChain;
+        private final PrivateKey privateKey;
+        private final ASN1ObjectIdentifier policy;
+        private final long notAfter;
+        private final Queue<TimeStampTokenGenerator> pool = new ConcurrentLinkedQueue<TimeStampTokenGenerator>();
+
+        Issuer(X509Certificate[] certificateChain, PrivateKey privateKey, ASN1ObjectIdentifier policy) {
+            this.certificateChain = certificateChain;
+            this.privateKey = privateKey;
+            this.policy = policy;
+            this.notAfter = certificateChain[0].getNotAfter().getTime();
+        }
+
+        TimeStampTokenGenerator take() throws IOException {
+            TimeStampTokenGenerator generator = pool.poll();
+            if (generator != null) {
+                return generator;
+            }
+            try {
+                TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+                        new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", privateKey,
+                                certificateChain[0]),
+                        new JcaDigestCalculatorProviderBuilder().build()
+                                .get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256)),
+                        policy);
+                tokenGenerator.addCertificates(new JcaCertStore(Arrays.asList(certificateChain)));
+                tokenGenerator.setAccuracySeconds(1);
+                return tokenGenerator;
+            } catch (OperatorCreationException | GeneralSecurityException | TSPException e) {
+                throw new IOException("Failed to create timestamp generator - " + e.getMessage(), e);
+            }
+        }
+
+        void release(TimeStampTokenGenerator generator) {
+            pool.offer(generator);
+        }
+    }
+}
@@ -27,7 +27,9 @@ import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x500.X500NameBuilder;
 import org.bouncycastle.asn1.x500.style.RFC4519Style;
 import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
 import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.cert.CertIOException;
 import org.bouncycastle.cert.X509CertificateHolder;
@@ -270,6 +272,70 @@ public class X509CertificateGenerator {
 
     }
 
+    /**
+     * This method generates a new X509Certificate to be used by a time stamping
+     * authority (RFC 3161). The certificate is signed by the given
+     * root/intermediate certificate and has a critical extended key usage
+     * 'timeStamping' as required by RFC 3161.
+     * <p>
+     * The method returns a certificate chain containing the TSA certificate and
+     * the root certificate.
+     * 
+     * @throws NoSuchAlgorithmException
+     * @throws OperatorCreationException
+     * @throws CertIOException
+     * @throws CertificateException
+     * @throws SignatureException
+     * @throws NoSuchProviderException
+     * @throws InvalidKeyException
+     */
+    public X509Certificate[] generateTimeStampingCertificate(X509Certificate rootCert, PrivateKey rootPrivateKey,
+            KeyPair issuedCertKeyPair, String cn) throws NoSuchAlgorithmException, OperatorCreationException,
+            CertIOException, CertificateException, InvalidKeyException, NoSuchProviderException, SignatureException {
+
+        logger.fine("...generating new time stamping certificate " + cn + "...");
+
+        if (cn == null || cn.isEmpty()) {
+            throw new IllegalArgumentException("cn is empty or null!");
+        }
+        // Setup start date to yesterday and end date for 1 year validity
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DATE, -1);
+        Date startDate = calendar.getTime();
+
+        calendar.add(Calendar.YEAR, 1);
+        Date endDate = calendar.getTime();
+
+        X500Name rootCertIssuer = new X500Name(rootCert.getSubjectDN().toString());
+        X500NameBuilder builder = new X500NameBuilder(RFC4519Style.INSTANCE);
+        builder.addRDN(RFC4519Style.cn, cn);
+        BigInteger issuedCertSerialNum = new BigInteger(Long.toString(new SecureRandom().nextLong()));
+        X509v3CertificateBuilder issuedCertBuilder = new JcaX509v3CertificateBuilder(rootCertIssuer,
+                issuedCertSerialNum, startDate, endDate, builder.build(), issuedCertKeyPair.getPublic());
+
+        JcaX509ExtensionUtils issuedCertExtUtils = new JcaX509ExtensionUtils();
+        issuedCertBuilder.addExtension(Extension.basicConstraints, true, new BasicConstraints(false));
+        issuedCertBuilder.addExtension(Extension.authorityKeyIdentifier, false,
+                issuedCertExtUtils.createAuthorityKeyIdentifier(rootCert));
+        issuedCertBuilder.addExtension(Extension.subjectKeyIdentifier, false,
+                issuedCertExtUtils.createSubjectKeyIdentifier(issuedCertKeyPair.getPublic()));
+        issuedCertBuilder.addExtension(Extension.keyUsage, true,
+                new KeyUsage(KeyUsage.digitalSignature | KeyUsage.nonRepudiation));
+        // RFC 3161 requires the extended key usage timeStamping marked as critical
+        issuedCertBuilder.addExtension(Extension.extendedKeyUsage, true,
+                new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+
+        ContentSigner contentSigner = new JcaContentSignerBuilder(getSignatureAlgorithm()).setProvider(BC_PROVIDER)
+                .build(rootPrivateKey);
+        X509Certificate issuedCert = new JcaX509CertificateConverter().setProvider(BC_PROVIDER)
+                .getCertificate(issuedCertBuilder.build(contentSigner));
+
+        // Verify the issued cert signature against the root (issuer) cert
+        issuedCert.verify(rootCert.getPublicKey(), BC_PROVIDER);
+
+        return new X509Certificate[] { issuedCert, rootCert };
+    }
+
     /**
      * Generates a new keyPair.
      * 
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.ers;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.ASN1TaggedObject;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+
+/**
+ * The EvidenceRecord holds the proof of existence of a single document as
+ * defined in RFC 4998 (Evidence Record Syntax).
+ * <p>
+ * The record consists of one ArchiveTimeStamp with the reduced hash tree of the
+ * document and the timestamp token over the root hash of the tree. So a whole
+ * batch of documents is covered by a single timestamp, while each record only
+ * holds the log2(n) hashes needed to compute the root from the document hash.
+ * <p>
+ * The record is DER encoded with the ASN.1 module of RFC 4998. The hash
+ * algorithm is always SHA-256. Renewed records with more than one
+ * ArchiveTimeStamp are not supported.
+ *
+ * @see HashTree
+ * @see EvidenceRecordVerifier
+ * @author rsoika
+ * @version 1.0
+ */
+public class EvidenceRecord {
+
+    private static final AlgorithmIdentifier SHA256 = new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256);
+
+    private final List<List<byte[]>> reducedHashtree;
+    private final byte[] timeStampToken;
+
+    /**
+     * @param reducedHashtree the reduced hash tree of the document
+     * @param timeStampToken  the encoded timestamp token over the root hash
+     */
+    public EvidenceRecord(List<List<byte[]>> reducedHashtree, byte[] timeStampToken) {
+        super();
+        this.reducedHashtree = reducedHashtree;
+        this.timeStampToken = timeStampToken;
+    }
+
+    public List<List<byte[]>> getReducedHashtree() {
+        return reducedHashtree;
+    }
+
+    public byte[] getTimeStampToken() {
+        return timeStampToken;
+    }
+
+    /**
+     * Returns the DER encoded EvidenceRecord
+     *
+     * @return encoded record
+     * @throws IOException
+     */
+    public byte[] getEncoded() throws IOException {
+        ASN1EncodableVector partialHashtrees = new ASN1EncodableVector();
+        for (List<byte[]> partialHashtree : reducedHashtree) {
+            ASN1EncodableVector hashes = new ASN1EncodableVector();
+            for (byte[] hash : partialHashtree) {
+                hashes.add(new DEROctetString(hash));
+            }
+            partialHashtrees.add(new DERSequence(hashes));
+        }
+
+        ASN1EncodableVector archiveTimeStamp = new ASN1EncodableVector();
+        archiveTimeStamp.add(new DERTaggedObject(false, 0, SHA256));
+        if (!reducedHashtree.isEmpty()) {
+            archiveTimeStamp.add(new DERTaggedObject(false, 2, new DERSequence(partialHashtrees)));
+        }
+        archiveTimeStamp.add(ContentInfo.getInstance(ASN1Primitive.fromByteArray(timeStampToken)));
+
+        ASN1EncodableVector evidenceRecord = new ASN1EncodableVector();
+        evidenceRecord.add(new ASN1Integer(1));
+        evidenceRecord.add(new DERSequence(SHA256));
+        // ArchiveTimeStampSequence with a single ArchiveTimeStampChain
+        evidenceRecord.add(new DERSequence(new DERSequence(new DERSequence(archiveTimeStamp))));
+        return new DERSequence(evidenceRecord).getEncoded(ASN1Encoding.DER);
+    }
+
+    /**
+     * Parses a DER encoded EvidenceRecord
+     *
+     * @param encoded the encoded record
+     * @return the EvidenceRecord
+     * @throws IOException if the record is invalid or not supported
+     */
+    public static EvidenceRecord getInstance(byte[] encoded) throws IOException {
+        try {
+            ASN1Sequence evidenceRecord = ASN1Sequence.getInstance(ASN1Primitive.fromByteArray(encoded));
+            if (ASN1Integer.getInstance(evidenceRecord.getObjectAt(0)).getValue().intValue() != 1) {
+                throw new IOException("unsupported evidence record version");
+            }
+            // cryptoInfos and encryptionInfo are skipped
+            ASN1Sequence archiveTimeStampSequence = ASN1Sequence
+                    .getInstance(evidenceRecord.getObjectAt(evidenceRecord.size() - 1));
+            if (archiveTimeStampSequence.size() != 1
+                    || ASN1Sequence.getInstance(archiveTimeStampSequence.getObjectAt(0)).size() != 1) {
+                throw new IOException("renewed evidence records are not supported");
+            }
+            ASN1Sequence archiveTimeStamp = ASN1Sequence.getInstance(
+                    ASN1Sequence.getInstance(archiveTimeStampSequence.getObjectAt(0)).getObjectAt(0));
+
+            List<List<byte[]>> reducedHashtree = new ArrayList<List<byte[]>>();
+            byte[] timeStampToken = null;
+            for (ASN1Encodable element : archiveTimeStamp) {
+                if (element instanceof ASN1TaggedObject) {
+                    ASN1TaggedObject tagged = (ASN1TaggedObject) element;
+                    if (tagged.getTagNo() == 0 && !SHA256.equals(AlgorithmIdentifier.getInstance(tagged, false))) {
+                        throw new IOException("unsupported digest algorithm");
+                    }
+                    if (tagged.getTagNo() == 2) {
+                        for (ASN1Encodable partialHashtree : ASN1Sequence.getInstance(tagged, false)) {
+                            List<byte[]> hashes = new ArrayList<byte[]>();
+                            for (ASN1Encodable hash : ASN1Sequence.getInstance(partialHashtree)) {
+                                hashes.add(ASN1OctetString.getInstance(hash).getOctets());
+                            }
+                            reducedHashtree.add(hashes);
+                        }
+                    }
+                } else {
+                    timeStampToken = ContentInfo.getInstance(element).getEncoded(ASN1Encoding.DER);
+                }
+            }
+            if (timeStampToken == null) {
+                throw new IOException("missing timestamp token");
+            }
+            return new EvidenceRecord(reducedHashtree, timeStampToken);
+        } catch (IllegalArgumentException | ClassCastException e) {
+            throw new IOException("invalid evidence record - " + e.getMessage(), e);
+        }
+    }
+}
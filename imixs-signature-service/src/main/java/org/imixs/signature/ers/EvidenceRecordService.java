@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.ers;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Logger;
+
+import javax.ejb.LocalBean;
+import javax.ejb.Stateless;
+import javax.inject.Inject;
+
+import org.bouncycastle.tsp.TimeStampToken;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.pdf.cert.CertificateVerificationException;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.pdf.util.ValidationTimeStamp;
+import org.imixs.signature.service.KeystoreService;
+
+/**
+ * The EvidenceRecordService creates RFC 4998 evidence records for a batch of
+ * documents.
+ * <p>
+ * The SHA-256 digests of the documents are aggregated in a HashTree and only
+ * the root hash is timestamped by the TSA defined by SIGNATURE_TSA_URL. So a
+ * batch of any size costs a single TSA request. Each document gets its own
+ * EvidenceRecord with the reduced hash tree and the shared timestamp token.
+ * <p>
+ * Evidence records are verified against the root certificates of the
+ * keystore.
+ *
+ * @see HashTree
+ * @see EvidenceRecord
+ * @author rsoika
+ * @version 1.0
+ */
+@Stateless
+@LocalBean
+public class EvidenceRecordService {
+
+    @Inject
+    @ConfigProperty(name = SigningService.ENV_SIGNATURE_TSA_URL)
+    Optional<String> tsaURL;
+
+    @Inject
+    KeystoreService keystoreService;
+
+    private static Logger logger = Logger.getLogger(EvidenceRecordService.class.getName());
+
+    /**
+     * Creates an EvidenceRecord for each document digest. All records share one
+     * timestamp token over the root hash of the batch.
+     *
+     * @param documentDigests list of SHA-256 document digests
+     * @return list of EvidenceRecords in the order of the digests
+     * @throws SigningException if no TSA is defined or the timestamp request
+     *                          fails
+     */
+    public List<EvidenceRecord> createEvidenceRecords(List<byte[]> documentDigests) throws SigningException {
+        if (!tsaURL.isPresent() || tsaURL.get().isEmpty()) {
+            throw new SigningException("no TSA url defined - set " + SigningService.ENV_SIGNATURE_TSA_URL);
+        }
+        for (byte[] documentDigest : documentDigests) {
+            if (documentDigest == null || documentDigest.length != 32) {
+                throw new SigningException("invalid SHA-256 digest");
+            }
+        }
+        if (documentDigests.isEmpty()) {
+            return new ArrayList<EvidenceRecord>();
+        }
+        try {
+            long l = System.currentTimeMillis();
+            HashTree hashTree = new HashTree(documentDigests);
+            byte[] token = new ValidationTimeStamp(tsaURL.get()).getTimeStampTokenForDigest(hashTree.getRoot());
+            List<EvidenceRecord> result = new ArrayList<EvidenceRecord>(documentDigests.size());
+            for (int i = 0; i < hashTree.size(); i++) {
+                result.add(new EvidenceRecord(hashTree.getReducedHashtree(i), token));
+            }
+            logger.info("......created " + result.size() + " evidence records in "
+                    + (System.currentTimeMillis() - l) + "ms");
+            return result;
+        } catch (NoSuchAlgorithmException | IOException e) {
+            throw new SigningException("Failed to create evidence records - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Verifies an EvidenceRecord for the given document digest. The TSA
+     * certificate must be issued by a root certificate of the keystore.
+     *
+     * @param evidenceRecord the EvidenceRecord
+     * @param documentDigest SHA-256 digest of the document
+     * @return the verified TimeStampToken providing the time of existence
+     * @throws CertificateVerificationException if the record does not prove the
+     *                                          existence of the document
+     */
+    public TimeStampToken verifyEvidenceRecord(EvidenceRecord evidenceRecord, byte[] documentDigest)
+            throws CertificateVerificationException {
+        return EvidenceRecordVerifier.verify(evidenceRecord, documentDigest,
+                keystoreService.loadTrustedCertificates());
+    }
+}
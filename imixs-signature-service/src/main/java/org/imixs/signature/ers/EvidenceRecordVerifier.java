@@ -0,0 +1,126 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.ers;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.Selector;
+import org.imixs.signature.pdf.cert.CertificateVerificationException;
+import org.imixs.signature.pdf.cert.CertificateVerifier;
+import org.imixs.signature.pdf.util.SigUtils;
+
+/**
+ * The EvidenceRecordVerifier verifies an EvidenceRecord against the SHA-256
+ * digest of a document as defined in RFC 4998 section 5.3.
+ * <p>
+ * The root hash is computed from the document digest and the reduced hash tree
+ * and compared with the message imprint of the timestamp token. Then the
+ * signature of the timestamp token is validated with the TSA certificate
+ * embedded in the token. The TSA certificate must have the extended key usage
+ * 'timeStamping' and is verified up to one of the trusted root certificates at
+ * the time of the timestamp. The certificates embedded in the token are only
+ * used as intermediate certificates.
+ *
+ * @see EvidenceRecord
+ * @author rsoika
+ * @version 1.0
+ */
+public class EvidenceRecordVerifier {
+
+    /**
+     * Verifies the evidence record for the given document digest.
+     *
+     * @param evidenceRecord      the EvidenceRecord
+     * @param documentDigest      SHA-256 digest of the document
+     * @param trustedCertificates trusted root certificates of the TSA
+     * @return the verified TimeStampToken providing the time of existence
+     * @throws CertificateVerificationException if the record does not prove the
+     *                                          existence of the document or the
+     *                                          TSA is not trusted
+     */
+    public static TimeStampToken verify(EvidenceRecord evidenceRecord, byte[] documentDigest,
+            Set<X509Certificate> trustedCertificates) throws CertificateVerificationException {
+        try {
+            byte[] root = HashTree.computeRoot(documentDigest, evidenceRecord.getReducedHashtree());
+            if (root == null) {
+                throw new CertificateVerificationException("document digest is not part of the evidence record");
+            }
+
+            TimeStampToken token = new TimeStampToken(new CMSSignedData(evidenceRecord.getTimeStampToken()));
+            if (!NISTObjectIdentifiers.id_sha256.equals(token.getTimeStampInfo().getMessageImprintAlgOID())) {
+                throw new CertificateVerificationException("unsupported message imprint algorithm "
+                        + token.getTimeStampInfo().getMessageImprintAlgOID());
+            }
+            if (!Arrays.equals(root, token.getTimeStampInfo().getMessageImprintDigest())) {
+                throw new CertificateVerificationException("root hash does not match the timestamp token");
+            }
+            SigUtils.validateTimestampToken(token);
+            verifyTimeStampCertificate(token, trustedCertificates);
+            return token;
+        } catch (NoSuchAlgorithmException | CMSException | TSPException | CertificateException
+                | OperatorCreationException | IOException e) {
+            throw new CertificateVerificationException("invalid evidence record - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Verifies the extended key usage and the certificate chain of the TSA
+     * certificate
+     */
+    private static void verifyTimeStampCertificate(TimeStampToken token, Set<X509Certificate> trustedCertificates)
+            throws CertificateException, CertificateVerificationException {
+        JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+        @SuppressWarnings("unchecked") // TimeStampToken.getSID() is untyped
+        Collection<X509CertificateHolder> matches = token.getCertificates()
+                .getMatches((Selector<X509CertificateHolder>) token.getSID());
+        X509Certificate certificate = converter.getCertificate(matches.iterator().next());
+        List<String> extendedKeyUsage = certificate.getExtendedKeyUsage();
+        if (extendedKeyUsage == null || !extendedKeyUsage.contains(KeyPurposeId.id_kp_timeStamping.getId())) {
+            throw new CertificateVerificationException("TSA certificate "
+                    + certificate.getSubjectX500Principal().getName() + " is not valid for timestamping");
+        }
+        Set<X509Certificate> additionalCerts = new HashSet<X509Certificate>();
+        for (X509CertificateHolder holder : token.getCertificates().getMatches(null)) {
+            additionalCerts.add(converter.getCertificate(holder));
+        }
+        CertificateVerifier.verifyCertificate(certificate, additionalCerts, trustedCertificates,
+                token.getTimeStampInfo().getGenTime());
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.ers;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The HashTree aggregates the digests of a batch of documents into a single
+ * root hash as defined in RFC 4998 section 4.2.
+ * <p>
+ * The leaves are grouped in pairs. If a level has an odd number of nodes, the
+ * last group holds three nodes. The hash of a group is computed over the
+ * concatenation of the binary sorted hashes of its nodes. So the order of the
+ * nodes within a group does not matter for the verification.
+ * <p>
+ * For each leaf a reduced hash tree can be extracted. The first partial hash
+ * tree holds the leaf and its siblings, each following partial hash tree holds
+ * only the siblings of the computed node. A tree with a single leaf has the
+ * leaf itself as root and an empty reduced hash tree.
+ *
+ * @see EvidenceRecord
+ * @author rsoika
+ * @version 1.0
+ */
+public class HashTree {
+
+    public final static String DIGEST_ALGORITHM = "SHA-256";
+
+    // levels of the tree, beginning with the leaves
+    private final List<byte[][]> levels = new ArrayList<byte[][]>();
+
+    /**
+     * Builds the hash tree for the given SHA-256 leaf digests
+     *
+     * @param leaves list of document digests
+     * @throws NoSuchAlgorithmException
+     */
+    public HashTree(List<byte[]> leaves) throws NoSuchAlgorithmException {
+        if (leaves.isEmpty()) {
+            throw new IllegalArgumentException("hash tree must contain at least one leaf");
+        }
+        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        byte[][] level = leaves.toArray(new byte[leaves.size()][]);
+        levels.add(level);
+        while (level.length > 1) {
+            byte[][] parents = new byte[level.length / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = hashGroup(md, Arrays.asList(getGroup(level, i)));
+            }
+            level = parents;
+            levels.add(level);
+        }
+    }
+
+    /**
+     * Returns the root hash to be timestamped
+     *
+     * @return root hash
+     */
+    public byte[] getRoot() {
+        return levels.get(levels.size() - 1)[0];
+    }
+
+    public int size() {
+        return levels.get(0).length;
+    }
+
+    /**
+     * Returns the reduced hash tree of a leaf. Each element of the list is a
+     * partial hash tree.
+     *
+     * @param index index of the leaf
+     * @return list of partial hash trees
+     */
+    public List<List<byte[]>> getReducedHashtree(int index) {
+        List<List<byte[]>> result = new ArrayList<List<byte[]>>();
+        for (int l = 0; l < levels.size() - 1; l++) {
+            byte[][] level = levels.get(l);
+            int group = Math.min(index / 2, level.length / 2 - 1);
+            List<byte[]> partialHashtree = new ArrayList<byte[]>();
+            int first = group * 2;
+            for (byte[] node : getGroup(level, group)) {
+                // the computed node is omitted above the leaf level
+                if (l == 0 || first != index) {
+                    partialHashtree.add(node);
+                }
+                first++;
+            }
+            result.add(partialHashtree);
+            index = group;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the root hash of a reduced hash tree for the given leaf as defined
+     * in RFC 4998 section 4.3.
+     *
+     * @param leaf            the document digest
+     * @param reducedHashtree the reduced hash tree of the document
+     * @return the root hash or null if the leaf is not part of the first partial
+     *         hash tree
+     * @throws NoSuchAlgorithmException
+     */
+    public static byte[] computeRoot(byte[] leaf, List<List<byte[]>> reducedHashtree)
+            throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+        byte[] hash = leaf;
+        for (int i = 0; i < reducedHashtree.size(); i++) {
+            List<byte[]> group = new ArrayList<byte[]>(reducedHashtree.get(i));
+            if (i == 0) {
+                if (!contains(group, hash)) {
+                    return null;
+                }
+            } else {
+                group.add(hash);
+            }
+            hash = hashGroup(md, group);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the nodes of a group. The last group of a level with an odd number
+     * of nodes holds three nodes.
+     */
+    private static byte[][] getGroup(byte[][] level, int group) {
+        int first = group * 2;
+        int length = (first + 3 == level.length) ? 3 : 2;
+        return Arrays.copyOfRange(level, first, first + length);
+    }
+
+    private static byte[] hashGroup(MessageDigest md, List<byte[]> group) {
+        List<byte[]> sorted = new ArrayList<byte[]>(group);
+        Collections.sort(sorted, BINARY_ORDER);
+        md.reset();
+        for (byte[] hash : sorted) {
+            md.update(hash);
+        }
+        return md.digest();
+    }
+
+    private static boolean contains(List<byte[]> group, byte[] hash) {
+        for (byte[] node : group) {
+            if (Arrays.equals(node, hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Binary ascending order of unsigned bytes
+     */
+    private final static Comparator<byte[]> BINARY_ORDER = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] a, byte[] b) {
+            for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                int diff = (a[i] & 0xff) - (b[i] & 0xff);
+                if (diff != 0) {
+                    return diff;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+}
@@ -0,0 +1,323 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+import org.apache.pdfbox.util.Hex;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.pdf.util.ValidationTimeStamp;
+
+/**
+ * The DeferredTimestampQueue adds the signature timestamp to signed documents
+ * in the background.
+ * <p>
+ * In the deferred mode the SigningService creates the CMS signature without a
+ * timestamp and returns the document immediately. The /Contents placeholder is
+ * reserved with the size of a timestamped signature. The queue requests the
+ * timestamp token, adds it as unsigned attribute to the CMS signature and
+ * patches the new CMS signature into the placeholder of a copy of the
+ * document. The signed byte range is not changed by the patch, so the
+ * signature stays valid.
+ * <p>
+ * Documents are tracked by the SHA-256 hash of the document returned to the
+ * caller. The final document can be fetched with the method flush, which waits
+ * for a pending timestamp. Documents not flushed are removed after
+ * SIGNATURE_EXTERNAL_TTL by a timer and on each submit or flush. A timestamp
+ * still pending after this time is cancelled.
+ * <p>
+ * The queue holds up to SIGNATURE_TSA_DEFERRED_MAX megabytes of documents
+ * (default 256). Further documents are rejected until queued documents are
+ * flushed or expired.
+ *
+ * @see SigningService
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class DeferredTimestampQueue {
+
+    public final static String ENV_SIGNATURE_TSA_DEFERRED_MAX = "signature.tsa.deferred.max";
+
+    @Inject
+    @ConfigProperty(name = SigningService.ENV_SIGNATURE_BATCH_TSA_THREADS, defaultValue = "4")
+    int tsaThreads;
+
+    @Inject
+    @ConfigProperty(name = SigningService.ENV_SIGNATURE_EXTERNAL_TTL, defaultValue = "3600")
+    long ttl;
+
+    // max size in megabytes of all queued documents
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_TSA_DEFERRED_MAX, defaultValue = "256")
+    long maxSize;
+
+    @Inject
+    SignatureSizeEstimator signatureSizeEstimator;
+
+    private ExecutorService executor;
+    private final Map<String, DeferredDocument> documents = new ConcurrentHashMap<String, DeferredDocument>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private static Logger logger = Logger.getLogger(DeferredTimestampQueue.class.getName());
+
+    public DeferredTimestampQueue(SignatureSizeEstimator signatureSizeEstimator, int tsaThreads, long ttl,
+            long maxSize) {
+        super();
+        this.signatureSizeEstimator = signatureSizeEstimator;
+        this.tsaThreads = tsaThreads;
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        init();
+    }
+
+    public DeferredTimestampQueue() {
+        super();
+    }
+
+    @PostConstruct
+    void init() {
+        executor = Executors.newFixedThreadPool(Math.max(1, tsaThreads));
+    }
+
+    @PreDestroy
+    void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns true if a document of the given size can be queued
+     *
+     * @param size the size of the document in bytes
+     * @return true if the queue has capacity
+     */
+    public boolean hasCapacity(long size) {
+        purgeExpired();
+        return queuedBytes.get() + size <= maxSize * 1024 * 1024;
+    }
+
+    /**
+     * Queues a signed document for the timestamp augmentation.
+     *
+     * @param key          the SHA-256 hash (hex) of the signed document
+     * @param content      the signed document
+     * @param byteRange    the byte range of the signature to be timestamped
+     * @param cmsSignature the CMS signature without timestamp
+     * @param tsaUrl       the TSA url
+     * @throws SigningException if the queue is full
+     */
+    public void submit(String key, final byte[] content, final int[] byteRange, final byte[] cmsSignature,
+            final String tsaUrl) throws SigningException {
+        purgeExpired();
+        if (queuedBytes.addAndGet(content.length) > maxSize * 1024 * 1024) {
+            queuedBytes.addAndGet(-content.length);
+            throw new SigningException("deferred timestamp queue is full, " + documents.size()
+                    + " documents are waiting to be flushed");
+        }
+        Future<byte[]> future = executor.submit(() -> addTimeStamp(content, byteRange, cmsSignature, tsaUrl));
+        DeferredDocument previous = documents.put(key, new DeferredDocument(future, content.length));
+        if (previous != null) {
+            release(previous);
+        }
+        logger.fine("......queued document " + key + " for timestamp, " + documents.size() + " documents pending");
+    }
+
+    /**
+     * Returns true if the document is queued and not yet flushed
+     *
+     * @param key the SHA-256 hash (hex) of the signed document
+     * @return true if queued
+     */
+    public boolean contains(String key) {
+        return documents.containsKey(key);
+    }
+
+    /**
+     * Returns true if the timestamp of the document is not yet added
+     *
+     * @param key the SHA-256 hash (hex) of the signed document
+     * @return true if the timestamp is pending
+     */
+    public boolean isPending(String key) {
+        DeferredDocument document = documents.get(key);
+        return document != null && !document.future.isDone();
+    }
+
+    /**
+     * Returns the keys of all documents waiting for a timestamp
+     *
+     * @return list of keys
+     */
+    public List<String> getPendingKeys() {
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, DeferredDocument> entry : documents.entrySet()) {
+            if (!entry.getValue().future.isDone()) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Waits for the timestamp of a queued document and returns the final
+     * document. The document is removed from the queue.
+     *
+     * @param key     the SHA-256 hash (hex) of the signed document
+     * @param timeout maximum time to wait in milliseconds
+     * @return the timestamped document
+     * @throws SigningException if the document is unknown, the timestamp is still
+     *                          pending after the timeout or can not be added
+     */
+    public byte[] flush(String key, long timeout) throws SigningException {
+        purgeExpired();
+        DeferredDocument document = documents.get(key);
+        if (document == null) {
+            throw new SigningException("no deferred timestamp for document " + key);
+        }
+        try {
+            byte[] result = document.future.get(timeout, TimeUnit.MILLISECONDS);
+            remove(key, document);
+            return result;
+        } catch (TimeoutException e) {
+            throw new SigningException("timestamp of document " + key + " is still pending");
+        } catch (CancellationException e) {
+            remove(key, document);
+            throw new SigningException("timestamp of document " + key + " expired");
+        } catch (ExecutionException e) {
+            remove(key, document);
+            throw new SigningException("Failed to add timestamp - " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SigningException("interrupted while waiting for timestamp", e);
+        }
+    }
+
+    /**
+     * Requests the timestamp token and patches the timestamped CMS signature into
+     * a copy of the document.
+     */
+    private byte[] addTimeStamp(byte[] content, int[] byteRange, byte[] cmsSignature, String tsaUrl)
+            throws IOException {
+        long l = System.currentTimeMillis();
+        CMSSignedData timestampedData;
+        try {
+            timestampedData = new ValidationTimeStamp(tsaUrl).addSignedTimeStamp(new CMSSignedData(cmsSignature));
+        } catch (CMSException | java.security.NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] timestampedSignature = timestampedData.getEncoded();
+        signatureSizeEstimator.updateTimestamp(getTimeStampTokenSize(timestampedData));
+        // the placeholder is hex encoded and enclosed by '<' and '>'
+        int start = byteRange[1] + 1;
+        int end = byteRange[2] - 1;
+        if (timestampedSignature.length * 2 > end - start) {
+            throw new IOException("timestamped signature does not fit into the reserved space");
+        }
+        byte[] result = Arrays.copyOf(content, content.length);
+        Arrays.fill(result, start, end, (byte) '0');
+        byte[] hex = Hex.getBytes(timestampedSignature);
+        System.arraycopy(hex, 0, result, start, hex.length);
+        logger.fine("......deferred timestamp added in " + (System.currentTimeMillis() - l) + "ms");
+        return result;
+    }
+
+    /**
+     * Returns the encoded size of the timestamp token added to the signer of the
+     * CMS signature
+     */
+    private int getTimeStampTokenSize(CMSSignedData signedData) throws IOException {
+        SignerInformation signer = signedData.getSignerInfos().getSigners().iterator().next();
+        Attribute attribute = signer.getUnsignedAttributes().get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken);
+        return attribute.getAttrValues().getObjectAt(0).toASN1Primitive().getEncoded().length;
+    }
+
+    /**
+     * Removes documents not flushed within the time to live. A timestamp still
+     * pending is cancelled. The method is called by a timer every 5 minutes.
+     */
+    @Schedule(hour = "*", minute = "*/5", persistent = false)
+    public void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, DeferredDocument>> iterator = documents.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, DeferredDocument> entry = iterator.next();
+            DeferredDocument document = entry.getValue();
+            if (now - document.created > ttl * 1000) {
+                document.future.cancel(true);
+                remove(entry.getKey(), document);
+                logger.fine("......removed expired document " + entry.getKey());
+            }
+        }
+    }
+
+    private void remove(String key, DeferredDocument document) {
+        if (documents.remove(key, document)) {
+            release(document);
+        }
+    }
+
+    private void release(DeferredDocument document) {
+        queuedBytes.addAndGet(-document.size);
+    }
+
+    private static class DeferredDocument {
+        private final Future<byte[]> future;
+        private final long size;
+        private final long created = System.currentTimeMillis();
+
+        DeferredDocument(Future<byte[]> future, long size) {
+            this.future = future;
+            this.size = size;
+        }
+    }
+}
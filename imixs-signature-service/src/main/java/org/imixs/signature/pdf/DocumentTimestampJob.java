@@ -0,0 +1,516 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.Path;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.ExternalSigningSupport;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
+import org.imixs.signature.pdf.util.SigUtils;
+import org.imixs.signature.pdf.util.ValidationTimeStamp;
+
+/**
+ * The DocumentTimestampJob appends a document timestamp (DocTimeStamp) to a
+ * list of archived PDF documents to extend the validity of their signatures.
+ * <p>
+ * The job runs in two stages. The preparation workers load a document, add the
+ * timestamp signature and hash the byte range. The prepared documents are
+ * passed to the TSA stage, which requests the timestamp tokens concurrently and
+ * writes the documents. So the TSA requests are pipelined with the preparation
+ * of the next documents. The number of documents in progress is bounded by the
+ * number of workers plus the number of TSA threads, and each document is read
+ * from and written to disk. This keeps the memory usage independent of the
+ * number and size of the documents. The tasks of both stages are executed by
+ * the given Executor, which is the ManagedExecutorService of the container.
+ * <p>
+ * A timestamped document is first written to a new temporary file in the
+ * directory of the document and then atomically moved over the original file. The result of each document is appended to a journal
+ * file. If the job is started again with the same journal, all documents
+ * already timestamped are skipped.
+ *
+ * @see SigningService#timestampDocuments
+ * @author rsoika
+ * @version 1.0
+ */
+public class DocumentTimestampJob {
+
+    public final static String JOURNAL_OK = "OK";
+    public final static String JOURNAL_FAILED = "FAILED";
+
+    private final String tsaUrl;
+    private final SignatureSizeEstimator signatureSizeEstimator;
+    private final int workers;
+    private final int tsaThreads;
+    private final File journalFile;
+    private final Executor executor;
+    private final Result result = new Result();
+
+    private static Logger logger = Logger.getLogger(DocumentTimestampJob.class.getName());
+
+    /**
+     * @param tsaUrl                 the TSA url
+     * @param signatureSizeEstimator estimator for the size of the timestamp token
+     * @param workers                number of preparation workers
+     * @param tsaThreads             maximum number of concurrent TSA requests
+     * @param journalFile            the journal file of the job
+     * @param executor               executor running the tasks of the job
+     */
+    public DocumentTimestampJob(String tsaUrl, SignatureSizeEstimator signatureSizeEstimator, int workers,
+            int tsaThreads, File journalFile, Executor executor) {
+        super();
+        this.tsaUrl = tsaUrl;
+        this.signatureSizeEstimator = signatureSizeEstimator;
+        this.workers = Math.max(1, workers);
+        this.tsaThreads = Math.max(1, tsaThreads);
+        this.journalFile = journalFile;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the Result of the job. The counters are updated while the job is
+     * running.
+     *
+     * @return the Result of the job
+     */
+    public Result getResult() {
+        return result;
+    }
+
+    /**
+     * Returns all PDF files of a directory and its sub directories sorted by path
+     *
+     * @param directory the directory
+     * @return list of PDF files
+     */
+    public static List<File> listDocuments(File directory) {
+        List<File> result = new ArrayList<File>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isDirectory()) {
+                result.addAll(listDocuments(file));
+            } else if (file.getName().toLowerCase().endsWith(".pdf")) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns all PDF files of the given path within the archive root. The path
+     * is resolved against the root. The real path of the path and of each
+     * document - with all symbolic links resolved - must be located within the
+     * real path of the root. Documents outside of the root are skipped.
+     *
+     * @param root the archive root directory
+     * @param path a PDF file or directory, absolute or relative to the root
+     * @return list of PDF files with their real path
+     * @throws IOException if the path does not exist or is not located within
+     *                     the root
+     */
+    public static List<File> listDocuments(Path root, String path) throws IOException {
+        Path realRoot = root.toRealPath();
+        Path realPath = realRoot.resolve(path).toRealPath();
+        if (!realPath.startsWith(realRoot)) {
+            throw new IOException("path " + path + " is not located within the archive root");
+        }
+        List<File> candidates;
+        if (Files.isDirectory(realPath)) {
+            candidates = listDocuments(realPath.toFile());
+        } else {
+            candidates = Arrays.asList(realPath.toFile());
+        }
+        List<File> result = new ArrayList<File>();
+        for (File candidate : candidates) {
+            Path realDocument = candidate.toPath().toRealPath();
+            if (!realDocument.startsWith(realRoot) || !Files.isRegularFile(realDocument)) {
+                logger.warning("...skip " + candidate.getPath() + " - not located within the archive root");
+                continue;
+            }
+            result.add(realDocument.toFile());
+        }
+        return result;
+    }
+
+    /**
+     * Appends a document timestamp to each document not yet marked as
+     * timestamped in the journal. The method blocks until all documents are
+     * processed.
+     *
+     * @param documents list of PDF files
+     * @return the Result of the job
+     * @throws IOException if the journal can not be read or written
+     */
+    public Result run(List<File> documents) throws IOException {
+        result.total = documents.size();
+        try {
+            return runStages(documents);
+        } finally {
+            result.done = true;
+        }
+    }
+
+    private Result runStages(List<File> documents) throws IOException {
+        Set<String> completed = readJournal();
+        long start = System.currentTimeMillis();
+
+        final Stage prepareStage = new Stage(executor, workers);
+        final Stage tsaStage = new Stage(executor, tsaThreads);
+        final Semaphore inProgress = new Semaphore(workers + tsaThreads);
+        try (final Writer journal = new OutputStreamWriter(new FileOutputStream(journalFile, true),
+                StandardCharsets.UTF_8)) {
+            for (final File file : documents) {
+                if (completed.contains(file.getAbsolutePath())) {
+                    result.skipped.incrementAndGet();
+                    continue;
+                }
+                inProgress.acquire();
+                prepareStage.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final PreparedDocument preparedDocument;
+                        try {
+                            preparedDocument = prepare(file, signatureSizeEstimator.estimateTimestamp());
+                        } catch (IOException | RuntimeException e) {
+                            finish(file, e, result, journal, inProgress);
+                            return;
+                        }
+                        tsaStage.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    if (!complete(preparedDocument)) {
+                                        // the estimate was too small - retry with the observed size
+                                        if (!complete(prepare(file, signatureSizeEstimator.estimateTimestamp()))) {
+                                            throw new IOException("timestamp token does not fit");
+                                        }
+                                    }
+                                    finish(file, null, result, journal, inProgress);
+                                } catch (IOException | RuntimeException e) {
+                                    finish(file, e, result, journal, inProgress);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+            // wait for all documents in progress
+            inProgress.acquire(workers + tsaThreads);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("timestamp job interrupted", e);
+        }
+        result.elapsedTime = System.currentTimeMillis() - start;
+        logger.info("......timestamped " + result.getTimestamped() + " documents in " + result.getElapsedTime()
+                + "ms (" + String.format("%.1f", result.getDocumentsPerSecond()) + " documents/s), "
+                + result.getSkipped() + " skipped, " + result.getFailed() + " failed");
+        return result;
+    }
+
+    /**
+     * Loads the document, adds the document timestamp signature and computes the
+     * digest of the byte range. The incremental update is written into a
+     * temporary file.
+     */
+    private PreparedDocument prepare(File file, int signatureSize) throws IOException {
+        PreparedDocument preparedDocument = new PreparedDocument(file);
+        try {
+            preparedDocument.tmpFile = Files
+                    .createTempFile(file.getParentFile().toPath(), "." + file.getName() + "-", ".tmp").toFile();
+            preparedDocument.document = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly());
+            preparedDocument.signature = SigUtils.createDocumentTimeStamp();
+            preparedDocument.signatureOptions = new SignatureOptions();
+            preparedDocument.signatureOptions.setPreferredSignatureSize(signatureSize);
+            preparedDocument.document.addSignature(preparedDocument.signature, preparedDocument.signatureOptions);
+            preparedDocument.output = new BufferedOutputStream(new FileOutputStream(preparedDocument.tmpFile));
+            preparedDocument.externalSigningSupport = preparedDocument.document
+                    .saveIncrementalForExternalSigning(preparedDocument.output);
+            preparedDocument.digest = Signature.digest(preparedDocument.externalSigningSupport.getContent());
+            return preparedDocument;
+        } catch (IOException | RuntimeException e) {
+            preparedDocument.close();
+            if (preparedDocument.tmpFile != null) {
+                preparedDocument.tmpFile.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Requests the timestamp token, writes the document and replaces the original
+     * file.
+     *
+     * @return false if the token does not fit into the reserved size
+     */
+    private boolean complete(PreparedDocument preparedDocument) throws IOException {
+        try {
+            byte[] token;
+            try {
+                token = new ValidationTimeStamp(tsaUrl).getTimeStampTokenForDigest(preparedDocument.digest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            signatureSizeEstimator.updateTimestamp(token.length);
+            int[] byteRange = preparedDocument.signature.getByteRange();
+            // the placeholder is hex encoded and enclosed by '<' and '>'
+            if (token.length * 2 > byteRange[2] - byteRange[1] - 2) {
+                return false;
+            }
+            preparedDocument.externalSigningSupport.setSignature(token);
+            preparedDocument.close();
+            Files.move(preparedDocument.tmpFile.toPath(), preparedDocument.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } finally {
+            preparedDocument.close();
+            preparedDocument.tmpFile.delete();
+        }
+    }
+
+    /**
+     * Updates the result and the journal and releases the document slot
+     */
+    private void finish(File file, Exception e, Result result, Writer journal, Semaphore inProgress) {
+        String status = JOURNAL_OK;
+        if (e == null) {
+            result.timestamped.incrementAndGet();
+        } else {
+            status = JOURNAL_FAILED;
+            result.failed.incrementAndGet();
+            logger.warning("...failed to timestamp " + file.getPath() + ": " + e.getMessage());
+        }
+        try {
+            synchronized (journal) {
+                journal.write(status + "\t" + file.getAbsolutePath() + "\n");
+                journal.flush();
+            }
+        } catch (IOException ioe) {
+            logger.warning("...failed to write journal " + journalFile.getPath() + ": " + ioe.getMessage());
+        } finally {
+            inProgress.release();
+        }
+    }
+
+    /**
+     * Returns the paths of all documents marked as timestamped in the journal
+     */
+    private Set<String> readJournal() throws IOException {
+        Set<String> result = new HashSet<String>();
+        if (!journalFile.exists()) {
+            return result;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journalFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(JOURNAL_OK + "\t")) {
+                    result.add(line.substring(JOURNAL_OK.length() + 1));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Holds a document between the preparation and the TSA stage
+     */
+    private static class PreparedDocument {
+        private final File file;
+        private File tmpFile;
+        private PDDocument document;
+        private PDSignature signature;
+        private SignatureOptions signatureOptions;
+        private OutputStream output;
+        private ExternalSigningSupport externalSigningSupport;
+        private byte[] digest;
+
+        PreparedDocument(File file) {
+            this.file = file;
+        }
+
+        void close() {
+            IOUtils.closeQuietly(output);
+            IOUtils.closeQuietly(document);
+            IOUtils.closeQuietly(signatureOptions);
+            output = null;
+            document = null;
+            signatureOptions = null;
+        }
+    }
+
+    /**
+     * Executes the tasks of a stage with the given executor. At most limit tasks
+     * are running at the same time, further tasks are queued. The threads of the
+     * executor are never blocked by the limit.
+     */
+    private static class Stage {
+        private final Executor executor;
+        private final int limit;
+        private final Queue<Runnable> queue = new ArrayDeque<Runnable>();
+        private int running;
+
+        Stage(Executor executor, int limit) {
+            this.executor = executor;
+            this.limit = limit;
+        }
+
+        void execute(Runnable task) {
+            synchronized (this) {
+                if (running >= limit) {
+                    queue.add(task);
+                    return;
+                }
+                running++;
+            }
+            submit(task);
+        }
+
+        private void next() {
+            Runnable task;
+            synchronized (this) {
+                task = queue.poll();
+                if (task == null) {
+                    running--;
+                    return;
+                }
+            }
+            submit(task);
+        }
+
+        private void submit(final Runnable task) {
+            Runnable wrapper = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        next();
+                    }
+                }
+            };
+            try {
+                executor.execute(wrapper);
+            } catch (RejectedExecutionException e) {
+                // the executor is saturated - run the task in the calling thread
+                wrapper.run();
+            }
+        }
+    }
+
+    /**
+     * The Result of a DocumentTimestampJob
+     */
+    public static class Result {
+        private final AtomicInteger timestamped = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile int total;
+        private volatile long elapsedTime;
+        private volatile boolean done;
+
+        /**
+         * Returns the number of documents of the job
+         *
+         * @return count of documents
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Returns true if the job is finished
+         *
+         * @return true if all documents are processed
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        public int getTimestamped() {
+            return timestamped.get();
+        }
+
+        /**
+         * Returns the number of documents skipped because they were already
+         * timestamped by a previous run of the job
+         *
+         * @return count of skipped documents
+         */
+        public int getSkipped() {
+            return skipped.get();
+        }
+
+        public int getFailed() {
+            return failed.get();
+        }
+
+        public long getElapsedTime() {
+            return elapsedTime;
+        }
+
+        /**
+         * Returns the throughput of the job in documents per second
+         *
+         * @return documents per second
+         */
+        public double getDocumentsPerSecond() {
+            if (elapsedTime <= 0) {
+                return 0;
+            }
+            return (timestamped.get() + failed.get()) * 1000.0 / elapsedTime;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.enterprise.concurrent.ManagedExecutorService;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.imixs.signature.pdf.cert.SigningException;
+
+/**
+ * The DocumentTimestampService runs DocumentTimestampJobs in the background.
+ * <p>
+ * A job and the tasks of its stages are executed by the ManagedExecutorService
+ * of the container. The caller receives the job id as a handle and can query
+ * the Result of the running job. Finished jobs are removed after
+ * SIGNATURE_EXTERNAL_TTL. The progress of a job is also recorded in its
+ * journal, so a job can be resumed after a restart.
+ *
+ * @see DocumentTimestampJob
+ * @see SigningService#timestampDocuments
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class DocumentTimestampService {
+
+    @Resource
+    ManagedExecutorService executor;
+
+    @Inject
+    @ConfigProperty(name = SigningService.ENV_SIGNATURE_EXTERNAL_TTL, defaultValue = "3600")
+    long ttl;
+
+    private final Map<String, RunningJob> jobs = new ConcurrentHashMap<String, RunningJob>();
+
+    private static Logger logger = Logger.getLogger(DocumentTimestampService.class.getName());
+
+    /**
+     * Returns the executor for the tasks of a DocumentTimestampJob
+     *
+     * @return the ManagedExecutorService
+     */
+    public ManagedExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Starts a job in the background. A job with the same id must not be running.
+     *
+     * @param job          the job id
+     * @param timestampJob the job
+     * @param documents    the documents of the job
+     * @return the Result of the job, updated while the job is running
+     * @throws SigningException if a job with the same id is still running
+     */
+    public DocumentTimestampJob.Result submit(final String job, final DocumentTimestampJob timestampJob,
+            final List<File> documents) throws SigningException {
+        purgeExpired();
+        final RunningJob runningJob = new RunningJob(timestampJob.getResult());
+        RunningJob current = jobs.compute(job,
+                (key, previous) -> previous != null && !previous.result.isDone() ? previous : runningJob);
+        if (current != runningJob) {
+            throw new SigningException("timestamp job " + job + " is still running");
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        timestampJob.run(documents);
+                    } catch (IOException e) {
+                        logger.warning("...timestamp job " + job + " failed: " + e.getMessage());
+                    } finally {
+                        runningJob.finished = System.currentTimeMillis();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job, runningJob);
+            throw new SigningException("Failed to start timestamp job - " + e.getMessage(), e);
+        }
+        logger.info("......started timestamp job " + job + " for " + documents.size() + " documents");
+        return timestampJob.getResult();
+    }
+
+    /**
+     * Returns the Result of a job started by this service
+     *
+     * @param job the job id
+     * @return the Result or null if the job is unknown
+     */
+    public DocumentTimestampJob.Result getResult(String job) {
+        RunningJob runningJob = jobs.get(job);
+        return runningJob != null ? runningJob.result : null;
+    }
+
+    /**
+     * Removes finished jobs after the time to live
+     */
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<RunningJob> iterator = jobs.values().iterator();
+        while (iterator.hasNext()) {
+            RunningJob runningJob = iterator.next();
+            if (runningJob.finished > 0 && now - runningJob.finished > ttl * 1000) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static class RunningJob {
+        private final DocumentTimestampJob.Result result;
+        private volatile long finished;
+
+        RunningJob(DocumentTimestampJob.Result result) {
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Properties;
+
+/**
+ * An ExternalSigningSession holds the state of a prepared PDF document between
+ * the two phases of an external signing process.
+ * <p>
+ * In the 'prepare' phase the SigningService writes the incremental update of
+ * the PDF with an empty signature placeholder into a session file and computes
+ * the digest of the signed byte range. In the 'complete' phase the CMS
+ * signature (or a raw signature value) is patched into the placeholder.
+ * <p>
+ * The session is stored as a properties file next to the prepared PDF file so
+ * that both phases can run on different cluster nodes sharing the same
+ * directory.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class ExternalSigningSession {
+
+    private static final String PROPERTY_ALIAS = "alias";
+    private static final String PROPERTY_FILENAME = "filename";
+    private static final String PROPERTY_BYTERANGE = "byterange";
+    private static final String PROPERTY_DIGEST = "digest";
+    private static final String PROPERTY_SIGNEDATTRIBUTES = "signedattributes";
+    private static final String PROPERTY_SIGNINGTIME = "signingtime";
+    private static final String PROPERTY_CREATED = "created";
+
+    private String token;
+    private String certAlias;
+    private String fileName;
+    private int[] byteRange;
+    private byte[] contentDigest;
+    private byte[] signedAttributes;
+    private Date signingTime;
+    private Date created;
+
+    public ExternalSigningSession(String token, String certAlias, String fileName) {
+        super();
+        this.token = token;
+        this.certAlias = certAlias;
+        this.fileName = fileName;
+        this.created = new Date();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getCertAlias() {
+        return certAlias;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * Returns the byte range of the signature. The hex encoded signature is
+     * written between the offsets byteRange[0]+byteRange[1] and byteRange[2].
+     *
+     * @return byte range
+     */
+    public int[] getByteRange() {
+        return byteRange;
+    }
+
+    public void setByteRange(int[] byteRange) {
+        this.byteRange = byteRange;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the signed byte range
+     *
+     * @return digest
+     */
+    public byte[] getContentDigest() {
+        return contentDigest;
+    }
+
+    public void setContentDigest(byte[] contentDigest) {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * Returns the DER encoded signed attributes. This is the data to be signed by
+     * a remote signer providing a raw signature value.
+     *
+     * @return DER encoded signed attributes
+     */
+    public byte[] getSignedAttributes() {
+        return signedAttributes;
+    }
+
+    public void setSignedAttributes(byte[] signedAttributes) {
+        this.signedAttributes = signedAttributes;
+    }
+
+    public Date getSigningTime() {
+        return signingTime;
+    }
+
+    public void setSigningTime(Date signingTime) {
+        this.signingTime = signingTime;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+
+    /**
+     * Stores the session into a properties file
+     *
+     * @param file - target file
+     * @throws IOException
+     */
+    public void store(File file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(PROPERTY_ALIAS, certAlias);
+        if (fileName != null) {
+            properties.setProperty(PROPERTY_FILENAME, fileName);
+        }
+        properties.setProperty(PROPERTY_BYTERANGE,
+                byteRange[0] + "," + byteRange[1] + "," + byteRange[2] + "," + byteRange[3]);
+        properties.setProperty(PROPERTY_DIGEST, Base64.getEncoder().encodeToString(contentDigest));
+        properties.setProperty(PROPERTY_SIGNEDATTRIBUTES, Base64.getEncoder().encodeToString(signedAttributes));
+        properties.setProperty(PROPERTY_SIGNINGTIME, Long.toString(signingTime.getTime()));
+        properties.setProperty(PROPERTY_CREATED, Long.toString(created.getTime()));
+        try (OutputStream os = new FileOutputStream(file)) {
+            properties.store(os, "external signing session " + token);
+        }
+    }
+
+    /**
+     * Loads a session from a properties file
+     *
+     * @param token - session token
+     * @param file  - the properties file
+     * @return session
+     * @throws IOException
+     */
+    public static ExternalSigningSession load(String token, File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            properties.load(is);
+        }
+        ExternalSigningSession session = new ExternalSigningSession(token, properties.getProperty(PROPERTY_ALIAS),
+                properties.getProperty(PROPERTY_FILENAME));
+        try {
+            String[] range = properties.getProperty(PROPERTY_BYTERANGE).split(",");
+            int[] byteRange = new int[4];
+            for (int i = 0; i < 4; i++) {
+                byteRange[i] = Integer.parseInt(range[i].trim());
+            }
+            session.byteRange = byteRange;
+            session.contentDigest = Base64.getDecoder().decode(properties.getProperty(PROPERTY_DIGEST));
+            session.signedAttributes = Base64.getDecoder().decode(properties.getProperty(PROPERTY_SIGNEDATTRIBUTES));
+            session.signingTime = new Date(Long.parseLong(properties.getProperty(PROPERTY_SIGNINGTIME)));
+            session.created = new Date(Long.parseLong(properties.getProperty(PROPERTY_CREATED)));
+        } catch (NullPointerException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("invalid external signing session '" + token + "'", e);
+        }
+        return session;
+    }
+
+}
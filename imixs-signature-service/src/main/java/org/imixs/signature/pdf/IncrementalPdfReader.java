@@ -0,0 +1,1110 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The IncrementalPdfReader is a lean reader for PDF documents. In difference to
+ * PDFBox the reader does not parse the whole object graph. It reads the cross
+ * reference sections and the trailer from the end of the file and resolves
+ * objects lazily by their object number.
+ * <p>
+ * The reader supports classic cross reference tables, cross reference streams
+ * and object streams with the FlateDecode filter. Other filters for cross
+ * reference streams are not supported. In this case an UnsupportedPdfException
+ * is thrown. Strings and streams of encrypted documents are not decrypted.
+ * <p>
+ * The object model is kept as simple as possible:
+ * <ul>
+ * <li>Dictionary - LinkedHashMap with the name (without slash) as key</li>
+ * <li>Array - List</li>
+ * <li>Number - Long or Double</li>
+ * <li>Boolean, null</li>
+ * <li>Name, Str, Ref and Stream - inner classes of this reader</li>
+ * </ul>
+ *
+ * @see IncrementalSignatureAppender
+ * @author rsoika
+ * @version 1.0
+ */
+public class IncrementalPdfReader {
+
+    private final ByteBuffer buffer;
+    private final int length;
+    private final Map<Integer, long[]> xref = new HashMap<Integer, long[]>();
+    private final Map<Integer, Object> objectCache = new HashMap<Integer, Object>();
+    private Map<String, Object> trailer;
+    private long startXref;
+    private boolean xrefStream;
+
+    /**
+     * Creates a reader for the given PDF content.
+     *
+     * @param buffer the PDF content
+     * @throws IOException
+     */
+    public IncrementalPdfReader(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer.duplicate();
+        this.length = buffer.limit();
+        try {
+            readXref();
+        } catch (RuntimeException e) {
+            throw new UnsupportedPdfException("failed to read cross reference - " + e, e);
+        }
+    }
+
+    /**
+     * Returns the PDF content
+     *
+     * @return read only view of the PDF content
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer result = buffer.duplicate();
+        result.limit(length);
+        result.position(0);
+        return result;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the trailer of the last revision
+     *
+     * @return trailer dictionary
+     */
+    public Map<String, Object> getTrailer() {
+        return trailer;
+    }
+
+    /**
+     * Returns true if the trailer contains an /Encrypt entry
+     *
+     * @return true if the document is encrypted
+     */
+    public boolean isEncrypted() {
+        return trailer.containsKey("Encrypt");
+    }
+
+    /**
+     * Returns the document catalog
+     *
+     * @return catalog dictionary
+     * @throws IOException
+     */
+    public Map<String, Object> getCatalog() throws IOException {
+        Map<String, Object> catalog = resolveDictionary(trailer.get("Root"));
+        if (catalog == null) {
+            throw new UnsupportedPdfException("missing catalog");
+        }
+        return catalog;
+    }
+
+    /**
+     * Returns the access permissions granted in the DocMDP transform parameters
+     * dictionary of the catalog /Perms entry. 0 means the document is not
+     * certified.
+     *
+     * @see org.imixs.signature.pdf.util.SigUtils#getMDPPermission
+     * @return the permission value 0, 1, 2 or 3
+     * @throws IOException
+     */
+    public int getMDPPermission() throws IOException {
+        Map<String, Object> perms = resolveDictionary(getCatalog().get("Perms"));
+        Map<String, Object> signature = perms == null ? null : resolveDictionary(perms.get("DocMDP"));
+        List<Object> references = signature == null ? null : resolveArray(signature.get("Reference"));
+        if (references != null) {
+            for (Object reference : references) {
+                Map<String, Object> sigRef = resolveDictionary(reference);
+                if (sigRef != null && "DocMDP".equals(nameOf(resolve(sigRef.get("TransformMethod"))))) {
+                    Map<String, Object> transformParams = resolveDictionary(sigRef.get("TransformParams"));
+                    if (transformParams != null) {
+                        int accessPermissions = intValue(resolve(transformParams.get("P")), 2);
+                        if (accessPermissions < 1 || accessPermissions > 3) {
+                            accessPermissions = 2;
+                        }
+                        return accessPermissions;
+                    }
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the offset of the last cross reference section
+     *
+     * @return offset
+     */
+    public long getStartXref() {
+        return startXref;
+    }
+
+    /**
+     * Returns true if the last revision uses a cross reference stream
+     *
+     * @return true if the xref is a stream
+     */
+    public boolean isXrefStream() {
+        return xrefStream;
+    }
+
+    /**
+     * Returns the PDF version from the file header
+     *
+     * @return version or 0 if not found
+     */
+    public float getHeaderVersion() {
+        int max = Math.min(length, 1024);
+        for (int i = 0; i < max - 8; i++) {
+            if (buffer.get(i) == '%' && buffer.get(i + 1) == 'P' && buffer.get(i + 2) == 'D'
+                    && buffer.get(i + 3) == 'F' && buffer.get(i + 4) == '-') {
+                try {
+                    return Float.parseFloat(new String(new byte[] { buffer.get(i + 5), buffer.get(i + 6),
+                            buffer.get(i + 7) }, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the generation number of an object or -1 if the object does not
+     * exist
+     *
+     * @param num object number
+     * @return generation number
+     */
+    public int getGeneration(int num) {
+        long[] entry = xref.get(num);
+        if (entry == null || entry[0] == 0) {
+            return -1;
+        }
+        return entry[0] == 1 ? (int) entry[2] : 0;
+    }
+
+    /**
+     * Returns the object with the given number. Objects are parsed only once.
+     * Malformed objects are reported by an UnsupportedPdfException.
+     *
+     * @param num object number
+     * @return the object or null if not found
+     * @throws IOException
+     */
+    public Object getObject(int num) throws IOException {
+        if (objectCache.containsKey(num)) {
+            return objectCache.get(num);
+        }
+        try {
+            return readObject(num);
+        } catch (RuntimeException e) {
+            throw new UnsupportedPdfException("failed to read object " + num + " - " + e, e);
+        }
+    }
+
+    private Object readObject(int num) throws IOException {
+        long[] entry = xref.get(num);
+        Object result = null;
+        if (entry != null && entry[0] == 1) {
+            Parser parser = new Parser(buffer, (int) entry[1], length);
+            long objNum = parser.readLong();
+            parser.readLong();
+            parser.expectKeyword("obj");
+            if (objNum != num) {
+                throw new UnsupportedPdfException("invalid xref entry for object " + num);
+            }
+            result = parser.readObject();
+            if (result instanceof Map) {
+                parser.skipWhitespace();
+                if (parser.startsWith("stream")) {
+                    result = readStream(parser, toDictionary(result));
+                }
+            }
+        } else if (entry != null && entry[0] == 2) {
+            result = readCompressedObject((int) entry[1], (int) entry[2], num);
+        }
+        objectCache.put(num, result);
+        return result;
+    }
+
+    /**
+     * Resolves an indirect reference. Other objects are returned unchanged.
+     *
+     * @param object object or reference
+     * @return resolved object
+     * @throws IOException
+     */
+    public Object resolve(Object object) throws IOException {
+        if (object instanceof Ref) {
+            return getObject(((Ref) object).num);
+        }
+        return object;
+    }
+
+    /**
+     * Resolves a dictionary. A stream is resolved to its dictionary.
+     *
+     * @param object object or reference
+     * @return the dictionary or null
+     * @throws IOException
+     */
+    public Map<String, Object> resolveDictionary(Object object) throws IOException {
+        Object result = resolve(object);
+        if (result instanceof Stream) {
+            return ((Stream) result).dictionary;
+        }
+        return result instanceof Map ? toDictionary(result) : null;
+    }
+
+    /**
+     * Resolves an array
+     *
+     * @param object object or reference
+     * @return the array or null
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public List<Object> resolveArray(Object object) throws IOException {
+        Object result = resolve(object);
+        return result instanceof List ? (List<Object>) result : null;
+    }
+
+    /**
+     * Returns the reference of the page with the given index (beginning with 0).
+     * The page tree is traversed by the /Count entries, so only the nodes on the
+     * path to the page are resolved.
+     *
+     * @param pageIndex page index
+     * @return reference of the page
+     * @throws IOException
+     */
+    public Ref getPageRef(int pageIndex) throws IOException {
+        Object node = getCatalog().get("Pages");
+        int index = pageIndex;
+        Set<Integer> visited = new HashSet<Integer>();
+        while (node instanceof Ref && visited.add(((Ref) node).num)) {
+            Map<String, Object> dict = resolveDictionary(node);
+            if (dict == null) {
+                break;
+            }
+            if (!"Pages".equals(nameOf(dict.get("Type"))) && !dict.containsKey("Kids")) {
+                if (index == 0) {
+                    return (Ref) node;
+                }
+                break;
+            }
+            List<Object> kids = resolveArray(dict.get("Kids"));
+            if (kids == null) {
+                break;
+            }
+            Object next = null;
+            for (Object kid : kids) {
+                Map<String, Object> kidDict = resolveDictionary(kid);
+                if (kidDict == null) {
+                    continue;
+                }
+                int count = 1;
+                if (kidDict.containsKey("Kids")) {
+                    count = intValue(resolve(kidDict.get("Count")), 0);
+                }
+                if (index < count) {
+                    next = kid;
+                    break;
+                }
+                index = index - count;
+            }
+            node = next;
+        }
+        throw new UnsupportedPdfException("page " + pageIndex + " not found");
+    }
+
+    /**
+     * Returns an inheritable page attribute (e.g. MediaBox, CropBox, Rotate,
+     * Resources)
+     *
+     * @param page page dictionary
+     * @param key  attribute name
+     * @return the attribute or null
+     * @throws IOException
+     */
+    public Object getInheritedAttribute(Map<String, Object> page, String key) throws IOException {
+        Map<String, Object> node = page;
+        Set<Map<String, Object>> visited = new HashSet<Map<String, Object>>();
+        while (node != null && visited.add(node)) {
+            if (node.containsKey(key)) {
+                return resolve(node.get(key));
+            }
+            node = resolveDictionary(node.get("Parent"));
+        }
+        return null;
+    }
+
+    /**
+     * Returns the decoded data of a stream. Only the FlateDecode filter is
+     * supported.
+     *
+     * @param stream the stream
+     * @return decoded data
+     * @throws IOException
+     */
+    public byte[] getStreamData(Stream stream) throws IOException {
+        byte[] raw = new byte[stream.length];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = stream.source.get(stream.offset + i);
+        }
+        Object filter = resolve(stream.dictionary.get("Filter"));
+        if (filter instanceof List && ((List<?>) filter).size() == 1) {
+            filter = resolve(((List<?>) filter).get(0));
+        }
+        if (filter == null) {
+            return raw;
+        }
+        if (!"FlateDecode".equals(nameOf(filter))) {
+            throw new UnsupportedPdfException("unsupported stream filter " + filter);
+        }
+        byte[] data = inflate(raw);
+        Object parms = resolve(stream.dictionary.get("DecodeParms"));
+        if (parms instanceof List && ((List<?>) parms).size() == 1) {
+            parms = resolve(((List<?>) parms).get(0));
+        }
+        if (parms instanceof Map) {
+            Map<String, Object> decodeParms = toDictionary(parms);
+            int predictor = intValue(resolve(decodeParms.get("Predictor")), 1);
+            if (predictor >= 10) {
+                int columns = intValue(resolve(decodeParms.get("Columns")), 1);
+                int colors = intValue(resolve(decodeParms.get("Colors")), 1);
+                int bpc = intValue(resolve(decodeParms.get("BitsPerComponent")), 8);
+                data = decodePNGPredictor(data, columns, colors, bpc);
+            } else if (predictor != 1) {
+                throw new UnsupportedPdfException("unsupported predictor " + predictor);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Reads all cross reference sections starting with the last one
+     */
+    private void readXref() throws IOException {
+        // find startxref in the last 1024 bytes
+        int start = Math.max(0, length - 1024);
+        int pos = -1;
+        for (int i = length - 9; i >= start; i--) {
+            if (matches(buffer, i, "startxref")) {
+                pos = i;
+                break;
+            }
+        }
+        if (pos < 0) {
+            throw new UnsupportedPdfException("startxref not found");
+        }
+        Parser parser = new Parser(buffer, pos + 9, length);
+        startXref = parser.readLong();
+
+        Set<Long> visited = new HashSet<Long>();
+        long offset = startXref;
+        boolean first = true;
+        while (offset >= 0 && visited.add(offset)) {
+            if (offset >= length) {
+                throw new UnsupportedPdfException("invalid xref offset " + offset);
+            }
+            Map<String, Object> sectionTrailer;
+            parser = new Parser(buffer, (int) offset, length);
+            parser.skipWhitespace();
+            if (parser.startsWith("xref")) {
+                sectionTrailer = readXrefTable(parser);
+                // hybrid file
+                Object xrefStm = sectionTrailer.get("XRefStm");
+                if (xrefStm instanceof Long && visited.add((Long) xrefStm)) {
+                    readXrefStream(new Parser(buffer, ((Long) xrefStm).intValue(), length));
+                }
+                if (first) {
+                    xrefStream = false;
+                }
+            } else {
+                sectionTrailer = readXrefStream(parser);
+                if (first) {
+                    xrefStream = true;
+                }
+            }
+            if (first) {
+                trailer = sectionTrailer;
+                first = false;
+            }
+            Object prev = sectionTrailer.get("Prev");
+            offset = prev instanceof Number ? ((Number) prev).longValue() : -1;
+        }
+        if (trailer == null || !(trailer.get("Root") instanceof Ref)) {
+            throw new UnsupportedPdfException("invalid trailer");
+        }
+    }
+
+    /**
+     * Reads a classic cross reference table and returns its trailer
+     */
+    private Map<String, Object> readXrefTable(Parser parser) throws IOException {
+        parser.expectKeyword("xref");
+        while (true) {
+            parser.skipWhitespace();
+            if (parser.startsWith("trailer")) {
+                parser.expectKeyword("trailer");
+                Object result = parser.readObject();
+                if (!(result instanceof Map)) {
+                    throw new UnsupportedPdfException("invalid trailer");
+                }
+                return toDictionary(result);
+            }
+            int first = (int) parser.readLong();
+            int count = (int) parser.readLong();
+            for (int i = 0; i < count; i++) {
+                long offset = parser.readLong();
+                long generation = parser.readLong();
+                parser.skipWhitespace();
+                byte type = parser.next();
+                if (!xref.containsKey(first + i)) {
+                    if (type == 'n') {
+                        xref.put(first + i, new long[] { 1, offset, generation });
+                    } else {
+                        xref.put(first + i, new long[] { 0, 0, generation });
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a cross reference stream and returns its dictionary
+     */
+    private Map<String, Object> readXrefStream(Parser parser) throws IOException {
+        parser.readLong();
+        parser.readLong();
+        parser.expectKeyword("obj");
+        Object object = parser.readObject();
+        if (!(object instanceof Map)) {
+            throw new UnsupportedPdfException("invalid xref stream");
+        }
+        Map<String, Object> dict = toDictionary(object);
+        parser.skipWhitespace();
+        if (!"XRef".equals(nameOf(dict.get("Type"))) || !parser.startsWith("stream")) {
+            throw new UnsupportedPdfException("invalid xref stream");
+        }
+        Stream stream = readStream(parser, dict);
+        byte[] data = getStreamData(stream);
+        List<Object> w = resolveArray(dict.get("W"));
+        if (w == null || w.size() != 3) {
+            throw new UnsupportedPdfException("invalid xref stream /W");
+        }
+        int[] widths = new int[] { intValue(w.get(0), 0), intValue(w.get(1), 0), intValue(w.get(2), 0) };
+        List<Object> index = resolveArray(dict.get("Index"));
+        if (index == null) {
+            index = new ArrayList<Object>();
+            index.add(0L);
+            index.add(resolve(dict.get("Size")));
+        }
+        int rowLength = widths[0] + widths[1] + widths[2];
+        int pos = 0;
+        for (int i = 0; i + 1 < index.size(); i += 2) {
+            int first = intValue(index.get(i), 0);
+            int count = intValue(index.get(i + 1), 0);
+            for (int j = 0; j < count; j++) {
+                if (pos + rowLength > data.length) {
+                    throw new UnsupportedPdfException("invalid xref stream length");
+                }
+                long type = widths[0] == 0 ? 1 : readField(data, pos, widths[0]);
+                long field2 = readField(data, pos + widths[0], widths[1]);
+                long field3 = readField(data, pos + widths[0] + widths[1], widths[2]);
+                pos += rowLength;
+                if (!xref.containsKey(first + j)) {
+                    xref.put(first + j, new long[] { type, field2, field3 });
+                }
+            }
+        }
+        return dict;
+    }
+
+    /**
+     * Reads an object from an object stream
+     */
+    private Object readCompressedObject(int streamNum, int index, int num) throws IOException {
+        Object object = getObject(streamNum);
+        if (!(object instanceof Stream)) {
+            throw new UnsupportedPdfException("invalid object stream " + streamNum);
+        }
+        Stream stream = (Stream) object;
+        byte[] data = getStreamData(stream);
+        int n = intValue(resolve(stream.dictionary.get("N")), 0);
+        int first = intValue(resolve(stream.dictionary.get("First")), 0);
+        ByteBuffer objectData = ByteBuffer.wrap(data);
+        Parser parser = new Parser(objectData, 0, data.length);
+        for (int i = 0; i < n; i++) {
+            long objNum = parser.readLong();
+            long offset = parser.readLong();
+            if (i == index || objNum == num) {
+                if (objNum != num) {
+                    throw new UnsupportedPdfException("invalid object stream index for object " + num);
+                }
+                return new Parser(objectData, first + (int) offset, data.length).readObject();
+            }
+        }
+        throw new UnsupportedPdfException("object " + num + " not found in object stream " + streamNum);
+    }
+
+    /**
+     * Reads a stream starting at the keyword 'stream'
+     */
+    private Stream readStream(Parser parser, Map<String, Object> dict) throws IOException {
+        parser.expectKeyword("stream");
+        // the keyword is followed by CRLF or LF
+        if (parser.peek() == '\r') {
+            parser.next();
+        }
+        if (parser.peek() == '\n') {
+            parser.next();
+        }
+        int offset = parser.pos;
+        Object len = resolve(dict.get("Length"));
+        if (!(len instanceof Long)) {
+            throw new UnsupportedPdfException("invalid stream length");
+        }
+        int streamLength = ((Long) len).intValue();
+        if (offset + streamLength > parser.limit) {
+            throw new UnsupportedPdfException("invalid stream length");
+        }
+        return new Stream(dict, parser.source, offset, streamLength);
+    }
+
+    private static long readField(byte[] data, int pos, int width) {
+        long result = 0;
+        for (int i = 0; i < width; i++) {
+            result = (result << 8) | (data[pos + i] & 0xff);
+        }
+        return result;
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 4);
+            byte[] buf = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buf);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                bos.write(buf, 0, n);
+            }
+            return bos.toByteArray();
+        } catch (DataFormatException e) {
+            throw new UnsupportedPdfException("invalid FlateDecode stream", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] decodePNGPredictor(byte[] data, int columns, int colors, int bpc) {
+        int bpp = Math.max(1, (colors * bpc + 7) / 8);
+        int rowLength = (columns * colors * bpc + 7) / 8;
+        int rows = data.length / (rowLength + 1);
+        byte[] result = new byte[rows * rowLength];
+        byte[] prior = new byte[rowLength];
+        for (int r = 0; r < rows; r++) {
+            int filter = data[r * (rowLength + 1)] & 0xff;
+            int src = r * (rowLength + 1) + 1;
+            int dst = r * rowLength;
+            for (int i = 0; i < rowLength; i++) {
+                int raw = data[src + i] & 0xff;
+                int left = i >= bpp ? result[dst + i - bpp] & 0xff : 0;
+                int up = prior[i] & 0xff;
+                int upLeft = i >= bpp ? prior[i - bpp] & 0xff : 0;
+                int value;
+                switch (filter) {
+                case 1:
+                    value = raw + left;
+                    break;
+                case 2:
+                    value = raw + up;
+                    break;
+                case 3:
+                    value = raw + ((left + up) >> 1);
+                    break;
+                case 4:
+                    int p = left + up - upLeft;
+                    int pa = Math.abs(p - left);
+                    int pb = Math.abs(p - up);
+                    int pc = Math.abs(p - upLeft);
+                    value = raw + ((pa <= pb && pa <= pc) ? left : (pb <= pc ? up : upLeft));
+                    break;
+                default:
+                    value = raw;
+                }
+                result[dst + i] = (byte) value;
+            }
+            System.arraycopy(result, dst, prior, 0, rowLength);
+        }
+        return result;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int pos, String keyword) {
+        if (pos < 0 || pos + keyword.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length(); i++) {
+            if (buffer.get(pos + i) != keyword.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name of a Name object or null
+     */
+    public static String nameOf(Object object) {
+        return object instanceof Name ? ((Name) object).name : null;
+    }
+
+    /**
+     * Returns the int value of a number object or the default value
+     */
+    public static int intValue(Object object, int defaultValue) {
+        return object instanceof Number ? ((Number) object).intValue() : defaultValue;
+    }
+
+    /**
+     * Returns the float value of a number object or the default value
+     */
+    public static float floatValue(Object object, float defaultValue) {
+        return object instanceof Number ? ((Number) object).floatValue() : defaultValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> toDictionary(Object object) {
+        return (Map<String, Object>) object;
+    }
+
+    /**
+     * A PDF name object
+     */
+    public static class Name {
+        public final String name;
+
+        public Name(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Name && ((Name) obj).name.equals(name);
+        }
+
+        @Override
+        public int hashCode() {
+            return name.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return "/" + name;
+        }
+    }
+
+    /**
+     * A PDF string object
+     */
+    public static class Str {
+        public final byte[] bytes;
+
+        public Str(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * An indirect reference
+     */
+    public static class Ref {
+        public final int num;
+        public final int generation;
+
+        public Ref(int num, int generation) {
+            this.num = num;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Ref && ((Ref) obj).num == num && ((Ref) obj).generation == generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return num * 31 + generation;
+        }
+
+        @Override
+        public String toString() {
+            return num + " " + generation + " R";
+        }
+    }
+
+    /**
+     * A stream object. The data is not read until requested.
+     */
+    public static class Stream {
+        public final Map<String, Object> dictionary;
+        final ByteBuffer source;
+        final int offset;
+        final int length;
+
+        Stream(Map<String, Object> dictionary, ByteBuffer source, int offset, int length) {
+            this.dictionary = dictionary;
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * A simple parser for PDF objects on a ByteBuffer.
+     */
+    static class Parser {
+        final ByteBuffer source;
+        final int limit;
+        int pos;
+
+        Parser(ByteBuffer source, int pos, int limit) {
+            this.source = source;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        byte peek() {
+            return pos < limit ? source.get(pos) : -1;
+        }
+
+        byte next() throws UnsupportedPdfException {
+            if (pos >= limit) {
+                throw new UnsupportedPdfException("unexpected end of file");
+            }
+            return source.get(pos++);
+        }
+
+        boolean startsWith(String keyword) {
+            return matches(source, pos, keyword);
+        }
+
+        void skipWhitespace() {
+            while (pos < limit) {
+                byte b = source.get(pos);
+                if (isWhitespace(b)) {
+                    pos++;
+                } else if (b == '%') {
+                    while (pos < limit && source.get(pos) != '\n' && source.get(pos) != '\r') {
+                        pos++;
+                    }
+                } else {
+                    break;
+                }
+            }
+        }
+
+        void expectKeyword(String keyword) throws UnsupportedPdfException {
+            skipWhitespace();
+            if (!startsWith(keyword)) {
+                throw new UnsupportedPdfException("expected '" + keyword + "' at offset " + pos);
+            }
+            pos += keyword.length();
+        }
+
+        long readLong() throws UnsupportedPdfException {
+            skipWhitespace();
+            int start = pos;
+            if (peek() == '+' || peek() == '-') {
+                pos++;
+            }
+            while (pos < limit && source.get(pos) >= '0' && source.get(pos) <= '9') {
+                pos++;
+            }
+            if (start == pos) {
+                throw new UnsupportedPdfException("expected number at offset " + pos);
+            }
+            try {
+                return Long.parseLong(readAscii(start, pos));
+            } catch (NumberFormatException e) {
+                throw new UnsupportedPdfException("invalid number at offset " + start);
+            }
+        }
+
+        Object readObject() throws UnsupportedPdfException {
+            skipWhitespace();
+            byte b = peek();
+            switch (b) {
+            case '/':
+                pos++;
+                return new Name(readName());
+            case '<':
+                if (pos + 1 < limit && source.get(pos + 1) == '<') {
+                    pos += 2;
+                    return readDictionary();
+                }
+                pos++;
+                return readHexString();
+            case '(':
+                pos++;
+                return readLiteralString();
+            case '[':
+                pos++;
+                List<Object> array = new ArrayList<Object>();
+                while (true) {
+                    skipWhitespace();
+                    if (peek() == ']') {
+                        pos++;
+                        return array;
+                    }
+                    array.add(readObject());
+                }
+            default:
+                if ((b >= '0' && b <= '9') || b == '+' || b == '-' || b == '.') {
+                    return readNumberOrRef();
+                }
+                if (startsWith("true")) {
+                    pos += 4;
+                    return Boolean.TRUE;
+                }
+                if (startsWith("false")) {
+                    pos += 5;
+                    return Boolean.FALSE;
+                }
+                if (startsWith("null")) {
+                    pos += 4;
+                    return null;
+                }
+                throw new UnsupportedPdfException("unexpected token at offset " + pos);
+            }
+        }
+
+        private Map<String, Object> readDictionary() throws UnsupportedPdfException {
+            Map<String, Object> dict = new LinkedHashMap<String, Object>();
+            while (true) {
+                skipWhitespace();
+                if (peek() == '>' && pos + 1 < limit && source.get(pos + 1) == '>') {
+                    pos += 2;
+                    return dict;
+                }
+                if (next() != '/') {
+                    throw new UnsupportedPdfException("expected name at offset " + (pos - 1));
+                }
+                String key = readName();
+                Object value = readObject();
+                dict.put(key, value);
+            }
+        }
+
+        private String readName() throws UnsupportedPdfException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            while (pos < limit) {
+                byte b = source.get(pos);
+                if (isWhitespace(b) || isDelimiter(b)) {
+                    break;
+                }
+                pos++;
+                if (b == '#' && pos + 1 < limit) {
+                    try {
+                        bos.write(Integer.parseInt(readAscii(pos, pos + 2), 16));
+                        pos += 2;
+                        continue;
+                    } catch (NumberFormatException e) {
+                        // no escape sequence
+                    }
+                }
+                bos.write(b);
+            }
+            return new String(bos.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+
+        private Str readHexString() throws UnsupportedPdfException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            int high = -1;
+            while (true) {
+                byte b = next();
+                if (b == '>') {
+                    break;
+                }
+                int digit = Character.digit(b, 16);
+                if (digit < 0) {
+                    continue;
+                }
+                if (high < 0) {
+                    high = digit;
+                } else {
+                    bos.write(high * 16 + digit);
+                    high = -1;
+                }
+            }
+            if (high >= 0) {
+                bos.write(high * 16);
+            }
+            return new Str(bos.toByteArray());
+        }
+
+        private Str readLiteralString() throws UnsupportedPdfException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            int depth = 1;
+            while (true) {
+                byte b = next();
+                if (b == '\\') {
+                    byte c = next();
+                    switch (c) {
+                    case 'n':
+                        bos.write('\n');
+                        break;
+                    case 'r':
+                        bos.write('\r');
+                        break;
+                    case 't':
+                        bos.write('\t');
+                        break;
+                    case 'b':
+                        bos.write('\b');
+                        break;
+                    case 'f':
+                        bos.write('\f');
+                        break;
+                    case '\r':
+                        if (peek() == '\n') {
+                            pos++;
+                        }
+                        break;
+                    case '\n':
+                        break;
+                    default:
+                        if (c >= '0' && c <= '7') {
+                            int value = c - '0';
+                            for (int i = 0; i < 2 && peek() >= '0' && peek() <= '7'; i++) {
+                                value = value * 8 + (next() - '0');
+                            }
+                            bos.write(value);
+                        } else {
+                            bos.write(c);
+                        }
+                    }
+                } else if (b == '(') {
+                    depth++;
+                    bos.write(b);
+                } else if (b == ')') {
+                    depth--;
+                    if (depth == 0) {
+                        return new Str(bos.toByteArray());
+                    }
+                    bos.write(b);
+                } else {
+                    bos.write(b);
+                }
+            }
+        }
+
+        private Object readNumberOrRef() throws UnsupportedPdfException {
+            int start = pos;
+            pos++;
+            while (pos < limit) {
+                byte b = source.get(pos);
+                if ((b >= '0' && b <= '9') || b == '.') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            String token = readAscii(start, pos);
+            if (token.indexOf('.') >= 0) {
+                try {
+                    return Double.parseDouble(token);
+                } catch (NumberFormatException e) {
+                    return 0d;
+                }
+            }
+            long value;
+            try {
+                value = Long.parseLong(token);
+            } catch (NumberFormatException e) {
+                throw new UnsupportedPdfException("invalid number at offset " + start);
+            }
+            // test for an indirect reference 'num gen R'
+            int mark = pos;
+            skipWhitespace();
+            int genStart = pos;
+            while (pos < limit && source.get(pos) >= '0' && source.get(pos) <= '9') {
+                pos++;
+            }
+            if (pos > genStart) {
+                int genEnd = pos;
+                skipWhitespace();
+                if (peek() == 'R' && (pos + 1 >= limit || isWhitespace(source.get(pos + 1))
+                        || isDelimiter(source.get(pos + 1)))) {
+                    pos++;
+                    return new Ref((int) value, Integer.parseInt(readAscii(genStart, genEnd)));
+                }
+            }
+            pos = mark;
+            return value;
+        }
+
+        private String readAscii(int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = source.get(start + i);
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+
+        static boolean isWhitespace(byte b) {
+            return b == 0 || b == 9 || b == 10 || b == 12 || b == 13 || b == 32;
+        }
+
+        static boolean isDelimiter(byte b) {
+            return b == '(' || b == ')' || b == '<' || b == '>' || b == '[' || b == ']' || b == '{' || b == '}'
+                    || b == '/' || b == '%';
+        }
+    }
+}
@@ -0,0 +1,857 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.util.DateConverter;
+import org.apache.pdfbox.util.Hex;
+import org.bouncycastle.asn1.x500.RDN;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x500.style.BCStyle;
+import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.imixs.signature.pdf.IncrementalPdfReader.Name;
+import org.imixs.signature.pdf.IncrementalPdfReader.Ref;
+import org.imixs.signature.pdf.IncrementalPdfReader.Str;
+import org.imixs.signature.pdf.cert.SigningException;
+
+/**
+ * The IncrementalSignatureAppender adds a signature as a new incremental
+ * revision to a PDF document without loading the document with PDFBox.
+ * <p>
+ * Only the objects needed for signing are resolved with the
+ * IncrementalPdfReader: the trailer, the catalog, the AcroForm and the target
+ * page. The appender writes a revision containing the signature dictionary, the
+ * signature field with its widget and appearance, the updated AcroForm, page
+ * and catalog objects and a new cross reference section. The bytes of the
+ * original document are never modified.
+ * <p>
+ * The signature is applied in three steps:
+ * <ol>
+ * <li>prepare - builds the revision with an empty /Contents placeholder</li>
+ * <li>updateDigest - hashes the revision without the placeholder</li>
+ * <li>setSignature - writes the CMS signature into the placeholder</li>
+ * </ol>
+ * Documents which can not be processed on byte level (e.g. encrypted documents,
+ * rotated pages or signature images) are rejected with an
+ * UnsupportedPdfException. In this case the SigningService falls back to
+ * PDFBox.
+ *
+ * @see IncrementalPdfReader
+ * @see SigningService
+ * @author rsoika
+ * @version 1.0
+ */
+public class IncrementalSignatureAppender {
+
+    private final static int SIGNATURE_DETAILS_OFSET = 40;
+    // reserved length of the /ByteRange array
+    private final static int BYTE_RANGE_LENGTH = 48;
+    private final static Object CONTENTS_PLACEHOLDER = new Object();
+    private final static Object BYTE_RANGE_PLACEHOLDER = new Object();
+
+    private final IncrementalPdfReader reader;
+    private final Map<Integer, Object> updates = new TreeMap<Integer, Object>();
+    private int nextObjectNumber;
+    private byte[] revision;
+    private int contentsOffset;
+    private int contentsLength;
+    private int byteRangeOffset;
+    private int[] byteRange;
+
+    public IncrementalSignatureAppender(IncrementalPdfReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Builds the new revision with an empty signature placeholder of the given
+     * size.
+     *
+     * @param signatureSpec    the signature definition
+     * @param certificateChain the certificate chain of the signer
+     * @param signatureSize    size in bytes reserved for the CMS signature
+     * @param signDate         the signing date
+     * @return the byte range of the signature
+     * @throws UnsupportedPdfException if the document can not be processed on
+     *                                 byte level
+     * @throws SigningException        if the document does not permit a
+     *                                 signature
+     */
+    public int[] prepare(SignatureSpec signatureSpec, Certificate[] certificateChain, int signatureSize,
+            Calendar signDate) throws IOException, SigningException {
+        try {
+            createObjects(signatureSpec, certificateChain, signDate);
+            writeRevision(signatureSize);
+            return byteRange;
+        } catch (RuntimeException e) {
+            throw new UnsupportedPdfException("failed to process document - " + e, e);
+        }
+    }
+
+    /**
+     * Returns the byte range of the prepared signature
+     *
+     * @return byte range
+     */
+    public int[] getByteRange() {
+        return byteRange;
+    }
+
+    /**
+     * Updates the given digest with the bytes of the new revision which are part
+     * of the signature byte range. The digest must contain the state after all
+     * bytes of the original document.
+     *
+     * @param md digest state of the original document
+     */
+    public void updateDigest(MessageDigest md) {
+        md.update(revision, 0, contentsOffset);
+        int end = contentsOffset + contentsLength;
+        md.update(revision, end, revision.length - end);
+    }
+
+    /**
+     * Writes the CMS signature into the /Contents placeholder.
+     *
+     * @param cmsSignature the CMS signature
+     * @return false if the signature does not fit into the placeholder
+     */
+    public boolean setSignature(byte[] cmsSignature) {
+        // the placeholder is hex encoded and enclosed by '<' and '>'
+        if (cmsSignature.length * 2 > contentsLength - 2) {
+            return false;
+        }
+        byte[] hex = Hex.getBytes(cmsSignature);
+        System.arraycopy(hex, 0, revision, contentsOffset + 1, hex.length);
+        return true;
+    }
+
+    /**
+     * Returns the new revision
+     *
+     * @return bytes appended to the original document
+     */
+    public byte[] getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns the signed document. The result is allocated with the exact size,
+     * the original document is copied once.
+     *
+     * @return the signed document
+     */
+    public byte[] toByteArray() {
+        ByteBuffer source = reader.getBuffer();
+        int length = source.remaining();
+        byte[] result = new byte[length + revision.length];
+        source.get(result, 0, length);
+        System.arraycopy(revision, 0, result, length, revision.length);
+        return result;
+    }
+
+    /**
+     * Resolves the objects to be updated and creates the new objects of the
+     * revision.
+     */
+    private void createObjects(SignatureSpec signatureSpec, Certificate[] certificateChain, Calendar signDate)
+            throws IOException, SigningException {
+        if (reader.isEncrypted()) {
+            throw new UnsupportedPdfException("encrypted documents are not supported");
+        }
+        Map<String, Object> trailer = reader.getTrailer();
+        nextObjectNumber = IncrementalPdfReader.intValue(reader.resolve(trailer.get("Size")), 0);
+        if (nextObjectNumber <= 0) {
+            throw new UnsupportedPdfException("invalid trailer /Size");
+        }
+        Ref rootRef = (Ref) trailer.get("Root");
+        Map<String, Object> catalog = copy(reader.resolveDictionary(rootRef));
+        if (catalog == null) {
+            throw new UnsupportedPdfException("missing catalog");
+        }
+        boolean catalogChanged = false;
+
+        int accessPermissions = reader.getMDPPermission();
+        if (accessPermissions == 1) {
+            throw new SigningException(
+                    "No changes to the document are permitted due to DocMDP transform parameters dictionary");
+        }
+
+        // AcroForm
+        Object acroFormObject = catalog.get("AcroForm");
+        Map<String, Object> acroForm = copy(reader.resolveDictionary(acroFormObject));
+        if (acroForm == null) {
+            acroForm = new LinkedHashMap<String, Object>();
+        }
+        List<Object> fields = copy(reader.resolveArray(acroForm.get("Fields")));
+        if (fields == null) {
+            fields = new ArrayList<Object>();
+        }
+        if (Boolean.TRUE.equals(reader.resolve(acroForm.get("NeedAppearances")))) {
+            if (!fields.isEmpty()) {
+                throw new UnsupportedPdfException("NeedAppearances is set");
+            }
+            // we can safely delete it if there are no fields
+            acroForm.remove("NeedAppearances");
+        }
+
+        // find an existing empty signature field
+        String signatureFieldName = signatureSpec.getSignatureFieldName();
+        Ref fieldRef = null;
+        Map<String, Object> field = null;
+        boolean signatureExists = false;
+        boolean fieldHierarchy = false;
+        Set<String> fieldNames = new HashSet<String>();
+        for (Object fieldObject : fields) {
+            Map<String, Object> fieldDict = reader.resolveDictionary(fieldObject);
+            if (fieldDict == null) {
+                continue;
+            }
+            String name = textOf(reader.resolve(fieldDict.get("T")));
+            fieldNames.add(name);
+            fieldHierarchy = fieldHierarchy || fieldDict.containsKey("Kids");
+            boolean isSignatureField = "Sig".equals(IncrementalPdfReader.nameOf(reader.resolve(fieldDict.get("FT"))));
+            if (!isSignatureField) {
+                continue;
+            }
+            Map<String, Object> value = reader.resolveDictionary(fieldDict.get("V"));
+            if (value != null) {
+                if (!"DocTimeStamp".equals(IncrementalPdfReader.nameOf(value.get("Type")))
+                        && value.containsKey("Contents")) {
+                    signatureExists = true;
+                }
+            } else if (name != null && name.equals(signatureFieldName) && fieldObject instanceof Ref) {
+                if (!fieldDict.containsKey("Rect")) {
+                    throw new UnsupportedPdfException("signature field " + name + " has no merged widget");
+                }
+                fieldRef = (Ref) fieldObject;
+                field = copy(fieldDict);
+            }
+        }
+
+        // compute the signature rectangle
+        float[] rect = null;
+        if (field != null) {
+            rect = toRectangle(reader.resolveArray(field.get("Rect")));
+            if (rect != null && (rect[2] - rect[0] == 0 || rect[3] - rect[1] == 0)) {
+                rect = null;
+            }
+        }
+        Rectangle2D humanRect = signatureSpec.getHumanRect();
+        if (rect == null && humanRect != null) {
+            rect = createSignatureRectangle(humanRect);
+        }
+
+        // the target page
+        Map<String, Object> pages = reader.resolveDictionary(catalog.get("Pages"));
+        int pageCount = pages == null ? 0 : IncrementalPdfReader.intValue(reader.resolve(pages.get("Count")), 0);
+        if (pageCount <= 0) {
+            throw new UnsupportedPdfException("document has no pages");
+        }
+        int page = signatureSpec.getPage();
+        // we adjust the page as the visual signature uses index 0 for the first page
+        if (rect != null && page > 0) {
+            page--;
+        }
+        Ref pageRef = reader.getPageRef(Math.min(Math.max(page, 0), pageCount - 1));
+        Map<String, Object> pageDict = reader.resolveDictionary(pageRef);
+        if (rect != null && getRotation(pageDict) != 0) {
+            throw new UnsupportedPdfException("rotated pages are not supported");
+        }
+
+        // appearance
+        Ref appearanceRef = newObject();
+        if (rect != null) {
+            updates.put(appearanceRef.num, createAppearance(rect[2] - rect[0], rect[3] - rect[1], certificateChain,
+                    signDate, signatureSpec.getReason()));
+        } else {
+            Map<String, Object> dict = new LinkedHashMap<String, Object>();
+            dict.put("Type", new Name("XObject"));
+            dict.put("Subtype", new Name("Form"));
+            dict.put("BBox", Arrays.asList((Object) 0L, 0L, 0L, 0L));
+            updates.put(appearanceRef.num, new NewStream(dict, new byte[0]));
+        }
+        Map<String, Object> appearance = new LinkedHashMap<String, Object>();
+        appearance.put("N", appearanceRef);
+
+        // signature dictionary
+        Ref signatureRef = newObject();
+        Map<String, Object> signature = new LinkedHashMap<String, Object>();
+        signature.put("Type", new Name("Sig"));
+        signature.put("Filter", new Name("Adobe.PPKLite"));
+        signature.put("SubFilter", new Name("adbe.pkcs7.detached"));
+        String reason = signatureSpec.getReason();
+        if (reason != null && !reason.isEmpty()) {
+            signature.put("Reason", textString(reason));
+        }
+        signature.put("M", new Str(DateConverter.toString(signDate).getBytes(StandardCharsets.ISO_8859_1)));
+
+        // Optional: certify
+        // can be done only if version is at least 1.5 and if not already set
+        int certificationLevel = signatureSpec.getCertificationLevel();
+        if (certificationLevel > 0 && getVersion(catalog) >= 1.5f && accessPermissions == 0) {
+            if (signatureExists) {
+                throw new IOException("DocMDP transform method not allowed if an approval signature exists");
+            }
+            if (fieldHierarchy) {
+                throw new UnsupportedPdfException("field hierarchies are not supported for certification");
+            }
+            Map<String, Object> transformParameters = new LinkedHashMap<String, Object>();
+            transformParameters.put("Type", new Name("TransformParams"));
+            transformParameters.put("P", (long) certificationLevel);
+            transformParameters.put("V", new Name("1.2"));
+            Map<String, Object> reference = new LinkedHashMap<String, Object>();
+            reference.put("Type", new Name("SigRef"));
+            reference.put("TransformMethod", new Name("DocMDP"));
+            reference.put("DigestMethod", new Name("SHA1"));
+            reference.put("TransformParams", transformParameters);
+            signature.put("Reference", Arrays.asList((Object) reference));
+            Map<String, Object> perms = new LinkedHashMap<String, Object>();
+            perms.put("DocMDP", signatureRef);
+            catalog.put("Perms", perms);
+            catalogChanged = true;
+        }
+        signature.put("Contents", CONTENTS_PLACEHOLDER);
+        signature.put("ByteRange", BYTE_RANGE_PLACEHOLDER);
+        updates.put(signatureRef.num, signature);
+
+        // signature field
+        if (field != null) {
+            field.put("V", signatureRef);
+            field.put("AP", appearance);
+            updates.put(fieldRef.num, field);
+        } else {
+            fieldRef = newObject();
+            field = new LinkedHashMap<String, Object>();
+            field.put("Type", new Name("Annot"));
+            field.put("Subtype", new Name("Widget"));
+            field.put("FT", new Name("Sig"));
+            String partialName = signatureFieldName;
+            if (partialName == null || partialName.isEmpty() || partialName.indexOf('.') >= 0
+                    || fieldNames.contains(partialName)) {
+                partialName = generatePartialName(fieldNames);
+            }
+            field.put("T", textString(partialName));
+            field.put("F", 132L);
+            field.put("Rect", rect == null ? Arrays.asList((Object) 0L, 0L, 0L, 0L)
+                    : Arrays.asList((Object) rect[0], rect[1], rect[2], rect[3]));
+            field.put("P", pageRef);
+            field.put("V", signatureRef);
+            field.put("AP", appearance);
+            updates.put(fieldRef.num, field);
+            fields.add(fieldRef);
+
+            // add the widget to the page annotations
+            Object annotsObject = pageDict.get("Annots");
+            List<Object> annots = copy(reader.resolveArray(annotsObject));
+            if (annots == null) {
+                annots = new ArrayList<Object>();
+            }
+            annots.add(fieldRef);
+            if (annotsObject instanceof Ref) {
+                updates.put(((Ref) annotsObject).num, annots);
+            } else {
+                Map<String, Object> newPage = copy(pageDict);
+                newPage.put("Annots", annots);
+                updates.put(pageRef.num, newPage);
+            }
+        }
+
+        // update the AcroForm
+        Object fieldsObject = acroForm.get("Fields");
+        if (fieldsObject instanceof Ref) {
+            updates.put(((Ref) fieldsObject).num, fields);
+        } else {
+            acroForm.put("Fields", fields);
+        }
+        // signatures exist and append only
+        acroForm.put("SigFlags", 3L);
+        if (acroFormObject instanceof Ref) {
+            updates.put(((Ref) acroFormObject).num, acroForm);
+        } else {
+            Ref acroFormRef = newObject();
+            updates.put(acroFormRef.num, acroForm);
+            catalog.put("AcroForm", acroFormRef);
+            catalogChanged = true;
+        }
+        if (catalogChanged) {
+            updates.put(rootRef.num, catalog);
+        }
+    }
+
+    /**
+     * Writes the revision with all updated objects and the cross reference
+     * section.
+     */
+    private void writeRevision(int signatureSize) throws IOException {
+        ByteBuffer source = reader.getBuffer();
+        int base = source.remaining();
+        RevisionOutputStream out = new RevisionOutputStream(signatureSize * 2 + 4096);
+        byte last = base > 0 ? source.get(base - 1) : (byte) '\n';
+        if (last != '\n' && last != '\r') {
+            out.write("\n");
+        }
+        contentsLength = signatureSize * 2 + 2;
+
+        Ref xrefStreamRef = reader.isXrefStream() ? newObject() : null;
+        Map<Integer, Integer> offsets = new TreeMap<Integer, Integer>();
+        for (Map.Entry<Integer, Object> entry : updates.entrySet()) {
+            int num = entry.getKey();
+            offsets.put(num, base + out.size());
+            out.write(num + " " + getGeneration(num) + " obj\n");
+            Object object = entry.getValue();
+            if (object instanceof NewStream) {
+                NewStream stream = (NewStream) object;
+                stream.dictionary.put("Length", (long) stream.data.length);
+                writeObject(out, stream.dictionary);
+                out.write("\nstream\n");
+                out.write(stream.data);
+                out.write("\nendstream");
+            } else {
+                writeObject(out, object);
+            }
+            out.write("\nendobj\n");
+        }
+
+        Map<String, Object> trailer = reader.getTrailer();
+        Map<String, Object> newTrailer = new LinkedHashMap<String, Object>();
+        newTrailer.put("Size", (long) nextObjectNumber);
+        newTrailer.put("Prev", reader.getStartXref());
+        newTrailer.put("Root", trailer.get("Root"));
+        if (trailer.containsKey("Info")) {
+            newTrailer.put("Info", trailer.get("Info"));
+        }
+        if (trailer.containsKey("ID")) {
+            newTrailer.put("ID", trailer.get("ID"));
+        }
+        int startXref = base + out.size();
+        if (xrefStreamRef != null) {
+            offsets.put(xrefStreamRef.num, startXref);
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            List<Object> index = new ArrayList<Object>();
+            for (int[] section : getSubsections(offsets)) {
+                index.add((long) section[0]);
+                index.add((long) section[1]);
+                for (int i = 0; i < section[1]; i++) {
+                    int num = section[0] + i;
+                    int offset = offsets.get(num);
+                    int generation = getGeneration(num);
+                    data.write(1);
+                    data.write(offset >>> 24);
+                    data.write(offset >>> 16);
+                    data.write(offset >>> 8);
+                    data.write(offset);
+                    data.write(generation >>> 8);
+                    data.write(generation);
+                }
+            }
+            Map<String, Object> dict = new LinkedHashMap<String, Object>();
+            dict.put("Type", new Name("XRef"));
+            dict.putAll(newTrailer);
+            dict.put("Index", index);
+            dict.put("W", Arrays.asList((Object) 1L, 4L, 2L));
+            dict.put("Length", (long) data.size());
+            out.write(xrefStreamRef.num + " 0 obj\n");
+            writeObject(out, dict);
+            out.write("\nstream\n");
+            out.write(data.toByteArray());
+            out.write("\nendstream\nendobj\n");
+        } else {
+            out.write("xref\n");
+            for (int[] section : getSubsections(offsets)) {
+                out.write(section[0] + " " + section[1] + "\n");
+                for (int i = 0; i < section[1]; i++) {
+                    int num = section[0] + i;
+                    out.write(String.format("%010d %05d n\r\n", offsets.get(num), getGeneration(num)));
+                }
+            }
+            out.write("trailer\n");
+            writeObject(out, newTrailer);
+            out.write("\n");
+        }
+        out.write("startxref\n" + startXref + "\n%%EOF\n");
+
+        revision = out.toByteArray();
+        int contentsEnd = base + contentsOffset + contentsLength;
+        byteRange = new int[] { 0, base + contentsOffset, contentsEnd, base + revision.length - contentsEnd };
+        byte[] byteRangeValue = ("[0 " + byteRange[1] + " " + byteRange[2] + " " + byteRange[3] + "]")
+                .getBytes(StandardCharsets.US_ASCII);
+        if (byteRangeValue.length > BYTE_RANGE_LENGTH) {
+            throw new UnsupportedPdfException("document too large");
+        }
+        System.arraycopy(byteRangeValue, 0, revision, byteRangeOffset, byteRangeValue.length);
+    }
+
+    /**
+     * Creates the appearance stream of a visual signature. The layout
+     * corresponds to the visual signature created by the SigningService.
+     */
+    private NewStream createAppearance(float width, float height, Certificate[] certificateChain, Calendar signDate,
+            String reason) throws UnsupportedPdfException {
+        X509Certificate cert = (X509Certificate) certificateChain[0];
+        X500Name x500Name = new X500Name(cert.getSubjectX500Principal().getName());
+        RDN cn = x500Name.getRDNs(BCStyle.CN)[0];
+        String name = IETFUtils.valueToString(cn.getFirst().getValue());
+        SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd. MMM yyyy HH:mm:ss");
+
+        float fontSize = 8;
+        float leading = fontSize * 1.3f;
+        StringBuilder content = new StringBuilder();
+        // first draw signature line
+        content.append("0 0 0 RG\n");
+        content.append("0 " + SIGNATURE_DETAILS_OFSET + " m\n");
+        content.append(formatNumber(width) + " " + SIGNATURE_DETAILS_OFSET + " l\nS\n");
+        // begin text below the signature line
+        content.append("BT\n");
+        content.append(formatNumber(leading) + " TL\n");
+        content.append(formatNumber(fontSize) + " " + formatNumber(SIGNATURE_DETAILS_OFSET - leading) + " Td\n");
+        appendText(content, "Signer: ", name, fontSize);
+        content.append("T*\n");
+        appendText(content, "Date: ", dateFormat.format(signDate.getTime()), fontSize);
+        if (reason != null && !reason.isEmpty()) {
+            content.append("T*\n");
+            appendText(content, "Reason: ", reason, fontSize);
+        }
+        content.append("ET\n");
+
+        Map<String, Object> fonts = new LinkedHashMap<String, Object>();
+        fonts.put("F1", createFont("Helvetica-Bold"));
+        fonts.put("F2", createFont("Helvetica"));
+        Map<String, Object> resources = new LinkedHashMap<String, Object>();
+        resources.put("Font", fonts);
+        Map<String, Object> dict = new LinkedHashMap<String, Object>();
+        dict.put("Type", new Name("XObject"));
+        dict.put("Subtype", new Name("Form"));
+        dict.put("FormType", 1L);
+        dict.put("BBox", Arrays.asList((Object) 0L, 0L, width, height));
+        dict.put("Resources", resources);
+        return new NewStream(dict, content.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private void appendText(StringBuilder content, String label, String text, float fontSize)
+            throws UnsupportedPdfException {
+        content.append("/F1 " + formatNumber(fontSize) + " Tf\n");
+        content.append(encodeText(label)).append(" Tj\n");
+        content.append("/F2 " + formatNumber(fontSize) + " Tf\n");
+        content.append(encodeText(text)).append(" Tj\n");
+    }
+
+    private Map<String, Object> createFont(String baseFont) {
+        Map<String, Object> font = new LinkedHashMap<String, Object>();
+        font.put("Type", new Name("Font"));
+        font.put("Subtype", new Name("Type1"));
+        font.put("BaseFont", new Name(baseFont));
+        font.put("Encoding", new Name("WinAnsiEncoding"));
+        return font;
+    }
+
+    /**
+     * Encodes a text as a literal string in WinAnsiEncoding. Characters not
+     * available in the standard fonts are not supported.
+     */
+    private String encodeText(String text) throws UnsupportedPdfException {
+        CharsetEncoder encoder = Charset.forName("windows-1252").newEncoder();
+        StringBuilder result = new StringBuilder("(");
+        for (char c : text.toCharArray()) {
+            if (c < 32 || !encoder.canEncode(c)) {
+                throw new UnsupportedPdfException("character not supported by WinAnsiEncoding: " + c);
+            }
+            if (c == '(' || c == ')' || c == '\\') {
+                result.append('\\');
+            }
+            if (c < 128) {
+                result.append(c);
+            } else {
+                byte b = String.valueOf(c).getBytes(Charset.forName("windows-1252"))[0];
+                result.append('\\').append(Integer.toOctalString(b & 0xff));
+            }
+        }
+        return result.append(")").toString();
+    }
+
+    /**
+     * Computes the signature rectangle in PDF coordinates from a rectangle given
+     * from a human viewpoint (coordinates start at top left). The height of the
+     * first page is used as in the SigningService.
+     */
+    private float[] createSignatureRectangle(Rectangle2D humanRect) throws IOException {
+        Map<String, Object> firstPage = reader.resolveDictionary(reader.getPageRef(0));
+        if (getRotation(firstPage) != 0) {
+            throw new UnsupportedPdfException("rotated pages are not supported");
+        }
+        Object box = reader.getInheritedAttribute(firstPage, "CropBox");
+        if (box == null) {
+            box = reader.getInheritedAttribute(firstPage, "MediaBox");
+        }
+        float[] pageRect = toRectangle(reader.resolveArray(box));
+        if (pageRect == null) {
+            throw new UnsupportedPdfException("missing MediaBox");
+        }
+        float pageHeight = pageRect[3] - pageRect[1];
+        float x = (float) humanRect.getX();
+        float y = (float) humanRect.getY();
+        float width = (float) humanRect.getWidth();
+        float height = (float) humanRect.getHeight();
+        return new float[] { x, pageHeight - y - height, x + width, pageHeight - y };
+    }
+
+    private int getRotation(Map<String, Object> page) throws IOException {
+        int rotation = IncrementalPdfReader.intValue(reader.getInheritedAttribute(page, "Rotate"), 0);
+        return ((rotation % 360) + 360) % 360;
+    }
+
+    /**
+     * Returns the normalized rectangle [llx lly urx ury] or null
+     */
+    private float[] toRectangle(List<Object> array) throws IOException {
+        if (array == null || array.size() != 4) {
+            return null;
+        }
+        float[] values = new float[4];
+        for (int i = 0; i < 4; i++) {
+            values[i] = IncrementalPdfReader.floatValue(reader.resolve(array.get(i)), 0);
+        }
+        return new float[] { Math.min(values[0], values[2]), Math.min(values[1], values[3]),
+                Math.max(values[0], values[2]), Math.max(values[1], values[3]) };
+    }
+
+    /**
+     * Returns the PDF version from the header or the catalog /Version entry
+     */
+    private float getVersion(Map<String, Object> catalog) throws IOException {
+        float version = reader.getHeaderVersion();
+        String catalogVersion = IncrementalPdfReader.nameOf(reader.resolve(catalog.get("Version")));
+        if (version >= 1.4f && catalogVersion != null) {
+            try {
+                version = Math.max(version, Float.parseFloat(catalogVersion));
+            } catch (NumberFormatException e) {
+                // ignore invalid version
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Generates a unique field name like PDFBox does for new signature fields
+     */
+    private String generatePartialName(Set<String> fieldNames) {
+        int i = 1;
+        while (fieldNames.contains("Signature" + i)) {
+            i++;
+        }
+        return "Signature" + i;
+    }
+
+    private Ref newObject() {
+        return new Ref(nextObjectNumber++, 0);
+    }
+
+    private int getGeneration(int num) {
+        return Math.max(reader.getGeneration(num), 0);
+    }
+
+    /**
+     * Groups the object numbers into subsections of consecutive numbers
+     */
+    private List<int[]> getSubsections(Map<Integer, Integer> offsets) {
+        List<int[]> result = new ArrayList<int[]>();
+        int[] section = null;
+        for (int num : offsets.keySet()) {
+            if (section != null && section[0] + section[1] == num) {
+                section[1]++;
+            } else {
+                section = new int[] { num, 1 };
+                result.add(section);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes a PDF object
+     */
+    @SuppressWarnings("unchecked")
+    private void writeObject(RevisionOutputStream out, Object object) throws IOException {
+        if (object == CONTENTS_PLACEHOLDER) {
+            contentsOffset = out.size();
+            out.write('<');
+            byte[] zeros = new byte[contentsLength - 2];
+            Arrays.fill(zeros, (byte) '0');
+            out.write(zeros);
+            out.write('>');
+        } else if (object == BYTE_RANGE_PLACEHOLDER) {
+            byteRangeOffset = out.size();
+            byte[] placeholder = new byte[BYTE_RANGE_LENGTH];
+            Arrays.fill(placeholder, (byte) ' ');
+            out.write(placeholder);
+        } else if (object == null) {
+            out.write("null");
+        } else if (object instanceof Map) {
+            out.write("<<");
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) object).entrySet()) {
+                out.write(" ");
+                writeName(out, entry.getKey());
+                out.write(" ");
+                writeObject(out, entry.getValue());
+            }
+            out.write(" >>");
+        } else if (object instanceof List) {
+            out.write("[");
+            boolean first = true;
+            for (Object value : (List<Object>) object) {
+                if (!first) {
+                    out.write(" ");
+                }
+                first = false;
+                writeObject(out, value);
+            }
+            out.write("]");
+        } else if (object instanceof Name) {
+            writeName(out, ((Name) object).name);
+        } else if (object instanceof Str) {
+            out.write("<");
+            out.write(Hex.getBytes(((Str) object).bytes));
+            out.write(">");
+        } else if (object instanceof Ref) {
+            out.write(object.toString());
+        } else if (object instanceof Number) {
+            out.write(formatNumber(((Number) object).doubleValue()));
+        } else if (object instanceof Boolean) {
+            out.write(object.toString());
+        } else {
+            throw new UnsupportedPdfException("unsupported object " + object.getClass().getSimpleName());
+        }
+    }
+
+    private void writeName(RevisionOutputStream out, String name) throws IOException {
+        out.write("/");
+        for (byte b : name.getBytes(StandardCharsets.ISO_8859_1)) {
+            int c = b & 0xff;
+            if (c < 33 || c > 126 || c == '#' || IncrementalPdfReader.Parser.isDelimiter(b)) {
+                out.write(String.format("#%02X", c));
+            } else {
+                out.write(c);
+            }
+        }
+    }
+
+    private static String formatNumber(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value)) {
+            return Long.toString((long) value);
+        }
+        return BigDecimal.valueOf(value).setScale(4, RoundingMode.HALF_UP).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Creates a PDF text string. Non ASCII text is encoded in UTF-16BE.
+     */
+    private static Str textString(String text) {
+        for (char c : text.toCharArray()) {
+            if (c > 126) {
+                byte[] utf16 = text.getBytes(StandardCharsets.UTF_16BE);
+                byte[] bytes = new byte[utf16.length + 2];
+                bytes[0] = (byte) 0xFE;
+                bytes[1] = (byte) 0xFF;
+                System.arraycopy(utf16, 0, bytes, 2, utf16.length);
+                return new Str(bytes);
+            }
+        }
+        return new Str(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Decodes a PDF text string
+     */
+    private static String textOf(Object object) {
+        if (!(object instanceof Str)) {
+            return null;
+        }
+        byte[] bytes = ((Str) object).bytes;
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xFE && (bytes[1] & 0xff) == 0xFF) {
+            return new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_16BE);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private static Map<String, Object> copy(Map<String, Object> dict) {
+        return dict == null ? null : new LinkedHashMap<String, Object>(dict);
+    }
+
+    private static List<Object> copy(List<Object> array) {
+        return array == null ? null : new ArrayList<Object>(array);
+    }
+
+    /**
+     * A new stream object of the revision
+     */
+    private static class NewStream {
+        final Map<String, Object> dictionary;
+        final byte[] data;
+
+        NewStream(Map<String, Object> dictionary, byte[] data) {
+            this.dictionary = dictionary;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Output stream for the revision with support for ASCII strings
+     */
+    private static class RevisionOutputStream extends ByteArrayOutputStream {
+
+        RevisionOutputStream(int size) {
+            super(size);
+        }
+
+        void write(String text) {
+            byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+            write(bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void write(byte[] b) {
+            write(b, 0, b.length);
+        }
+    }
+}
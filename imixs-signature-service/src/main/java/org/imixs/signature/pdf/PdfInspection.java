@@ -0,0 +1,268 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.imixs.signature.pdf.IncrementalPdfReader.Ref;
+import org.imixs.signature.pdf.IncrementalPdfReader.Str;
+
+/**
+ * A PdfInspection is the result of a pre-flight inspection of a PDF document.
+ * The inspection reads only the trailer, the /Encrypt entry, the catalog /Perms
+ * entry and the /AcroForm fields with the IncrementalPdfReader. The page tree
+ * and the page content are never parsed. So a document can be rejected or
+ * routed before it is loaded by the signing pipeline.
+ * <p>
+ * If the cross reference of the document can not be read on byte level, the
+ * inspection is marked as not incremental. In this case the document can still
+ * be processed by PDFBox.
+ *
+ * @see SigningService#inspectPDF(byte[])
+ * @author rsoika
+ * @version 1.0
+ */
+public class PdfInspection {
+
+    private boolean incremental = true;
+    private String error;
+    private boolean encrypted;
+    private int mdpPermission;
+    private float version;
+    private int pageCount;
+    private final List<String> signedFields = new ArrayList<String>();
+    private final List<String> emptySignatureFields = new ArrayList<String>();
+
+    /**
+     * Inspects the given PDF document
+     *
+     * @param content the PDF document
+     * @return the PdfInspection
+     */
+    public static PdfInspection inspect(byte[] content) {
+        try {
+            return inspect(new IncrementalPdfReader(ByteBuffer.wrap(content)));
+        } catch (IOException e) {
+            PdfInspection inspection = new PdfInspection();
+            inspection.incremental = false;
+            inspection.error = e.getMessage();
+            return inspection;
+        }
+    }
+
+    /**
+     * Inspects the document of the given reader
+     *
+     * @param reader the IncrementalPdfReader
+     * @return the PdfInspection
+     */
+    public static PdfInspection inspect(IncrementalPdfReader reader) {
+        PdfInspection inspection = new PdfInspection();
+        inspection.encrypted = reader.isEncrypted();
+        inspection.version = reader.getHeaderVersion();
+        try {
+            Map<String, Object> catalog = reader.getCatalog();
+            String catalogVersion = IncrementalPdfReader.nameOf(reader.resolve(catalog.get("Version")));
+            if (catalogVersion != null) {
+                try {
+                    inspection.version = Math.max(inspection.version, Float.parseFloat(catalogVersion));
+                } catch (NumberFormatException e) {
+                    // ignore invalid version
+                }
+            }
+            Map<String, Object> pages = reader.resolveDictionary(catalog.get("Pages"));
+            if (pages != null) {
+                inspection.pageCount = IncrementalPdfReader.intValue(reader.resolve(pages.get("Count")), 0);
+            }
+            inspection.mdpPermission = reader.getMDPPermission();
+            Map<String, Object> acroForm = reader.resolveDictionary(catalog.get("AcroForm"));
+            if (acroForm != null) {
+                List<Object> fields = reader.resolveArray(acroForm.get("Fields"));
+                if (fields != null) {
+                    inspection.collectSignatureFields(reader, fields, null, false, new HashSet<Integer>());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            inspection.error = e.getMessage();
+            inspection.incremental = false;
+        }
+        if (inspection.encrypted) {
+            inspection.incremental = false;
+        }
+        return inspection;
+    }
+
+    /**
+     * Collects the names of all signed and empty signature fields of the field
+     * tree. The field type is inherited by the kids of a field.
+     */
+    private void collectSignatureFields(IncrementalPdfReader reader, List<Object> fields, String parentName,
+            boolean parentSignatureField, Set<Integer> visited) throws IOException {
+        for (Object fieldObject : fields) {
+            if (fieldObject instanceof Ref && !visited.add(((Ref) fieldObject).num)) {
+                continue;
+            }
+            Map<String, Object> field = reader.resolveDictionary(fieldObject);
+            if (field == null) {
+                continue;
+            }
+            Object partialName = reader.resolve(field.get("T"));
+            String name = parentName;
+            if (partialName instanceof Str) {
+                String text = textOf((Str) partialName);
+                name = parentName == null ? text : parentName + "." + text;
+            }
+            boolean signatureField = parentSignatureField;
+            if (field.containsKey("FT")) {
+                signatureField = "Sig".equals(IncrementalPdfReader.nameOf(reader.resolve(field.get("FT"))));
+            }
+            List<Object> kids = reader.resolveArray(field.get("Kids"));
+            if (kids != null && !kids.isEmpty() && isFieldTree(reader, kids)) {
+                collectSignatureFields(reader, kids, name, signatureField, visited);
+            } else if (signatureField) {
+                if (reader.resolve(field.get("V")) != null) {
+                    signedFields.add(name);
+                } else {
+                    emptySignatureFields.add(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns true if the kids are fields and not only widget annotations
+     */
+    private boolean isFieldTree(IncrementalPdfReader reader, List<Object> kids) throws IOException {
+        for (Object kid : kids) {
+            Map<String, Object> dict = reader.resolveDictionary(kid);
+            if (dict != null && dict.containsKey("T")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String textOf(Str str) {
+        byte[] bytes = str.bytes;
+        if (bytes.length >= 2 && (bytes[0] & 0xff) == 0xFE && (bytes[1] & 0xff) == 0xFF) {
+            return new String(bytes, 2, bytes.length - 2, StandardCharsets.UTF_16BE);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Returns the reason why the document can not be signed or null if the
+     * document can be signed.
+     *
+     * @return reject reason or null
+     */
+    public String getRejectReason() {
+        return getRejectReason(null);
+    }
+
+    /**
+     * Returns the reason why the document can not be signed into the given
+     * signature field or null if the document can be signed.
+     *
+     * @param signatureFieldName optional name of the target signature field
+     * @return reject reason or null
+     */
+    public String getRejectReason(String signatureFieldName) {
+        if (mdpPermission == 1) {
+            return "No changes to the document are permitted due to DocMDP transform parameters dictionary";
+        }
+        if (signatureFieldName != null && signedFields.contains(signatureFieldName)) {
+            return "The signature field " + signatureFieldName + " is already signed";
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the document can be signed on byte level by the
+     * IncrementalSignatureAppender. Otherwise the document must be processed by
+     * PDFBox.
+     *
+     * @return true if the document can be processed on byte level
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Returns the error message if the document could not be inspected
+     * completely
+     *
+     * @return error message or null
+     */
+    public String getError() {
+        return error;
+    }
+
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    /**
+     * Returns the DocMDP access permissions. 0 means the document is not
+     * certified.
+     *
+     * @return the permission value 0, 1, 2 or 3
+     */
+    public int getMDPPermission() {
+        return mdpPermission;
+    }
+
+    public float getVersion() {
+        return version;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * Returns the fully qualified names of all signed signature fields
+     *
+     * @return list of field names
+     */
+    public List<String> getSignedFields() {
+        return signedFields;
+    }
+
+    /**
+     * Returns the fully qualified names of all empty signature fields
+     *
+     * @return list of field names
+     */
+    public List<String> getEmptySignatureFields() {
+        return emptySignatureFields;
+    }
+
+}
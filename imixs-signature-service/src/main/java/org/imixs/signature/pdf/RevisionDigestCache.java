@@ -0,0 +1,234 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * The RevisionDigestCache holds the SHA-256 MessageDigest state at the end of a
+ * signed PDF revision.
+ * <p>
+ * Each signature appends a new revision to a PDF document and the byte range of
+ * the next signature covers the complete previous revision. If the service has
+ * already produced a revision, the cached digest state can be cloned so that
+ * only the new incremental update has to be hashed.
+ * <p>
+ * A cached digest state is identified by a random revision token issued by the
+ * service together with the signed revision. Only a hash of the complete
+ * revision would prove that the bytes are unchanged - and computing this hash is
+ * exactly the work the cache saves. So the cache stores a cheap fingerprint of
+ * the revision: the length, the first and the last block and the block at the
+ * startxref offset. A digest state is only resumed if the caller passes the
+ * token back with a revision matching this fingerprint. This detects a wrong
+ * token, a truncated or extended document and a changed cross reference table.
+ * A revision modified in place between these blocks is not detected.
+ * <p>
+ * The service supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_DIGEST_CACHE_SIZE - max number of cached revisions (default
+ * 1000)</li>
+ * </ul>
+ *
+ * @see SigningService
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class RevisionDigestCache {
+
+    public final static String ENV_SIGNATURE_DIGEST_CACHE_SIZE = "signature.digest.cache.size";
+
+    private static final int FINGERPRINT_BLOCK_SIZE = 4096;
+    private static final byte[] STARTXREF = "startxref".getBytes(StandardCharsets.US_ASCII);
+
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_DIGEST_CACHE_SIZE, defaultValue = "1000")
+    int cacheSize;
+
+    private Map<String, CachedDigest> digestCache = null;
+
+    private static Logger logger = Logger.getLogger(RevisionDigestCache.class.getName());
+
+    public RevisionDigestCache(int cacheSize) {
+        super();
+        this.cacheSize = cacheSize;
+    }
+
+    public RevisionDigestCache() {
+        super();
+    }
+
+    /**
+     * Returns a copy of the MessageDigest state after all bytes of the revision
+     * identified by the given token, or null if the token is unknown or the given
+     * revision does not match the fingerprint of the cached revision.
+     *
+     * @param token    the revision token returned by putDigest
+     * @param revision the content of the revision
+     * @return MessageDigest or null if not cached
+     */
+    public MessageDigest getDigest(String token, byte[] revision) {
+        if (token == null || token.isEmpty()) {
+            return null;
+        }
+        CachedDigest cachedDigest = getDigestCache().get(token);
+        if (cachedDigest == null || cachedDigest.length != revision.length) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(cachedDigest.fingerprint, fingerprint(revision))) {
+            logger.warning("...revision does not match the fingerprint of its token - hashing the full revision");
+            return null;
+        }
+        try {
+            logger.finest("......resume digest state of revision with " + revision.length + " bytes");
+            return (MessageDigest) cachedDigest.digest.clone();
+        } catch (CloneNotSupportedException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stores a copy of the MessageDigest state after all bytes of a revision and
+     * returns a new token identifying the revision.
+     *
+     * @param revision the content of the revision
+     * @param digest   the MessageDigest updated with all bytes of the revision
+     * @return the revision token or null if the digest state can not be cached
+     */
+    public String putDigest(byte[] revision, MessageDigest digest) {
+        try {
+            String token = UUID.randomUUID().toString();
+            getDigestCache().put(token,
+                    new CachedDigest(revision.length, fingerprint(revision), (MessageDigest) digest.clone()));
+            return token;
+        } catch (CloneNotSupportedException e) {
+            logger.warning("...MessageDigest " + digest.getAlgorithm() + " can not be cached: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of cached revisions
+     *
+     * @return count of cached revisions
+     */
+    public int getCachedRevisionCount() {
+        return getDigestCache().size();
+    }
+
+    private synchronized Map<String, CachedDigest> getDigestCache() {
+        if (digestCache == null) {
+            final int maxEntries = cacheSize > 0 ? cacheSize : 1000;
+            digestCache = Collections.synchronizedMap(new LinkedHashMap<String, CachedDigest>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedDigest> eldest) {
+                    return size() > maxEntries;
+                }
+            });
+        }
+        return digestCache;
+    }
+
+    /**
+     * Computes the SHA-256 fingerprint of a revision from the first block, the
+     * last block and the block at the offset of the last startxref keyword. The
+     * last block contains the trailer, the block at the startxref offset the
+     * start of the cross reference table.
+     */
+    private static byte[] fingerprint(byte[] revision) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        int blockSize = Math.min(FINGERPRINT_BLOCK_SIZE, revision.length);
+        md.update(revision, 0, blockSize);
+        md.update(revision, revision.length - blockSize, blockSize);
+        long startxref = getStartxref(revision, revision.length - blockSize);
+        if (startxref >= 0 && startxref < revision.length) {
+            md.update(revision, (int) startxref,
+                    (int) Math.min(FINGERPRINT_BLOCK_SIZE, revision.length - startxref));
+        }
+        return md.digest();
+    }
+
+    /**
+     * Returns the offset following the last startxref keyword after the given
+     * position, or -1 if the keyword is not found.
+     */
+    private static long getStartxref(byte[] revision, int from) {
+        for (int i = revision.length - STARTXREF.length; i >= from; i--) {
+            int j = 0;
+            while (j < STARTXREF.length && revision[i + j] == STARTXREF[j]) {
+                j++;
+            }
+            if (j < STARTXREF.length) {
+                continue;
+            }
+            int pos = i + STARTXREF.length;
+            while (pos < revision.length && Character.isWhitespace(revision[pos])) {
+                pos++;
+            }
+            long offset = -1;
+            while (pos < revision.length && revision[pos] >= '0' && revision[pos] <= '9' && offset < Integer.MAX_VALUE) {
+                offset = (offset < 0 ? 0 : offset * 10) + (revision[pos] - '0');
+                pos++;
+            }
+            return offset;
+        }
+        return -1;
+    }
+
+    /**
+     * The digest state, the length and the fingerprint of a revision
+     */
+    private static class CachedDigest {
+        private final int length;
+        private final byte[] fingerprint;
+        private final MessageDigest digest;
+
+        CachedDigest(int length, byte[] fingerprint, MessageDigest digest) {
+            this.length = length;
+            this.fingerprint = fingerprint;
+            this.digest = digest;
+        }
+    }
+}
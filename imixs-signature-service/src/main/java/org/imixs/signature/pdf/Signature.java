@@ -1,8 +1,11 @@
 package org.imixs.signature.pdf;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
@@ -11,18 +14,36 @@ import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureInterface;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
 import org.bouncycastle.cert.jcajce.JcaCertStore;
 import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSProcessableByteArray;
 import org.bouncycastle.cms.CMSSignedData;
 import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.DefaultSignedAttributeTableGenerator;
 import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
 import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultDigestAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DefaultSignatureAlgorithmIdentifierFinder;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.DigestCalculatorProvider;
 import org.bouncycastle.operator.OperatorCreationException;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
 import org.imixs.signature.pdf.util.ValidationTimeStamp;
 
 /**
@@ -38,6 +59,8 @@ import org.imixs.signature.pdf.util.ValidationTimeStamp;
  */
 public class Signature implements SignatureInterface {
 
+	public static final String SIGNATURE_ALGORITHM = "SHA256WithRSA";
+
 	private Certificate[] certificateChain;
 	private PrivateKey privateKey;
 	private String tsaUrl;
@@ -75,27 +98,292 @@ public class Signature implements SignatureInterface {
 	@Override
 	public byte[] sign(InputStream content) throws IOException {
 		// cannot be done private (interface)
+		return signDigest(digest(content));
+	}
+
+	/**
+	 * Computes the SHA-256 digest of the given byte range stream in a single pass.
+	 *
+	 * @param content InputStream of the byte range
+	 * @return the SHA-256 digest
+	 * @throws IOException
+	 */
+	public static byte[] digest(InputStream content) throws IOException {
 		try {
-			CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
-			X509Certificate cert = (X509Certificate) certificateChain[0];
-			ContentSigner sha1Signer = new JcaContentSignerBuilder("SHA256WithRSA").build(privateKey);
-			gen.addSignerInfoGenerator(
-					new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
-							.build(sha1Signer, cert));
-			gen.addCertificates(new JcaCertStore(Arrays.asList(certificateChain)));
-			CMSProcessableInputStream msg = new CMSProcessableInputStream(content);
-			CMSSignedData signedData = gen.generate(msg, false);
-
-			// If we have an optional tsa server than create a validateionTimeStamp....
-			if (tsaUrl != null && tsaUrl.length() > 0) {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] buffer = new byte[65536];
+			int n;
+			while ((n = content.read(buffer)) != -1) {
+				md.update(buffer, 0, n);
+			}
+			return md.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Creates the PKCS #7 signature based on a precomputed SHA-256 digest of the
+	 * byte range. The content itself is not needed to build the CMS structure.
+	 *
+	 * @param contentDigest SHA-256 digest of the signed byte range
+	 * @return the encoded CMS signature
+	 * @throws IOException
+	 */
+	public byte[] signDigest(byte[] contentDigest) throws IOException {
+		return signDigest(contentDigest, true);
+	}
+
+	/**
+	 * Creates the PKCS #7 signature based on a precomputed SHA-256 digest of the
+	 * byte range. If timestamp is false, no timestamp token is requested even if
+	 * a TSA url is defined. The token can be added later as unsigned attribute.
+	 *
+	 * @param contentDigest SHA-256 digest of the signed byte range
+	 * @param timestamp     request a timestamp token from the TSA
+	 * @return the encoded CMS signature
+	 * @throws IOException
+	 */
+	public byte[] signDigest(byte[] contentDigest, boolean timestamp) throws IOException {
+		try {
+			ContentSigner contentSigner = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey);
+			CMSSignedData signedData = generate(certificateChain, new JcaCertStore(Arrays.asList(certificateChain)),
+					contentSigner, contentDigest, null);
+			if (timestamp && tsaUrl != null && tsaUrl.length() > 0) {
 				ValidationTimeStamp validation = new ValidationTimeStamp(tsaUrl);
 				signedData = validation.addSignedTimeStamp(signedData);
 			}
+			return signedData.getEncoded();
+		} catch (OperatorCreationException | CertificateEncodingException | CMSException | NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Creates PKCS #7 signatures for a list of precomputed SHA-256 digests. The
+	 * content signer and the certificate store are created only once for the
+	 * whole batch. If a TSA url is defined, up to the given number of timestamp
+	 * requests are sent in parallel by the given executor.
+	 * <p>
+	 * An invalid digest or a failed timestamp request only fails the affected
+	 * digest. Its SignedDigest holds the reason instead of a signature.
+	 *
+	 * @param contentDigests list of SHA-256 digests
+	 * @param tsaThreads     maximum number of concurrent TSA requests
+	 * @param executor       executor running the TSA requests, e.g. the
+	 *                       ManagedExecutorService of the container
+	 * @return list of SignedDigests in the order of the digests
+	 * @throws IOException if the signer can not be created
+	 */
+	public List<SignedDigest> signDigests(List<byte[]> contentDigests, int tsaThreads, Executor executor)
+			throws IOException {
+		final CMSSignedData[] signedData = new CMSSignedData[contentDigests.size()];
+		final SignedDigest[] result = new SignedDigest[contentDigests.size()];
+		try {
+			ContentSigner contentSigner = new JcaContentSignerBuilder(SIGNATURE_ALGORITHM).build(privateKey);
+			JcaCertStore certStore = new JcaCertStore(Arrays.asList(certificateChain));
+			for (int i = 0; i < contentDigests.size(); i++) {
+				byte[] contentDigest = contentDigests.get(i);
+				if (contentDigest == null || contentDigest.length != 32) {
+					result[i] = new SignedDigest(null, "invalid SHA-256 digest");
+				} else {
+					signedData[i] = generate(certificateChain, certStore, contentSigner, contentDigest, null);
+				}
+			}
+		} catch (OperatorCreationException | CertificateEncodingException | CMSException e) {
+			throw new IOException(e);
+		}
+
+		if (tsaUrl == null || tsaUrl.isEmpty()) {
+			for (int i = 0; i < signedData.length; i++) {
+				if (signedData[i] != null) {
+					result[i] = new SignedDigest(signedData[i].getEncoded(), null);
+				}
+			}
+			return Arrays.asList(result);
+		}
+
+		// each worker takes the next signature until all are timestamped
+		final AtomicInteger next = new AtomicInteger();
+		int workers = Math.max(1, Math.min(tsaThreads, signedData.length));
+		final CountDownLatch done = new CountDownLatch(workers);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					int i;
+					while ((i = next.getAndIncrement()) < signedData.length) {
+						if (signedData[i] == null) {
+							continue;
+						}
+						try {
+							result[i] = new SignedDigest(
+									new ValidationTimeStamp(tsaUrl).addSignedTimeStamp(signedData[i]).getEncoded(), null);
+						} catch (Exception e) {
+							result[i] = new SignedDigest(null, "Failed to add timestamp - " + e.getMessage());
+						}
+					}
+				} finally {
+					done.countDown();
+				}
+			}
+		};
+		for (int i = 0; i < workers; i++) {
+			try {
+				executor.execute(worker);
+			} catch (RejectedExecutionException e) {
+				// the executor is saturated - run the worker in the calling thread
+				worker.run();
+			}
+		}
+		try {
+			done.await();
+		} catch (InterruptedException e) {
+			// stop the workers after their current request
+			next.set(signedData.length);
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		return Arrays.asList(result);
+	}
 
+	/**
+	 * Returns the DER encoded signed attributes for a precomputed content digest.
+	 * These are the bytes an external signer has to sign with the algorithm
+	 * SHA256WithRSA to produce the raw signature value.
+	 * <p>
+	 * The signing time is part of the signed attributes. The same signing time has
+	 * to be passed later to {@link #createSignature}.
+	 *
+	 * @param certificateChain the certificate chain of the signer
+	 * @param contentDigest    SHA-256 digest of the signed byte range
+	 * @param signingTime      the signing time
+	 * @return DER encoded signed attributes
+	 * @throws IOException
+	 */
+	public static byte[] createSignedAttributes(Certificate[] certificateChain, byte[] contentDigest,
+			Date signingTime) throws IOException {
+		PresignedContentSigner contentSigner = new PresignedContentSigner(new byte[0]);
+		try {
+			generate(certificateChain, new JcaCertStore(Arrays.asList(certificateChain)), contentSigner,
+					contentDigest, signingTime);
+		} catch (OperatorCreationException | CertificateEncodingException | CMSException e) {
+			throw new IOException(e);
+		}
+		return contentSigner.getSignedData();
+	}
+
+	/**
+	 * Assembles the PKCS #7 signature from a raw signature value created by an
+	 * external signer over the signed attributes returned by
+	 * {@link #createSignedAttributes}.
+	 *
+	 * @param certificateChain the certificate chain of the signer
+	 * @param contentDigest    SHA-256 digest of the signed byte range
+	 * @param signingTime      the signing time used for the signed attributes
+	 * @param rawSignature     the raw signature value
+	 * @param tsaUrl           optional TSA url
+	 * @return the encoded CMS signature
+	 * @throws IOException
+	 */
+	public static byte[] createSignature(Certificate[] certificateChain, byte[] contentDigest, Date signingTime,
+			byte[] rawSignature, String tsaUrl) throws IOException {
+		try {
+			CMSSignedData signedData = generate(certificateChain, new JcaCertStore(Arrays.asList(certificateChain)),
+					new PresignedContentSigner(rawSignature), contentDigest, signingTime);
+			if (tsaUrl != null && tsaUrl.length() > 0) {
+				ValidationTimeStamp validation = new ValidationTimeStamp(tsaUrl);
+				signedData = validation.addSignedTimeStamp(signedData);
+			}
 			return signedData.getEncoded();
 		} catch (OperatorCreationException | CertificateEncodingException | CMSException | NoSuchAlgorithmException e) {
 			throw new IOException(e);
 		}
 	}
 
+	/**
+	 * Generates a detached CMS structure for a precomputed content digest. An
+	 * optional signing time is added to the signed attributes.
+	 */
+	private static CMSSignedData generate(Certificate[] certificateChain, JcaCertStore certStore,
+			ContentSigner contentSigner, byte[] contentDigest, Date signingTime)
+			throws OperatorCreationException, CertificateEncodingException, CMSException {
+		CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+		X509Certificate cert = (X509Certificate) certificateChain[0];
+		JcaSignerInfoGeneratorBuilder builder = new JcaSignerInfoGeneratorBuilder(
+				new PrecomputedDigestCalculatorProvider(contentDigest));
+		if (signingTime != null) {
+			builder.setSignedAttributeGenerator(new DefaultSignedAttributeTableGenerator(new AttributeTable(
+					new Attribute(CMSAttributes.signingTime, new DERSet(new Time(signingTime))))));
+		}
+		gen.addSignerInfoGenerator(builder.build(contentSigner, cert));
+		gen.addCertificates(certStore);
+		// the digest calculator ignores the content and returns the precomputed digest
+		return gen.generate(new CMSProcessableByteArray(new byte[0]), false);
+	}
+
+	/**
+	 * DigestCalculatorProvider returning a precomputed SHA-256 digest.
+	 */
+	private static class PrecomputedDigestCalculatorProvider implements DigestCalculatorProvider {
+		private final byte[] digest;
+
+		PrecomputedDigestCalculatorProvider(byte[] digest) {
+			this.digest = digest;
+		}
+
+		@Override
+		public DigestCalculator get(final AlgorithmIdentifier digestAlgorithmIdentifier)
+				throws OperatorCreationException {
+			return new DigestCalculator() {
+				@Override
+				public AlgorithmIdentifier getAlgorithmIdentifier() {
+					return new DefaultDigestAlgorithmIdentifierFinder().find("SHA-256");
+				}
+
+				@Override
+				public OutputStream getOutputStream() {
+					return new ByteArrayOutputStream();
+				}
+
+				@Override
+				public byte[] getDigest() {
+					return digest.clone();
+				}
+			};
+		}
+	}
+
+	/**
+	 * ContentSigner which records the data to be signed and returns a signature
+	 * value created outside of this service.
+	 */
+	private static class PresignedContentSigner implements ContentSigner {
+		private final ByteArrayOutputStream signedData = new ByteArrayOutputStream();
+		private final byte[] signature;
+
+		PresignedContentSigner(byte[] signature) {
+			this.signature = signature;
+		}
+
+		@Override
+		public AlgorithmIdentifier getAlgorithmIdentifier() {
+			return new DefaultSignatureAlgorithmIdentifierFinder().find(SIGNATURE_ALGORITHM);
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return signedData;
+		}
+
+		@Override
+		public byte[] getSignature() {
+			return signature;
+		}
+
+		byte[] getSignedData() {
+			return signedData.toByteArray();
+		}
+	}
+
 }
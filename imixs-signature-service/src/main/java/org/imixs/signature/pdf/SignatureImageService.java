@@ -0,0 +1,365 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.imageio.ImageIO;
+import javax.inject.Inject;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.color.PDColorSpace;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceGray;
+import org.apache.pdfbox.pdmodel.graphics.color.PDDeviceRGB;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.LosslessFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.bouncycastle.util.encoders.Hex;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * The SignatureImageService normalizes the signature images used for a visual
+ * signature. Signature images are often uploaded in a very high resolution. The
+ * service downsamples an image to the size of the signature rectangle at the
+ * configured resolution and re-encodes the result once.
+ * <p>
+ * The encoded image streams are stored in a content-addressed cache. The cache
+ * key is the SHA-256 hash of the source image combined with the target size.
+ * Later signatures with the same image reuse the pre-encoded stream bytes and
+ * no longer need to decode or compress the image.
+ * <p>
+ * The service supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_IMAGE_DPI - target resolution of the signature image (default
+ * 150)</li>
+ * <li>SIGNATURE_IMAGE_CACHE_SIZE - max number of cached images (default
+ * 100)</li>
+ * </ul>
+ *
+ * @see SigningService
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class SignatureImageService {
+
+    public final static String ENV_SIGNATURE_IMAGE_DPI = "signature.image.dpi";
+    public final static String ENV_SIGNATURE_IMAGE_CACHE_SIZE = "signature.image.cache.size";
+
+    private final static float JPEG_QUALITY = 0.9f;
+
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_IMAGE_DPI, defaultValue = "150")
+    int imageDPI;
+
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_IMAGE_CACHE_SIZE, defaultValue = "100")
+    int cacheSize;
+
+    private Map<String, EncodedImage> imageCache = null;
+
+    private static Logger logger = Logger.getLogger(SignatureImageService.class.getName());
+
+    public SignatureImageService(int imageDPI, int cacheSize) {
+        super();
+        this.imageDPI = imageDPI;
+        this.cacheSize = cacheSize;
+    }
+
+    public SignatureImageService() {
+        super();
+    }
+
+    /**
+     * Creates a PDImageXObject for the given signature image. The image is
+     * downsampled so that it fits into the given rectangle (in PDF points) at the
+     * configured resolution. If the image was already normalized for the same
+     * target size, the cached stream bytes are reused.
+     *
+     * @param doc       the document the image will be embedded into
+     * @param imageFile the source image (jpg, png or gif)
+     * @param maxWidth  max width of the image area in points
+     * @param maxHeight max height of the image area in points
+     * @return the image XObject
+     * @throws IOException
+     */
+    public PDImageXObject createImage(PDDocument doc, byte[] imageFile, float maxWidth, float maxHeight)
+            throws IOException {
+        int maxPixelWidth = toPixel(maxWidth);
+        int maxPixelHeight = toPixel(maxHeight);
+        String key = computeImageKey(imageFile, maxPixelWidth, maxPixelHeight);
+
+        EncodedImage encodedImage = getImageCache().get(key);
+        if (encodedImage == null) {
+            BufferedImage source = ImageIO.read(new ByteArrayInputStream(imageFile));
+            if (source == null) {
+                // unsupported image format - let pdfbox decide
+                logger.warning("...unsupported signature image format - image will not be normalized!");
+                return PDImageXObject.createFromByteArray(doc, imageFile, null);
+            }
+            BufferedImage scaledImage = scaleImage(source, maxPixelWidth, maxPixelHeight);
+            encodedImage = encodeImage(scaledImage, isJPEG(imageFile));
+            if (encodedImage == null) {
+                // color space not cacheable
+                return createImageXObject(doc, scaledImage, isJPEG(imageFile));
+            }
+            logger.finest("......signature image " + source.getWidth() + "x" + source.getHeight() + " normalized to "
+                    + encodedImage.width + "x" + encodedImage.height + " (" + imageFile.length + " -> "
+                    + encodedImage.getSize() + " bytes)");
+            getImageCache().put(key, encodedImage);
+        }
+        return encodedImage.toImageXObject(doc);
+    }
+
+    /**
+     * Returns the number of images currently held in the cache.
+     *
+     * @return cache size
+     */
+    public int getCachedImageCount() {
+        return getImageCache().size();
+    }
+
+    /**
+     * Converts a length in PDF points (1/72 inch) into pixels based on the
+     * configured resolution.
+     */
+    private int toPixel(float points) {
+        int dpi = imageDPI > 0 ? imageDPI : 150;
+        return Math.max(1, (int) Math.ceil(points * dpi / 72f));
+    }
+
+    /**
+     * Downsamples the given image so that it fits into the given pixel box. The
+     * aspect ratio is preserved. Images already smaller than the box are returned
+     * unchanged. Large reductions are done in several steps of half size to avoid
+     * aliasing of thin signature lines.
+     */
+    BufferedImage scaleImage(BufferedImage source, int maxPixelWidth, int maxPixelHeight) {
+        double scale = Math.min((double) maxPixelWidth / source.getWidth(),
+                (double) maxPixelHeight / source.getHeight());
+        if (scale >= 1) {
+            return source;
+        }
+        int targetWidth = Math.max(1, (int) Math.round(source.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(source.getHeight() * scale));
+        int imageType = source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                : BufferedImage.TYPE_INT_RGB;
+
+        BufferedImage result = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        do {
+            width = Math.max(targetWidth, width / 2);
+            height = Math.max(targetHeight, height / 2);
+            BufferedImage step = new BufferedImage(width, height, imageType);
+            Graphics2D g = step.createGraphics();
+            try {
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(result, 0, 0, width, height, null);
+            } finally {
+                g.dispose();
+            }
+            result = step;
+        } while (width != targetWidth || height != targetHeight);
+        return result;
+    }
+
+    /**
+     * Encodes the image once into a scratch document and extracts the encoded
+     * stream bytes. JPEG sources without transparency are encoded as DCT, all
+     * other images are encoded lossless. Returns null if the resulting color space
+     * can not be shared between documents.
+     */
+    private EncodedImage encodeImage(BufferedImage image, boolean jpeg) throws IOException {
+        try (PDDocument scratch = new PDDocument()) {
+            PDImageXObject img = createImageXObject(scratch, image, jpeg);
+            PDColorSpace colorSpace = img.getColorSpace();
+            if (!(colorSpace instanceof PDDeviceRGB) && !(colorSpace instanceof PDDeviceGray)) {
+                return null;
+            }
+            COSStream stream = img.getCOSObject();
+            EncodedStream smask = null;
+            COSBase smaskBase = stream.getDictionaryObject(COSName.SMASK);
+            if (smaskBase instanceof COSStream) {
+                smask = new EncodedStream((COSStream) smaskBase);
+            }
+            return new EncodedImage(new EncodedStream(stream), img.getWidth(), img.getHeight(),
+                    img.getBitsPerComponent(), colorSpace, smask);
+        }
+    }
+
+    private PDImageXObject createImageXObject(PDDocument doc, BufferedImage image, boolean jpeg) throws IOException {
+        if (jpeg && !image.getColorModel().hasAlpha()) {
+            return JPEGFactory.createFromImage(doc, image, JPEG_QUALITY);
+        }
+        return LosslessFactory.createFromImage(doc, image);
+    }
+
+    /**
+     * Computes the content address of an image for a given target size.
+     */
+    private String computeImageKey(byte[] imageFile, int maxPixelWidth, int maxPixelHeight) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.toHexString(digest.digest(imageFile)) + ":" + maxPixelWidth + "x" + maxPixelHeight;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private boolean isJPEG(byte[] imageFile) {
+        return imageFile.length > 2 && (imageFile[0] & 0xff) == 0xff && (imageFile[1] & 0xff) == 0xd8;
+    }
+
+    /**
+     * Returns the LRU image cache. The cache is created lazily as the cache size
+     * is injected after construction.
+     */
+    private synchronized Map<String, EncodedImage> getImageCache() {
+        if (imageCache == null) {
+            final int maxEntries = cacheSize > 0 ? cacheSize : 100;
+            imageCache = Collections.synchronizedMap(new LinkedHashMap<String, EncodedImage>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, EncodedImage> eldest) {
+                    return size() > maxEntries;
+                }
+            });
+        }
+        return imageCache;
+    }
+
+    /**
+     * Holds the raw (still encoded) bytes of a COSStream together with its filter
+     * definition.
+     */
+    private static class EncodedStream {
+        final byte[] data;
+        final COSBase filter;
+        final COSBase decodeParms;
+        final int bitsPerComponent;
+
+        EncodedStream(COSStream stream) throws IOException {
+            try (InputStream in = stream.createRawInputStream()) {
+                this.data = IOUtils.toByteArray(in);
+            }
+            this.filter = stream.getItem(COSName.FILTER);
+            this.decodeParms = stream.getItem(COSName.DECODE_PARMS);
+            this.bitsPerComponent = stream.getInt(COSName.BITS_PER_COMPONENT, 8);
+        }
+
+        /**
+         * Returns a copy of the given filter definition. The COS objects of the
+         * scratch document must not be shared between documents.
+         */
+        static COSBase copy(COSBase base) {
+            if (base instanceof COSArray) {
+                COSArray result = new COSArray();
+                for (COSBase item : (COSArray) base) {
+                    result.add(copy(item));
+                }
+                return result;
+            }
+            if (base instanceof COSDictionary) {
+                COSDictionary result = new COSDictionary();
+                for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) base).entrySet()) {
+                    result.setItem(entry.getKey(), copy(entry.getValue()));
+                }
+                return result;
+            }
+            // names and numbers are immutable
+            return base;
+        }
+    }
+
+    /**
+     * A normalized and encoded signature image which can be embedded into any
+     * document without decoding or re-encoding the image data.
+     */
+    private static class EncodedImage {
+        final EncodedStream image;
+        final EncodedStream smask;
+        final int width;
+        final int height;
+        final int bitsPerComponent;
+        final PDColorSpace colorSpace;
+
+        EncodedImage(EncodedStream image, int width, int height, int bitsPerComponent, PDColorSpace colorSpace,
+                EncodedStream smask) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.bitsPerComponent = bitsPerComponent;
+            this.colorSpace = colorSpace;
+            this.smask = smask;
+        }
+
+        int getSize() {
+            return image.data.length + (smask != null ? smask.data.length : 0);
+        }
+
+        PDImageXObject toImageXObject(PDDocument doc) throws IOException {
+            PDImageXObject img = createXObject(doc, image, width, height, bitsPerComponent, colorSpace);
+            if (smask != null) {
+                PDImageXObject mask = createXObject(doc, smask, width, height, smask.bitsPerComponent,
+                        PDDeviceGray.INSTANCE);
+                img.getCOSObject().setItem(COSName.SMASK, mask);
+            }
+            return img;
+        }
+
+        private static PDImageXObject createXObject(PDDocument doc, EncodedStream stream, int width, int height,
+                int bitsPerComponent, PDColorSpace colorSpace) throws IOException {
+            PDImageXObject img = new PDImageXObject(doc, new ByteArrayInputStream(stream.data),
+                    EncodedStream.copy(stream.filter), width, height, bitsPerComponent, colorSpace);
+            if (stream.decodeParms != null) {
+                img.getCOSObject().setItem(COSName.DECODE_PARMS, EncodedStream.copy(stream.decodeParms));
+            }
+            return img;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A SignatureReport is the result of the verification of one signature or
+ * document timestamp of a PDF document.
+ * <p>
+ * The report covers the integrity of the byte range, the validity of the CMS
+ * signature, the certificate chain, the revocation status of the chain and an
+ * optional signature timestamp. A document timestamp (ETSI.RFC3161) is
+ * reported with the type 'timestamp', its token is verified as the CMS
+ * signature.
+ *
+ * @see SignatureVerifier
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignatureReport {
+
+    public final static String TYPE_SIGNATURE = "signature";
+    public final static String TYPE_TIMESTAMP = "timestamp";
+
+    public final static String REVOCATION_GOOD = "good";
+    public final static String REVOCATION_REVOKED = "revoked";
+    public final static String REVOCATION_UNAVAILABLE = "unavailable";
+    public final static String REVOCATION_UNKNOWN = "unknown";
+    public final static String REVOCATION_NOT_CHECKED = "";
+
+    String fieldName;
+    String type = TYPE_SIGNATURE;
+    String subFilter;
+    int[] byteRange;
+    byte[] digest;
+    boolean coversDocument;
+    boolean byteRangeValid;
+    boolean cmsValid;
+    boolean chainValid;
+    String revocationStatus = REVOCATION_NOT_CHECKED;
+    String signer;
+    Date signingTime;
+    boolean timestamp;
+    boolean timestampValid;
+    Date timestampTime;
+    final List<String> errors = new ArrayList<String>();
+    // time of the verification
+    long verified = System.currentTimeMillis();
+
+    /**
+     * Returns a copy of this report. The copy keeps the time of the
+     * verification.
+     */
+    SignatureReport copy() {
+        SignatureReport result = new SignatureReport();
+        result.fieldName = fieldName;
+        result.type = type;
+        result.subFilter = subFilter;
+        result.byteRange = byteRange;
+        result.digest = digest;
+        result.coversDocument = coversDocument;
+        result.byteRangeValid = byteRangeValid;
+        result.cmsValid = cmsValid;
+        result.chainValid = chainValid;
+        result.revocationStatus = revocationStatus;
+        result.signer = signer;
+        result.signingTime = signingTime;
+        result.timestamp = timestamp;
+        result.timestampValid = timestampValid;
+        result.timestampTime = timestampTime;
+        result.errors.addAll(errors);
+        result.verified = verified;
+        return result;
+    }
+
+    /**
+     * Returns true if the byte range, the CMS signature and the certificate chain
+     * are valid, no certificate of the chain is revoked and an existing timestamp
+     * is valid.
+     *
+     * @return true if the signature is valid
+     */
+    public boolean isValid() {
+        return byteRangeValid && cmsValid && chainValid && !REVOCATION_REVOKED.equals(revocationStatus)
+                && (!timestamp || timestampValid);
+    }
+
+    /**
+     * Returns the fully qualified name of the signature field
+     *
+     * @return field name
+     */
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    /**
+     * Returns 'signature' or 'timestamp' for a document timestamp
+     *
+     * @return type
+     */
+    public String getType() {
+        return type;
+    }
+
+    public String getSubFilter() {
+        return subFilter;
+    }
+
+    /**
+     * Returns the byte range of the signature
+     *
+     * @return byte range
+     */
+    public int[] getByteRange() {
+        return byteRange;
+    }
+
+    /**
+     * Returns the length of the revision signed by this signature
+     *
+     * @return revision length in bytes
+     */
+    public long getRevisionLength() {
+        return byteRange != null && byteRange.length == 4 ? (long) byteRange[2] + byteRange[3] : 0;
+    }
+
+    /**
+     * Returns the digest of the byte range computed with the digest algorithm of
+     * the signature
+     *
+     * @return digest or null if the byte range is invalid
+     */
+    public byte[] getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns true if the signature covers the complete document, this means no
+     * revision was added after the signature
+     *
+     * @return true if the signature covers the document
+     */
+    public boolean isCoversDocument() {
+        return coversDocument;
+    }
+
+    public boolean isByteRangeValid() {
+        return byteRangeValid;
+    }
+
+    public boolean isCmsValid() {
+        return cmsValid;
+    }
+
+    public boolean isChainValid() {
+        return chainValid;
+    }
+
+    /**
+     * Returns the revocation status of the certificate chain - 'good', 'revoked',
+     * 'unavailable' if the certificate provides no OCSP or CRL url, 'unknown' if
+     * the check failed or an empty string if not checked
+     *
+     * @return revocation status
+     */
+    public String getRevocationStatus() {
+        return revocationStatus;
+    }
+
+    /**
+     * Returns the subject of the signing certificate
+     *
+     * @return signer
+     */
+    public String getSigner() {
+        return signer;
+    }
+
+    /**
+     * Returns the signing time. This is the time of a valid timestamp or the
+     * claimed signing time of the signer.
+     *
+     * @return signing time
+     */
+    public Date getSigningTime() {
+        return signingTime;
+    }
+
+    /**
+     * Returns true if the signature contains a signature timestamp
+     *
+     * @return true if timestamped
+     */
+    public boolean isTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isTimestampValid() {
+        return timestampValid;
+    }
+
+    public Date getTimestampTime() {
+        return timestampTime;
+    }
+
+    /**
+     * Returns the reasons of failed checks
+     *
+     * @return list of errors
+     */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * Returns the time of the verification. A report reused from a former
+     * verification keeps its original time.
+     *
+     * @return time in milliseconds
+     */
+    public long getVerified() {
+        return verified;
+    }
+}
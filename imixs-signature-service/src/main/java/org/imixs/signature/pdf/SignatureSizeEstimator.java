@@ -0,0 +1,158 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+
+/**
+ * The SignatureSizeEstimator computes the size of the /Contents placeholder
+ * reserved for a CMS signature.
+ * <p>
+ * PDFBox reserves a fixed size for each signature by default. The real size of
+ * the CMS signature depends on the certificate chain, the key and an optional
+ * timestamp token. The estimator caches the encoded size of the certificate
+ * chain per alias and the CMS sizes observed for previous signatures of an
+ * alias. For an unknown alias the size of the timestamp token is taken from
+ * previous signatures of other aliases.
+ * <p>
+ * A safety margin is added to each estimate. If a signature does not fit
+ * nevertheless, the SigningService updates the estimator with the actual size
+ * and retries.
+ *
+ * @see SigningService
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class SignatureSizeEstimator {
+
+    // signer info, signed attributes and signature value
+    private final static int SIGNER_INFO_SIZE = 1536;
+    // default size of a timestamp token if no signature was observed yet
+    private final static int DEFAULT_TIMESTAMP_SIZE = 8192;
+
+    private final Map<String, Integer> chainSizes = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, Integer> observedSizes = new ConcurrentHashMap<String, Integer>();
+    private volatile int timestampSize = 0;
+
+    private static Logger logger = Logger.getLogger(SignatureSizeEstimator.class.getName());
+
+    /**
+     * Returns the estimated size in bytes of a CMS signature for the given alias
+     * including a safety margin.
+     *
+     * @param certAlias        the certificate alias
+     * @param certificateChain the certificate chain of the alias
+     * @param timestamp        true if a timestamp token is added
+     * @return estimated size in bytes
+     */
+    public int estimate(String certAlias, Certificate[] certificateChain, boolean timestamp) {
+        Integer observed = observedSizes.get(getKey(certAlias, timestamp));
+        int size;
+        if (observed != null) {
+            size = observed;
+        } else {
+            size = getChainSize(certAlias, certificateChain) + SIGNER_INFO_SIZE;
+            if (timestamp) {
+                size = size + (timestampSize > 0 ? timestampSize : DEFAULT_TIMESTAMP_SIZE);
+            }
+        }
+        // add a safety margin
+        return size + size / 10 + 512;
+    }
+
+    /**
+     * Updates the estimator with the size of a created CMS signature.
+     *
+     * @param certAlias        the certificate alias
+     * @param certificateChain the certificate chain of the alias
+     * @param timestamp        true if the signature contains a timestamp token
+     * @param cmsSize          the size of the CMS signature
+     */
+    public void update(String certAlias, Certificate[] certificateChain, boolean timestamp, int cmsSize) {
+        observedSizes.merge(getKey(certAlias, timestamp), cmsSize, Math::max);
+        if (timestamp) {
+            int tokenSize = cmsSize - getChainSize(certAlias, certificateChain) - SIGNER_INFO_SIZE;
+            if (tokenSize > timestampSize) {
+                timestampSize = tokenSize;
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated size in bytes of a document timestamp token including
+     * a safety margin.
+     *
+     * @return estimated size in bytes
+     */
+    public int estimateTimestamp() {
+        int size = timestampSize > 0 ? timestampSize : DEFAULT_TIMESTAMP_SIZE;
+        return size + size / 10 + 512;
+    }
+
+    /**
+     * Updates the estimator with the size of a received timestamp token.
+     *
+     * @param tokenSize the size of the timestamp token
+     */
+    public void updateTimestamp(int tokenSize) {
+        if (tokenSize > timestampSize) {
+            timestampSize = tokenSize;
+        }
+    }
+
+    private String getKey(String certAlias, boolean timestamp) {
+        return timestamp ? certAlias + "#tsa" : certAlias;
+    }
+
+    /**
+     * Returns the cached encoded size of the certificate chain
+     */
+    private int getChainSize(String certAlias, Certificate[] certificateChain) {
+        Integer size = chainSizes.get(certAlias);
+        if (size == null) {
+            int chainSize = 0;
+            for (Certificate certificate : certificateChain) {
+                try {
+                    chainSize = chainSize + certificate.getEncoded().length;
+                } catch (CertificateEncodingException e) {
+                    logger.warning("...failed to encode certificate of '" + certAlias + "': " + e.getMessage());
+                    chainSize = chainSize + 2048;
+                }
+            }
+            size = chainSize;
+            chainSizes.put(certAlias, size);
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.awt.geom.Rectangle2D;
+
+/**
+ * A SignatureSpec describes one signature to be applied by the SigningService.
+ * A list of SignatureSpec objects can be applied to a PDF document in one call.
+ * <p>
+ * The certification level defines the DocMDP access permissions set by the
+ * first signature of a document:
+ * <ul>
+ * <li>0 - no certification (approval signature)</li>
+ * <li>1 - no changes allowed</li>
+ * <li>2 - form filling and signing allowed (default)</li>
+ * <li>3 - form filling, signing and annotations allowed</li>
+ * </ul>
+ * A certification is only applied if the document is not yet certified.
+ *
+ * @see SigningService
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignatureSpec {
+
+    public final static int CERTIFICATION_NONE = 0;
+    public final static int CERTIFICATION_NO_CHANGES = 1;
+    public final static int CERTIFICATION_FORM_FILLING = 2;
+    public final static int CERTIFICATION_ANNOTATIONS = 3;
+
+    private String certAlias;
+    private String certPassword;
+    private String signatureFieldName = "Signature1";
+    private Rectangle2D humanRect;
+    private int page;
+    private byte[] imageFile;
+    private String reason;
+    private int certificationLevel = CERTIFICATION_FORM_FILLING;
+
+    public SignatureSpec(String certAlias, String certPassword) {
+        super();
+        this.certAlias = certAlias;
+        this.certPassword = certPassword;
+    }
+
+    /**
+     * Creates the spec of an invisible root signature appended after the
+     * signatures of a user. The root signature is an approval signature, so the
+     * certification of the document is left to the first signature.
+     *
+     * @param certAlias          alias of the root certificate
+     * @param certPassword       password of the root certificate
+     * @param signatureFieldName name of the signature field
+     * @return the SignatureSpec
+     */
+    public static SignatureSpec createRootSignature(String certAlias, String certPassword,
+            String signatureFieldName) {
+        return new SignatureSpec(certAlias, certPassword).setSignatureFieldName(signatureFieldName)
+                .setCertificationLevel(CERTIFICATION_NONE);
+    }
+
+    public String getCertAlias() {
+        return certAlias;
+    }
+
+    public String getCertPassword() {
+        return certPassword;
+    }
+
+    public String getSignatureFieldName() {
+        return signatureFieldName;
+    }
+
+    public SignatureSpec setSignatureFieldName(String signatureFieldName) {
+        this.signatureFieldName = signatureFieldName;
+        return this;
+    }
+
+    /**
+     * Returns the rectangle of the visual signature from a human viewpoint
+     * (coordinates start at top left). If null, no visual signature is created.
+     *
+     * @return rectangle or null
+     */
+    public Rectangle2D getHumanRect() {
+        return humanRect;
+    }
+
+    public SignatureSpec setHumanRect(Rectangle2D humanRect) {
+        this.humanRect = humanRect;
+        return this;
+    }
+
+    /**
+     * Returns the page number (beginning with 1) of the visual signature
+     *
+     * @return page number
+     */
+    public int getPage() {
+        return page;
+    }
+
+    public SignatureSpec setPage(int page) {
+        this.page = page;
+        return this;
+    }
+
+    public byte[] getImageFile() {
+        return imageFile;
+    }
+
+    public SignatureSpec setImageFile(byte[] imageFile) {
+        this.imageFile = imageFile;
+        return this;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    public SignatureSpec setReason(String reason) {
+        this.reason = reason;
+        return this;
+    }
+
+    public int getCertificationLevel() {
+        return certificationLevel;
+    }
+
+    public SignatureSpec setCertificationLevel(int certificationLevel) {
+        this.certificationLevel = certificationLevel;
+        return this;
+    }
+
+}
@@ -0,0 +1,754 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.encryption.SecurityProvider;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.form.PDSignatureField;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.cms.Time;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.Selector;
+import org.bouncycastle.util.Store;
+import org.imixs.signature.pdf.cert.CRLVerifier;
+import org.imixs.signature.pdf.cert.CertificateVerificationException;
+import org.imixs.signature.pdf.cert.CertificateVerifier;
+import org.imixs.signature.pdf.cert.RevokedCertificateException;
+import org.imixs.signature.pdf.util.SigUtils;
+
+/**
+ * The SignatureVerifier verifies all signatures and document timestamps of a
+ * PDF document and creates a SignatureReport for each signature.
+ * <p>
+ * The signature dictionaries are read with PDFBox. A file is loaded with a
+ * temp file buffer, so the document is not held on the heap. The byte ranges
+ * and the /Contents of the signatures are read from a memory-mapped view of the
+ * file. Each byte range digest is computed directly from the mapped buffer.
+ * <p>
+ * The CMS signature is verified against the precomputed digest. The certificate
+ * chain and the revocation status are verified with the CertificateVerifier at
+ * the time of a valid signature timestamp, or at the claimed signing time. The
+ * chain must end at one of the trusted root certificates passed to the
+ * verifier. Root certificates embedded in a signature are never trusted.
+ * <p>
+ * A document with several revisions is verified in parallel. All signatures
+ * share the same mapped view and each signature - byte range digest, CMS,
+ * chain and revocation check - is verified by a task of a thread pool. The
+ * largest revisions are submitted first as their digests take the longest. The
+ * reports are returned in the order of the signatures in the document.
+ * <p>
+ * A document can be re-verified against the VerificationState of a previous
+ * verification. Only the signatures added after the verified revision are
+ * verified, after the hash of the verified revision was confirmed. The reports
+ * of the other signatures are reused until they are older than the max report
+ * age. Then the signature is verified again, so the certificate chain and the
+ * revocation status are not reused beyond this time.
+ *
+ * @see SignatureReport
+ * @see CertificateVerifier
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignatureVerifier {
+
+    public final static String SUBFILTER_RFC3161 = "ETSI.RFC3161";
+    public final static String SUBFILTER_PKCS7_SHA1 = "adbe.pkcs7.sha1";
+
+    // reports of a previous verification are reused for 5 minutes by default
+    public final static long DEFAULT_MAX_REPORT_AGE = 300000;
+
+    private final boolean checkRevocation;
+    private final int threads;
+    private final long maxReportAge;
+    private final Executor executor;
+    private final Set<X509Certificate> trustedCertificates;
+
+    private static Logger logger = Logger.getLogger(SignatureVerifier.class.getName());
+
+    /**
+     * @param checkRevocation     check the revocation status of the certificate
+     *                            chains by OCSP or CRL
+     * @param trustedCertificates trusted root certificates
+     */
+    public SignatureVerifier(boolean checkRevocation, Set<X509Certificate> trustedCertificates) {
+        this(checkRevocation, 1, trustedCertificates);
+    }
+
+    /**
+     * @param checkRevocation     check the revocation status of the certificate
+     *                            chains by OCSP or CRL
+     * @param threads             maximum number of signatures verified in
+     *                            parallel
+     * @param trustedCertificates trusted root certificates. The certificates
+     *                            embedded in a signature are only used as
+     *                            intermediate certificates.
+     */
+    public SignatureVerifier(boolean checkRevocation, int threads, Set<X509Certificate> trustedCertificates) {
+        this(checkRevocation, threads, DEFAULT_MAX_REPORT_AGE, trustedCertificates);
+    }
+
+    /**
+     * @param checkRevocation     check the revocation status of the certificate
+     *                            chains by OCSP or CRL
+     * @param threads             maximum number of signatures verified in
+     *                            parallel
+     * @param maxReportAge        time in milliseconds the report of a previous
+     *                            verification is reused, 0 verifies all
+     *                            signatures again
+     * @param trustedCertificates trusted root certificates. The certificates
+     *                            embedded in a signature are only used as
+     *                            intermediate certificates.
+     */
+    public SignatureVerifier(boolean checkRevocation, int threads, long maxReportAge,
+            Set<X509Certificate> trustedCertificates) {
+        this(checkRevocation, threads, maxReportAge, null, trustedCertificates);
+    }
+
+    /**
+     * @param checkRevocation     check the revocation status of the certificate
+     *                            chains by OCSP or CRL
+     * @param threads             maximum number of signatures verified in
+     *                            parallel
+     * @param maxReportAge        time in milliseconds the report of a previous
+     *                            verification is reused, 0 verifies all
+     *                            signatures again
+     * @param executor            shared executor running the verification. If
+     *                            null, the signatures are verified in the
+     *                            calling thread.
+     * @param trustedCertificates trusted root certificates. The certificates
+     *                            embedded in a signature are only used as
+     *                            intermediate certificates.
+     */
+    public SignatureVerifier(boolean checkRevocation, int threads, long maxReportAge, Executor executor,
+            Set<X509Certificate> trustedCertificates) {
+        this.checkRevocation = checkRevocation;
+        this.threads = executor != null ? Math.max(1, threads) : 1;
+        this.maxReportAge = maxReportAge;
+        this.executor = executor;
+        this.trustedCertificates = trustedCertificates != null ? trustedCertificates
+                : Collections.<X509Certificate>emptySet();
+    }
+
+    /**
+     * Verifies all signatures of a PDF file. The file is read through a
+     * memory-mapped FileChannel.
+     *
+     * @param file the PDF file
+     * @return list of reports in the order of the signatures in the document
+     * @throws IOException if the document can not be read
+     */
+    public List<SignatureReport> verify(File file) throws IOException {
+        List<SignatureInfo> signatures;
+        try (PDDocument doc = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly())) {
+            signatures = readSignatures(doc);
+        }
+        return verify(map(file), signatures);
+    }
+
+    /**
+     * Verifies the signatures of a PDF file added since the given
+     * VerificationState. The hash of the verified revision is confirmed first. The
+     * reports of the signatures within the verified revision are taken from the
+     * state if they are not older than the max report age. If the verified
+     * revision was changed, all signatures are verified.
+     *
+     * @param file     the PDF file
+     * @param previous the state of the last verification or null
+     * @return the new VerificationState containing the reports of all signatures
+     * @throws IOException if the document can not be read
+     */
+    public VerificationState verify(File file, VerificationState previous) throws IOException {
+        List<SignatureInfo> signatures;
+        try (PDDocument doc = PDDocument.load(file, MemoryUsageSetting.setupTempFileOnly())) {
+            signatures = readSignatures(doc);
+        }
+        return verify(map(file), signatures, previous);
+    }
+
+    /**
+     * Verifies all signatures of a PDF document.
+     *
+     * @param content the PDF document
+     * @return list of reports in the order of the signatures in the document
+     * @throws IOException if the document can not be read
+     */
+    public List<SignatureReport> verify(byte[] content) throws IOException {
+        List<SignatureInfo> signatures;
+        try (PDDocument doc = PDDocument.load(content)) {
+            signatures = readSignatures(doc);
+        }
+        return verify(ByteBuffer.wrap(content), signatures);
+    }
+
+    /**
+     * Verifies the signatures of a PDF document added since the given
+     * VerificationState.
+     *
+     * @see #verify(File, VerificationState)
+     * @param content  the PDF document
+     * @param previous the state of the last verification or null
+     * @return the new VerificationState containing the reports of all signatures
+     * @throws IOException if the document can not be read
+     */
+    public VerificationState verify(byte[] content, VerificationState previous) throws IOException {
+        List<SignatureInfo> signatures;
+        try (PDDocument doc = PDDocument.load(content)) {
+            signatures = readSignatures(doc);
+        }
+        return verify(ByteBuffer.wrap(content), signatures, previous);
+    }
+
+    /**
+     * Verifies the signatures not covered by the given VerificationState and
+     * returns the new state.
+     * <p>
+     * The previous state is only used if the SHA-256 hash of its revision matches
+     * the document. The SHA-256 digest state at the end of the verified revision
+     * is passed to the new signatures, so their byte range digests only hash the
+     * new bytes.
+     */
+    VerificationState verify(ByteBuffer buffer, List<SignatureInfo> signatures, VerificationState previous)
+            throws IOException {
+        try {
+            MessageDigest digestState = MessageDigest.getInstance("SHA-256");
+            int prefixLength = 0;
+            if (previous != null && previous.getRevisionLength() <= buffer.limit()) {
+                update(digestState, buffer, 0, previous.getRevisionLength());
+                if (MessageDigest.isEqual(((MessageDigest) digestState.clone()).digest(),
+                        previous.getRevisionHash())) {
+                    prefixLength = previous.getRevisionLength();
+                } else {
+                    logger.fine("......verified revision was changed, verify all signatures");
+                    digestState.reset();
+                    previous = null;
+                }
+            } else {
+                previous = null;
+            }
+
+            SignatureReport[] reports = new SignatureReport[signatures.size()];
+            List<SignatureInfo> pending = new ArrayList<SignatureInfo>();
+            for (int i = 0; i < signatures.size(); i++) {
+                SignatureInfo signature = signatures.get(i);
+                if (previous != null && getEnd(signature.byteRange) <= prefixLength) {
+                    reports[i] = findReport(previous, signature.byteRange, buffer.limit());
+                }
+                if (reports[i] == null) {
+                    if (prefixLength > 0) {
+                        signature.prefixLength = prefixLength;
+                        signature.prefixDigest = (MessageDigest) digestState.clone();
+                    }
+                    pending.add(signature);
+                }
+            }
+            if (previous != null) {
+                logger.fine("......" + (signatures.size() - pending.size()) + " signatures already verified, "
+                        + pending.size() + " new signatures");
+            }
+            List<SignatureReport> verified = verify(buffer, pending);
+            int revisionLength = prefixLength;
+            for (int i = 0, j = 0; i < reports.length; i++) {
+                if (reports[i] == null) {
+                    reports[i] = verified.get(j++);
+                }
+                long end = getEnd(signatures.get(i).byteRange);
+                if (end <= buffer.limit()) {
+                    revisionLength = (int) Math.max(revisionLength, end);
+                }
+            }
+            update(digestState, buffer, prefixLength, revisionLength - prefixLength);
+            return new VerificationState(revisionLength, digestState, Arrays.asList(reports));
+        } catch (NoSuchAlgorithmException | CloneNotSupportedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns a copy of the report of the signature with the given byte range.
+     * The coverage of the document is computed for the current document length.
+     * Returns null if the report is older than the max report age, so the chain
+     * and the revocation status are checked again.
+     */
+    private SignatureReport findReport(VerificationState state, int[] byteRange, int documentLength) {
+        for (SignatureReport report : state.getReports()) {
+            if (Arrays.equals(report.byteRange, byteRange)) {
+                if (System.currentTimeMillis() - report.verified >= maxReportAge) {
+                    return null;
+                }
+                SignatureReport result = report.copy();
+                result.coversDocument = getEnd(byteRange) == documentLength;
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file size exceeds " + Integer.MAX_VALUE + " bytes");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /**
+     * Verifies the given signatures of the document. If more than one signature
+     * is given, the signatures are verified in parallel on the shared executor.
+     * At most 'threads' signatures are verified at the same time.
+     */
+    List<SignatureReport> verify(final ByteBuffer buffer, final List<SignatureInfo> signatures) throws IOException {
+        final SignatureReport[] reports = new SignatureReport[signatures.size()];
+        int workers = Math.min(threads, signatures.size());
+        if (workers <= 1) {
+            for (int i = 0; i < reports.length; i++) {
+                reports[i] = verifySignature(buffer, signatures.get(i));
+            }
+            return Arrays.asList(reports);
+        }
+
+        // each worker takes the next signature until all are verified. The
+        // signatures are ordered by their revision, the largest is taken first.
+        final AtomicInteger next = new AtomicInteger(reports.length);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+        final CountDownLatch done = new CountDownLatch(workers);
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int i;
+                    while ((i = next.decrementAndGet()) >= 0) {
+                        try {
+                            reports[i] = verifySignature(buffer, signatures.get(i));
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                            next.set(0);
+                        }
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        for (int i = 0; i < workers; i++) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                // the executor is saturated - run the worker in the calling thread
+                worker.run();
+            }
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // stop the workers after their current signature
+            next.set(0);
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        if (failure.get() != null) {
+            throw new IOException("Failed to verify signature - " + failure.get().getMessage(), failure.get());
+        }
+        return Arrays.asList(reports);
+    }
+
+    /**
+     * Reads the signature dictionaries of the document ordered by their byte
+     * range.
+     */
+    List<SignatureInfo> readSignatures(PDDocument doc) throws IOException {
+        List<SignatureInfo> result = new ArrayList<SignatureInfo>();
+        for (PDSignatureField field : doc.getSignatureFields()) {
+            PDSignature signature = field.getSignature();
+            if (signature == null) {
+                continue;
+            }
+            SignatureInfo info = new SignatureInfo();
+            info.fieldName = field.getFullyQualifiedName();
+            info.subFilter = signature.getSubFilter();
+            info.byteRange = signature.getByteRange();
+            Calendar signDate = signature.getSignDate();
+            info.signDate = signDate != null ? signDate.getTime() : null;
+            result.add(info);
+        }
+        result.sort((a, b) -> Long.compare(getEnd(a.byteRange), getEnd(b.byteRange)));
+        return result;
+    }
+
+    /**
+     * Verifies one signature
+     */
+    SignatureReport verifySignature(ByteBuffer buffer, SignatureInfo signature) {
+        SignatureReport report = new SignatureReport();
+        report.fieldName = signature.fieldName;
+        report.subFilter = signature.subFilter;
+        report.byteRange = signature.byteRange;
+        byte[] contents = readContents(buffer, signature.byteRange, report);
+        if (contents == null) {
+            return report;
+        }
+        report.coversDocument = getEnd(signature.byteRange) == buffer.limit();
+        try {
+            if (SUBFILTER_RFC3161.equals(signature.subFilter)) {
+                verifyDocumentTimeStamp(buffer, signature, contents, report);
+            } else {
+                verifyCMSSignature(buffer, signature, contents, report);
+            }
+        } catch (IOException | GeneralSecurityException | CMSException | TSPException
+                | OperatorCreationException | RuntimeException e) {
+            logger.fine("......signature '" + signature.fieldName + "' can not be verified: " + e.getMessage());
+            report.errors.add("signature can not be verified - " + e.getMessage());
+        }
+        return report;
+    }
+
+    /**
+     * Verifies a CMS signature (adbe.pkcs7.detached or ETSI.CAdES.detached)
+     */
+    private void verifyCMSSignature(ByteBuffer buffer, SignatureInfo signature, byte[] contents,
+            SignatureReport report) throws IOException, GeneralSecurityException, CMSException, TSPException,
+            OperatorCreationException {
+        CMSSignedData signedData = new CMSSignedData(contents);
+        SignerInformation signerInformation = signedData.getSignerInfos().getSigners().iterator().next();
+        ASN1ObjectIdentifier digestAlgorithm = signerInformation.getDigestAlgorithmID().getAlgorithm();
+        report.digest = digestByteRange(buffer, signature, digestAlgorithm);
+
+        X509CertificateHolder certificateHolder = getCertificate(signedData.getCertificates(),
+                signerInformation);
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(certificateHolder);
+        report.signer = certificate.getSubjectX500Principal().getName();
+        report.signingTime = getSigningTime(signerInformation, signature.signDate);
+        SigUtils.checkCertificateUsage(certificate);
+
+        if (SUBFILTER_PKCS7_SHA1.equals(signature.subFilter)) {
+            report.errors.add("subfilter " + SUBFILTER_PKCS7_SHA1 + " is not supported");
+        } else {
+            // verify the signer info against the precomputed byte range digest
+            SignerInformation precomputed = new CMSSignedData(
+                    Collections.singletonMap(digestAlgorithm, report.digest), contents).getSignerInfos()
+                            .get(signerInformation.getSID());
+            try {
+                report.cmsValid = precomputed.verify(new JcaSimpleSignerInfoVerifierBuilder()
+                        .setProvider(SecurityProvider.getProvider()).build(certificateHolder));
+                if (!report.cmsValid) {
+                    report.errors.add("invalid CMS signature value");
+                }
+            } catch (CMSException e) {
+                report.errors.add("invalid CMS signature - " + e.getMessage());
+            }
+        }
+
+        TimeStampToken timeStampToken = SigUtils.extractTimeStampTokenFromSignerInformation(signerInformation);
+        if (timeStampToken != null) {
+            report.timestamp = true;
+            report.timestampValid = verifyTimeStampToken(timeStampToken, signerInformation.getSignature(), report);
+            if (report.timestampValid) {
+                report.timestampTime = timeStampToken.getTimeStampInfo().getGenTime();
+                report.signingTime = report.timestampTime;
+            }
+        }
+        verifyChain(certificate, signedData.getCertificates(), report);
+    }
+
+    /**
+     * Verifies a document timestamp (ETSI.RFC3161). The message imprint must match
+     * the byte range digest.
+     */
+    private void verifyDocumentTimeStamp(ByteBuffer buffer, SignatureInfo signature, byte[] contents,
+            SignatureReport report) throws IOException, GeneralSecurityException, CMSException, TSPException,
+            OperatorCreationException {
+        report.type = SignatureReport.TYPE_TIMESTAMP;
+        TimeStampToken timeStampToken = new TimeStampToken(new CMSSignedData(contents));
+        ASN1ObjectIdentifier digestAlgorithm = timeStampToken.getTimeStampInfo().getMessageImprintAlgOID();
+        report.digest = digestByteRange(buffer, signature, digestAlgorithm);
+        X509CertificateHolder certificateHolder = getCertificate(timeStampToken.getCertificates(),
+                timeStampToken.getSID());
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(certificateHolder);
+        report.signer = certificate.getSubjectX500Principal().getName();
+        report.timestamp = true;
+        if (!MessageDigest.isEqual(report.digest, timeStampToken.getTimeStampInfo().getMessageImprintDigest())) {
+            report.errors.add("message imprint does not match the byte range");
+        } else {
+            try {
+                SigUtils.validateTimestampToken(timeStampToken);
+                SigUtils.checkTimeStampCertificateUsage(certificate);
+                report.cmsValid = true;
+                report.timestampValid = true;
+            } catch (TSPException e) {
+                report.errors.add("invalid timestamp token - " + e.getMessage());
+            }
+        }
+        report.timestampTime = timeStampToken.getTimeStampInfo().getGenTime();
+        report.signingTime = report.timestampTime;
+        verifyChain(certificate, timeStampToken.getCertificates(), report);
+    }
+
+    /**
+     * Verifies a signature timestamp token. The message imprint must match the
+     * signature value.
+     */
+    private boolean verifyTimeStampToken(TimeStampToken timeStampToken, byte[] signatureValue,
+            SignatureReport report) throws GeneralSecurityException, IOException, OperatorCreationException {
+        ASN1ObjectIdentifier digestAlgorithm = timeStampToken.getTimeStampInfo().getMessageImprintAlgOID();
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm.getId(), SecurityProvider.getProvider());
+        if (!MessageDigest.isEqual(md.digest(signatureValue),
+                timeStampToken.getTimeStampInfo().getMessageImprintDigest())) {
+            report.errors.add("timestamp imprint does not match the signature value");
+            return false;
+        }
+        try {
+            SigUtils.validateTimestampToken(timeStampToken);
+            @SuppressWarnings("unchecked") // TimeStampToken.getSID() is untyped
+            Collection<X509CertificateHolder> matches = timeStampToken.getCertificates()
+                    .getMatches((Selector<X509CertificateHolder>) timeStampToken.getSID());
+            SigUtils.checkTimeStampCertificateUsage(
+                    new JcaX509CertificateConverter().getCertificate(matches.iterator().next()));
+            return true;
+        } catch (TSPException e) {
+            report.errors.add("invalid timestamp token - " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Verifies the certificate chain and the revocation status at the signing
+     * time of the report
+     */
+    private void verifyChain(X509Certificate certificate, Store<X509CertificateHolder> certificates,
+            SignatureReport report) throws GeneralSecurityException {
+        Date signDate = report.signingTime != null ? report.signingTime : new Date();
+        Set<X509Certificate> additionalCerts = new HashSet<X509Certificate>();
+        JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+        // the embedded certificates are untrusted, the path must end at a trusted root
+        for (X509CertificateHolder holder : certificates.getMatches(null)) {
+            additionalCerts.add(converter.getCertificate(holder));
+        }
+        PKIXCertPathBuilderResult result;
+        try {
+            result = CertificateVerifier.verifyCertificate(certificate, additionalCerts, trustedCertificates,
+                    signDate);
+            report.chainValid = true;
+        } catch (CertificateVerificationException e) {
+            report.errors.add("invalid certificate chain - " + getMessage(e));
+            return;
+        }
+        if (!checkRevocation) {
+            return;
+        }
+        Set<X509Certificate> chain = new HashSet<X509Certificate>(additionalCerts);
+        for (Certificate pathCertificate : result.getCertPath().getCertificates()) {
+            chain.add((X509Certificate) pathCertificate);
+        }
+        chain.add(result.getTrustAnchor().getTrustedCert());
+        report.revocationStatus = checkRevocation(certificate, chain, signDate, report);
+    }
+
+    /**
+     * Returns the revocation status of the certificate chain
+     */
+    private String checkRevocation(X509Certificate certificate, Set<X509Certificate> chain, Date signDate,
+            SignatureReport report) throws GeneralSecurityException {
+        try {
+            if (!CertificateVerifier.isSelfSigned(certificate) && CertificateVerifier.extractOCSPURL(certificate) == null
+                    && CRLVerifier.getCrlDistributionPoints(certificate).isEmpty()) {
+                return SignatureReport.REVOCATION_UNAVAILABLE;
+            }
+            CertificateVerifier.checkRevocationStatus(certificate, chain, signDate);
+            return SignatureReport.REVOCATION_GOOD;
+        } catch (RevokedCertificateException e) {
+            report.errors.add(e.getMessage());
+            return SignatureReport.REVOCATION_REVOKED;
+        } catch (CertificateVerificationException | IOException e) {
+            report.errors.add("revocation status unknown - " + getMessage(e));
+            return SignatureReport.REVOCATION_UNKNOWN;
+        }
+    }
+
+    /**
+     * Validates the byte range and returns the decoded /Contents of the signature.
+     * The byte range must start at 0, the gap must contain exactly the hex string
+     * of the /Contents and the range must not exceed the document.
+     *
+     * @return the /Contents or null if the byte range is invalid
+     */
+    static byte[] readContents(ByteBuffer buffer, int[] byteRange, SignatureReport report) {
+        if (byteRange == null || byteRange.length != 4 || byteRange[0] != 0 || byteRange[1] <= 0
+                || byteRange[2] <= byteRange[1] + 1 || byteRange[3] < 0 || getEnd(byteRange) > buffer.limit()) {
+            report.errors.add("invalid byte range " + Arrays.toString(byteRange));
+            return null;
+        }
+        if (buffer.get(byteRange[1]) != '<' || buffer.get(byteRange[2] - 1) != '>') {
+            report.errors.add("byte range gap does not match the /Contents string");
+            return null;
+        }
+        int hexLength = byteRange[2] - byteRange[1] - 2;
+        byte[] contents = new byte[hexLength / 2];
+        int offset = byteRange[1] + 1;
+        for (int i = 0; i < contents.length; i++) {
+            int high = Character.digit(buffer.get(offset + 2 * i), 16);
+            int low = Character.digit(buffer.get(offset + 2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                report.errors.add("byte range gap does not match the /Contents string");
+                return null;
+            }
+            contents[i] = (byte) ((high << 4) + low);
+        }
+        report.byteRangeValid = true;
+        return contents;
+    }
+
+    /**
+     * Computes the digest of the signed byte range directly from the buffer
+     *
+     * @param buffer          the document
+     * @param byteRange       the byte range
+     * @param digestAlgorithm OID of the digest algorithm
+     * @return the digest
+     * @throws IOException              if the security provider can not be loaded
+     * @throws GeneralSecurityException if the digest algorithm is not supported
+     */
+    public static byte[] digestByteRange(ByteBuffer buffer, int[] byteRange, ASN1ObjectIdentifier digestAlgorithm)
+            throws IOException, GeneralSecurityException {
+        MessageDigest md = MessageDigest.getInstance(digestAlgorithm.getId(), SecurityProvider.getProvider());
+        update(md, buffer, byteRange[0], byteRange[1]);
+        update(md, buffer, byteRange[2], byteRange[3]);
+        return md.digest();
+    }
+
+    /**
+     * Computes the digest of the signed byte range. If the signature was added
+     * after a verified revision and uses SHA-256, the digest state of the verified
+     * revision is resumed.
+     */
+    private static byte[] digestByteRange(ByteBuffer buffer, SignatureInfo signature,
+            ASN1ObjectIdentifier digestAlgorithm) throws IOException, GeneralSecurityException {
+        int[] byteRange = signature.byteRange;
+        if (signature.prefixDigest == null || !NISTObjectIdentifiers.id_sha256.equals(digestAlgorithm)
+                || byteRange[1] < signature.prefixLength) {
+            return digestByteRange(buffer, byteRange, digestAlgorithm);
+        }
+        MessageDigest md = signature.prefixDigest;
+        update(md, buffer, signature.prefixLength, byteRange[1] - signature.prefixLength);
+        update(md, buffer, byteRange[2], byteRange[3]);
+        return md.digest();
+    }
+
+    static void update(MessageDigest md, ByteBuffer buffer, int offset, int length) {
+        ByteBuffer range = buffer.duplicate();
+        range.limit(offset + length);
+        range.position(offset);
+        md.update(range);
+    }
+
+    static long getEnd(int[] byteRange) {
+        return byteRange == null || byteRange.length != 4 ? 0 : (long) byteRange[2] + byteRange[3];
+    }
+
+    private static X509CertificateHolder getCertificate(Store<X509CertificateHolder> certificates,
+            SignerInformation signerInformation) throws IOException {
+        return getCertificate(certificates, signerInformation.getSID());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static X509CertificateHolder getCertificate(Store<X509CertificateHolder> certificates, Object sid)
+            throws IOException {
+        Collection<X509CertificateHolder> matches = certificates.getMatches((Selector<X509CertificateHolder>) sid);
+        if (matches.isEmpty()) {
+            throw new IOException("signer certificate not found");
+        }
+        return matches.iterator().next();
+    }
+
+    /**
+     * Returns the signing time attribute of the signer or the /M entry of the
+     * signature dictionary
+     */
+    private static Date getSigningTime(SignerInformation signerInformation, Date signDate) {
+        if (signerInformation.getSignedAttributes() != null) {
+            Attribute attribute = signerInformation.getSignedAttributes().get(CMSAttributes.signingTime);
+            if (attribute != null && attribute.getAttrValues().size() > 0) {
+                return Time.getInstance(attribute.getAttrValues().getObjectAt(0)).getDate();
+            }
+        }
+        return signDate;
+    }
+
+    private static String getMessage(Exception e) {
+        Throwable cause = e.getCause();
+        return cause != null && cause.getMessage() != null ? e.getMessage() + " - " + cause.getMessage()
+                : e.getMessage();
+    }
+
+    /**
+     * The entries of a signature dictionary needed for the verification
+     */
+    static class SignatureInfo {
+        String fieldName;
+        String subFilter;
+        int[] byteRange;
+        Date signDate;
+        // digest state of a verified revision preceding the signature
+        int prefixLength;
+        MessageDigest prefixDigest;
+    }
+}
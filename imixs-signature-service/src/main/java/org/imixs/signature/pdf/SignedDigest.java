@@ -0,0 +1,63 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+/**
+ * A SignedDigest is the result of signing one digest of a batch. It holds
+ * either the CMS signature of the digest or the reason why the digest could
+ * not be signed. A failed digest does not affect the other digests of the
+ * batch.
+ *
+ * @see Signature#signDigests
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignedDigest {
+
+    private final byte[] cmsSignature;
+    private final String error;
+
+    public SignedDigest(byte[] cmsSignature, String error) {
+        super();
+        this.cmsSignature = cmsSignature;
+        this.error = error;
+    }
+
+    /**
+     * Returns the encoded CMS signature
+     *
+     * @return the CMS signature or null if the digest could not be signed
+     */
+    public byte[] getCmsSignature() {
+        return cmsSignature;
+    }
+
+    /**
+     * Returns the reason why the digest could not be signed
+     *
+     * @return the error or null if the digest was signed
+     */
+    public String getError() {
+        return error;
+    }
+}
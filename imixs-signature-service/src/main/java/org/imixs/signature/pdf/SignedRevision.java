@@ -0,0 +1,61 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+/**
+ * A SignedRevision is the result of the SigningService signing a PDF document.
+ * It holds the signed document and the token of the new revision.
+ * <p>
+ * The revision token identifies the cached digest state of the signed
+ * document. If the document is signed again, the token can be passed to the
+ * SigningService together with the unchanged document, so that only the new
+ * incremental update has to be hashed.
+ *
+ * @see RevisionDigestCache
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignedRevision {
+
+    private final byte[] content;
+    private final String revisionToken;
+
+    public SignedRevision(byte[] content, String revisionToken) {
+        super();
+        this.content = content;
+        this.revisionToken = revisionToken;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Returns the token of the signed revision
+     *
+     * @return the token or null if the digest state was not cached
+     */
+    public String getRevisionToken() {
+        return revisionToken;
+    }
+}
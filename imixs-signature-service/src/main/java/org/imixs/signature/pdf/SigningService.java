@@ -25,28 +25,53 @@ package org.imixs.signature.pdf;
 import java.awt.Color;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
+import javax.annotation.Resource;
 import javax.ejb.LocalBean;
 import javax.ejb.Stateless;
+import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.inject.Inject;
 
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
 import org.apache.pdfbox.cos.COSName;
 import org.apache.pdfbox.io.IOUtils;
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -55,6 +80,7 @@ import org.apache.pdfbox.pdmodel.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.encryption.SecurityProvider;
 import org.apache.pdfbox.pdmodel.font.PDFont;
 import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
@@ -68,15 +94,28 @@ import org.apache.pdfbox.pdmodel.interactive.digitalsignature.SignatureOptions;
 import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
 import org.apache.pdfbox.pdmodel.interactive.form.PDField;
 import org.apache.pdfbox.pdmodel.interactive.form.PDSignatureField;
+import org.apache.pdfbox.util.Hex;
 import org.apache.pdfbox.util.Matrix;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.AttributeTable;
+import org.bouncycastle.asn1.cms.CMSAttributes;
 import org.bouncycastle.asn1.x500.RDN;
 import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.bouncycastle.asn1.x500.style.IETFUtils;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
 import org.eclipse.microprofile.config.inject.ConfigProperty;
 import org.imixs.signature.pdf.cert.CertificateVerificationException;
 import org.imixs.signature.pdf.cert.SigningException;
 import org.imixs.signature.pdf.util.SigUtils;
+import org.imixs.signature.pdf.util.ValidationTimeStamp;
 import org.imixs.signature.service.KeystoreService;
 
 /**
@@ -95,6 +134,25 @@ import org.imixs.signature.service.KeystoreService;
  * the keystore, the password used to unlock the keystore</li>
  * <li>SIGNATURE_ROOTCERT_ALIAS - the root cert alias</li>
  * <li>SIGNATURE_ROOTCERT_PASSWORD - the root cert password (optional)</li>
+ * <li>SIGNATURE_EXTERNAL_PATH - directory to store prepared documents of an
+ * external signing process (optional)</li>
+ * <li>SIGNATURE_EXTERNAL_TTL - time to live in seconds of a prepared document
+ * (default 3600)</li>
+ * <li>SIGNATURE_PDF_INCREMENTAL - append signatures on byte level without
+ * loading the document with PDFBox (default true)</li>
+ * <li>SIGNATURE_PADES_LEVEL - B-B (default), B-LT adds a Document Security
+ * Store with the validation data of all signatures, B-LTA adds a document
+ * timestamp in addition</li>
+ * <li>SIGNATURE_ARCHIVE_PATH - root directory of the archived documents to be
+ * timestamped. Timestamp jobs are disabled if not set</li>
+ * <li>SIGNATURE_ARCHIVE_WORKERS - number of workers preparing documents in a
+ * timestamp job (default number of processors)</li>
+ * <li>SIGNATURE_VERIFY_REVOCATION - check the revocation status by OCSP or CRL
+ * when verifying signatures (default true)</li>
+ * <li>SIGNATURE_VERIFY_THREADS - number of signatures of a document verified in
+ * parallel (default number of processors)</li>
+ * <li>SIGNATURE_VERIFY_REPORT_AGE - time in seconds the verification result of
+ * a signature is reused by an incremental verification (default 300)</li>
  * </ul>
  * 
  * 
@@ -113,19 +171,137 @@ public class SigningService {
     public final static String ENV_SIGNATURE_TSA_URL = "signature.tsa.url";
     public final static String ENV_SIGNATURE_ROOTCERT_ALIAS = "signature.rootcert.alias";
     public final static String ENV_SIGNATURE_ROOTCERT_PASSWORD = "signature.rootcert.password";
+    public final static String ENV_SIGNATURE_EXTERNAL_PATH = "signature.external.path";
+    public final static String ENV_SIGNATURE_EXTERNAL_TTL = "signature.external.ttl";
+    public final static String ENV_SIGNATURE_BATCH_TSA_THREADS = "signature.batch.tsa.threads";
+    public final static String ENV_SIGNATURE_PDF_INCREMENTAL = "signature.pdf.incremental";
+    public final static String ENV_SIGNATURE_PADES_LEVEL = "signature.pades.level";
+    public final static String ENV_SIGNATURE_ARCHIVE_PATH = "signature.archive.path";
+    public final static String ENV_SIGNATURE_ARCHIVE_WORKERS = "signature.archive.workers";
+    public final static String ENV_SIGNATURE_TSA_DEFERRED = "signature.tsa.deferred";
+    public final static String ENV_SIGNATURE_VERIFY_REVOCATION = "signature.verify.revocation";
+    public final static String ENV_SIGNATURE_VERIFY_THREADS = "signature.verify.threads";
+    public final static String ENV_SIGNATURE_VERIFY_REPORT_AGE = "signature.verify.report.age";
+
+    public final static String PADES_LEVEL_B_LT = "B-LT";
+    public final static String PADES_LEVEL_B_LTA = "B-LTA";
+
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("^[0-9a-f]{8}(-[0-9a-f]{4}){3}-[0-9a-f]{12}$");
 
     @Inject
     KeystoreService keystoreService;
 
+    @Inject
+    SignatureImageService signatureImageService;
+
+    @Inject
+    RevisionDigestCache revisionDigestCache;
+
+    @Inject
+    VerificationStateCache verificationStateCache;
+
+    @Inject
+    SignatureSizeEstimator signatureSizeEstimator;
+
+    @Inject
+    ValidationDataCache validationDataCache;
+
+    @Inject
+    DeferredTimestampQueue deferredTimestampQueue;
+
+    @Inject
+    DocumentTimestampService documentTimestampService;
+
+    @Resource
+    ManagedExecutorService managedExecutor;
+
     @Inject
     @ConfigProperty(name = ENV_SIGNATURE_TSA_URL)
     Optional<String> tsaURL;
 
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_EXTERNAL_PATH)
+    Optional<String> externalPath;
+
+    // time to live of an external signing session in seconds
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_EXTERNAL_TTL, defaultValue = "3600")
+    long externalTTL;
+
+    // maximum number of concurrent TSA requests in a batch signing
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_BATCH_TSA_THREADS, defaultValue = "4")
+    int batchTsaThreads;
+
+    // append signatures on byte level without loading the document with PDFBox
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_PDF_INCREMENTAL, defaultValue = "true")
+    boolean incrementalSigning;
+
+    // PAdES baseline level - B-B (default), B-LT or B-LTA
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_PADES_LEVEL, defaultValue = "B-B")
+    String padesLevel;
+
+    // root directory of the documents of a timestamp job
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_ARCHIVE_PATH)
+    Optional<String> archivePath;
+
+    // number of workers preparing documents in a timestamp job, 0 = processors
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_ARCHIVE_WORKERS, defaultValue = "0")
+    int archiveWorkers;
+
+    // return the signed document before the timestamp token is added
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_TSA_DEFERRED, defaultValue = "false")
+    boolean deferredTimestamp;
+
+    // check the revocation status of the signer certificates during verification
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_VERIFY_REVOCATION, defaultValue = "true")
+    boolean verifyRevocation;
+
+    // number of signatures of one document verified in parallel, 0 = processors
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_VERIFY_THREADS, defaultValue = "0")
+    int verifyThreads;
+
+    // time in seconds a verified signature is not verified again
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_VERIFY_REPORT_AGE, defaultValue = "300")
+    long verifyReportAge;
+
     private static Logger logger = Logger.getLogger(SigningService.class.getName());
 
+    public SigningService() {
+        super();
+    }
+
+    /**
+     * Creates a SigningService without a container, e.g. in a unit test. No TSA
+     * is used.
+     *
+     * @param keystoreService - the keystore providing the certificate chains
+     * @param externalPath    - directory of the external signing sessions
+     * @param externalTTL     - time to live of a session in seconds
+     */
+    public SigningService(KeystoreService keystoreService, String externalPath, long externalTTL) {
+        super();
+        this.keystoreService = keystoreService;
+        this.externalPath = Optional.of(externalPath);
+        this.externalTTL = externalTTL;
+        this.tsaURL = Optional.empty();
+        this.revisionDigestCache = new RevisionDigestCache(0);
+        this.signatureSizeEstimator = new SignatureSizeEstimator();
+        this.incrementalSigning = true;
+        this.padesLevel = "B-B";
+    }
+
     /**
      * Method Opens the keystore with the given password and creates a new signed
-     * PDF file based on the given PDF File and a signature image.
+     * PDF file based on the given PDF File.
      * <p>
      * generate pkcs12-keystore-file with
      * <p>
@@ -133,27 +309,37 @@ public class SigningService {
       keytool -storepass 123456 -storetype PKCS12 -keystore file.p12 -genkey -alias client -keyalg RSA
       }
      *
+     * @param inputFileData A byte array containing the source PDF document.
+     * @param certAlias     Certificate alias name to be used for signing
+     * @param certPassword  optional private key password
+     * @return A byte array containing the singed PDF document
+     * 
+     * @throws SigningException
+     * @throws CertificateVerificationException
+     */
+    public byte[] signPDF(byte[] inputFileData, String certAlias, String certPassword)
+            throws CertificateVerificationException, SigningException {
+        SignatureSpec signatureSpec = new SignatureSpec(certAlias, certPassword).setSignatureFieldName("Signature1");
+        return signPDF(inputFileData, Collections.singletonList(signatureSpec));
+    }
+
+    /**
+     * Signs a PDF file without a signature visual.
+     *
      * @param inputFileData   A byte array containing the source PDF document.
      * @param certAlias       Certificate alias name to be used for signing
      * @param certPassword    optional private key password
-     * @param externalSigning optional boolean flag to trigger an external signing
-     *                        process
+     * @param externalSigning not evaluated. The signature is always created from
+     *                        the precomputed byte range digest.
      * @return A byte array containing the singed PDF document
-     * 
      * @throws SigningException
      * @throws CertificateVerificationException
-     * 
-     * 
-     * 
+     * @deprecated use {@link #signPDF(byte[], String, String)}
      */
+    @Deprecated
     public byte[] signPDF(byte[] inputFileData, String certAlias, String certPassword, boolean externalSigning)
             throws CertificateVerificationException, SigningException {
-
-        byte[] signedFileData = signPDF(inputFileData, certAlias, certPassword, externalSigning, null, 0, "Signature1",
-                null, null);
-
-        return signedFileData;
-
+        return signPDF(inputFileData, certAlias, certPassword);
     }
 
     /**
@@ -162,13 +348,12 @@ public class SigningService {
      * @param inputFileData      A byte array containing the source PDF document.
      * @param certAlias          Certificate alias name to be used for signing
      * @param certPassword       optional private key password
-     * @param externalSigning    optional boolean flag to trigger an external
-     *                           signing process
+     * @param externalSigning    not evaluated. The signature is always created
+     *                           from the precomputed byte range digest.
      * @param humanRect          rectangle from a human viewpoint (coordinates start
      *                           at top left)
      * @param page               page number (beginning with 1) to place the visual
      *                           signature
-     * @param tsaUrl             optional TSA url
      * @param signatureFieldName optional name of an existing (unsigned) signature
      *                           field
      * @param imageFile          optional image file
@@ -176,190 +361,1226 @@ public class SigningService {
      * @return A byte array containing the singed PDF document
      * @throws CertificateVerificationException
      * @throws SigningException
+     * @deprecated use {@link #signPDF(byte[], List)} with a {@link SignatureSpec}
      */
+    @Deprecated
     public byte[] signPDF(byte[] inputFileData, String certAlias, String certPassword, boolean externalSigning,
             Rectangle2D humanRect, int page, String signatureFieldName, byte[] imageFile, String reason)
             throws CertificateVerificationException, SigningException {
 
-        SignatureOptions signatureOptions = null;
-        byte[] signedContent = null;
+        SignatureSpec signatureSpec = new SignatureSpec(certAlias, certPassword)
+                .setSignatureFieldName(signatureFieldName).setHumanRect(humanRect).setPage(page)
+                .setImageFile(imageFile).setReason(reason);
+        return signPDF(inputFileData, Collections.singletonList(signatureSpec));
+    }
+
+    /**
+     * Applies an ordered list of signatures to a PDF document in one call and
+     * returns the final PDF document.
+     * <p>
+     * Each signature is written as a new incremental revision. PDFBox requires to
+     * reload the document after each signature, but the revision is kept in
+     * memory, the certificate chain and private key are loaded only once per alias
+     * and the digest state of the previous revision is resumed, so that each
+     * signature only hashes its own incremental update.
+     * <p>
+     * If SIGNATURE_TSA_DEFERRED is true and the PAdES level is B-B, the timestamp
+     * of the last signature is added in the background by the
+     * DeferredTimestampQueue. The document is returned with the space for the
+     * timestamp token reserved. The final document can be fetched with the method
+     * flushTimestamp.
+     *
+     * @param inputFileData  A byte array containing the source PDF document.
+     * @param signatureSpecs ordered list of signatures to be applied
+     * @return A byte array containing the singed PDF document
+     * @throws CertificateVerificationException
+     * @throws SigningException
+     */
+    public byte[] signPDF(byte[] inputFileData, List<SignatureSpec> signatureSpecs)
+            throws CertificateVerificationException, SigningException {
+        return signPDF(inputFileData, null, signatureSpecs).getContent();
+    }
+
+    /**
+     * Applies an ordered list of signatures to a PDF document in one call and
+     * returns the final PDF document together with the token of the new
+     * revision.
+     * <p>
+     * If the source document was returned by this method before, the token of
+     * that revision can be passed to resume its digest state. The digest state is
+     * only resumed if the document matches the fingerprint of the revision, see
+     * {@link RevisionDigestCache}. Otherwise the complete source document is
+     * hashed.
+     *
+     * @param inputFileData  A byte array containing the source PDF document.
+     * @param revisionToken  optional token of the source revision
+     * @param signatureSpecs ordered list of signatures to be applied
+     * @return the signed document and its revision token
+     * @throws CertificateVerificationException
+     * @throws SigningException
+     */
+    public SignedRevision signPDF(byte[] inputFileData, String revisionToken, List<SignatureSpec> signatureSpecs)
+            throws CertificateVerificationException, SigningException {
 
         if (inputFileData == null || inputFileData.length == 0) {
             throw new SigningException("empty file data");
         }
+        if (signatureSpecs == null || signatureSpecs.isEmpty()) {
+            throw new SigningException("no signature defined");
+        }
 
-        // = Loader.loadPDF(inputFile)) {
-        // ByteArrayOutputStream
-        // try (FileOutputStream fos = new FileOutputStream(signedFile); PDDocument doc
-        // = PDDocument.load(inputFileData.getContent())) {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(); PDDocument doc = PDDocument.load(inputFileData)) {
-            int accessPermissions = SigUtils.getMDPPermission(doc);
-            if (accessPermissions == 1) {
-                throw new SigningException(
-                        "No changes to the document are permitted due to DocMDP transform parameters dictionary");
+        // reject or route the document before it is loaded
+        PdfInspection inspection = inspectPDF(inputFileData);
+        for (SignatureSpec signatureSpec : signatureSpecs) {
+            String rejectReason = inspection.getRejectReason(signatureSpec.getSignatureFieldName());
+            if (rejectReason != null) {
+                throw new SigningException(rejectReason);
             }
-            // Note that PDFBox has a bug that visual signing on certified files with
-            // permission 2
-            // doesn't work properly, see PDFBOX-3699. As long as this issue is open, you
-            // may want to
-            // be careful with such files.
+        }
+        boolean incremental = incrementalSigning && inspection.isIncremental();
+        if (isTimestampDeferred() && !deferredTimestampQueue.hasCapacity(inputFileData.length)) {
+            throw new SigningException("deferred timestamp queue is full");
+        }
 
-            PDSignature pdSignature = null;
-            PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
-            PDRectangle rect = null;
-
-            // If the PDF contains an existing empty signature, as created by the
-            // CreateEmptySignatureForm example we can reuse it here
-            if (acroForm != null) {
-                try {
-                    pdSignature = findExistingSignature(acroForm, signatureFieldName);
-                    if (pdSignature != null) {
-                        rect = acroForm.getField(signatureFieldName).getWidgets().get(0).getRectangle();
+        try {
+            byte[] content = inputFileData;
+            MessageDigest revisionDigest = resumeRevisionDigest(content, revisionToken);
+            Map<String, Certificate[]> certificateChains = new HashMap<String, Certificate[]>();
+            Map<String, Signature> signatures = new HashMap<String, Signature>();
+            DeferredSignature deferredSignature = null;
+            for (int i = 0; i < signatureSpecs.size(); i++) {
+                SignatureSpec signatureSpec = signatureSpecs.get(i);
+                String certAlias = signatureSpec.getCertAlias();
+                if (!signatures.containsKey(certAlias)) {
+                    Certificate[] certificateChain = loadCertificateChain(certAlias);
+                    certificateChains.put(certAlias, certificateChain);
+                    // create the Signature for signing.....
+                    signatures.put(certAlias,
+                            createSignature(certificateChain, certAlias, signatureSpec.getCertPassword()));
+                }
+                Certificate[] certificateChain = certificateChains.get(certAlias);
+                boolean timestamp = getTsaUrl() != null;
+                // only the last revision can be patched later without breaking
+                // the byte range of a following revision
+                if (timestamp && i == signatureSpecs.size() - 1 && isTimestampDeferred()) {
+                    deferredSignature = new DeferredSignature();
+                }
+                int signatureSize = signatureSizeEstimator.estimate(certAlias, certificateChain, timestamp);
+                byte[] signedContent = signRevision(content, revisionDigest, signatureSpec, certificateChain,
+                        signatures.get(certAlias), signatureSize, incremental, deferredSignature);
+                if (signedContent == null) {
+                    // the estimate was too small - retry with the observed size
+                    signatureSize = signatureSizeEstimator.estimate(certAlias, certificateChain, timestamp);
+                    logger.info("......signature does not fit, retry with " + signatureSize + " bytes");
+                    signedContent = signRevision(content, revisionDigest, signatureSpec, certificateChain,
+                            signatures.get(certAlias), signatureSize, incremental, deferredSignature);
+                    if (signedContent == null) {
+                        throw new SigningException("Can't write signature, not enough space");
                     }
-                } catch (IllegalStateException ise) {
-                    // we can not use this signature field
-                    logger.warning("signature " + signatureFieldName + " already exists: " + ise.getMessage());
-                    signatureFieldName = signatureFieldName + ".1";
                 }
+                content = signedContent;
+            }
+            if (PADES_LEVEL_B_LT.equalsIgnoreCase(padesLevel) || PADES_LEVEL_B_LTA.equalsIgnoreCase(padesLevel)) {
+                content = addValidationInformation(content, revisionDigest);
+                if (PADES_LEVEL_B_LTA.equalsIgnoreCase(padesLevel)) {
+                    content = addDocumentTimeStamp(content, revisionDigest);
+                }
+            }
+            if (deferredSignature != null) {
+                // the document is patched in place, so the digest state is not cached.
+                // The key is the hash of the returned document, independent of a
+                // resumed digest state
+                deferredTimestampQueue.submit(getDeferredKey(content), content, deferredSignature.byteRange,
+                        deferredSignature.cmsSignature, getTsaUrl());
+                return new SignedRevision(content, null);
+            }
+            // cache the digest state of the new revision for the next signature
+            String token = revisionDigestCache.putDigest(content, revisionDigest);
+            // return the new singed content
+            return new SignedRevision(content, token);
+        } catch (IOException e) {
+            throw new SigningException("Failed to create signature - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Adds one signature as a new incremental revision to the given PDF document.
+     * <p>
+     * The signature is always computed with the external signing support of
+     * PDFBox. The byte range is hashed once and the CMS signature is created from
+     * the precomputed digest. The output buffer is allocated with the exact size of
+     * the signed file, so no further copy of the document is needed.
+     *
+     * @param content          the current revision
+     * @param revisionDigest   digest state after all bytes of the current
+     *                         revision. The state is updated with the new revision
+     * @param signatureSpec    the signature definition
+     * @param certificateChain the certificate chain of the signer
+     * @param signature        the signature object
+     * @param signatureSize      size in bytes reserved for the CMS signature
+     * @param incremental      try to append the signature on byte level first
+     * @param deferred         optional holder for the CMS signature and byte
+     *                         range. If set, the signature is created without a
+     *                         timestamp
+     * @return the new revision or null if the CMS signature does not fit into the
+     *         reserved size
+     */
+    private byte[] signRevision(byte[] content, MessageDigest revisionDigest, SignatureSpec signatureSpec,
+            Certificate[] certificateChain, Signature signature, int signatureSize, boolean incremental,
+            DeferredSignature deferred) throws IOException, SigningException {
+        if (incremental && signatureSpec.getImageFile() == null) {
+            try {
+                return signRevisionIncremental(content, revisionDigest, signatureSpec, certificateChain, signature,
+                        signatureSize, deferred);
+            } catch (UnsupportedPdfException e) {
+                logger.fine("......byte level signing not supported, fallback to PDFBox: " + e.getMessage());
+            }
+        }
+        SignatureOptions signatureOptions = null;
+        try (PDDocument doc = PDDocument.load(content)) {
+            signatureOptions = new SignatureOptions();
+            signatureOptions.setPreferredSignatureSize(signatureSize);
+            PDSignature pdSignature = createPDSignature(doc, signatureOptions, certificateChain,
+                    signatureSpec.getHumanRect(), signatureSpec.getPage(), signatureSpec.getSignatureFieldName(),
+                    signatureSpec.getImageFile(), signatureSpec.getReason(), signatureSpec.getCertificationLevel());
+            doc.addSignature(pdSignature, signatureOptions);
+            setSignatureFieldName(doc, pdSignature, signatureSpec.getSignatureFieldName());
+            SignedContentOutputStream output = new SignedContentOutputStream();
+            ExternalSigningSupport externalSigningSupport = doc.saveIncrementalForExternalSigning(output);
+            int[] byteRange = pdSignature.getByteRange();
+            byte[] contentDigest = digestByteRange(externalSigningSupport.getContent(), byteRange, revisionDigest,
+                    content.length);
+            byte[] cmsSignature = signature.signDigest(contentDigest, deferred == null);
+            signatureSizeEstimator.update(signatureSpec.getCertAlias(), certificateChain,
+                    deferred == null && getTsaUrl() != null, cmsSignature.length);
+            // the placeholder is hex encoded and enclosed by '<' and '>'
+            if (cmsSignature.length * 2 > byteRange[2] - byteRange[1] - 2) {
+                return null;
+            }
+            if (deferred != null) {
+                deferred.byteRange = byteRange;
+                deferred.cmsSignature = cmsSignature;
+            }
+
+            output.allocate(byteRange[2] + byteRange[3]);
+            // set signature bytes and save the file
+            externalSigningSupport.setSignature(cmsSignature);
+            byte[] signedContent = output.toByteArray();
+            revisionDigest.update(signedContent, content.length, signedContent.length - content.length);
+            return signedContent;
+        } finally {
+            // Do not close signatureOptions before saving, because some COSStream objects
+            // within
+            // are transferred to the signed document.
+            // Do not allow signatureOptions get out of scope before saving, because then
+            // the COSDocument
+            // in signature options might by closed by gc, which would close COSStream
+            // objects prematurely.
+            // See https://issues.apache.org/jira/browse/PDFBOX-3743
+            IOUtils.closeQuietly(signatureOptions);
+        }
+    }
+
+    /**
+     * Adds one signature as a new incremental revision with the
+     * IncrementalSignatureAppender. Only the trailer, the catalog, the AcroForm and
+     * the target page are parsed. The new revision is hashed on top of the digest
+     * state of the current revision.
+     *
+     * @return the new revision or null if the CMS signature does not fit into the
+     *         reserved size
+     * @throws UnsupportedPdfException if the document can not be signed on byte
+     *                                 level
+     */
+    private byte[] signRevisionIncremental(byte[] content, MessageDigest revisionDigest,
+            SignatureSpec signatureSpec, Certificate[] certificateChain, Signature signature, int signatureSize,
+            DeferredSignature deferred) throws IOException, SigningException {
+        IncrementalPdfReader reader = new IncrementalPdfReader(ByteBuffer.wrap(content));
+        IncrementalSignatureAppender appender = new IncrementalSignatureAppender(reader);
+        appender.prepare(signatureSpec, certificateChain, signatureSize, Calendar.getInstance());
+        MessageDigest md;
+        try {
+            md = (MessageDigest) revisionDigest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new UnsupportedPdfException("digest state can not be cloned", e);
+        }
+        appender.updateDigest(md);
+        byte[] cmsSignature = signature.signDigest(md.digest(), deferred == null);
+        signatureSizeEstimator.update(signatureSpec.getCertAlias(), certificateChain,
+                deferred == null && getTsaUrl() != null, cmsSignature.length);
+        if (!appender.setSignature(cmsSignature)) {
+            return null;
+        }
+        if (deferred != null) {
+            deferred.byteRange = appender.getByteRange();
+            deferred.cmsSignature = cmsSignature;
+        }
+        byte[] signedContent = appender.toByteArray();
+        revisionDigest.update(appender.getRevision());
+        return signedContent;
+    }
+
+    /**
+     * Adds a Document Security Store with the certificates, OCSP responses and
+     * CRLs of all signatures as a new incremental revision (PAdES B-LT). The
+     * revocation data is taken from the ValidationDataCache.
+     *
+     * @param content        the signed document
+     * @param revisionDigest digest state after all bytes of the signed document.
+     *                       The state is updated with the new revision
+     * @return the new revision or the unchanged content if all signatures are
+     *         already covered by the DSS
+     */
+    private byte[] addValidationInformation(byte[] content, MessageDigest revisionDigest)
+            throws IOException, SigningException {
+        long l = System.currentTimeMillis();
+        try (PDDocument doc = PDDocument.load(content)) {
+            if (!new ValidationInformation(validationDataCache).addValidationInformation(doc)) {
+                return content;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(content.length + 16384);
+            doc.saveIncremental(bos);
+            byte[] result = bos.toByteArray();
+            revisionDigest.update(result, content.length, result.length - content.length);
+            logger.info("......added validation information in " + (System.currentTimeMillis() - l) + "ms");
+            return result;
+        }
+    }
+
+    /**
+     * Adds a document timestamp (PAdES B-LTA) as a new incremental revision. The
+     * timestamp token is requested from SIGNATURE_TSA_URL for the byte range
+     * digest. If no TSA is configured, the content is returned unchanged.
+     *
+     * @param content        the signed document
+     * @param revisionDigest digest state after all bytes of the signed document.
+     *                       The state is updated with the new revision
+     * @return the new revision
+     */
+    private byte[] addDocumentTimeStamp(byte[] content, MessageDigest revisionDigest)
+            throws IOException, SigningException {
+        if (getTsaUrl() == null) {
+            logger.warning("...no TSA url defined, document timestamp can not be added!");
+            return content;
+        }
+        byte[] timestampedContent = addDocumentTimeStamp(content, revisionDigest,
+                signatureSizeEstimator.estimateTimestamp());
+        if (timestampedContent == null) {
+            // the estimate was too small - retry with the observed size
+            timestampedContent = addDocumentTimeStamp(content, revisionDigest,
+                    signatureSizeEstimator.estimateTimestamp());
+            if (timestampedContent == null) {
+                throw new SigningException("Can't write document timestamp, not enough space");
             }
+        }
+        return timestampedContent;
+    }
 
-            if (pdSignature == null) {
-                // create signature dictionary
-                pdSignature = new PDSignature();
+    /**
+     * Adds a document timestamp with the given reserved size
+     *
+     * @return the new revision or null if the timestamp token does not fit into
+     *         the reserved size
+     */
+    private byte[] addDocumentTimeStamp(byte[] content, MessageDigest revisionDigest, int signatureSize)
+            throws IOException {
+        SignatureOptions signatureOptions = null;
+        try (PDDocument doc = PDDocument.load(content)) {
+            PDSignature pdSignature = SigUtils.createDocumentTimeStamp();
+            signatureOptions = new SignatureOptions();
+            signatureOptions.setPreferredSignatureSize(signatureSize);
+            doc.addSignature(pdSignature, signatureOptions);
+            SignedContentOutputStream output = new SignedContentOutputStream();
+            ExternalSigningSupport externalSigningSupport = doc.saveIncrementalForExternalSigning(output);
+            int[] byteRange = pdSignature.getByteRange();
+            byte[] contentDigest = digestByteRange(externalSigningSupport.getContent(), byteRange, revisionDigest,
+                    content.length);
+            byte[] token;
+            try {
+                token = new ValidationTimeStamp(getTsaUrl()).getTimeStampTokenForDigest(contentDigest);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            signatureSizeEstimator.updateTimestamp(token.length);
+            // the placeholder is hex encoded and enclosed by '<' and '>'
+            if (token.length * 2 > byteRange[2] - byteRange[1] - 2) {
+                return null;
             }
+            output.allocate(byteRange[2] + byteRange[3]);
+            externalSigningSupport.setSignature(token);
+            byte[] signedContent = output.toByteArray();
+            revisionDigest.update(signedContent, content.length, signedContent.length - content.length);
+            return signedContent;
+        } finally {
+            IOUtils.closeQuietly(signatureOptions);
+        }
+    }
 
-            if (rect == null && humanRect != null) {
-                rect = createSignatureRectangle(doc, humanRect);
+    /**
+     * Inspects a PDF document without loading it with PDFBox. Only the trailer,
+     * the /Encrypt entry, the catalog /Perms entry and the /AcroForm fields are
+     * read. The page tree is not built, so the inspection takes only a few
+     * milliseconds even for large documents.
+     * <p>
+     * The result can be used to reject a document (e.g. DocMDP does not permit
+     * changes or the target signature field is already signed) or to route it to
+     * the PDFBox signing pipeline.
+     *
+     * @param inputFileData A byte array containing the PDF document.
+     * @return the PdfInspection
+     * @throws SigningException if the file data is empty
+     */
+    public PdfInspection inspectPDF(byte[] inputFileData) throws SigningException {
+        if (inputFileData == null || inputFileData.length == 0) {
+            throw new SigningException("empty file data");
+        }
+        long l = System.currentTimeMillis();
+        PdfInspection inspection = PdfInspection.inspect(inputFileData);
+        logger.fine("......inspection completed in " + (System.currentTimeMillis() - l) + "ms");
+        return inspection;
+    }
+
+    /**
+     * Verifies all signatures and document timestamps of a PDF document. The
+     * method returns a SignatureReport for each signature covering the byte
+     * range integrity, the CMS signature, the certificate chain, the revocation
+     * status and the timestamp.
+     *
+     * @param inputFileData A byte array containing the PDF document.
+     * @return list of reports in the order of the signatures in the document
+     * @throws SigningException if the document can not be read
+     */
+    public List<SignatureReport> verifyPDF(byte[] inputFileData) throws SigningException {
+        return verifyPDF(inputFileData, null);
+    }
+
+    /**
+     * Verifies the signatures of a PDF document. If a document id is given, only
+     * the signatures added since the last verification of the document are
+     * verified. The reports of the other signatures are taken from the
+     * VerificationStateCache as long as they are not older than
+     * SIGNATURE_VERIFY_REPORT_AGE.
+     *
+     * @param inputFileData A byte array containing the PDF document.
+     * @param documentId    identity of the document or null
+     * @return list of reports in the order of the signatures in the document
+     * @throws SigningException if the document can not be read
+     */
+    public List<SignatureReport> verifyPDF(byte[] inputFileData, String documentId) throws SigningException {
+        if (inputFileData == null || inputFileData.length == 0) {
+            throw new SigningException("empty file data");
+        }
+        try {
+            long l = System.currentTimeMillis();
+            List<SignatureReport> reports;
+            if (documentId == null || documentId.isEmpty()) {
+                reports = createSignatureVerifier().verify(inputFileData);
+            } else {
+                VerificationState state = createSignatureVerifier().verify(inputFileData,
+                        verificationStateCache.getState(documentId));
+                verificationStateCache.putState(documentId, state);
+                reports = state.getReports();
             }
+            logger.fine("......verification completed in " + (System.currentTimeMillis() - l) + "ms");
+            return reports;
+        } catch (IOException e) {
+            throw new SigningException("Failed to verify PDF - " + e.getMessage(), e);
+        }
+    }
 
-            // Optional: certify
-            // can be done only if version is at least 1.5 and if not already set
-            // doing this on a PDF/A-1b file fails validation by Adobe preflight
-            // (PDFBOX-3821)
-            // PDF/A-1b requires PDF version 1.4 max, so don't increase the version on such
-            // files.
-            if (doc.getVersion() >= 1.5f && accessPermissions == 0) {
-                SigUtils.setMDPPermission(doc, pdSignature, 2);
+    /**
+     * Verifies all signatures and document timestamps of a PDF file. The file is
+     * not loaded into memory, the byte range digests are computed from a
+     * memory-mapped view of the file.
+     *
+     * @param file the PDF file
+     * @return list of reports in the order of the signatures in the document
+     * @throws SigningException if the file can not be read
+     */
+    public List<SignatureReport> verifyPDF(File file) throws SigningException {
+        return verifyPDF(file, null);
+    }
+
+    /**
+     * Verifies the signatures of a PDF file. If a document id is given, only the
+     * signatures added since the last verification of the document are verified.
+     *
+     * @see #verifyPDF(byte[], String)
+     * @param file       the PDF file
+     * @param documentId identity of the document or null
+     * @return list of reports in the order of the signatures in the document
+     * @throws SigningException if the file can not be read
+     */
+    public List<SignatureReport> verifyPDF(File file, String documentId) throws SigningException {
+        try {
+            long l = System.currentTimeMillis();
+            List<SignatureReport> reports;
+            if (documentId == null || documentId.isEmpty()) {
+                reports = createSignatureVerifier().verify(file);
+            } else {
+                VerificationState state = createSignatureVerifier().verify(file,
+                        verificationStateCache.getState(documentId));
+                verificationStateCache.putState(documentId, state);
+                reports = state.getReports();
             }
+            logger.fine("......verification completed in " + (System.currentTimeMillis() - l) + "ms");
+            return reports;
+        } catch (IOException e) {
+            throw new SigningException("Failed to verify PDF - " + e.getMessage(), e);
+        }
+    }
 
-            if (acroForm != null && acroForm.getNeedAppearances()) {
-                // PDFBOX-3738 NeedAppearances true results in visible signature becoming
-                // invisible
-                // with Adobe Reader
-                if (acroForm.getFields().isEmpty()) {
-                    // we can safely delete it if there are no fields
-                    acroForm.getCOSObject().removeItem(COSName.NEED_APPEARANCES);
-                    // note that if you've set MDP permissions, the removal of this item
-                    // may result in Adobe Reader claiming that the document has been changed.
-                    // and/or that field content won't be displayed properly.
-                    // ==> decide what you prefer and adjust your code accordingly.
-                } else {
-                    logger.warning("NeedAppearances is set, signature may be ignored by Adobe Reader");
+    /**
+     * Prepares a PDF document for later signatures by inserting empty (unsigned)
+     * signature fields. The fields are named 'Signature' followed by an index
+     * starting with the given firstIndex. This corresponds to the field names
+     * used by the SignatureResource for visual signatures. A later signature only
+     * fills the prepared field and its widget rectangle. Existing fields with the
+     * same name are reused.
+     * <p>
+     * The fields are added as an incremental update, so the original document is
+     * not rewritten. The method can only be applied to documents not yet signed.
+     *
+     * @param inputFileData A byte array containing the source PDF document.
+     * @param humanRects    list of rectangles from a human viewpoint, one for each
+     *                      signature field
+     * @param page          page number (beginning with 1) to place the fields
+     * @param firstIndex    index of the first signature field name
+     * @return A byte array containing the prepared PDF document
+     * @throws SigningException
+     */
+    public byte[] prepareSignatureFields(byte[] inputFileData, List<Rectangle2D> humanRects, int page,
+            int firstIndex) throws SigningException {
+        if (inputFileData == null || inputFileData.length == 0) {
+            throw new SigningException("empty file data");
+        }
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(inputFileData.length + 4096);
+                PDDocument doc = PDDocument.load(inputFileData)) {
+            if (!doc.getSignatureDictionaries().isEmpty()) {
+                throw new SigningException("signature fields can not be added to a signed document");
+            }
+            int pageIndex = Math.min(Math.max(page - 1, 0), doc.getNumberOfPages() - 1);
+            PDPage pdPage = doc.getPage(pageIndex);
+            PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
+            if (acroForm == null) {
+                acroForm = new PDAcroForm(doc);
+                doc.getDocumentCatalog().setAcroForm(acroForm);
+            }
+            COSBase fieldsBase = acroForm.getCOSObject().getDictionaryObject(COSName.FIELDS);
+            COSArray acroFormFields;
+            if (fieldsBase instanceof COSArray) {
+                acroFormFields = (COSArray) fieldsBase;
+            } else {
+                acroFormFields = new COSArray();
+                acroForm.getCOSObject().setItem(COSName.FIELDS, acroFormFields);
+            }
+            int count = 0;
+            for (int i = 0; i < humanRects.size(); i++) {
+                String fieldName = "Signature" + (firstIndex + i);
+                if (acroForm.getField(fieldName) != null) {
+                    logger.fine("......signature field " + fieldName + " already exists");
+                    continue;
                 }
+                PDSignatureField signatureField = new PDSignatureField(acroForm);
+                signatureField.setPartialName(fieldName);
+                PDAnnotationWidget widget = signatureField.getWidgets().get(0);
+                widget.setRectangle(createSignatureRectangle(pdPage, humanRects.get(i)));
+                widget.setPage(pdPage);
+                widget.setPrinted(true);
+                pdPage.getAnnotations().add(widget);
+                acroFormFields.add(signatureField);
+                count++;
             }
+            if (count == 0) {
+                return inputFileData;
+            }
+            // mark the changed objects for the incremental update. The new fields
+            // and widgets are written as new objects.
+            doc.getDocumentCatalog().getCOSObject().setNeedToBeUpdated(true);
+            acroForm.getCOSObject().setNeedToBeUpdated(true);
+            acroFormFields.setNeedToBeUpdated(true);
+            pdPage.getCOSObject().setNeedToBeUpdated(true);
+            COSBase annotations = pdPage.getCOSObject().getDictionaryObject(COSName.ANNOTS);
+            if (annotations instanceof COSArray) {
+                ((COSArray) annotations).setNeedToBeUpdated(true);
+            }
+            doc.saveIncremental(bos);
+            logger.info("......added " + count + " signature fields");
+            return bos.toByteArray();
+        } catch (IOException e) {
+            throw new SigningException("Failed to prepare signature fields - " + e.getMessage(), e);
+        }
+    }
 
-            // default filter
-            pdSignature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+    /**
+     * First phase of an external signing process. The method adds an empty
+     * signature to the given PDF document and stores the incremental update
+     * together with an ExternalSigningSession in the directory
+     * SIGNATURE_EXTERNAL_PATH.
+     * <p>
+     * The returned session provides an opaque token, the SHA-256 digest of the
+     * signed byte range and the DER encoded signed attributes. A client can either
+     * create a CMS signature based on the digest, or a raw SHA256WithRSA signature
+     * value based on the signed attributes. The signature is applied with the
+     * method {@link #completeExternalSigning}.
+     * <p>
+     * The private key is not needed in this phase. Only the certificate chain of
+     * the alias has to exist in the keystore.
+     *
+     * @param inputFileData      A byte array containing the source PDF document.
+     * @param certAlias          Certificate alias name to be used for signing
+     * @param humanRect          optional rectangle for a visual signature
+     * @param page               page number (beginning with 1) to place the visual
+     *                           signature
+     * @param signatureFieldName optional name of an existing (unsigned) signature
+     *                           field
+     * @param imageFile          optional image file
+     * @param reason             workflow status
+     * @param fileName           optional file name stored in the session
+     * @return the new ExternalSigningSession
+     * @throws CertificateVerificationException
+     * @throws SigningException
+     */
+    public ExternalSigningSession prepareExternalSigning(byte[] inputFileData, String certAlias,
+            Rectangle2D humanRect, int page, String signatureFieldName, byte[] imageFile, String reason,
+            String fileName) throws CertificateVerificationException, SigningException {
+
+        SignatureOptions signatureOptions = null;
 
-            // subfilter for basic and PAdES Part 2 signatures
-            pdSignature.setSubFilter(PDSignature.SUBFILTER_ADBE_PKCS7_DETACHED);
+        if (inputFileData == null || inputFileData.length == 0) {
+            throw new SigningException("empty file data");
+        }
 
-            // pdSignature.setName("Name");
-            // pdSignature.setLocation("Location");
-            if (reason != null && !reason.isEmpty()) {
-                pdSignature.setReason(reason);
+        purgeExternalSigningSessions();
+        ExternalSigningSession session = new ExternalSigningSession(UUID.randomUUID().toString(), certAlias,
+                fileName);
+        File pdfFile = getExternalSigningFile(session.getToken(), ".pdf");
+        try (PDDocument doc = PDDocument.load(inputFileData)) {
+            Certificate[] certificateChain = loadCertificateChain(certAlias);
+
+            signatureOptions = new SignatureOptions();
+            PDSignature pdSignature = createPDSignature(doc, signatureOptions, certificateChain, humanRect, page,
+                    signatureFieldName, imageFile, reason, SignatureSpec.CERTIFICATION_FORM_FILLING);
+            doc.addSignature(pdSignature, signatureOptions);
+            setSignatureFieldName(doc, pdSignature, signatureFieldName);
+
+            try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(pdfFile))) {
+                ExternalSigningSupport externalSigningSupport = doc.saveIncrementalForExternalSigning(fos);
+                // compute the digest of the byte range
+                session.setByteRange(pdSignature.getByteRange());
+                session.setContentDigest(digestByteRange(externalSigningSupport.getContent(),
+                        session.getByteRange(), resumeRevisionDigest(inputFileData, null), inputFileData.length));
+                // write the file with an empty signature placeholder
+                externalSigningSupport.setSignature(new byte[0]);
+            }
+            session.setSigningTime(pdSignature.getSignDate().getTime());
+            session.setSignedAttributes(Signature.createSignedAttributes(certificateChain,
+                    session.getContentDigest(), session.getSigningTime()));
+            session.store(getExternalSigningFile(session.getToken(), ".properties"));
+            logger.info("......prepared external signing session '" + session.getToken() + "' for '" + certAlias
+                    + "'");
+        } catch (IOException e) {
+            pdfFile.delete();
+            throw new SigningException("Failed to prepare external signature - " + e.getMessage(), e);
+        } finally {
+            IOUtils.closeQuietly(signatureOptions);
+        }
+        return session;
+    }
+
+    /**
+     * Consumes an ExternalSigningSession by its token. The session file is moved
+     * atomically so that a session can be completed only once. Concurrent calls
+     * with the same token fail with a SigningException. The method throws a
+     * SigningException if the session does not exist or is expired.
+     *
+     * @param token - session token
+     * @return ExternalSigningSession
+     * @throws SigningException
+     */
+    public ExternalSigningSession consumeExternalSigningSession(String token) throws SigningException {
+        if (token == null || !TOKEN_PATTERN.matcher(token).matches()) {
+            throw new SigningException("invalid external signing token");
+        }
+        File sessionFile = getExternalSigningFile(token, ".properties");
+        File consumedFile = getExternalSigningFile(token, ".consumed");
+        try {
+            // only one caller can move the session file
+            Files.move(sessionFile.toPath(), consumedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            throw new SigningException("external signing session '" + token + "' not found");
+        } catch (IOException e) {
+            throw new SigningException("Failed to consume external signing session - " + e.getMessage(), e);
+        }
+        ExternalSigningSession session;
+        try {
+            session = ExternalSigningSession.load(token, consumedFile);
+        } catch (IOException e) {
+            deleteExternalSigningSession(token);
+            throw new SigningException("Failed to load external signing session - " + e.getMessage(), e);
+        }
+        if (isExpired(session.getCreated().getTime())) {
+            deleteExternalSigningSession(token);
+            throw new SigningException("external signing session '" + token + "' expired");
+        }
+        return session;
+    }
+
+    /**
+     * Second phase of an external signing process. The method patches the
+     * signature into the placeholder of the prepared PDF document and returns the
+     * signed document. The session has to be consumed by
+     * {@link #consumeExternalSigningSession} before and is removed afterwards,
+     * also if the signature is rejected.
+     * <p>
+     * If the param 'raw' is true, the signature is expected to be a raw
+     * SHA256WithRSA signature value over the signed attributes of the session. In
+     * this case the CMS structure is assembled by the service, including an
+     * optional timestamp from SIGNATURE_TSA_URL. Otherwise the signature is
+     * expected to be a detached CMS signature of the byte range digest.
+     * <p>
+     * In both cases the signature is verified with the public key of the session
+     * certificate before it is written into the document.
+     *
+     * @param session   - the consumed session
+     * @param signature - CMS signature or raw signature value
+     * @param raw       - true if the signature is a raw signature value
+     * @return A byte array containing the singed PDF document
+     * @throws CertificateVerificationException
+     * @throws SigningException
+     */
+    public byte[] completeExternalSigning(ExternalSigningSession session, byte[] signature, boolean raw)
+            throws CertificateVerificationException, SigningException {
+        String token = session.getToken();
+        try {
+            if (signature == null || signature.length == 0) {
+                throw new SigningException("empty signature");
+            }
+            Certificate[] certificateChain = loadCertificateChain(session.getCertAlias());
+            X509Certificate certificate = (X509Certificate) certificateChain[0];
+            byte[] cmsSignature = signature;
+            if (raw) {
+                verifySignatureValue(signature, session.getSignedAttributes(), certificate);
+                cmsSignature = Signature.createSignature(certificateChain, session.getContentDigest(),
+                        session.getSigningTime(), signature, getTsaUrl());
+            } else {
+                verifySignerInformation(cmsSignature, session.getContentDigest(), certificate);
+            }
+
+            int[] byteRange = session.getByteRange();
+            byte[] hex = Hex.getBytes(cmsSignature);
+            // the placeholder is enclosed by '<' and '>'
+            if (hex.length > byteRange[2] - byteRange[1] - 2) {
+                throw new SigningException("Can't write signature, not enough space");
+            }
+            File pdfFile = getExternalSigningFile(token, ".pdf");
+            try (RandomAccessFile raf = new RandomAccessFile(pdfFile, "rw")) {
+                raf.seek(byteRange[1] + 1);
+                raf.write(hex);
+            }
+            byte[] signedContent = Files.readAllBytes(pdfFile.toPath());
+            logger.info("......completed external signing session '" + token + "'");
+            return signedContent;
+        } catch (IOException e) {
+            throw new SigningException("Failed to complete external signature - " + e.getMessage(), e);
+        } finally {
+            deleteExternalSigningSession(token);
+        }
+    }
+
+    /**
+     * Creates CMS signatures for a list of byte range digests of documents
+     * prepared for external signing. The certificate chain and the private key
+     * are loaded only once for the whole batch. The timestamp requests are
+     * executed by the ManagedExecutorService. An invalid digest or a failed
+     * timestamp request only fails the affected digest.
+     *
+     * @param contentDigests list of SHA-256 digests
+     * @param certAlias      Certificate alias name to be used for signing
+     * @param certPassword   optional private key password
+     * @return list of SignedDigests in the order of the digests
+     * @throws CertificateVerificationException
+     * @throws SigningException
+     */
+    public List<SignedDigest> signDigests(List<byte[]> contentDigests, String certAlias, String certPassword)
+            throws CertificateVerificationException, SigningException {
+        Certificate[] certificateChain = loadCertificateChain(certAlias);
+        Signature signature = createSignature(certificateChain, certAlias, certPassword);
+        try {
+            long l = System.currentTimeMillis();
+            List<SignedDigest> result = signature.signDigests(contentDigests, batchTsaThreads, getExecutor());
+            logger.info("......signed " + contentDigests.size() + " digests by '" + certAlias + "' in "
+                    + (System.currentTimeMillis() - l) + "ms");
+            return result;
+        } catch (IOException e) {
+            throw new SigningException("Failed to create signature - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Starts a job appending a document timestamp to all PDF files of the given
+     * paths. A path can be a file or a directory, absolute or relative to
+     * SIGNATURE_ARCHIVE_PATH. Directories are searched recursively for PDF files.
+     * Only documents located within SIGNATURE_ARCHIVE_PATH - after all symbolic
+     * links are resolved - are accepted. The documents are replaced on disk.
+     * <p>
+     * The job runs in the background. The returned Result is updated while the
+     * job is running and can be queried later with the job id.
+     * <p>
+     * The progress of the job is recorded in a journal. If the job is started
+     * again with the same job id, documents already timestamped are skipped. So
+     * an interrupted job can be resumed.
+     *
+     * @param paths list of files or directories
+     * @param job   the job id (UUID)
+     * @return the Result of the running job
+     * @throws SigningException if no TSA or archive root is configured, a path is
+     *                          not located within the archive root or the job is
+     *                          still running
+     */
+    public DocumentTimestampJob.Result timestampDocuments(List<String> paths, String job)
+            throws SigningException {
+        String tsaUrl = getTsaUrl();
+        if (tsaUrl == null) {
+            throw new SigningException("no TSA url defined - set " + ENV_SIGNATURE_TSA_URL);
+        }
+        if (!archivePath.isPresent() || archivePath.get().trim().isEmpty()) {
+            throw new SigningException("no archive root defined - set " + ENV_SIGNATURE_ARCHIVE_PATH);
+        }
+        if (job == null || !TOKEN_PATTERN.matcher(job).matches()) {
+            throw new SigningException("invalid job id '" + job + "'");
+        }
+        List<File> documents = new ArrayList<File>();
+        for (String path : paths) {
+            try {
+                documents.addAll(DocumentTimestampJob.listDocuments(new File(archivePath.get()).toPath(), path));
+            } catch (IOException e) {
+                throw new SigningException("invalid archive path '" + path + "' - " + e.getMessage(), e);
             }
+        }
+        int workers = archiveWorkers > 0 ? archiveWorkers : Runtime.getRuntime().availableProcessors();
+        DocumentTimestampJob timestampJob = new DocumentTimestampJob(tsaUrl, signatureSizeEstimator, workers,
+                batchTsaThreads, getExternalSigningFile(job, ".journal"), documentTimestampService.getExecutor());
+        return documentTimestampService.submit(job, timestampJob, documents);
+    }
 
-            // the signing date, needed for valid signature
-            pdSignature.setSignDate(Calendar.getInstance());
+    /**
+     * Returns the Result of a timestamp job started by timestampDocuments
+     *
+     * @param job the job id
+     * @return the Result or null if the job is unknown
+     */
+    public DocumentTimestampJob.Result getTimestampJob(String job) {
+        return documentTimestampService.getResult(job);
+    }
+
+    /**
+     * Returns true if the timestamp of a signature is added in the background.
+     * The deferred mode requires a TSA url and the PAdES level B-B, because a DSS
+     * or document timestamp revision would cover the patched signature.
+     *
+     * @return true if the timestamp is deferred
+     */
+    public boolean isTimestampDeferred() {
+        return deferredTimestamp && getTsaUrl() != null && !PADES_LEVEL_B_LT.equalsIgnoreCase(padesLevel)
+                && !PADES_LEVEL_B_LTA.equalsIgnoreCase(padesLevel);
+    }
+
+    /**
+     * Returns the key of a document in the DeferredTimestampQueue. The key is the
+     * hex encoded SHA-256 hash of the document returned by signPDF.
+     *
+     * @param signedFileData the signed document
+     * @return the key
+     * @throws SigningException
+     */
+    public String getDeferredKey(byte[] signedFileData) throws SigningException {
+        try {
+            return Hex.getString(MessageDigest.getInstance("SHA-256").digest(signedFileData)).toLowerCase();
+        } catch (NoSuchAlgorithmException e) {
+            throw new SigningException("Failed to compute document hash - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns true if the timestamp of the given document is still pending
+     *
+     * @param key the key of the document
+     * @return true if pending
+     */
+    public boolean isTimestampPending(String key) {
+        return deferredTimestampQueue.isPending(key);
+    }
+
+    /**
+     * Returns the keys of all documents waiting for a timestamp
+     *
+     * @return list of keys
+     */
+    public List<String> getPendingTimestamps() {
+        return deferredTimestampQueue.getPendingKeys();
+    }
 
-            // do not set SignatureInterface instance, if external signing used
-            // Signature sig = new Signature(certificateChain, privateKey);
+    /**
+     * Waits for the deferred timestamp of a document and returns the final
+     * document. If the document was not signed in the deferred mode, null is
+     * returned.
+     *
+     * @param key     the key of the document
+     * @param timeout maximum time to wait in milliseconds
+     * @return the timestamped document or null if the key is unknown
+     * @throws SigningException if the timestamp is still pending after the timeout
+     *                          or can not be added
+     */
+    public byte[] flushTimestamp(String key, long timeout) throws SigningException {
+        if (!deferredTimestampQueue.contains(key)) {
+            return null;
+        }
+        return deferredTimestampQueue.flush(key, timeout);
+    }
 
-            Signature signature = null;
-            Certificate[] certificateChain = null;
+    /**
+     * Returns a SignatureVerifier configured by SIGNATURE_VERIFY_REVOCATION,
+     * SIGNATURE_VERIFY_THREADS and SIGNATURE_VERIFY_REPORT_AGE. The signatures
+     * are verified on the managed executor. The root certificates of the
+     * keystore are the trust anchors.
+     */
+    private SignatureVerifier createSignatureVerifier() {
+        return new SignatureVerifier(verifyRevocation,
+                verifyThreads > 0 ? verifyThreads : Runtime.getRuntime().availableProcessors(),
+                verifyReportAge * 1000, managedExecutor, keystoreService.loadTrustedCertificates());
+    }
 
-            certificateChain = keystoreService.loadCertificate(certAlias);
-            if (certificateChain == null || certificateChain.length == 0) {
-                throw new CertificateVerificationException(
-                        "...certificate alias '" + certAlias + "' not found in keystore");
+    /**
+     * Returns the SHA-256 MessageDigest state after all bytes of the source
+     * revision. If a token of a revision produced by this service is given and the
+     * source revision matches its fingerprint, the cached digest state is resumed.
+     * Otherwise the source revision is hashed.
+     */
+    private MessageDigest resumeRevisionDigest(byte[] inputFileData, String revisionToken) throws IOException {
+        MessageDigest revisionDigest = revisionDigestCache.getDigest(revisionToken, inputFileData);
+        if (revisionDigest == null) {
+            try {
+                revisionDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
             }
+            revisionDigest.update(inputFileData);
+        }
+        return revisionDigest;
+    }
 
-            // create the Signature for signing.....
+    /**
+     * Computes the SHA-256 digest of the signature byte range. The byte range
+     * starts with the complete source revision. So the digest state of the source
+     * revision is cloned and only the incremental update is read from the content
+     * stream.
+     *
+     * @param content        the byte range stream
+     * @param byteRange      the byte range of the signature
+     * @param revisionDigest digest state after all bytes of the source revision
+     * @param revisionLength the length of the source revision
+     * @return the byte range digest
+     */
+    private byte[] digestByteRange(InputStream content, int[] byteRange, MessageDigest revisionDigest,
+            int revisionLength) throws IOException {
+        try (InputStream is = content) {
+            if (byteRange == null || byteRange[0] != 0 || byteRange[1] < revisionLength) {
+                // unexpected byte range - hash the full content
+                return Signature.digest(is);
+            }
+            MessageDigest md;
             try {
-                // test if a TSA URL was injected....
-                String sTsaUrl = null;
-                if (tsaURL.isPresent() && !tsaURL.get().isEmpty()) {
-                    sTsaUrl = tsaURL.get();
+                md = (MessageDigest) revisionDigest.clone();
+            } catch (CloneNotSupportedException e) {
+                return Signature.digest(is);
+            }
+            // skip the source revision
+            long remaining = revisionLength;
+            while (remaining > 0) {
+                long skipped = is.skip(remaining);
+                if (skipped <= 0) {
+                    if (is.read() == -1) {
+                        throw new IOException("unexpected end of byte range");
+                    }
+                    skipped = 1;
                 }
-                // load the corresponding private key from the keystore...
-                PrivateKey privateKey = keystoreService.loadPrivateKey(certAlias, certPassword);
+                remaining -= skipped;
+            }
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = is.read(buffer)) != -1) {
+                md.update(buffer, 0, n);
+            }
+            return md.digest();
+        }
+    }
 
-                // create a signature object..
-                signature = new Signature(certificateChain, privateKey, sTsaUrl);
-            } catch (UnrecoverableKeyException | CertificateNotYetValidException | CertificateExpiredException
-                    | KeyStoreException | NoSuchAlgorithmException | IOException e) {
-                throw new SigningException("Failed to create signature - " + e.getMessage(), e);
+    /**
+     * Loads the certificate chain for a given alias from the keystore
+     */
+    private Certificate[] loadCertificateChain(String certAlias) throws CertificateVerificationException {
+        Certificate[] certificateChain = keystoreService.loadCertificate(certAlias);
+        if (certificateChain == null || certificateChain.length == 0) {
+            throw new CertificateVerificationException(
+                    "...certificate alias '" + certAlias + "' not found in keystore");
+        }
+        return certificateChain;
+    }
 
-            }
+    /**
+     * Creates a Signature object with the private key of the given alias and an
+     * optional TSA url
+     */
+    private Signature createSignature(Certificate[] certificateChain, String certAlias, String certPassword)
+            throws SigningException {
+        try {
+            // load the corresponding private key from the keystore...
+            PrivateKey privateKey = keystoreService.loadPrivateKey(certAlias, certPassword);
 
-            // register signature dictionary and sign interface
-            signatureOptions = new SignatureOptions();
+            // create a signature object..
+            return new Signature(certificateChain, privateKey, getTsaUrl());
+        } catch (UnrecoverableKeyException | CertificateNotYetValidException | CertificateExpiredException
+                | KeyStoreException | NoSuchAlgorithmException | IOException e) {
+            throw new SigningException("Failed to create signature - " + e.getMessage(), e);
+        }
+    }
 
-            // create visual signature if a signing rect object exists....
-            if (rect != null) {
-                // we adjust the page as the template uses index 0 for the first page
-                if (page > 0) {
-                    page--;
+    /**
+     * Returns the ManagedExecutorService of the container. Without a container,
+     * e.g. in a unit test, the tasks are run in the calling thread.
+     */
+    private Executor getExecutor() {
+        if (managedExecutor != null) {
+            return managedExecutor;
+        }
+        return Runnable::run;
+    }
+
+    /**
+     * Returns the TSA url if injected or null
+     */
+    private String getTsaUrl() {
+        if (tsaURL.isPresent() && !tsaURL.get().isEmpty()) {
+            return tsaURL.get();
+        }
+        return null;
+    }
+
+    /**
+     * Creates the signature dictionary for a new signature and an optional visual
+     * signature registered in the given SignatureOptions.
+     */
+    private PDSignature createPDSignature(PDDocument doc, SignatureOptions signatureOptions,
+            Certificate[] certificateChain, Rectangle2D humanRect, int page, String signatureFieldName,
+            byte[] imageFile, String reason, int certificationLevel) throws IOException, SigningException {
+
+        int accessPermissions = SigUtils.getMDPPermission(doc);
+        if (accessPermissions == 1) {
+            throw new SigningException(
+                    "No changes to the document are permitted due to DocMDP transform parameters dictionary");
+        }
+        // Note that PDFBox has a bug that visual signing on certified files with
+        // permission 2
+        // doesn't work properly, see PDFBOX-3699. As long as this issue is open, you
+        // may want to
+        // be careful with such files.
+
+        PDSignature pdSignature = null;
+        PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
+        PDRectangle rect = null;
+
+        // If the PDF contains an existing empty signature, as created by the
+        // CreateEmptySignatureForm example we can reuse it here
+        if (acroForm != null) {
+            try {
+                pdSignature = findExistingSignature(acroForm, signatureFieldName);
+                if (pdSignature != null) {
+                    rect = acroForm.getField(signatureFieldName).getWidgets().get(0).getRectangle();
                 }
-                signatureOptions.setVisualSignature(
-                        createVisualSignatureTemplate(doc, page, rect, pdSignature, imageFile, certificateChain));
-            } else {
-                logger.info("...Signature Image not provided, no VisualSignature will be added!");
+            } catch (IllegalStateException ise) {
+                // we can not use this signature field
+                logger.warning("signature " + signatureFieldName + " already exists: " + ise.getMessage());
+                signatureFieldName = signatureFieldName + ".1";
             }
+        }
 
-            // we place the signatureOpens on the given page
-            signatureOptions.setPage(page);
-            doc.addSignature(pdSignature, signature, signatureOptions);
+        if (pdSignature == null) {
+            // create signature dictionary
+            pdSignature = new PDSignature();
+        }
 
-            if (externalSigning) {
-                ExternalSigningSupport externalSigningSupport = doc.saveIncrementalForExternalSigning(bos);
-                // invoke external signature service
-                byte[] cmsSignature = signature.sign(externalSigningSupport.getContent());
+        if (rect == null && humanRect != null) {
+            rect = createSignatureRectangle(doc.getPage(0), humanRect);
+        }
 
-                // set signature bytes received from the service and save the file
-                externalSigningSupport.setSignature(cmsSignature);
+        // Optional: certify
+        // can be done only if version is at least 1.5 and if not already set
+        // doing this on a PDF/A-1b file fails validation by Adobe preflight
+        // (PDFBOX-3821)
+        // PDF/A-1b requires PDF version 1.4 max, so don't increase the version on such
+        // files.
+        if (certificationLevel > 0 && doc.getVersion() >= 1.5f && accessPermissions == 0) {
+            SigUtils.setMDPPermission(doc, pdSignature, certificationLevel);
+        }
 
+        if (acroForm != null && acroForm.getNeedAppearances()) {
+            // PDFBOX-3738 NeedAppearances true results in visible signature becoming
+            // invisible
+            // with Adobe Reader
+            if (acroForm.getFields().isEmpty()) {
+                // we can safely delete it if there are no fields
+                acroForm.getCOSObject().removeItem(COSName.NEED_APPEARANCES);
+                // note that if you've set MDP permissions, the removal of this item
+                // may result in Adobe Reader claiming that the document has been changed.
+                // and/or that field content won't be displayed properly.
+                // ==> decide what you prefer and adjust your code accordingly.
             } else {
-                // write incremental (only for signing purpose)
-                doc.saveIncremental(bos);
-                signedContent = bos.toByteArray();
+                logger.warning("NeedAppearances is set, signature may be ignored by Adobe Reader");
             }
+        }
 
-        } catch (IOException e) {
-            throw new SigningException("Failed to create signature - " + e.getMessage(), e);
-        } finally {
-            // Do not close signatureOptions before saving, because some COSStream objects
-            // within
-            // are transferred to the signed document.
-            // Do not allow signatureOptions get out of scope before saving, because then
-            // the COSDocument
-            // in signature options might by closed by gc, which would close COSStream
-            // objects prematurely.
-            // See https://issues.apache.org/jira/browse/PDFBOX-3743
-            IOUtils.closeQuietly(signatureOptions);
+        // default filter
+        pdSignature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+
+        // subfilter for basic and PAdES Part 2 signatures
+        pdSignature.setSubFilter(PDSignature.SUBFILTER_ADBE_PKCS7_DETACHED);
+
+        // pdSignature.setName("Name");
+        // pdSignature.setLocation("Location");
+        if (reason != null && !reason.isEmpty()) {
+            pdSignature.setReason(reason);
         }
 
-        // return the new singed content
-        return signedContent;
+        // the signing date, needed for valid signature
+        pdSignature.setSignDate(Calendar.getInstance());
+
+        // create visual signature if a signing rect object exists....
+        if (rect != null) {
+            // we adjust the page as the template uses index 0 for the first page
+            if (page > 0) {
+                page--;
+            }
+            signatureOptions.setVisualSignature(
+                    createVisualSignatureTemplate(doc, page, rect, pdSignature, imageFile, certificateChain));
+        } else {
+            logger.info("...Signature Image not provided, no VisualSignature will be added!");
+        }
+
+        // we place the signatureOpens on the given page
+        signatureOptions.setPage(page);
+        return pdSignature;
     }
 
-    private PDRectangle createSignatureRectangle(PDDocument doc, Rectangle2D humanRect) {
+    /**
+     * Verifies a detached CMS signature of an external signer. The signature must
+     * contain exactly one SHA-256 signer identified by the given certificate.
+     * The signed attributes must contain a messageDigest matching the digest of
+     * the prepared byte range and the signature value is verified with the public
+     * key of the certificate.
+     */
+    private void verifySignerInformation(byte[] cmsSignature, byte[] contentDigest, X509Certificate certificate)
+            throws SigningException {
+        try {
+            // the detached content is represented by the digest of the byte range
+            CMSSignedData signedData = new CMSSignedData(Collections.singletonMap(CMSAlgorithm.SHA256, contentDigest),
+                    cmsSignature);
+            Collection<SignerInformation> signers = signedData.getSignerInfos().getSigners();
+            if (signers.size() != 1) {
+                throw new SigningException("CMS signature must contain exactly one signer");
+            }
+            SignerInformation signerInformation = signers.iterator().next();
+            if (!CMSAlgorithm.SHA256.equals(signerInformation.getDigestAlgorithmID().getAlgorithm())) {
+                throw new SigningException("CMS signature must use the digest algorithm SHA-256");
+            }
+            if (!signerInformation.getSID().match(new JcaX509CertificateHolder(certificate))) {
+                throw new SigningException("CMS signature was not created by the certificate of the session");
+            }
+            AttributeTable signedAttributes = signerInformation.getSignedAttributes();
+            Attribute attribute = signedAttributes == null ? null : signedAttributes.get(CMSAttributes.messageDigest);
+            if (attribute == null) {
+                throw new SigningException("CMS signature contains no messageDigest attribute");
+            }
+            byte[] messageDigest = ASN1OctetString.getInstance(attribute.getAttrValues().getObjectAt(0)).getOctets();
+            if (!MessageDigest.isEqual(messageDigest, contentDigest)) {
+                throw new SigningException("CMS signature does not match the prepared document");
+            }
+            if (!signerInformation.verify(new JcaSimpleSignerInfoVerifierBuilder()
+                    .setProvider(SecurityProvider.getProvider()).build(certificate))) {
+                throw new SigningException("CMS signature value is not valid");
+            }
+        } catch (CMSException | OperatorCreationException | CertificateEncodingException | IOException
+                | IllegalArgumentException e) {
+            throw new SigningException("invalid CMS signature - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Verifies a raw signature value over the signed attributes of a session with
+     * the public key of the given certificate.
+     */
+    private void verifySignatureValue(byte[] signatureValue, byte[] signedAttributes, X509Certificate certificate)
+            throws SigningException {
+        try {
+            java.security.Signature verifier = java.security.Signature.getInstance(Signature.SIGNATURE_ALGORITHM);
+            verifier.initVerify(certificate.getPublicKey());
+            verifier.update(signedAttributes);
+            if (!verifier.verify(signatureValue)) {
+                throw new SigningException("signature value does not match the signed attributes of the session");
+            }
+        } catch (GeneralSecurityException e) {
+            throw new SigningException("invalid signature value - " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Returns a file of an external signing session
+     */
+    private File getExternalSigningFile(String token, String extension) {
+        File dir = new File(externalPath.orElse(System.getProperty("java.io.tmpdir") + "/imixs-signature"));
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, token + extension);
+    }
+
+    private void deleteExternalSigningSession(String token) {
+        getExternalSigningFile(token, ".properties").delete();
+        getExternalSigningFile(token, ".consumed").delete();
+        getExternalSigningFile(token, ".pdf").delete();
+    }
+
+    private boolean isExpired(long created) {
+        return System.currentTimeMillis() - created > externalTTL * 1000;
+    }
+
+    /**
+     * Removes all external signing session files older than SIGNATURE_EXTERNAL_TTL
+     */
+    private void purgeExternalSigningSessions() {
+        File[] files = getExternalSigningFile("", "").listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if ((name.endsWith(".properties") || name.endsWith(".consumed") || name.endsWith(".pdf"))
+                    && isExpired(file.lastModified())) {
+                logger.fine("......remove expired external signing session file " + name);
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Converts a rectangle from a human viewpoint into the user space of the given
+     * page, based on the rotation and the crop box of the page.
+     */
+    private PDRectangle createSignatureRectangle(PDPage page, Rectangle2D humanRect) {
         float x = (float) humanRect.getX();
         float y = (float) humanRect.getY();
         float width = (float) humanRect.getWidth();
         float height = (float) humanRect.getHeight();
-        PDPage page = doc.getPage(0);
         PDRectangle pageRect = page.getCropBox();
         PDRectangle rect = new PDRectangle();
         // signing should be at the same position regardless of page rotation.
@@ -483,9 +1704,10 @@ public class SigningService {
                     cs.saveGraphicsState();
                     // in the following we scale the content stream so that the
                     // signing image fits into the upper half of the rectangle.
-                    PDImageXObject img = PDImageXObject.createFromByteArray(doc, imageFile, null);
-                    
                     float imageMaxHeight=height-SIGNATURE_DETAILS_OFSET;
+                    // the image is downsampled to the signature rect and cached by the SignatureImageService
+                    PDImageXObject img = signatureImageService.createImage(doc, imageFile, width, imageMaxHeight);
+                    
                     float  scaleFactorHeight=imageMaxHeight/ img.getHeight();
                     float  scaleFactorWidth=width/ img.getWidth();
                     // find the best fit (width vs. height)
@@ -551,6 +1773,26 @@ public class SigningService {
         }
     }
 
+    /**
+     * PDFBox generates the name of a new signature field. This method renames the
+     * new field of the given signature to the requested field name, if no field
+     * with this name exists. A partial field name must not contain a period.
+     */
+    private void setSignatureFieldName(PDDocument doc, PDSignature pdSignature, String signatureFieldName)
+            throws IOException {
+        PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
+        if (signatureFieldName == null || signatureFieldName.isEmpty() || signatureFieldName.indexOf('.') >= 0
+                || acroForm == null || acroForm.getField(signatureFieldName) != null) {
+            return;
+        }
+        for (PDSignatureField signatureField : doc.getSignatureFields()) {
+            if (signatureField.getCOSObject().getDictionaryObject(COSName.V) == pdSignature.getCOSObject()) {
+                signatureField.setPartialName(signatureFieldName);
+                return;
+            }
+        }
+    }
+
     /**
      * This method verifies if for a given sigFieldName a signature already exists.
      * If so, the method throws a IllegalStateException. In that case, the
@@ -584,4 +1826,53 @@ public class SigningService {
         return signature;
     }
 
+    /**
+     * Holds the CMS signature without timestamp and the byte range of a signature
+     * with a deferred timestamp
+     */
+    private static class DeferredSignature {
+        private int[] byteRange;
+        private byte[] cmsSignature;
+    }
+
+    /**
+     * OutputStream used to write the signed PDF document. If the buffer is
+     * allocated with the exact size of the signed document, the buffer is returned
+     * without a copy.
+     */
+    private static class SignedContentOutputStream extends OutputStream {
+        private byte[] buffer = new byte[0];
+        private int count = 0;
+
+        void allocate(int size) {
+            if (size > buffer.length) {
+                buffer = Arrays.copyOf(buffer, size);
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            if (count == buffer.length) {
+                allocate(Math.max(8192, buffer.length * 2));
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (count + len > buffer.length) {
+                allocate(Math.max(count + len, buffer.length * 2));
+            }
+            System.arraycopy(b, off, buffer, count, len);
+            count += len;
+        }
+
+        byte[] toByteArray() {
+            if (count == buffer.length) {
+                return buffer;
+            }
+            return Arrays.copyOf(buffer, count);
+        }
+    }
+
 }
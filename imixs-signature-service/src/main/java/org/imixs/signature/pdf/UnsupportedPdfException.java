@@ -0,0 +1,24 @@
+package org.imixs.signature.pdf;
+
+import java.io.IOException;
+
+/**
+ * The UnsupportedPdfException is thrown by the IncrementalPdfReader and the
+ * IncrementalSignatureAppender if a PDF document can not be processed on byte
+ * level. In this case the SigningService falls back to PDFBox.
+ *
+ * @author rsoika
+ *
+ */
+public class UnsupportedPdfException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public UnsupportedPdfException(String message) {
+        super(message);
+    }
+
+    public UnsupportedPdfException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
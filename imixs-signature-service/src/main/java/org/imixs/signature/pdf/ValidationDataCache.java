@@ -0,0 +1,316 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+import javax.naming.NamingException;
+
+import org.apache.pdfbox.pdmodel.encryption.SecurityProvider;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.util.encoders.Hex;
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.imixs.signature.pdf.cert.CRLVerifier;
+import org.imixs.signature.pdf.cert.CertificateVerificationException;
+import org.imixs.signature.pdf.cert.CertificateVerifier;
+import org.imixs.signature.pdf.cert.OcspHelper;
+import org.imixs.signature.pdf.cert.RevokedCertificateException;
+
+/**
+ * The ValidationDataCache holds the revocation data (OCSP responses and CRLs)
+ * and the issuer certificates collected for the long term validation (PAdES
+ * B-LT) of a signature.
+ * <p>
+ * The revocation data of an issuer does not change within its validity window.
+ * So the data fetched for one document is reused for all documents signed
+ * until the nextUpdate of the OCSP response or CRL is reached. OCSP responses
+ * are cached per issuer and serial number, CRLs per distribution point URL and
+ * issuer certificates downloaded from the 'authority information access'
+ * extension per issuer name. Each OCSP response and CRL is verified once when
+ * it is fetched. A CRL is checked for each certificate separately.
+ * <p>
+ * The service supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_VALIDATION_CACHE_TTL - time to live in seconds of revocation
+ * data without a nextUpdate (default 3600)</li>
+ * </ul>
+ *
+ * @see ValidationInformation
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class ValidationDataCache {
+
+    public final static String ENV_SIGNATURE_VALIDATION_CACHE_TTL = "signature.validation.cache.ttl";
+
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_VALIDATION_CACHE_TTL, defaultValue = "3600")
+    long cacheTTL;
+
+    private final Map<String, ValidationData> ocspCache = new ConcurrentHashMap<String, ValidationData>();
+    private final Map<String, ValidationData> crlCache = new ConcurrentHashMap<String, ValidationData>();
+    private final Map<String, X509Certificate> issuerCache = new ConcurrentHashMap<String, X509Certificate>();
+
+    private static Logger logger = Logger.getLogger(ValidationDataCache.class.getName());
+
+    public ValidationDataCache(long cacheTTL) {
+        super();
+        this.cacheTTL = cacheTTL;
+    }
+
+    public ValidationDataCache() {
+        super();
+    }
+
+    /**
+     * Returns the issuer certificate of the given certificate. The issuer is
+     * searched in the given certificates first. Otherwise the issuer is taken from
+     * the cache or downloaded from the 'authority information access' extension.
+     *
+     * @param cert         the certificate
+     * @param certificates known certificates, e.g. from the CMS signature
+     * @return the issuer certificate or null if not found
+     */
+    public X509Certificate getIssuerCertificate(X509Certificate cert, Set<X509Certificate> certificates) {
+        X509Certificate issuer = findIssuer(cert, certificates);
+        if (issuer != null) {
+            return issuer;
+        }
+        issuer = issuerCache.get(cert.getIssuerX500Principal().getName());
+        if (issuer != null && isIssuer(cert, issuer)) {
+            return issuer;
+        }
+        issuer = findIssuer(cert, CertificateVerifier.downloadExtraCertificates(cert));
+        if (issuer != null) {
+            issuerCache.put(cert.getIssuerX500Principal().getName(), issuer);
+        }
+        return issuer;
+    }
+
+    /**
+     * Returns the revocation data for the given certificate. An OCSP response is
+     * preferred. If no OCSP responder is available or the request fails, the CRL
+     * of the first reachable distribution point is returned.
+     *
+     * @param cert            the certificate to be checked
+     * @param issuer          the issuer certificate
+     * @param additionalCerts known certificates used to verify the responses
+     * @return the ValidationData or null if no revocation data is available
+     * @throws RevokedCertificateException if the certificate is revoked
+     * @throws IOException
+     */
+    public ValidationData getRevocationData(X509Certificate cert, X509Certificate issuer,
+            Set<X509Certificate> additionalCerts) throws RevokedCertificateException, IOException {
+        String ocspURL = CertificateVerifier.extractOCSPURL(cert);
+        if (ocspURL != null) {
+            String key = fingerprint(issuer) + ":" + cert.getSerialNumber().toString(16);
+            ValidationData data = ocspCache.get(key);
+            if (data != null && !data.isExpired()) {
+                return data;
+            }
+            try {
+                data = fetchOCSP(cert, issuer, additionalCerts, ocspURL);
+                ocspCache.put(key, data);
+                return data;
+            } catch (IOException | OCSPException e) {
+                logger.warning("...OCSP request to " + ocspURL + " failed, will try CRL: " + e.getMessage());
+            }
+        }
+
+        for (String crlURL : CRLVerifier.getCrlDistributionPoints(cert)) {
+            ValidationData data = crlCache.get(crlURL);
+            if (data == null || data.isExpired()) {
+                try {
+                    data = fetchCRL(issuer, crlURL);
+                } catch (IOException | GeneralSecurityException | CertificateVerificationException
+                        | NamingException e) {
+                    logger.warning("...failed to load CRL from " + crlURL + ": " + e.getMessage());
+                    continue;
+                }
+                crlCache.put(crlURL, data);
+            }
+            CRLVerifier.checkRevocation(data.getCRL(), cert, new Date(), crlURL);
+            return data;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of cached OCSP responses and CRLs
+     *
+     * @return count of cached revocation data
+     */
+    public int getCachedRevocationDataCount() {
+        return ocspCache.size() + crlCache.size();
+    }
+
+    /**
+     * Performs and verifies an OCSP request. The certificate of the responder is
+     * added to the validation data.
+     */
+    private ValidationData fetchOCSP(X509Certificate cert, X509Certificate issuer,
+            Set<X509Certificate> additionalCerts, String ocspURL)
+            throws IOException, OCSPException, RevokedCertificateException {
+        Set<X509Certificate> certs = new HashSet<X509Certificate>(additionalCerts);
+        certs.add(issuer);
+        OcspHelper ocspHelper = new OcspHelper(cert, new Date(), issuer, certs, ocspURL);
+        OCSPResp ocspResponse = ocspHelper.getResponseOcsp();
+        // the response of a batch request contains the responses of other certificates
+        SingleResp response = ocspHelper.getSingleResponse();
+        Date nextUpdate = response != null ? response.getNextUpdate() : null;
+        Set<X509Certificate> responderCerts = new HashSet<X509Certificate>();
+        if (ocspHelper.getOcspResponderCertificate() != null) {
+            responderCerts.add(ocspHelper.getOcspResponderCertificate());
+        }
+        logger.fine("......fetched OCSP response for " + cert.getSubjectX500Principal() + " - next update "
+                + nextUpdate);
+        return new ValidationData(ocspResponse.getEncoded(), null, responderCerts, getExpiry(nextUpdate));
+    }
+
+    /**
+     * Downloads a CRL and verifies its signature with the issuer certificate. The
+     * CRL is not taken from the CRLCache, because the long term validation data
+     * needs the full encoded CRL.
+     */
+    private ValidationData fetchCRL(X509Certificate issuer, String crlURL)
+            throws IOException, GeneralSecurityException, CertificateVerificationException, NamingException {
+        X509CRL crl = CRLVerifier.downloadCRL(crlURL);
+        if (!crl.getIssuerX500Principal().equals(issuer.getSubjectX500Principal())) {
+            throw new GeneralSecurityException("CRL issuer " + crl.getIssuerX500Principal()
+                    + " does not match the certificate issuer");
+        }
+        crl.verify(issuer.getPublicKey(), SecurityProvider.getProvider());
+        logger.fine("......fetched CRL " + crlURL + " - next update " + crl.getNextUpdate());
+        return new ValidationData(crl.getEncoded(), crl, Collections.<X509Certificate>emptySet(),
+                getExpiry(crl.getNextUpdate()));
+    }
+
+    private long getExpiry(Date nextUpdate) {
+        if (nextUpdate != null) {
+            return nextUpdate.getTime();
+        }
+        return System.currentTimeMillis() + (cacheTTL > 0 ? cacheTTL : 3600) * 1000;
+    }
+
+    private static X509Certificate findIssuer(X509Certificate cert, Set<X509Certificate> certificates) {
+        for (X509Certificate candidate : certificates) {
+            if (isIssuer(cert, candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isIssuer(X509Certificate cert, X509Certificate candidate) {
+        if (!cert.getIssuerX500Principal().equals(candidate.getSubjectX500Principal())) {
+            return false;
+        }
+        try {
+            cert.verify(candidate.getPublicKey(), SecurityProvider.getProvider());
+            return true;
+        } catch (GeneralSecurityException | IOException e) {
+            // not the issuer
+            return false;
+        }
+    }
+
+    private static String fingerprint(X509Certificate cert) throws IOException {
+        try {
+            return Hex.toHexString(MessageDigest.getInstance("SHA-1").digest(cert.getEncoded()));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * ValidationData holds an encoded OCSP response or CRL together with the
+     * certificates needed to verify it.
+     */
+    public static class ValidationData {
+        private final byte[] encoded;
+        private final X509CRL crl;
+        private final Set<X509Certificate> certificates;
+        private final long expires;
+
+        ValidationData(byte[] encoded, X509CRL crl, Set<X509Certificate> certificates, long expires) {
+            this.encoded = encoded;
+            this.crl = crl;
+            this.certificates = certificates;
+            this.expires = expires;
+        }
+
+        /**
+         * Returns the DER encoded OCSP response or CRL
+         *
+         * @return encoded data
+         */
+        public byte[] getEncoded() {
+            return encoded;
+        }
+
+        /**
+         * Returns true if the data is an OCSP response, false if it is a CRL
+         *
+         * @return true for an OCSP response
+         */
+        public boolean isOCSP() {
+            return crl == null;
+        }
+
+        X509CRL getCRL() {
+            return crl;
+        }
+
+        /**
+         * Returns additional certificates, e.g. the certificate of the OCSP responder
+         *
+         * @return set of certificates
+         */
+        public Set<X509Certificate> getCertificates() {
+            return certificates;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.IOUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.util.Hex;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cms.CMSException;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.tsp.TSPException;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.util.Store;
+import org.imixs.signature.pdf.ValidationDataCache.ValidationData;
+import org.imixs.signature.pdf.cert.CertificateVerifier;
+import org.imixs.signature.pdf.cert.RevokedCertificateException;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.pdf.util.SigUtils;
+
+/**
+ * The ValidationInformation adds a Document Security Store (DSS) to a signed
+ * PDF document as required by the PAdES baseline level B-LT.
+ * <p>
+ * For each signature not yet covered by the DSS, the certificates of the CMS
+ * signature and of an embedded signature timestamp are added together with the
+ * OCSP responses or CRLs of all certificates up to the root. A /VRI entry
+ * keyed by the SHA-1 hash of the signature /Contents references the validation
+ * data of each signature. Identical data is stored only once in the document.
+ * <p>
+ * The revocation data is provided by the ValidationDataCache, so the data of an
+ * issuer is fetched only once within its validity window. The caller has to
+ * save the document incrementally.
+ * <p>
+ * Based on the PDFBox example AddValidationInformation.
+ *
+ * @see ValidationDataCache
+ * @author rsoika
+ * @version 1.0
+ */
+public class ValidationInformation {
+
+    private final ValidationDataCache validationDataCache;
+    private final JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter();
+
+    private PDDocument document;
+    private COSArray certs;
+    private COSArray ocsps;
+    private COSArray crls;
+    private final Map<String, COSStream> streams = new HashMap<String, COSStream>();
+
+    private static Logger logger = Logger.getLogger(ValidationInformation.class.getName());
+
+    public ValidationInformation(ValidationDataCache validationDataCache) {
+        super();
+        this.validationDataCache = validationDataCache;
+    }
+
+    /**
+     * Adds the validation data of all signatures of the given document to the
+     * DSS. Signatures with an existing /VRI entry are skipped.
+     *
+     * @param document the signed document
+     * @return true if the DSS was updated and the document has to be saved
+     * @throws IOException
+     * @throws SigningException if a certificate is revoked or the signature can
+     *                          not be read
+     */
+    public boolean addValidationInformation(PDDocument document) throws IOException, SigningException {
+        this.document = document;
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+        COSDictionary dss = getOrCreateDictionary(catalog, "DSS");
+        certs = getOrCreateArray(dss, "Certs");
+        ocsps = getOrCreateArray(dss, "OCSPs");
+        crls = getOrCreateArray(dss, "CRLs");
+        COSDictionary vri = getOrCreateDictionary(dss, "VRI");
+        indexStreams(certs);
+        indexStreams(ocsps);
+        indexStreams(crls);
+
+        int count = 0;
+        for (PDSignature signature : document.getSignatureDictionaries()) {
+            COSBase contents = signature.getCOSObject().getDictionaryObject(COSName.CONTENTS);
+            if (!(contents instanceof COSString)) {
+                continue;
+            }
+            byte[] cms = ((COSString) contents).getBytes();
+            String vriKey = Hex.getString(sha1(cms));
+            if (vri.containsKey(vriKey)) {
+                continue;
+            }
+            vri.setItem(vriKey, createVRI(cms));
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        catalog.setNeedToBeUpdated(true);
+        dss.setNeedToBeUpdated(true);
+        vri.setNeedToBeUpdated(true);
+        certs.setNeedToBeUpdated(true);
+        ocsps.setNeedToBeUpdated(true);
+        crls.setNeedToBeUpdated(true);
+        addExtensions(catalog);
+        logger.fine("......added validation information for " + count + " signatures");
+        return true;
+    }
+
+    /**
+     * Collects the validation data of one signature and returns its /VRI entry
+     */
+    private COSDictionary createVRI(byte[] cms) throws IOException, SigningException {
+        Set<X509Certificate> certificates = new LinkedHashSet<X509Certificate>();
+        Set<X509Certificate> signers = new HashSet<X509Certificate>();
+        try {
+            CMSSignedData signedData = new CMSSignedData(cms);
+            collectCertificates(signedData.getCertificates(), certificates);
+            for (SignerInformation signerInformation : signedData.getSignerInfos().getSigners()) {
+                signers.addAll(getCertificates(signedData.getCertificates().getMatches(signerInformation.getSID())));
+                // signature timestamp token
+                TimeStampToken token = SigUtils.extractTimeStampTokenFromSignerInformation(signerInformation);
+                if (token != null) {
+                    collectCertificates(token.getCertificates(), certificates);
+                    signers.addAll(getCertificates(token.getCertificates().getMatches(token.getSID())));
+                }
+            }
+        } catch (CMSException | TSPException | CertificateException e) {
+            throw new SigningException("Failed to read signature - " + e.getMessage(), e);
+        }
+
+        COSArray vriCerts = new COSArray();
+        COSArray vriOcsps = new COSArray();
+        COSArray vriCrls = new COSArray();
+        Set<X509Certificate> processed = new HashSet<X509Certificate>();
+        for (X509Certificate signer : signers) {
+            // walk up the chain to the root
+            X509Certificate cert = signer;
+            while (cert != null && processed.add(cert)) {
+                certificates.add(cert);
+                if (isSelfSigned(cert)) {
+                    break;
+                }
+                X509Certificate issuer = validationDataCache.getIssuerCertificate(cert, certificates);
+                if (issuer == null) {
+                    logger.warning("...issuer of " + cert.getSubjectX500Principal() + " not found");
+                    break;
+                }
+                try {
+                    ValidationData data = validationDataCache.getRevocationData(cert, issuer, certificates);
+                    if (data == null) {
+                        logger.warning("...no revocation data available for " + cert.getSubjectX500Principal());
+                    } else {
+                        COSStream stream = addStream(data.isOCSP() ? ocsps : crls, data.getEncoded());
+                        (data.isOCSP() ? vriOcsps : vriCrls).add(stream);
+                        certificates.addAll(data.getCertificates());
+                    }
+                } catch (RevokedCertificateException e) {
+                    throw new SigningException(e.getMessage(), e);
+                }
+                cert = issuer;
+            }
+        }
+        for (X509Certificate certificate : certificates) {
+            try {
+                vriCerts.add(addStream(certs, certificate.getEncoded()));
+            } catch (GeneralSecurityException e) {
+                throw new IOException(e);
+            }
+        }
+
+        COSDictionary vriEntry = new COSDictionary();
+        vriEntry.setItem("Cert", vriCerts);
+        vriEntry.setItem("OCSP", vriOcsps);
+        vriEntry.setItem("CRL", vriCrls);
+        return vriEntry;
+    }
+
+    private void collectCertificates(Store<X509CertificateHolder> store, Set<X509Certificate> certificates)
+            throws CertificateException {
+        certificates.addAll(getCertificates(store.getMatches(null)));
+    }
+
+    private Set<X509Certificate> getCertificates(Collection<?> holders) throws CertificateException {
+        Set<X509Certificate> result = new LinkedHashSet<X509Certificate>();
+        for (Object holder : holders) {
+            result.add(certificateConverter.getCertificate((X509CertificateHolder) holder));
+        }
+        return result;
+    }
+
+    /**
+     * Adds the data as a new stream to the given DSS array. If the same data
+     * already exists, the existing stream is returned.
+     */
+    private COSStream addStream(COSArray array, byte[] data) throws IOException {
+        String key = Hex.getString(sha1(data));
+        COSStream stream = streams.get(key);
+        if (stream != null) {
+            return stream;
+        }
+        stream = document.getDocument().createCOSStream();
+        try (OutputStream os = stream.createOutputStream(COSName.FLATE_DECODE)) {
+            os.write(data);
+        }
+        array.add(stream);
+        streams.put(key, stream);
+        return stream;
+    }
+
+    /**
+     * Indexes the streams of an existing DSS array by the hash of its data
+     */
+    private void indexStreams(COSArray array) throws IOException {
+        for (int i = 0; i < array.size(); i++) {
+            COSBase base = array.getObject(i);
+            if (base instanceof COSStream) {
+                try (InputStream is = ((COSStream) base).createInputStream()) {
+                    streams.put(Hex.getString(sha1(IOUtils.toByteArray(is))), (COSStream) base);
+                }
+            }
+        }
+    }
+
+    private COSDictionary getOrCreateDictionary(COSDictionary parent, String name) {
+        COSBase base = parent.getDictionaryObject(name);
+        if (base instanceof COSDictionary) {
+            return (COSDictionary) base;
+        }
+        COSDictionary dictionary = new COSDictionary();
+        parent.setItem(name, dictionary);
+        return dictionary;
+    }
+
+    private COSArray getOrCreateArray(COSDictionary parent, String name) {
+        COSBase base = parent.getDictionaryObject(name);
+        if (base instanceof COSArray) {
+            return (COSArray) base;
+        }
+        COSArray array = new COSArray();
+        parent.setItem(name, array);
+        return array;
+    }
+
+    /**
+     * Adds the ADBE extension level 5 required for the DSS to the catalog if no
+     * extensions exist.
+     */
+    private void addExtensions(COSDictionary catalog) {
+        if (catalog.containsKey("Extensions")) {
+            return;
+        }
+        COSDictionary extensions = new COSDictionary();
+        extensions.setDirect(true);
+        COSDictionary adbeExtension = new COSDictionary();
+        adbeExtension.setDirect(true);
+        adbeExtension.setName("BaseVersion", "1.7");
+        adbeExtension.setInt("ExtensionLevel", 5);
+        extensions.setItem("ADBE", adbeExtension);
+        catalog.setItem("Extensions", extensions);
+        if (document.getVersion() < 1.7f) {
+            document.getDocumentCatalog().setVersion("1.7");
+        }
+    }
+
+    private static boolean isSelfSigned(X509Certificate cert) {
+        try {
+            return CertificateVerifier.isSelfSigned(cert);
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
+    private static byte[] sha1(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+}
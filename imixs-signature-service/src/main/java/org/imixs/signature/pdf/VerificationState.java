@@ -0,0 +1,96 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The VerificationState records the result of a verification of a PDF document.
+ * It holds the length of the last verified revision, the SHA-256 hash of the
+ * verified bytes and the reports of all verified signatures including their
+ * byte range digests.
+ * <p>
+ * If a new revision is appended to the document, the SignatureVerifier first
+ * confirms the hash of the verified prefix. The signatures within the prefix
+ * are not verified again. The SHA-256 digest state at the end of the prefix is
+ * resumed to digest the byte ranges of the new signatures, so only the new
+ * bytes have to be hashed for them.
+ *
+ * @see SignatureVerifier
+ * @see VerificationStateCache
+ * @author rsoika
+ * @version 1.0
+ */
+public class VerificationState {
+
+    private final int revisionLength;
+    private final byte[] revisionHash;
+    private final MessageDigest digestState;
+    private final List<SignatureReport> reports;
+
+    VerificationState(int revisionLength, MessageDigest digestState, List<SignatureReport> reports)
+            throws CloneNotSupportedException {
+        this.revisionLength = revisionLength;
+        this.digestState = (MessageDigest) digestState.clone();
+        this.revisionHash = ((MessageDigest) digestState.clone()).digest();
+        this.reports = Collections.unmodifiableList(reports);
+    }
+
+    /**
+     * Returns the length of the verified revision
+     *
+     * @return length in bytes
+     */
+    public int getRevisionLength() {
+        return revisionLength;
+    }
+
+    /**
+     * Returns the SHA-256 hash of the verified revision
+     *
+     * @return hash
+     */
+    public byte[] getRevisionHash() {
+        return revisionHash.clone();
+    }
+
+    /**
+     * Returns the reports of all verified signatures in the order of the
+     * signatures in the document
+     *
+     * @return list of reports
+     */
+    public List<SignatureReport> getReports() {
+        return reports;
+    }
+
+    /**
+     * Returns a copy of the SHA-256 digest state after all bytes of the verified
+     * revision
+     */
+    MessageDigest getDigestState() throws CloneNotSupportedException {
+        return (MessageDigest) digestState.clone();
+    }
+}
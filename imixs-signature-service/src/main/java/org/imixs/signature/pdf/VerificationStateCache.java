@@ -0,0 +1,116 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.ejb.Lock;
+import javax.ejb.LockType;
+import javax.ejb.Singleton;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+
+/**
+ * The VerificationStateCache holds the VerificationState of verified PDF
+ * documents keyed by the document identity, e.g. the $uniqueid of a workitem
+ * and the file name.
+ * <p>
+ * The service supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_VERIFY_CACHE_SIZE - max number of cached verification states
+ * (default 1000)</li>
+ * </ul>
+ *
+ * @see VerificationState
+ * @author rsoika
+ * @version 1.0
+ */
+@Singleton
+@Lock(LockType.READ)
+public class VerificationStateCache {
+
+    public final static String ENV_SIGNATURE_VERIFY_CACHE_SIZE = "signature.verify.cache.size";
+
+    @Inject
+    @ConfigProperty(name = ENV_SIGNATURE_VERIFY_CACHE_SIZE, defaultValue = "1000")
+    int cacheSize;
+
+    private Map<String, VerificationState> stateCache = null;
+
+    public VerificationStateCache(int cacheSize) {
+        super();
+        this.cacheSize = cacheSize;
+    }
+
+    public VerificationStateCache() {
+        super();
+    }
+
+    /**
+     * Returns the last VerificationState of a document
+     *
+     * @param documentId the identity of the document
+     * @return VerificationState or null if the document was not verified before
+     */
+    public VerificationState getState(String documentId) {
+        return getStateCache().get(documentId);
+    }
+
+    /**
+     * Stores the VerificationState of a document
+     *
+     * @param documentId the identity of the document
+     * @param state      the VerificationState
+     */
+    public void putState(String documentId, VerificationState state) {
+        getStateCache().put(documentId, state);
+    }
+
+    /**
+     * Removes the VerificationState of a document
+     *
+     * @param documentId the identity of the document
+     */
+    public void removeState(String documentId) {
+        getStateCache().remove(documentId);
+    }
+
+    private synchronized Map<String, VerificationState> getStateCache() {
+        if (stateCache == null) {
+            final int maxEntries = cacheSize > 0 ? cacheSize : 1000;
+            stateCache = Collections
+                    .synchronizedMap(new LinkedHashMap<String, VerificationState>(16, 0.75f, true) {
+                        private static final long serialVersionUID = 1L;
+
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, VerificationState> eldest) {
+                            return size() > maxEntries;
+                        }
+                    });
+        }
+        return stateCache;
+    }
+}
@@ -0,0 +1,351 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.cert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.CRLException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.logging.Logger;
+
+import javax.naming.NamingException;
+
+
+/**
+ * The CRLCache is a process wide cache of certificate revocation lists keyed by
+ * the distribution point URL.
+ * <p>
+ * A CRL is valid until its nextUpdate. After that the CRL is refreshed. HTTP
+ * requests are sent with the headers If-None-Match and If-Modified-Since, so an
+ * unchanged CRL is not downloaded again. The signature of a CRL is verified
+ * only once per version and issuer key, and the certificates referenced by its
+ * 'authority information access' extension are downloaded only once.
+ * <p>
+ * A CRL is stored as a {@link CompactCRL}. HTTP downloads are parsed directly
+ * from the response stream.
+ * <p>
+ * Delta CRLs are cached like complete CRLs. A complete CRL entry keeps the
+ * result of the last merge with a delta CRL, so the index is merged only once
+ * per delta CRL version.
+ * <p>
+ * Concurrent requests for the same URL are collapsed into one download. The
+ * other threads wait for the result of the first request.
+ * <p>
+ * The cache supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_CRL_CACHE_TTL - time to live in seconds of a CRL without a
+ * future nextUpdate (default 3600)</li>
+ * </ul>
+ * The value is injected by the ConfigService when the application starts.
+ *
+ * @see CRLVerifier
+ * @see org.imixs.signature.service.ConfigService
+ * @author rsoika
+ * @version 1.0
+ */
+public final class CRLCache {
+
+    public final static String ENV_SIGNATURE_CRL_CACHE_TTL = "signature.crl.cache.ttl";
+
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private static final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+    private static final Map<String, FutureTask<Entry>> loading = new ConcurrentHashMap<String, FutureTask<Entry>>();
+    private static volatile long ttl = 3600;
+
+    private static Logger logger = Logger.getLogger(CRLCache.class.getName());
+
+    private CRLCache() {
+    }
+
+    /**
+     * Sets the time to live of a CRL without a future nextUpdate
+     *
+     * @param seconds SIGNATURE_CRL_CACHE_TTL
+     */
+    public static void setTTL(long seconds) {
+        ttl = seconds;
+    }
+
+    /**
+     * Returns the cached CRL of the given distribution point. If the CRL is not
+     * cached or its nextUpdate is reached, the CRL is loaded. Concurrent requests
+     * for the same URL wait for the same download.
+     *
+     * @param crlURL the distribution point URL
+     * @return the cache entry
+     * @throws IOException
+     * @throws GeneralSecurityException
+     * @throws CertificateVerificationException if the URL is not supported
+     * @throws NamingException                  if the LDAP request fails
+     */
+    public static Entry getEntry(final String crlURL)
+            throws IOException, GeneralSecurityException, CertificateVerificationException, NamingException {
+        Entry entry = cache.get(crlURL);
+        if (entry != null && !entry.isExpired()) {
+            return entry;
+        }
+        FutureTask<Entry> task = new FutureTask<Entry>(() -> load(crlURL));
+        FutureTask<Entry> running = loading.putIfAbsent(crlURL, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(crlURL, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            }
+            if (cause instanceof CertificateVerificationException) {
+                throw (CertificateVerificationException) cause;
+            }
+            if (cause instanceof NamingException) {
+                throw (NamingException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the number of cached CRLs
+     *
+     * @return count of cached CRLs
+     */
+    public static int getCachedCRLCount() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all cached CRLs
+     */
+    public static void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Loads the CRL of the given URL. An expired HTTP entry is refreshed with a
+     * conditional request.
+     */
+    private static Entry load(String crlURL) throws Exception {
+        Entry previous = cache.get(crlURL);
+        if (previous != null && !previous.isExpired()) {
+            // loaded by a concurrent request in the meantime
+            return previous;
+        }
+        Entry entry;
+        if (crlURL.startsWith("http://") || crlURL.startsWith("https://")) {
+            entry = loadFromWeb(crlURL, previous);
+        } else {
+            entry = new Entry(CompactCRL.fromCRL(CRLVerifier.downloadCRL(crlURL)), null, null);
+        }
+        if (previous != null && previous != entry && previous.isSameVersion(entry.crl)) {
+            // the server does not support conditional requests
+            previous.expires = entry.expires;
+            entry = previous;
+        }
+        cache.put(crlURL, entry);
+        return entry;
+    }
+
+    /**
+     * Downloads a CRL from a HTTP/HTTPS URL. If a previous version is given, the
+     * request is sent with the headers If-None-Match and If-Modified-Since. If the
+     * CRL is not modified, the previous entry is returned with a new expiry.
+     */
+    private static Entry loadFromWeb(String crlURL, Entry previous)
+            throws IOException, GeneralSecurityException, CertificateVerificationException, NamingException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(crlURL).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        if (previous != null) {
+            if (previous.etag != null) {
+                connection.setRequestProperty("If-None-Match", previous.etag);
+            }
+            if (previous.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", previous.lastModified);
+            }
+        }
+        try {
+            int status = connection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null) {
+                previous.expires = getExpiry(previous.crl.getNextUpdate());
+                logger.fine("......CRL " + crlURL + " not modified");
+                return previous;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Failed to download CRL " + crlURL + " - HTTP status " + status);
+            }
+            CompactCRL crl;
+            try (InputStream in = connection.getInputStream()) {
+                crl = CompactCRL.parse(in);
+            } catch (NoSuchAlgorithmException e) {
+                // signature algorithm not supported by the streaming verification
+                logger.fine("......" + e.getMessage() + " - loading CRL " + crlURL + " with the CertificateFactory");
+                crl = CompactCRL.fromCRL(CRLVerifier.downloadCRL(crlURL));
+            }
+            logger.fine("......downloaded CRL " + crlURL + " - " + crl.size() + " entries, next update "
+                    + crl.getNextUpdate());
+            return new Entry(crl, connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Returns the expiry of a CRL. This is the nextUpdate if it is in the future,
+     * otherwise the current time plus SIGNATURE_CRL_CACHE_TTL.
+     */
+    private static long getExpiry(Date nextUpdate) {
+        long now = System.currentTimeMillis();
+        if (nextUpdate != null && nextUpdate.getTime() > now) {
+            return nextUpdate.getTime();
+        }
+        return now + ttl * 1000;
+    }
+
+    /**
+     * A cached CRL with the validators of the HTTP response and the verification
+     * state of the CRL signature
+     */
+    public static class Entry {
+        private final CompactCRL crl;
+        private final String etag;
+        private final String lastModified;
+        private volatile long expires;
+        private volatile PublicKey verifiedKey;
+        private volatile Set<X509Certificate> extraCertificates;
+        private volatile MergedCRL merged;
+
+        Entry(CompactCRL crl, String etag, String lastModified) {
+            this.crl = crl;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = getExpiry(crl.getNextUpdate());
+        }
+
+        public CompactCRL getCRL() {
+            return crl;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+
+        /**
+         * Verifies the signature of the CRL with the given issuer key. The signature
+         * is verified only once for each key.
+         *
+         * @param issuerKey the public key of the CRL issuer
+         * @throws GeneralSecurityException if the signature is invalid
+         */
+        public void verify(PublicKey issuerKey) throws GeneralSecurityException {
+            if (issuerKey.equals(verifiedKey)) {
+                return;
+            }
+            crl.verify(issuerKey);
+            verifiedKey = issuerKey;
+        }
+
+        /**
+         * Merges the CRL of a delta CRL entry onto the CRL of this entry. The result
+         * is kept until a new version of the delta CRL is loaded.
+         *
+         * @param delta the cache entry of the delta CRL
+         * @return the merged CRL
+         * @throws CRLException if the delta CRL does not apply to this CRL
+         */
+        public CompactCRL applyDelta(Entry delta) throws CRLException {
+            CompactCRL deltaCRL = delta.getCRL();
+            MergedCRL result = merged;
+            if (result == null || result.delta != deltaCRL) {
+                result = new MergedCRL(deltaCRL, crl.applyDelta(deltaCRL));
+                merged = result;
+            }
+            return result.crl;
+        }
+
+        /**
+         * Returns the certificates downloaded from the 'authority information access'
+         * extension of the CRL. The certificates are downloaded only once.
+         *
+         * @return set of certificates
+         */
+        public Set<X509Certificate> getExtraCertificates() {
+            Set<X509Certificate> result = extraCertificates;
+            if (result == null) {
+                result = Collections.unmodifiableSet(
+                        new HashSet<X509Certificate>(CertificateVerifier.downloadExtraCertificates(crl)));
+                extraCertificates = result;
+            }
+            return result;
+        }
+
+        /**
+         * Returns true if the given CRL has the same issue date and signature
+         */
+        boolean isSameVersion(CompactCRL other) {
+            return crl.getThisUpdate().equals(other.getThisUpdate())
+                    && Arrays.equals(crl.getSignature(), other.getSignature());
+        }
+    }
+
+    /**
+     * A complete CRL merged with a delta CRL
+     */
+    private static class MergedCRL {
+        final CompactCRL delta;
+        final CompactCRL crl;
+
+        MergedCRL(CompactCRL delta, CompactCRL crl) {
+            this.delta = delta;
+            this.crl = crl;
+        }
+    }
+}
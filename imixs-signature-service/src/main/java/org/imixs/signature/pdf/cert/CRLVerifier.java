@@ -24,15 +24,18 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.security.GeneralSecurityException;
+import java.security.PublicKey;
 import java.security.cert.CRLException;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509CRL;
 import java.security.cert.X509CRLEntry;
 import java.security.cert.X509Certificate;
+import java.security.cert.X509Extension;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Set;
@@ -75,6 +78,8 @@ public final class CRLVerifier
      * Extracts the CRL distribution points from the certificate (if available)
      * and checks the certificate revocation status against the CRLs coming from
      * the distribution points. Supports HTTP, HTTPS, FTP and LDAP based URLs.
+     * The CRLs are held in the {@link CRLCache}. If the certificate or the CRL
+     * has a Freshest CRL extension, the delta CRL is merged onto the cached CRL.
      *
      * @param cert the certificate to be checked for revocation
      * @param signDate the date when the signing took place
@@ -98,10 +103,12 @@ public final class CRLVerifier
             {
                 LOG.info("Checking distribution point URL: " + crlDistributionPointsURL);
 
-                X509CRL crl;
+                // the CRL is taken from the shared cache and downloaded only
+                // if its nextUpdate is reached
+                CRLCache.Entry crlEntry;
                 try
                 {
-                    crl = downloadCRL(crlDistributionPointsURL);
+                    crlEntry = CRLCache.getEntry(crlDistributionPointsURL);
                 }
                 catch (IOException | GeneralSecurityException | CertificateVerificationException | NamingException ex)
                 {
@@ -115,7 +122,8 @@ public final class CRLVerifier
                     continue;
                 }
 
-                Set<X509Certificate> mergedCertSet = CertificateVerifier.downloadExtraCertificates(crl);
+                CompactCRL crl = crlEntry.getCRL();
+                Set<X509Certificate> mergedCertSet = new HashSet<>(crlEntry.getExtraCertificates());
                 mergedCertSet.addAll(additionalCerts);
 
                 // Verify CRL, see wikipedia:
@@ -142,14 +150,20 @@ public final class CRLVerifier
                             "not found in certificate chain, so the CRL at " +
                             crlDistributionPointsURL + " could not be verified");
                 }
-                crl.verify(crlIssuerCert.getPublicKey(), SecurityProvider.getProvider());
+                // verified once per CRL version
+                crlEntry.verify(crlIssuerCert.getPublicKey());
+                if (crl.hasUnsupportedCriticalExtension())
+                {
+                    throw new CertificateVerificationException(
+                            "CRL at " + crlDistributionPointsURL + " has unsupported critical extensions");
+                }
                 //TODO these should be exceptions, but for that we need a test case where
                 // a PDF has a broken OCSP and a working CRL
                 if (crl.getThisUpdate().after(now))
                 {
                     LOG.error("CRL not yet valid, thisUpdate is " + crl.getThisUpdate());
                 }
-                if (crl.getNextUpdate().before(now))
+                if (crl.getNextUpdate() != null && crl.getNextUpdate().before(now))
                 {
                     LOG.error("CRL no longer valid, nextUpdate is " + crl.getNextUpdate());
                 }
@@ -165,7 +179,24 @@ public final class CRLVerifier
                     LOG.info("CRL issuer certificate is identical to cert issuer, no extra check needed");
                 }
 
-                checkRevocation(crl, cert, signDate, crlDistributionPointsURL);
+                if (crl.isIndirectCRL())
+                {
+                    // the compact index matches serial numbers only, the entries
+                    // of an indirect CRL are matched by issuer and serial number
+                    LOG.info("CRL at " + crlDistributionPointsURL + " is an indirect CRL, checking X509CRL");
+                    X509CRL x509CRL = downloadCRL(crlDistributionPointsURL);
+                    x509CRL.verify(crlIssuerCert.getPublicKey(), SecurityProvider.getProvider());
+                    if (x509CRL.hasUnsupportedCriticalExtension())
+                    {
+                        throw new CertificateVerificationException(
+                                "CRL at " + crlDistributionPointsURL + " has unsupported critical extensions");
+                    }
+                    checkRevocation(x509CRL, cert, signDate, crlDistributionPointsURL);
+                    return;
+                }
+
+                CompactCRL effectiveCRL = applyDeltaCRL(cert, crlEntry, crlIssuerCert.getPublicKey(), now);
+                checkRevocation(effectiveCRL, cert, signDate, crlDistributionPointsURL);
 
                 // https://tools.ietf.org/html/rfc5280#section-4.2.1.13
                 // If the DistributionPointName contains multiple values,
@@ -194,6 +225,55 @@ public final class CRLVerifier
         }
     }
 
+    /**
+     * Applies a delta CRL from the Freshest CRL extension of the certificate or
+     * of the complete CRL. Delta CRLs are cached like complete CRLs, so until the
+     * nextUpdate of the complete CRL only the small delta CRL is downloaded
+     * again. If no delta CRL can be applied, the complete CRL is returned.
+     */
+    private static CompactCRL applyDeltaCRL(X509Certificate cert, CRLCache.Entry crlEntry,
+            PublicKey crlIssuerKey, Date now) throws IOException
+    {
+        List<String> deltaURLs = getFreshestCrlDistributionPoints(cert);
+        if (deltaURLs.isEmpty())
+        {
+            deltaURLs = getFreshestCrlDistributionPoints(crlEntry.getCRL());
+        }
+        for (String deltaURL : deltaURLs)
+        {
+            try
+            {
+                CRLCache.Entry deltaEntry = CRLCache.getEntry(deltaURL);
+                CompactCRL deltaCRL = deltaEntry.getCRL();
+                if (!deltaCRL.isDeltaCRL())
+                {
+                    LOG.warn("CRL at " + deltaURL + " is not a delta CRL");
+                    continue;
+                }
+                if (deltaCRL.isIndirectCRL() || deltaCRL.hasUnsupportedCriticalExtension())
+                {
+                    LOG.warn("Delta CRL at " + deltaURL + " is indirect or has unsupported critical extensions");
+                    continue;
+                }
+                // a delta CRL is issued by the issuer of the complete CRL
+                deltaEntry.verify(crlIssuerKey);
+                if (deltaCRL.getNextUpdate() != null && deltaCRL.getNextUpdate().before(now))
+                {
+                    LOG.error("Delta CRL no longer valid, nextUpdate is " + deltaCRL.getNextUpdate());
+                }
+                CompactCRL merged = crlEntry.applyDelta(deltaEntry);
+                LOG.info("Delta CRL " + deltaURL + " applied, base CRL number " + deltaCRL.getBaseCRLNumber());
+                return merged;
+            }
+            catch (IOException | GeneralSecurityException | CertificateVerificationException | NamingException ex)
+            {
+                LOG.warn("Caught " + ex.getClass().getSimpleName() + " applying delta CRL " + deltaURL +
+                        ": " + ex.getMessage() + ", will try next distribution point if available");
+            }
+        }
+        return crlEntry.getCRL();
+    }
+
     /**
      * Check whether the certificate was revoked at signing time.
      *
@@ -208,18 +288,42 @@ public final class CRLVerifier
                 throws RevokedCertificateException
     {
         X509CRLEntry revokedCRLEntry = crl.getRevokedCertificate(cert);
-        if (revokedCRLEntry != null &&
-                revokedCRLEntry.getRevocationDate().compareTo(signDate) <= 0)
+        checkRevocationDate(revokedCRLEntry != null ? revokedCRLEntry.getRevocationDate() : null,
+                signDate, crlDistributionPointsURL);
+    }
+
+    /**
+     * Check whether the certificate was revoked at signing time. The serial number
+     * is looked up in the sorted index of the compact CRL.
+     *
+     * @param crl compact certificate revocation list
+     * @param cert certificate to be checked
+     * @param signDate date the certificate was used for signing
+     * @param crlDistributionPointsURL URL for log message or exception text
+     * @throws RevokedCertificateException if the certificate was revoked at signing time
+     */
+    public static void checkRevocation(
+        CompactCRL crl, X509Certificate cert, Date signDate, String crlDistributionPointsURL)
+                throws RevokedCertificateException
+    {
+        checkRevocationDate(crl.getRevocationDate(cert.getSerialNumber()), signDate, crlDistributionPointsURL);
+    }
+
+    private static void checkRevocationDate(
+        Date revocationDate, Date signDate, String crlDistributionPointsURL)
+                throws RevokedCertificateException
+    {
+        if (revocationDate != null && revocationDate.compareTo(signDate) <= 0)
         {
             throw new RevokedCertificateException(
                     "The certificate was revoked by CRL " +
-                            crlDistributionPointsURL + " on " + revokedCRLEntry.getRevocationDate(),
-                    revokedCRLEntry.getRevocationDate());
+                            crlDistributionPointsURL + " on " + revocationDate,
+                    revocationDate);
         }
-        else if (revokedCRLEntry != null)
+        else if (revocationDate != null)
         {
             LOG.info("The certificate was revoked after signing by CRL " +
-                    crlDistributionPointsURL + " on " + revokedCRLEntry.getRevocationDate());
+                    crlDistributionPointsURL + " on " + revocationDate);
         }
         else
         {
@@ -230,7 +334,7 @@ public final class CRLVerifier
     /**
      * Downloads CRL from given URL. Supports http, https, ftp and ldap based URLs.
      */
-    private static X509CRL downloadCRL(String crlURL) throws IOException,
+    public static X509CRL downloadCRL(String crlURL) throws IOException,
             CertificateException, CRLException,
             CertificateVerificationException, NamingException
     {
@@ -308,7 +412,27 @@ public final class CRLVerifier
     public static List<String> getCrlDistributionPoints(X509Certificate cert)
             throws IOException
     {
-        byte[] crldpExt = cert.getExtensionValue(Extension.cRLDistributionPoints.getId());
+        return getDistributionPoints(cert, Extension.cRLDistributionPoints.getId());
+    }
+
+    /**
+     * Extracts all delta CRL URLs from the "Freshest CRL" extension of a X.509
+     * certificate or a complete CRL. If the extension is unavailable, returns an
+     * empty list.
+     * @param ext certificate or CRL
+     * @return List of delta CRL distribution point URLs.
+     * @throws java.io.IOException
+     */
+    public static List<String> getFreshestCrlDistributionPoints(X509Extension ext)
+            throws IOException
+    {
+        return getDistributionPoints(ext, Extension.freshestCRL.getId());
+    }
+
+    private static List<String> getDistributionPoints(X509Extension ext, String oid)
+            throws IOException
+    {
+        byte[] crldpExt = ext.getExtensionValue(oid);
         if (crldpExt == null)
         {
             return new ArrayList<>();
@@ -320,8 +444,7 @@ public final class CRLVerifier
         }
         if (!(derObjCrlDP instanceof ASN1OctetString))
         {
-            LOG.warn("CRL distribution points for certificate subject " +
-                    cert.getSubjectX500Principal().getName() +
+            LOG.warn("CRL distribution points extension " + oid +
                     " should be an octet string, but is " + derObjCrlDP);
             return new ArrayList<>();
         }
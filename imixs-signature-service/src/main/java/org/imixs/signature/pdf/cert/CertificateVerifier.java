@@ -38,6 +38,7 @@ import java.security.cert.X509Certificate;
 import java.security.cert.X509Extension;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -103,6 +104,29 @@ public final class CertificateVerifier {
 	public static PKIXCertPathBuilderResult verifyCertificate(X509Certificate cert,
 			Set<X509Certificate> additionalCerts, boolean verifySelfSignedCert, Date signDate)
 			throws CertificateVerificationException {
+		return verifyCertificate(cert, additionalCerts, verifySelfSignedCert, signDate, true);
+	}
+
+	/**
+	 * Attempts to build a certification chain for given certificate and to verify
+	 * it. The revocation check of the chain is optional.
+	 *
+	 * @param cert                 - certificate for validation
+	 * @param additionalCerts      - set of trusted root CA certificates and
+	 *                             intermediate CA certificates
+	 * @param verifySelfSignedCert true if a self-signed certificate is accepted,
+	 *                             false if not.
+	 * @param signDate             the date when the signing took place
+	 * @param checkRevocation      true if the revocation status of the chain is
+	 *                             checked by OCSP or CRL
+	 * @return the certification chain (if verification is successful)
+	 * @throws CertificateVerificationException - if the certification is not
+	 *                                          successful
+	 * @see #checkRevocationStatus(X509Certificate, Set, Date)
+	 */
+	public static PKIXCertPathBuilderResult verifyCertificate(X509Certificate cert,
+			Set<X509Certificate> additionalCerts, boolean verifySelfSignedCert, Date signDate,
+			boolean checkRevocation) throws CertificateVerificationException {
 		try {
 			// Check for self-signed certificate
 			if (!verifySelfSignedCert && isSelfSigned(cert)) {
@@ -156,13 +180,15 @@ public final class CertificateVerifier {
 			}
 
 			// Attempt to build the certification chain and verify it
-			PKIXCertPathBuilderResult verifiedCertChain = verifyCertificate(cert, trustAnchors, intermediateCerts,
+			PKIXCertPathBuilderResult verifiedCertChain = buildCertPath(cert, trustAnchors, intermediateCerts,
 					signDate);
 
 			LOG.info("Certification chain verified successfully up to this root: "
 					+ verifiedCertChain.getTrustAnchor().getTrustedCert().getSubjectX500Principal());
 
-			checkRevocations(cert, certSet, signDate);
+			if (checkRevocation) {
+				checkRevocations(cert, certSet, signDate);
+			}
 
 			return verifiedCertChain;
 		} catch (CertPathBuilderException certPathEx) {
@@ -176,6 +202,96 @@ public final class CertificateVerifier {
 		}
 	}
 
+	/**
+	 * Attempts to build a certification chain for given certificate up to one of
+	 * the given trusted root certificates. In difference to
+	 * {@link #verifyCertificate(X509Certificate, Set, boolean, Date, boolean)} a
+	 * self-signed certificate in the set of additional certificates is never used
+	 * as trust anchor. This is required if the additional certificates are taken
+	 * from the signature to be verified, because a forger can embed any root
+	 * certificate. The revocation status is not checked.
+	 *
+	 * @param cert            - certificate for validation
+	 * @param additionalCerts - set of intermediate CA certificates, e.g. the
+	 *                        certificates embedded in a signature
+	 * @param trustedCerts    - set of trusted root CA certificates
+	 * @param signDate        the date when the signing took place
+	 * @return the certification chain (if verification is successful)
+	 * @throws CertificateVerificationException - if the certification is not
+	 *                                          successful
+	 */
+	public static PKIXCertPathBuilderResult verifyCertificate(X509Certificate cert,
+			Set<X509Certificate> additionalCerts, Set<X509Certificate> trustedCerts, Date signDate)
+			throws CertificateVerificationException {
+		try {
+			Set<TrustAnchor> trustAnchors = new HashSet<>();
+			for (X509Certificate trustedCert : trustedCerts) {
+				trustAnchors.add(new TrustAnchor(trustedCert, null));
+			}
+			if (trustAnchors.isEmpty()) {
+				throw new CertificateVerificationException("No trusted root certificate");
+			}
+			if (trustedCerts.contains(cert)) {
+				// the certificate is a trusted root itself
+				cert.checkValidity(signDate);
+				return new PKIXCertPathBuilderResult(
+						CertificateFactory.getInstance("X.509").generateCertPath(Collections.<Certificate>emptyList()),
+						new TrustAnchor(cert, null), null, cert.getPublicKey());
+			}
+
+			// download missing issuers, self-signed certificates are ignored
+			Set<X509Certificate> intermediateCerts = new HashSet<>();
+			Set<X509Certificate> certsToTrySet = new HashSet<>(additionalCerts);
+			certsToTrySet.addAll(CertificateVerifier.downloadExtraCertificates(cert));
+			while (!certsToTrySet.isEmpty()) {
+				Set<X509Certificate> nextCertsToTrySet = new HashSet<>();
+				for (X509Certificate tryCert : certsToTrySet) {
+					if (!tryCert.equals(cert) && !isSelfSigned(tryCert) && intermediateCerts.add(tryCert)) {
+						nextCertsToTrySet.addAll(CertificateVerifier.downloadExtraCertificates(tryCert));
+					}
+				}
+				certsToTrySet = nextCertsToTrySet;
+			}
+
+			PKIXCertPathBuilderResult verifiedCertChain = buildCertPath(cert, trustAnchors, intermediateCerts,
+					signDate);
+			LOG.info("Certification chain verified successfully up to this trusted root: "
+					+ verifiedCertChain.getTrustAnchor().getTrustedCert().getSubjectX500Principal());
+			return verifiedCertChain;
+		} catch (CertPathBuilderException certPathEx) {
+			throw new CertificateVerificationException(
+					"Error building certification path to a trusted root: " + cert.getSubjectX500Principal(),
+					certPathEx);
+		} catch (CertificateVerificationException cvex) {
+			throw cvex;
+		} catch (GeneralSecurityException ex) {
+			throw new CertificateVerificationException(
+					"Error verifying the certificate: " + cert.getSubjectX500Principal(), ex);
+		}
+	}
+
+	/**
+	 * Checks the revocation status of a certificate and its issuers by OCSP or
+	 * CRL. The certificate chain must be verified before.
+	 *
+	 * @param cert            - certificate to check
+	 * @param additionalCerts - the certificates of the chain
+	 * @param signDate        the date when the signing took place
+	 * @throws RevokedCertificateException      if a certificate of the chain is
+	 *                                          revoked
+	 * @throws CertificateVerificationException if the revocation status can not be
+	 *                                          checked
+	 */
+	public static void checkRevocationStatus(X509Certificate cert, Set<X509Certificate> additionalCerts,
+			Date signDate) throws CertificateVerificationException, RevokedCertificateException {
+		try {
+			checkRevocations(cert, additionalCerts, signDate);
+		} catch (IOException | GeneralSecurityException | OCSPException ex) {
+			throw new CertificateVerificationException(
+					"Error checking the revocation status: " + cert.getSubjectX500Principal(), ex);
+		}
+	}
+
 	private static void checkRevocations(X509Certificate cert, Set<X509Certificate> additionalCerts, Date signDate)
 			throws IOException, CertificateVerificationException, OCSPException, RevokedCertificateException,
 			GeneralSecurityException {
@@ -313,7 +429,7 @@ public final class CertificateVerifier {
 	 *                                  (e.g. certification path cannot be built or
 	 *                                  some certificate in the chain is expired)
 	 */
-	private static PKIXCertPathBuilderResult verifyCertificate(X509Certificate cert, Set<TrustAnchor> trustAnchors,
+	private static PKIXCertPathBuilderResult buildCertPath(X509Certificate cert, Set<TrustAnchor> trustAnchors,
 			Set<X509Certificate> intermediateCerts, Date signDate) throws GeneralSecurityException {
 		// Create the selector that specifies the starting certificate
 		X509CertSelector selector = new X509CertSelector();
@@ -364,7 +480,7 @@ public final class CertificateVerifier {
 	 * @return the URL of the OCSP validation service
 	 * @throws IOException
 	 */
-	private static String extractOCSPURL(X509Certificate cert) throws IOException {
+	public static String extractOCSPURL(X509Certificate cert) throws IOException {
 		byte[] authorityExtensionValue = cert.getExtensionValue(Extension.authorityInfoAccess.getId());
 		if (authorityExtensionValue != null) {
 			// copied from CertInformationHelper.getAuthorityInfoExtensionValue()
@@ -0,0 +1,1042 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.cert;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Extension;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.pdfbox.pdmodel.encryption.SecurityProvider;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.DigestInfo;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+/**
+ * A CompactCRL holds the revoked serial numbers of a certificate revocation
+ * list in a compact sorted index.
+ * <p>
+ * The CertificateFactory creates an X509CRLEntry object for each revoked
+ * certificate. For CRLs with hundreds of thousands of entries this costs a lot
+ * of heap, although a revocation check only needs to look up one serial number.
+ * The CompactCRL reads the DER encoded CRL as a stream and stores the serial
+ * numbers in one byte array and the revocation dates in a long array, both
+ * sorted by serial number. A serial number is looked up with a binary search. A
+ * Bloom filter in front of the index answers most lookups of certificates not
+ * revoked without a search.
+ * <p>
+ * The TBSCertList is hashed while it is read. The signature is verified later
+ * with the hash and the key of the issuer, so the CRL is never held in memory
+ * as a whole. A CRL signed with an algorithm not supported by the streaming
+ * verification (e.g. RSASSA-PSS) can be created from a X509CRL with
+ * {@link #fromCRL(X509CRL)}.
+ * <p>
+ * A delta CRL can be merged onto a complete CRL with
+ * {@link #applyDelta(CompactCRL)}. Entries of a delta CRL with the reason code
+ * removeFromCRL are marked as removed. Other entry extensions are skipped.
+ * <p>
+ * The index matches serial numbers only. An indirect CRL (indirectCRL flag of
+ * the issuing distribution point, or certificateIssuer entry extensions) lists
+ * certificates of several issuers and is reported by {@link #isIndirectCRL()},
+ * so it can be checked with a X509CRL instead. Critical entry extensions other
+ * than the reason code and the certificate issuer are reported by
+ * {@link #hasUnsupportedCriticalExtension()}.
+ *
+ * @see CRLCache
+ * @author rsoika
+ * @version 1.0
+ */
+public class CompactCRL implements X509Extension {
+
+    private static final int TAG_BOOLEAN = 0x01;
+    private static final int TAG_INTEGER = 0x02;
+    private static final int TAG_BIT_STRING = 0x03;
+    private static final int TAG_OCTET_STRING = 0x04;
+    private static final int TAG_OID = 0x06;
+    private static final int TAG_ENUMERATED = 0x0A;
+    private static final int TAG_UTC_TIME = 0x17;
+    private static final int TAG_GENERALIZED_TIME = 0x18;
+    private static final int TAG_SEQUENCE = 0x30;
+    private static final int TAG_CRL_EXTENSIONS = 0xA0;
+
+    // about 1% false positives
+    private static final int BLOOM_BITS_PER_ENTRY = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    // content of the OID 2.5.29.21 (reasonCode)
+    private static final byte[] REASON_CODE_OID = { 0x55, 0x1D, 0x15 };
+    // content of the OID 2.5.29.29 (certificateIssuer)
+    private static final byte[] CERTIFICATE_ISSUER_OID = { 0x55, 0x1D, 0x1D };
+
+    private static final Map<ASN1ObjectIdentifier, SignatureAlgorithm> ALGORITHMS = new HashMap<ASN1ObjectIdentifier, SignatureAlgorithm>();
+
+    static {
+        ALGORITHMS.put(PKCSObjectIdentifiers.sha1WithRSAEncryption,
+                new SignatureAlgorithm(OIWObjectIdentifiers.idSHA1, "NONEwithRSA"));
+        ALGORITHMS.put(PKCSObjectIdentifiers.sha224WithRSAEncryption,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha224, "NONEwithRSA"));
+        ALGORITHMS.put(PKCSObjectIdentifiers.sha256WithRSAEncryption,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha256, "NONEwithRSA"));
+        ALGORITHMS.put(PKCSObjectIdentifiers.sha384WithRSAEncryption,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha384, "NONEwithRSA"));
+        ALGORITHMS.put(PKCSObjectIdentifiers.sha512WithRSAEncryption,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha512, "NONEwithRSA"));
+        ALGORITHMS.put(X9ObjectIdentifiers.ecdsa_with_SHA1,
+                new SignatureAlgorithm(OIWObjectIdentifiers.idSHA1, "NONEwithECDSA"));
+        ALGORITHMS.put(X9ObjectIdentifiers.ecdsa_with_SHA224,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha224, "NONEwithECDSA"));
+        ALGORITHMS.put(X9ObjectIdentifiers.ecdsa_with_SHA256,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha256, "NONEwithECDSA"));
+        ALGORITHMS.put(X9ObjectIdentifiers.ecdsa_with_SHA384,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha384, "NONEwithECDSA"));
+        ALGORITHMS.put(X9ObjectIdentifiers.ecdsa_with_SHA512,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha512, "NONEwithECDSA"));
+        ALGORITHMS.put(X9ObjectIdentifiers.id_dsa_with_sha1,
+                new SignatureAlgorithm(OIWObjectIdentifiers.idSHA1, "NONEwithDSA"));
+        ALGORITHMS.put(NISTObjectIdentifiers.dsa_with_sha256,
+                new SignatureAlgorithm(NISTObjectIdentifiers.id_sha256, "NONEwithDSA"));
+    }
+
+    private X500Principal issuer;
+    private Date thisUpdate;
+    private Date nextUpdate;
+    private AlgorithmIdentifier signatureAlgorithm;
+    private byte[] tbsHash;
+    private byte[] signature;
+    // only set if the signature algorithm is not supported by the streaming verification
+    private X509CRL crl;
+    private final Map<String, byte[]> extensions = new HashMap<String, byte[]>();
+    private final Set<String> criticalExtensions = new HashSet<String>();
+    // an entry has a certificateIssuer extension
+    private boolean certificateIssuerEntries;
+    // an entry has an unsupported critical extension
+    private boolean unsupportedEntryExtensions;
+
+    // serial numbers (two's complement, minimal encoding) sorted by length and value
+    private byte[] serials;
+    private int[] offsets;
+    private long[] revocationDates;
+    // entries with the reason code removeFromCRL, null if there are none
+    private boolean[] removed;
+    private int size;
+    private long[] bloom;
+
+    private CompactCRL() {
+    }
+
+    /**
+     * Reads a DER encoded CRL from a stream. The TBSCertList is hashed while it is
+     * read, the signature has to be verified with {@link #verify(PublicKey)}.
+     *
+     * @param in the DER encoded CRL
+     * @return the CompactCRL
+     * @throws IOException              if the stream can not be read
+     * @throws CRLException             if the CRL is not valid DER
+     * @throws NoSuchAlgorithmException if the signature algorithm is not supported
+     */
+    public static CompactCRL parse(InputStream in) throws IOException, CRLException, NoSuchAlgorithmException {
+        CompactCRL result = new CompactCRL();
+        DerReader reader = new DerReader(new BufferedInputStream(in));
+        reader.expect(TAG_SEQUENCE);
+        reader.readLength();
+
+        // TBSCertList
+        reader.startCapture();
+        reader.expect(TAG_SEQUENCE);
+        int tbsLength = reader.readLength();
+        long tbsEnd = reader.position + tbsLength;
+        int tag = reader.readTag();
+        if (tag == TAG_INTEGER) {
+            // version
+            reader.skip(reader.readLength());
+            tag = reader.readTag();
+        }
+        result.signatureAlgorithm = AlgorithmIdentifier.getInstance(reader.readElement(tag));
+        reader.startDigest(createDigest(result.signatureAlgorithm));
+        result.issuer = new X500Principal(reader.readElement(reader.readTag()));
+        result.thisUpdate = new Date(readTime(reader, reader.readTag()));
+        tag = reader.position < tbsEnd ? reader.readTag() : -1;
+        if (tag == TAG_UTC_TIME || tag == TAG_GENERALIZED_TIME) {
+            result.nextUpdate = new Date(readTime(reader, tag));
+            tag = reader.position < tbsEnd ? reader.readTag() : -1;
+        }
+        IndexBuilder builder = new IndexBuilder();
+        if (tag == TAG_SEQUENCE) {
+            // revokedCertificates
+            int listLength = reader.readLength();
+            long listEnd = reader.position + listLength;
+            while (reader.position < listEnd) {
+                reader.expect(TAG_SEQUENCE);
+                int entryLength = reader.readLength();
+                long entryEnd = reader.position + entryLength;
+                reader.expect(TAG_INTEGER);
+                byte[] serial = normalize(reader.readBytes(reader.readLength()));
+                long revocationDate = readTime(reader, reader.readTag());
+                boolean removeFromCRL = reader.position < entryEnd && result.readEntryExtensions(reader, entryEnd);
+                reader.skip(entryEnd - reader.position);
+                builder.add(serial, 0, serial.length, revocationDate, removeFromCRL);
+            }
+            tag = reader.position < tbsEnd ? reader.readTag() : -1;
+        }
+        if (tag == TAG_CRL_EXTENSIONS) {
+            result.readExtensions(reader.readBytes(reader.readLength()));
+            tag = reader.position < tbsEnd ? reader.readTag() : -1;
+        }
+        if (tag != -1 || reader.position != tbsEnd) {
+            throw new CRLException("invalid TBSCertList");
+        }
+        result.tbsHash = reader.stopDigest();
+
+        AlgorithmIdentifier outerAlgorithm = AlgorithmIdentifier.getInstance(reader.readElement(reader.readTag()));
+        if (!outerAlgorithm.equals(result.signatureAlgorithm)) {
+            throw new CRLException("signature algorithm does not match the TBSCertList");
+        }
+        reader.expect(TAG_BIT_STRING);
+        byte[] bits = reader.readBytes(reader.readLength());
+        if (bits.length < 2 || bits[0] != 0) {
+            throw new CRLException("invalid signature value");
+        }
+        result.signature = Arrays.copyOfRange(bits, 1, bits.length);
+        builder.build(result);
+        return result;
+    }
+
+    /**
+     * Creates a CompactCRL from a X509CRL. If the signature algorithm is not
+     * supported by the streaming verification, the X509CRL is kept to verify the
+     * signature.
+     *
+     * @param crl the X509CRL
+     * @return the CompactCRL
+     * @throws CRLException if the CRL can not be encoded
+     */
+    public static CompactCRL fromCRL(X509CRL crl) throws CRLException {
+        try {
+            return parse(new ByteArrayInputStream(crl.getEncoded()));
+        } catch (NoSuchAlgorithmException e) {
+            CompactCRL result = new CompactCRL();
+            result.crl = crl;
+            result.issuer = crl.getIssuerX500Principal();
+            result.thisUpdate = crl.getThisUpdate();
+            result.nextUpdate = crl.getNextUpdate();
+            result.signature = crl.getSignature();
+            addExtensions(result, crl.getCriticalExtensionOIDs(), crl, true);
+            addExtensions(result, crl.getNonCriticalExtensionOIDs(), crl, false);
+            IndexBuilder builder = new IndexBuilder();
+            if (crl.getRevokedCertificates() != null) {
+                for (X509CRLEntry entry : crl.getRevokedCertificates()) {
+                    result.certificateIssuerEntries |= entry.getCertificateIssuer() != null;
+                    result.unsupportedEntryExtensions |= entry.hasUnsupportedCriticalExtension();
+                    byte[] serial = normalize(entry.getSerialNumber().toByteArray());
+                    builder.add(serial, 0, serial.length, entry.getRevocationDate().getTime(),
+                            entry.getRevocationReason() == java.security.cert.CRLReason.REMOVE_FROM_CRL);
+                }
+            }
+            builder.build(result);
+            return result;
+        } catch (IOException e) {
+            throw new CRLException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Verifies the signature of the CRL with the public key of the issuer.
+     *
+     * @param key the public key of the issuer
+     * @throws GeneralSecurityException if the signature is invalid
+     */
+    public void verify(PublicKey key) throws GeneralSecurityException {
+        if (crl != null) {
+            crl.verify(key, getProvider());
+            return;
+        }
+        if (tbsHash == null) {
+            throw new SignatureException("a merged CRL has no signature");
+        }
+        SignatureAlgorithm algorithm = ALGORITHMS.get(signatureAlgorithm.getAlgorithm());
+        Signature verifier = Signature.getInstance(algorithm.rawSignature, getProvider());
+        if ("NONEwithRSA".equals(algorithm.rawSignature)) {
+            // the DigestInfo is encoded with NULL parameters, some signers omit them
+            verifier.initVerify(key);
+            verifier.update(encodeDigestInfo(new AlgorithmIdentifier(algorithm.digest, DERNull.INSTANCE)));
+            if (verifier.verify(signature)) {
+                return;
+            }
+            verifier.initVerify(key);
+            verifier.update(encodeDigestInfo(new AlgorithmIdentifier(algorithm.digest)));
+        } else {
+            verifier.initVerify(key);
+            verifier.update(tbsHash);
+        }
+        if (!verifier.verify(signature)) {
+            throw new SignatureException("CRL signature does not match");
+        }
+    }
+
+    /**
+     * Returns the revocation date of the given serial number or null if the serial
+     * number is not revoked by this CRL.
+     *
+     * @param serialNumber the serial number of a certificate
+     * @return revocation date or null
+     */
+    public Date getRevocationDate(BigInteger serialNumber) {
+        byte[] key = serialNumber.toByteArray();
+        if (!mightContain(key)) {
+            return null;
+        }
+        int index = indexOf(key);
+        return index < 0 || isRemoved(index) ? null : new Date(revocationDates[index]);
+    }
+
+    /**
+     * Merges a delta CRL onto this complete CRL. Entries of the delta CRL replace
+     * the entries of this CRL, entries with the reason code removeFromCRL are
+     * removed. The result has the thisUpdate and nextUpdate of the delta CRL.
+     * <p>
+     * The signatures of both CRLs have to be verified before. The result has no
+     * signature.
+     *
+     * @param delta the delta CRL
+     * @return the merged CRL
+     * @throws CRLException if the delta CRL does not apply to this CRL
+     */
+    public CompactCRL applyDelta(CompactCRL delta) throws CRLException {
+        BigInteger baseCRLNumber = delta.getBaseCRLNumber();
+        if (baseCRLNumber == null) {
+            throw new CRLException("not a delta CRL");
+        }
+        if (!issuer.equals(delta.issuer)) {
+            throw new CRLException("delta CRL issuer " + delta.issuer + " does not match " + issuer);
+        }
+        BigInteger crlNumber = getCRLNumber();
+        if (crlNumber == null || crlNumber.compareTo(baseCRLNumber) < 0) {
+            throw new CRLException(
+                    "delta CRL requires base CRL number " + baseCRLNumber + ", but CRL number is " + crlNumber);
+        }
+        CompactCRL result = new CompactCRL();
+        result.issuer = issuer;
+        result.thisUpdate = delta.thisUpdate;
+        result.nextUpdate = delta.nextUpdate;
+        result.extensions.putAll(extensions);
+        result.criticalExtensions.addAll(criticalExtensions);
+        result.certificateIssuerEntries = certificateIssuerEntries || delta.certificateIssuerEntries;
+        result.unsupportedEntryExtensions = unsupportedEntryExtensions || delta.unsupportedEntryExtensions;
+        // both indexes are sorted, so the merged entries are added in order
+        IndexBuilder builder = new IndexBuilder();
+        int i = 0;
+        int j = 0;
+        while (i < size || j < delta.size) {
+            int c;
+            if (i >= size) {
+                c = 1;
+            } else if (j >= delta.size) {
+                c = -1;
+            } else {
+                c = compare(serials, offsets[i], offsets[i + 1] - offsets[i], delta.serials, delta.offsets[j],
+                        delta.offsets[j + 1] - delta.offsets[j]);
+            }
+            if (c < 0) {
+                if (!isRemoved(i)) {
+                    builder.add(serials, offsets[i], offsets[i + 1] - offsets[i], revocationDates[i], false);
+                }
+                i++;
+            } else {
+                if (!delta.isRemoved(j)) {
+                    builder.add(delta.serials, delta.offsets[j], delta.offsets[j + 1] - delta.offsets[j],
+                            delta.revocationDates[j], false);
+                }
+                if (c == 0) {
+                    i++;
+                }
+                j++;
+            }
+        }
+        builder.build(result);
+        return result;
+    }
+
+    /**
+     * Returns the value of the CRL number extension
+     *
+     * @return CRL number or null if the CRL has no CRL number
+     */
+    public BigInteger getCRLNumber() {
+        return getIntegerExtension(Extension.cRLNumber);
+    }
+
+    /**
+     * Returns the base CRL number of a delta CRL
+     *
+     * @return base CRL number or null if the CRL is not a delta CRL
+     */
+    public BigInteger getBaseCRLNumber() {
+        return getIntegerExtension(Extension.deltaCRLIndicator);
+    }
+
+    /**
+     * Returns true if the CRL has a delta CRL indicator extension
+     *
+     * @return true for a delta CRL
+     */
+    public boolean isDeltaCRL() {
+        return extensions.containsKey(Extension.deltaCRLIndicator.getId());
+    }
+
+    /**
+     * Returns true if the CRL may list certificates of other issuers. This is the
+     * case if the issuing distribution point has the indirectCRL flag, or an
+     * entry has a certificateIssuer extension. Such a CRL can not be checked by
+     * the serial number only.
+     *
+     * @return true for an indirect CRL
+     */
+    public boolean isIndirectCRL() {
+        if (certificateIssuerEntries) {
+            return true;
+        }
+        byte[] value = extensions.get(Extension.issuingDistributionPoint.getId());
+        if (value == null) {
+            return false;
+        }
+        try {
+            return IssuingDistributionPoint.getInstance(ASN1OctetString.getInstance(value).getOctets())
+                    .isIndirectCRL();
+        } catch (IllegalArgumentException e) {
+            // an invalid issuing distribution point is not trusted
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of revoked certificates
+     *
+     * @return count of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    public X500Principal getIssuerX500Principal() {
+        return issuer;
+    }
+
+    public Date getThisUpdate() {
+        return thisUpdate;
+    }
+
+    /**
+     * Returns the nextUpdate of the CRL
+     *
+     * @return nextUpdate or null if the CRL has no nextUpdate
+     */
+    public Date getNextUpdate() {
+        return nextUpdate;
+    }
+
+    /**
+     * Returns the signature value of the CRL
+     *
+     * @return signature or null for a merged CRL
+     */
+    public byte[] getSignature() {
+        return signature != null ? signature.clone() : null;
+    }
+
+    /**
+     * Returns true if the CRL or one of its entries has a critical extension not
+     * supported by the CompactCRL. Such a CRL must not be used for a revocation
+     * check.
+     */
+    @Override
+    public boolean hasUnsupportedCriticalExtension() {
+        if (unsupportedEntryExtensions) {
+            return true;
+        }
+        for (String oid : criticalExtensions) {
+            if (!Extension.issuingDistributionPoint.getId().equals(oid)
+                    && !Extension.deltaCRLIndicator.getId().equals(oid)
+                    && !Extension.cRLNumber.getId().equals(oid)
+                    && !Extension.authorityKeyIdentifier.getId().equals(oid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Set<String> getCriticalExtensionOIDs() {
+        return Collections.unmodifiableSet(criticalExtensions);
+    }
+
+    @Override
+    public Set<String> getNonCriticalExtensionOIDs() {
+        Set<String> result = new HashSet<String>(extensions.keySet());
+        result.removeAll(criticalExtensions);
+        return Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * Returns the DER encoded OCTET STRING of a CRL extension
+     */
+    @Override
+    public byte[] getExtensionValue(String oid) {
+        byte[] value = extensions.get(oid);
+        return value != null ? value.clone() : null;
+    }
+
+    /**
+     * Binary search of the serial number in the sorted index
+     */
+    private int indexOf(byte[] key) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = compare(serials, offsets[mid], offsets[mid + 1] - offsets[mid], key, 0, key.length);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isRemoved(int index) {
+        return removed != null && removed[index];
+    }
+
+    private BigInteger getIntegerExtension(ASN1ObjectIdentifier oid) {
+        byte[] value = extensions.get(oid.getId());
+        if (value == null) {
+            return null;
+        }
+        return ASN1Integer.getInstance(ASN1OctetString.getInstance(value).getOctets()).getValue();
+    }
+
+    private boolean mightContain(byte[] key) {
+        if (size == 0) {
+            return false;
+        }
+        long hash = hash(key, 0, key.length);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        long bits = (long) bloom.length * 64;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bits;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte[] encodeDigestInfo(AlgorithmIdentifier digestAlgorithm) throws SignatureException {
+        try {
+            return new DigestInfo(digestAlgorithm, tbsHash).getEncoded(ASN1Encoding.DER);
+        } catch (IOException e) {
+            throw new SignatureException(e);
+        }
+    }
+
+    private void readExtensions(byte[] content) throws CRLException {
+        try {
+            Extensions crlExtensions = Extensions.getInstance(ASN1Primitive.fromByteArray(content));
+            for (ASN1ObjectIdentifier oid : crlExtensions.getExtensionOIDs()) {
+                Extension extension = crlExtensions.getExtension(oid);
+                extensions.put(oid.getId(), extension.getExtnValue().getEncoded());
+                if (extension.isCritical()) {
+                    criticalExtensions.add(oid.getId());
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new CRLException("invalid CRL extensions", e);
+        }
+    }
+
+    private static void addExtensions(CompactCRL result, Set<String> oids, X509CRL crl, boolean critical) {
+        if (oids == null) {
+            return;
+        }
+        for (String oid : oids) {
+            result.extensions.put(oid, crl.getExtensionValue(oid));
+            if (critical) {
+                result.criticalExtensions.add(oid);
+            }
+        }
+    }
+
+    private static MessageDigest createDigest(AlgorithmIdentifier signatureAlgorithm)
+            throws IOException, NoSuchAlgorithmException {
+        SignatureAlgorithm algorithm = ALGORITHMS.get(signatureAlgorithm.getAlgorithm());
+        if (algorithm == null) {
+            throw new NoSuchAlgorithmException(
+                    "CRL signature algorithm " + signatureAlgorithm.getAlgorithm() + " not supported");
+        }
+        return MessageDigest.getInstance(algorithm.digest.getId(), SecurityProvider.getProvider());
+    }
+
+    /**
+     * Returns the security provider. A provider which can not be loaded is
+     * reported as a NoSuchProviderException.
+     */
+    private static Provider getProvider() throws NoSuchProviderException {
+        try {
+            return SecurityProvider.getProvider();
+        } catch (IOException e) {
+            NoSuchProviderException exception = new NoSuchProviderException(e.getMessage());
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Reads the extensions of a CRL entry and returns true if the entry has the
+     * reason code removeFromCRL. A certificateIssuer extension and unsupported
+     * critical extensions are recorded.
+     */
+    private boolean readEntryExtensions(DerReader reader, long entryEnd) throws IOException, CRLException {
+        reader.expect(TAG_SEQUENCE);
+        reader.readLength();
+        boolean result = false;
+        while (reader.position < entryEnd) {
+            reader.expect(TAG_SEQUENCE);
+            int length = reader.readLength();
+            long end = reader.position + length;
+            reader.expect(TAG_OID);
+            byte[] oid = reader.readBytes(reader.readLength());
+            int tag = reader.readTag();
+            boolean critical = false;
+            if (tag == TAG_BOOLEAN) {
+                byte[] flag = reader.readBytes(reader.readLength());
+                critical = flag.length == 1 && flag[0] != 0;
+                tag = reader.readTag();
+            }
+            if (tag != TAG_OCTET_STRING) {
+                throw new CRLException("invalid CRL entry extension");
+            }
+            byte[] value = reader.readBytes(reader.readLength());
+            if (Arrays.equals(REASON_CODE_OID, oid)) {
+                if (value.length == 3 && value[0] == TAG_ENUMERATED && value[1] == 1
+                        && value[2] == CRLReason.removeFromCRL) {
+                    result = true;
+                }
+            } else if (Arrays.equals(CERTIFICATE_ISSUER_OID, oid)) {
+                certificateIssuerEntries = true;
+            } else if (critical) {
+                unsupportedEntryExtensions = true;
+            }
+            reader.skip(end - reader.position);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a UTCTime or GeneralizedTime in UTC and returns the milliseconds
+     */
+    private static long readTime(DerReader reader, int tag) throws IOException, CRLException {
+        byte[] value = reader.readBytes(reader.readLength());
+        int year;
+        int pos;
+        if (tag == TAG_UTC_TIME && value.length == 13) {
+            year = digits(value, 0, 2);
+            year += year < 50 ? 2000 : 1900;
+            pos = 2;
+        } else if (tag == TAG_GENERALIZED_TIME && value.length >= 15) {
+            year = digits(value, 0, 4);
+            pos = 4;
+        } else {
+            throw new CRLException("unsupported time encoding");
+        }
+        if (value[value.length - 1] != 'Z') {
+            throw new CRLException("time is not UTC");
+        }
+        try {
+            long millis = LocalDateTime.of(year, digits(value, pos, 2), digits(value, pos + 2, 2),
+                    digits(value, pos + 4, 2), digits(value, pos + 6, 2), digits(value, pos + 8, 2))
+                    .toEpochSecond(ZoneOffset.UTC) * 1000;
+            // fraction of a GeneralizedTime
+            if (value.length > pos + 11 && value[pos + 10] == '.') {
+                int fraction = 0;
+                int scale = 100;
+                for (int i = pos + 11; i < value.length - 1 && scale > 0; i++, scale /= 10) {
+                    fraction += digits(value, i, 1) * scale;
+                }
+                millis += fraction;
+            }
+            return millis;
+        } catch (DateTimeException e) {
+            throw new CRLException("invalid time", e);
+        }
+    }
+
+    private static int digits(byte[] value, int offset, int count) throws CRLException {
+        int result = 0;
+        for (int i = offset; i < offset + count; i++) {
+            int digit = value[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new CRLException("invalid time");
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Removes redundant leading bytes of a two's complement INTEGER
+     */
+    private static byte[] normalize(byte[] value) {
+        int start = 0;
+        while (start < value.length - 1 && ((value[start] == 0 && value[start + 1] >= 0)
+                || (value[start] == -1 && value[start + 1] < 0))) {
+            start++;
+        }
+        return start == 0 ? value : Arrays.copyOfRange(value, start, value.length);
+    }
+
+    /**
+     * Compares two serial numbers by length and unsigned bytes
+     */
+    private static int compare(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        if (aLength != bLength) {
+            return aLength - bLength;
+        }
+        for (int i = 0; i < aLength; i++) {
+            int c = (a[aOffset + i] & 0xff) - (b[bOffset + i] & 0xff);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 64 bit FNV-1a hash with the MurmurHash3 finalizer
+     */
+    private static long hash(byte[] key, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= key[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Digest and raw signature algorithm of a CRL signature algorithm
+     */
+    private static class SignatureAlgorithm {
+        final ASN1ObjectIdentifier digest;
+        final String rawSignature;
+
+        SignatureAlgorithm(ASN1ObjectIdentifier digest, String rawSignature) {
+            this.digest = digest;
+            this.rawSignature = rawSignature;
+        }
+    }
+
+    /**
+     * Collects the revoked serial numbers in growing arrays and builds the sorted
+     * index and the Bloom filter
+     */
+    private static class IndexBuilder {
+        private byte[] pool = new byte[1024];
+        private int poolSize;
+        private int[] starts = new int[64];
+        private long[] dates = new long[64];
+        private boolean[] removed = new boolean[64];
+        private boolean anyRemoved;
+        private int count;
+
+        void add(byte[] serial, int offset, int length, long revocationDate, boolean removeFromCRL) {
+            if (poolSize + length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolSize + length));
+            }
+            if (count + 1 >= starts.length) {
+                starts = Arrays.copyOf(starts, starts.length * 2);
+                dates = Arrays.copyOf(dates, dates.length * 2);
+                removed = Arrays.copyOf(removed, removed.length * 2);
+            }
+            System.arraycopy(serial, offset, pool, poolSize, length);
+            starts[count] = poolSize;
+            dates[count] = revocationDate;
+            removed[count] = removeFromCRL;
+            anyRemoved |= removeFromCRL;
+            poolSize += length;
+            count++;
+            starts[count] = poolSize;
+        }
+
+        void build(CompactCRL crl) {
+            int[] order = new int[count];
+            boolean sorted = true;
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+                if (i > 0 && compareEntries(i - 1, i) > 0) {
+                    sorted = false;
+                }
+            }
+            if (!sorted) {
+                mergeSort(order, new int[count], 0, count);
+            }
+            crl.serials = new byte[poolSize];
+            crl.offsets = new int[count + 1];
+            crl.revocationDates = new long[count];
+            crl.removed = anyRemoved ? new boolean[count] : null;
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                int entry = order[i];
+                int length = starts[entry + 1] - starts[entry];
+                System.arraycopy(pool, starts[entry], crl.serials, offset, length);
+                crl.offsets[i] = offset;
+                crl.revocationDates[i] = dates[entry];
+                if (anyRemoved) {
+                    crl.removed[i] = removed[entry];
+                }
+                offset += length;
+            }
+            crl.offsets[count] = offset;
+            crl.size = count;
+
+            int bits = Math.max(64, count * BLOOM_BITS_PER_ENTRY);
+            crl.bloom = new long[(bits + 63) / 64];
+            long bloomBits = (long) crl.bloom.length * 64;
+            for (int i = 0; i < count; i++) {
+                long hash = hash(crl.serials, crl.offsets[i], crl.offsets[i + 1] - crl.offsets[i]);
+                int h1 = (int) hash;
+                int h2 = (int) (hash >>> 32);
+                for (int k = 0; k < BLOOM_HASHES; k++) {
+                    long bit = ((h1 + k * h2) & 0x7fffffffL) % bloomBits;
+                    crl.bloom[(int) (bit >>> 6)] |= 1L << bit;
+                }
+            }
+        }
+
+        private int compareEntries(int a, int b) {
+            return compare(pool, starts[a], starts[a + 1] - starts[a], pool, starts[b], starts[b + 1] - starts[b]);
+        }
+
+        private void mergeSort(int[] order, int[] buffer, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            mergeSort(order, buffer, from, mid);
+            mergeSort(order, buffer, mid, to);
+            if (compareEntries(order[mid - 1], order[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(order, from, buffer, from, to - from);
+            int i = from;
+            int j = mid;
+            for (int k = from; k < to; k++) {
+                if (j >= to || (i < mid && compareEntries(buffer[i], buffer[j]) <= 0)) {
+                    order[k] = buffer[i++];
+                } else {
+                    order[k] = buffer[j++];
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads DER elements from a stream. After startDigest all bytes read are
+     * passed to the digest. Bytes read before are captured and passed to the
+     * digest when it is started.
+     */
+    private static class DerReader {
+        private final InputStream in;
+        private final byte[] skipBuffer = new byte[8192];
+        private MessageDigest digest;
+        private ByteArrayOutputStream capture;
+        long position;
+
+        DerReader(InputStream in) {
+            this.in = in;
+        }
+
+        int readTag() throws IOException, CRLException {
+            int tag = read();
+            if ((tag & 0x1f) == 0x1f) {
+                throw new CRLException("unsupported tag " + tag);
+            }
+            return tag;
+        }
+
+        void expect(int tag) throws IOException, CRLException {
+            int actual = readTag();
+            if (actual != tag) {
+                throw new CRLException("unexpected tag " + actual + ", expected " + tag);
+            }
+        }
+
+        int readLength() throws IOException, CRLException {
+            int b = read();
+            if (b < 0x80) {
+                return b;
+            }
+            int count = b & 0x7f;
+            if (count == 0 || count > 4) {
+                throw new CRLException("unsupported length encoding");
+            }
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                length = (length << 8) | read();
+            }
+            if (length < 0) {
+                throw new CRLException("invalid length");
+            }
+            return length;
+        }
+
+        byte[] readBytes(int length) throws IOException {
+            byte[] result = new byte[length];
+            readFully(result, length);
+            return result;
+        }
+
+        /**
+         * Reads an element with the given tag and returns its DER encoding
+         */
+        byte[] readElement(int tag) throws IOException, CRLException {
+            int length = readLength();
+            byte[] content = readBytes(length);
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length + 6);
+            result.write(tag);
+            if (length < 0x80) {
+                result.write(length);
+            } else {
+                int count = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+                result.write(0x80 | count);
+                for (int i = count - 1; i >= 0; i--) {
+                    result.write(length >>> (8 * i));
+                }
+            }
+            result.write(content, 0, content.length);
+            return result.toByteArray();
+        }
+
+        void skip(long length) throws IOException {
+            while (length > 0) {
+                int n = (int) Math.min(length, skipBuffer.length);
+                readFully(skipBuffer, n);
+                length -= n;
+            }
+        }
+
+        void startCapture() {
+            capture = new ByteArrayOutputStream();
+        }
+
+        void startDigest(MessageDigest messageDigest) {
+            messageDigest.update(capture.toByteArray());
+            capture = null;
+            digest = messageDigest;
+        }
+
+        byte[] stopDigest() {
+            byte[] result = digest.digest();
+            digest = null;
+            return result;
+        }
+
+        private int read() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("unexpected end of CRL");
+            }
+            position++;
+            if (digest != null) {
+                digest.update((byte) b);
+            } else if (capture != null) {
+                capture.write(b);
+            }
+            return b;
+        }
+
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                int n = in.read(buffer, offset, length - offset);
+                if (n < 0) {
+                    throw new EOFException("unexpected end of CRL");
+                }
+                offset += n;
+            }
+            position += length;
+            if (digest != null) {
+                digest.update(buffer, 0, length);
+            } else if (capture != null) {
+                capture.write(buffer, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.cert;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+
+/**
+ * The OcspBatchClient collects the OCSP requests for the same responder URL
+ * within a short window and sends them as one OCSP request with several
+ * CertificateIDs. The response with all single responses is returned to each
+ * waiting request. This reduces the number of round trips if many documents
+ * signed by certificates of the same CA are verified at the same time.
+ * <p>
+ * The first request for a responder opens a batch and waits up to
+ * SIGNATURE_OCSP_BATCH_WINDOW milliseconds for further requests. The batch is
+ * sent earlier when SIGNATURE_OCSP_BATCH_SIZE certificates are collected. If
+ * the request has a nonce, it is shared by all certificates of the batch.
+ * <p>
+ * Some responders answer only the first CertificateID of a request. The
+ * CertificateIDs missing in the response of a batch are requested again with a
+ * single request each.
+ * <p>
+ * The client supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_OCSP_BATCH_WINDOW - time in milliseconds to collect requests
+ * for the same responder. 0 disables batching (default 0)</li>
+ * <li>SIGNATURE_OCSP_BATCH_SIZE - max number of certificates per request
+ * (default 50)</li>
+ * </ul>
+ * The values are injected by the ConfigService when the application starts.
+ *
+ * @see OcspHelper
+ * @see org.imixs.signature.service.ConfigService
+ * @author rsoika
+ * @version 1.0
+ */
+public final class OcspBatchClient {
+
+    public final static String ENV_SIGNATURE_OCSP_BATCH_WINDOW = "signature.ocsp.batch.window";
+    public final static String ENV_SIGNATURE_OCSP_BATCH_SIZE = "signature.ocsp.batch.size";
+
+    private static final Map<String, Batch> pending = new HashMap<String, Batch>();
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong certificates = new AtomicLong();
+    private static volatile long batchWindow = 0;
+    private static volatile int batchSize = 50;
+
+    private static Logger logger = Logger.getLogger(OcspBatchClient.class.getName());
+
+    private OcspBatchClient() {
+    }
+
+    /**
+     * Returns the batch window in milliseconds
+     *
+     * @return SIGNATURE_OCSP_BATCH_WINDOW, 0 if batching is disabled
+     */
+    public static long getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Returns the max number of certificates per request
+     *
+     * @return SIGNATURE_OCSP_BATCH_SIZE
+     */
+    public static int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the batch window and the max number of certificates per request
+     *
+     * @param window SIGNATURE_OCSP_BATCH_WINDOW, 0 disables batching
+     * @param size   SIGNATURE_OCSP_BATCH_SIZE
+     */
+    public static void configure(long window, int size) {
+        batchWindow = window;
+        batchSize = size;
+    }
+
+    /**
+     * Adds a CertificateID to the pending batch of the responder and waits for
+     * the response of the batch.
+     *
+     * @param ocspUrl  the responder URL
+     * @param certId   the CertificateID of the checked certificate
+     * @param useNonce true if the request should contain a nonce
+     * @param window   time in milliseconds to collect requests
+     * @param maxSize  max number of certificates per request
+     * @return the response and the nonce of the request answering the
+     *         CertificateID
+     * @throws IOException
+     * @throws OCSPException
+     */
+    public static Result request(String ocspUrl, CertificateID certId, boolean useNonce, long window,
+            int maxSize) throws IOException, OCSPException {
+        // requests with and without nonce are not mixed
+        String key = (useNonce ? "nonce:" : "") + ocspUrl;
+        Batch batch;
+        CompletableFuture<Result> result;
+        boolean leader = false;
+        synchronized (pending) {
+            batch = pending.get(key);
+            if (batch == null) {
+                batch = new Batch(ocspUrl, useNonce);
+                pending.put(key, batch);
+                leader = true;
+            }
+            result = batch.add(certId);
+            if (batch.isFull(maxSize)) {
+                pending.remove(key);
+            }
+        }
+        if (leader) {
+            batch.awaitClose(window);
+            synchronized (pending) {
+                pending.remove(key, batch);
+            }
+            batch.send();
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof OCSPException) {
+                throw (OCSPException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the number of OCSP requests sent by the batch client
+     *
+     * @return count of requests
+     */
+    public static long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of certificates checked by the batch client
+     *
+     * @return count of certificates
+     */
+    public static long getCertificateCount() {
+        return certificates.get();
+    }
+
+    /**
+     * Resets the statistics
+     */
+    public static void clear() {
+        requests.set(0);
+        certificates.set(0);
+    }
+
+    /**
+     * The response of a batch request and the nonce sent with the request
+     */
+    public static class Result {
+        private final OCSPResp response;
+        private final DEROctetString nonce;
+
+        Result(OCSPResp response, DEROctetString nonce) {
+            this.response = response;
+            this.nonce = nonce;
+        }
+
+        public OCSPResp getResponse() {
+            return response;
+        }
+
+        /**
+         * Returns the encoded nonce of the request
+         *
+         * @return nonce or null if the request had no nonce
+         */
+        public DEROctetString getNonce() {
+            return nonce;
+        }
+    }
+
+    /**
+     * The CertificateIDs collected for one responder
+     */
+    private static class Batch {
+        private final String ocspUrl;
+        private final boolean useNonce;
+        private final Map<CertificateID, CompletableFuture<Result>> results = new LinkedHashMap<CertificateID, CompletableFuture<Result>>();
+        private boolean closed;
+
+        Batch(String ocspUrl, boolean useNonce) {
+            this.ocspUrl = ocspUrl;
+            this.useNonce = useNonce;
+        }
+
+        /**
+         * Adds a CertificateID and returns the future result for it
+         */
+        synchronized CompletableFuture<Result> add(CertificateID certId) {
+            CompletableFuture<Result> result = results.get(certId);
+            if (result == null) {
+                result = new CompletableFuture<Result>();
+                results.put(certId, result);
+            }
+            return result;
+        }
+
+        /**
+         * Returns true if the batch is full. A full batch is closed.
+         */
+        synchronized boolean isFull(int maxSize) {
+            if (results.size() >= maxSize) {
+                closed = true;
+                notifyAll();
+            }
+            return closed;
+        }
+
+        /**
+         * Waits until the batch is full or the window is over
+         */
+        synchronized void awaitClose(long window) {
+            long deadline = System.currentTimeMillis() + window;
+            try {
+                long wait;
+                while (!closed && (wait = deadline - System.currentTimeMillis()) > 0) {
+                    wait(wait);
+                }
+            } catch (InterruptedException e) {
+                // send the batch now, the other requests are waiting for it
+                Thread.currentThread().interrupt();
+            } finally {
+                closed = true;
+            }
+        }
+
+        /**
+         * Sends the batch request. CertificateIDs missing in the response are
+         * requested again with a single request each.
+         */
+        void send() {
+            List<CertificateID> ids;
+            synchronized (this) {
+                ids = new ArrayList<CertificateID>(results.keySet());
+            }
+            Result batchResult;
+            try {
+                batchResult = post(ids);
+                certificates.addAndGet(ids.size());
+                logger.fine("......OCSP request for " + ids.size() + " certificates sent to " + ocspUrl);
+            } catch (IOException | OCSPException | RuntimeException e) {
+                for (CertificateID certId : ids) {
+                    results.get(certId).completeExceptionally(e);
+                }
+                return;
+            }
+            Set<CertificateID> answered = getCertificateIDs(batchResult.getResponse());
+            for (CertificateID certId : ids) {
+                if (ids.size() == 1 || answered == null || answered.contains(certId)) {
+                    results.get(certId).complete(batchResult);
+                    continue;
+                }
+                logger.fine("......OCSP responder " + ocspUrl + " answered only " + answered.size() + " of "
+                        + ids.size() + " certificates, request " + certId.getSerialNumber() + " again");
+                try {
+                    results.get(certId).complete(post(Collections.singletonList(certId)));
+                } catch (IOException | OCSPException | RuntimeException e) {
+                    results.get(certId).completeExceptionally(e);
+                }
+            }
+        }
+
+        private Result post(List<CertificateID> ids) throws IOException, OCSPException {
+            DEROctetString nonce = useNonce ? OcspHelper.createEncodedNonce() : null;
+            OCSPResp response = OcspHelper.postRequest(ocspUrl, OcspHelper.generateOCSPRequest(ids, nonce));
+            requests.incrementAndGet();
+            return new Result(response, nonce);
+        }
+
+        /**
+         * Returns the CertificateIDs of the single responses or null if the
+         * response is not a successful basic response. In this case the response
+         * is returned to all requests and the error is reported by the OcspHelper.
+         */
+        private static Set<CertificateID> getCertificateIDs(OCSPResp response) {
+            if (response.getStatus() != OCSPResp.SUCCESSFUL) {
+                return null;
+            }
+            try {
+                Object responseObject = response.getResponseObject();
+                if (!(responseObject instanceof BasicOCSPResp)) {
+                    return null;
+                }
+                Set<CertificateID> result = new HashSet<CertificateID>();
+                for (SingleResp singleResp : ((BasicOCSPResp) responseObject).getResponses()) {
+                    result.add(singleResp.getCertID());
+                }
+                return result;
+            } catch (OCSPException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.cert;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.SingleResp;
+
+/**
+ * The OcspCache is a process wide cache of OCSP responses keyed by the
+ * CertificateID of the checked certificate.
+ * <p>
+ * A response is stored after it was verified by the {@link OcspHelper} and is
+ * served until the nextUpdate of its single response. Responses without a
+ * nextUpdate are not cached. A response echoing the nonce of a request is bound
+ * to that request and is not cached either.
+ * <p>
+ * With SIGNATURE_OCSP_NONCE=false requests are sent without a nonce. The
+ * responses can then be shared, and concurrent requests for the same
+ * certificate are collapsed into one request. A cached response is verified
+ * based on its thisUpdate and nextUpdate (RFC 5019).
+ * <p>
+ * The cache supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_OCSP_NONCE - send OCSP requests with a nonce (default
+ * true)</li>
+ * </ul>
+ * The value is injected by the ConfigService when the application starts.
+ *
+ * @see OcspHelper
+ * @see org.imixs.signature.service.ConfigService
+ * @author rsoika
+ * @version 1.0
+ */
+public final class OcspCache {
+
+    public final static String ENV_SIGNATURE_OCSP_NONCE = "signature.ocsp.nonce";
+
+    private static final Map<CertificateID, Entry> cache = new ConcurrentHashMap<CertificateID, Entry>();
+    private static final Map<CertificateID, FutureTask<OCSPResp>> loading = new ConcurrentHashMap<CertificateID, FutureTask<OCSPResp>>();
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong collapsed = new AtomicLong();
+    private static volatile boolean nonceEnabled = true;
+
+    private static Logger logger = Logger.getLogger(OcspCache.class.getName());
+
+    private OcspCache() {
+    }
+
+    /**
+     * Returns true if OCSP requests are sent with a nonce
+     *
+     * @return SIGNATURE_OCSP_NONCE
+     */
+    public static boolean isNonceEnabled() {
+        return nonceEnabled;
+    }
+
+    /**
+     * Sets whether OCSP requests are sent with a nonce
+     *
+     * @param enabled SIGNATURE_OCSP_NONCE
+     */
+    public static void setNonceEnabled(boolean enabled) {
+        nonceEnabled = enabled;
+    }
+
+    /**
+     * Returns a fresh cached response for the given CertificateID or performs the
+     * request. If shared is true, concurrent requests for the same CertificateID
+     * wait for the same request.
+     * <p>
+     * The returned response is not verified. The caller has to verify it and
+     * store it with {@link #putResponse(CertificateID, OCSPResp)}.
+     *
+     * @param certId  the CertificateID of the checked certificate
+     * @param shared  true if the response of the request can be shared
+     * @param request performs the OCSP request
+     * @return the OCSP response
+     * @throws IOException
+     * @throws OCSPException
+     */
+    public static OCSPResp getResponse(CertificateID certId, boolean shared, Callable<OCSPResp> request)
+            throws IOException, OCSPException {
+        Entry entry = cache.get(certId);
+        if (entry != null) {
+            if (!entry.isExpired()) {
+                hits.incrementAndGet();
+                return entry.response;
+            }
+            cache.remove(certId, entry);
+        }
+        if (!shared) {
+            misses.incrementAndGet();
+            return call(request);
+        }
+        FutureTask<OCSPResp> task = new FutureTask<OCSPResp>(request);
+        FutureTask<OCSPResp> running = loading.putIfAbsent(certId, task);
+        if (running == null) {
+            misses.incrementAndGet();
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(certId, task);
+            }
+        } else {
+            collapsed.incrementAndGet();
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        }
+    }
+
+    /**
+     * Stores a verified OCSP response. The response is cached until the
+     * nextUpdate of the single response for the given CertificateID. Responses
+     * without a nextUpdate or with a nonce are ignored.
+     *
+     * @param certId   the CertificateID of the checked certificate
+     * @param response the verified OCSP response
+     */
+    public static void putResponse(CertificateID certId, OCSPResp response) {
+        try {
+            BasicOCSPResp basicResponse = (BasicOCSPResp) response.getResponseObject();
+            if (basicResponse == null
+                    || basicResponse.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce) != null) {
+                return;
+            }
+            for (SingleResp singleResp : basicResponse.getResponses()) {
+                if (certId.equals(singleResp.getCertID())) {
+                    Date nextUpdate = singleResp.getNextUpdate();
+                    if (nextUpdate != null && nextUpdate.getTime() > System.currentTimeMillis()) {
+                        cache.put(certId, new Entry(response, nextUpdate.getTime()));
+                        logger.fine("......cached OCSP response for serial " + certId.getSerialNumber()
+                                + " - next update " + nextUpdate);
+                    }
+                    return;
+                }
+            }
+        } catch (OCSPException e) {
+            logger.warning("Failed to cache OCSP response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the number of lookups served from the cache
+     *
+     * @return count of cache hits
+     */
+    public static long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of OCSP requests sent
+     *
+     * @return count of cache misses
+     */
+    public static long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of lookups that waited for a concurrent request
+     *
+     * @return count of collapsed requests
+     */
+    public static long getCollapsedCount() {
+        return collapsed.get();
+    }
+
+    /**
+     * Returns the share of lookups answered without an own OCSP request
+     *
+     * @return hit rate between 0 and 1
+     */
+    public static double getHitRate() {
+        long saved = hits.get() + collapsed.get();
+        long total = saved + misses.get();
+        return total == 0 ? 0 : (double) saved / total;
+    }
+
+    /**
+     * Returns the number of cached OCSP responses
+     *
+     * @return count of cached responses
+     */
+    public static int getCachedResponseCount() {
+        return cache.size();
+    }
+
+    /**
+     * Removes all cached responses and resets the statistics
+     */
+    public static void clear() {
+        cache.clear();
+        hits.set(0);
+        misses.set(0);
+        collapsed.set(0);
+    }
+
+    private static OCSPResp call(Callable<OCSPResp> request) throws IOException, OCSPException {
+        try {
+            return request.call();
+        } catch (Exception e) {
+            throw unwrap(e);
+        }
+    }
+
+    private static IOException unwrap(Throwable cause) throws OCSPException {
+        if (cause instanceof OCSPException) {
+            throw (OCSPException) cause;
+        }
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        return new IOException(cause);
+    }
+
+    /**
+     * A cached OCSP response
+     */
+    private static class Entry {
+        private final OCSPResp response;
+        private final long expires;
+
+        Entry(OCSPResp response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+    }
+}
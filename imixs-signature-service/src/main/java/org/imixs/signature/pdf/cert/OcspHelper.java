@@ -32,7 +32,9 @@ import java.security.cert.CertificateParsingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Random;
 import java.util.Set;
 
@@ -85,6 +87,7 @@ public class OcspHelper
     private final String ocspUrl;
     private DEROctetString encodedNonce;
     private X509Certificate ocspResponderCertificate;
+    private SingleResp singleResponse;
     private final JcaX509CertificateConverter certificateConverter = new JcaX509CertificateConverter();
     
     // SecureRandom.getInstanceStrong() would be better, but sometimes blocks on Linux
@@ -132,8 +135,22 @@ public class OcspHelper
      */
     public OCSPResp getResponseOcsp() throws IOException, OCSPException, RevokedCertificateException
     {
-        OCSPResp ocspResponse = performRequest();
-        verifyOcspResponse(ocspResponse);
+        final CertificateID certId = generateCertificateID();
+        // responses to requests without a nonce can be shared with concurrent requests
+        final boolean useNonce = OcspCache.isNonceEnabled();
+        final long batchWindow = OcspBatchClient.getBatchWindow();
+        OCSPResp ocspResponse = OcspCache.getResponse(certId, !useNonce, () -> {
+            if (batchWindow > 0)
+            {
+                // collect the requests for the same responder into one request
+                OcspBatchClient.Result result = OcspBatchClient.request(ocspUrl, certId, useNonce,
+                        batchWindow, OcspBatchClient.getBatchSize());
+                encodedNonce = result.getNonce();
+                return result.getResponse();
+            }
+            return performRequest(certId, useNonce);
+        });
+        verifyOcspResponse(ocspResponse, certId);
         return ocspResponse;
     }
 
@@ -148,15 +165,29 @@ public class OcspHelper
         return ocspResponderCertificate;
     }
 
+    /**
+     * Get the single response for the certificate to check. This is available after
+     * {@link #getResponseOcsp()} has been called. A response to a batch request contains
+     * the single responses of several certificates.
+     *
+     * @return The single response of the certificate to check.
+     */
+    public SingleResp getSingleResponse()
+    {
+        return singleResponse;
+    }
+
     /**
      * Verifies the status and the response itself (including nonce), but not the signature.
+     * A verified response is stored in the {@link OcspCache}.
      * 
      * @param ocspResponse to be verified
+     * @param certId the CertificateID of the checked certificate
      * @throws OCSPException
      * @throws RevokedCertificateException
      * @throws IOException if the default security provider can't be instantiated
      */
-    private void verifyOcspResponse(OCSPResp ocspResponse)
+    private void verifyOcspResponse(OCSPResp ocspResponse, CertificateID certId)
             throws OCSPException, RevokedCertificateException, IOException
     {
         verifyRespStatus(ocspResponse);
@@ -210,14 +241,22 @@ public class OcspHelper
 
             boolean nonceChecked = checkNonce(basicResponse);
 
-            SingleResp[] responses = basicResponse.getResponses();
-            if (responses.length != 1)
+            // a response to a batch request contains several single responses
+            SingleResp resp = null;
+            for (SingleResp candidate : basicResponse.getResponses())
             {
-                throw new OCSPException(
-                        "OCSP: Received " + responses.length + " responses instead of 1!");
+                if (certId.equals(candidate.getCertID()))
+                {
+                    resp = candidate;
+                    break;
+                }
             }
-
-            SingleResp resp = responses[0];
+            if (resp == null)
+            {
+                throw new OCSPException("OCSP: Received no response for serial number " +
+                        certId.getSerialNumber());
+            }
+            singleResponse = resp;
             Object status = resp.getCertStatus();
 
             if (!nonceChecked)
@@ -226,6 +265,7 @@ public class OcspHelper
                 // fall back to validating the OCSPResponse based on time
                 checkOcspResponseFresh(resp);
             }
+            OcspCache.putResponse(certId, ocspResponse);
 
             if (status instanceof RevokedStatus)
             {
@@ -448,13 +488,28 @@ public class OcspHelper
     /**
      * Performs the OCSP-Request, with given data.
      * 
+     * @param certId the CertificateID of the checked certificate
+     * @param useNonce true if the request should contain a nonce
      * @return the OCSPResp, that has been fetched from the ocspUrl
      * @throws IOException
      * @throws OCSPException
      */
-    private OCSPResp performRequest() throws IOException, OCSPException
+    private OCSPResp performRequest(CertificateID certId, boolean useNonce) throws IOException, OCSPException
+    {
+        encodedNonce = useNonce ? createEncodedNonce() : null;
+        return postRequest(ocspUrl, generateOCSPRequest(Collections.singletonList(certId), encodedNonce));
+    }
+
+    /**
+     * Sends an OCSP-Request to the given url.
+     * 
+     * @param ocspUrl where to fetch for OCSP
+     * @param request the OCSP request
+     * @return the OCSPResp, that has been fetched from the ocspUrl
+     * @throws IOException
+     */
+    static OCSPResp postRequest(String ocspUrl, OCSPReq request) throws IOException
     {
-        OCSPReq request = generateOCSPRequest();
         URL url = new URL(ocspUrl);
         HttpURLConnection httpConnection = (HttpURLConnection) url.openConnection();
         try
@@ -534,21 +589,20 @@ public class OcspHelper
     }
 
     /**
-     * Generates an OCSP request and generates the <code>CertificateID</code>.
+     * Generates the <code>CertificateID</code> of the certificate to check.
      *
-     * @return OCSP request, ready to fetch data
+     * @return the CertificateID
      * @throws OCSPException
      * @throws IOException
      */
-    private OCSPReq generateOCSPRequest() throws OCSPException, IOException
+    private CertificateID generateCertificateID() throws OCSPException, IOException
     {
         Security.addProvider(SecurityProvider.getProvider());
 
         // Generate the ID for the certificate we are looking for
-        CertificateID certId;
         try
         {
-            certId = new CertificateID(new SHA1DigestCalculator(),
+            return new CertificateID(new SHA1DigestCalculator(),
                     new JcaX509CertificateHolder(issuerCertificate),
                     certificateToCheck.getSerialNumber());
         }
@@ -556,7 +610,20 @@ public class OcspHelper
         {
             throw new IOException("Error creating CertificateID with the Certificate encoding", e);
         }
+    }
 
+    /**
+     * Generates an OCSP request for the given <code>CertificateID</code>s.
+     *
+     * @param certIds the CertificateIDs of the checked certificates
+     * @param nonce the encoded nonce or null if the request should not contain a nonce
+     * @return OCSP request, ready to fetch data
+     * @throws OCSPException
+     * @throws IOException
+     */
+    static OCSPReq generateOCSPRequest(List<CertificateID> certIds, DEROctetString nonce)
+            throws OCSPException, IOException
+    {
         // https://tools.ietf.org/html/rfc2560#section-4.1.2
         // Support for any specific extension is OPTIONAL. The critical flag
         // SHOULD NOT be set for any of them.
@@ -564,22 +631,38 @@ public class OcspHelper
         Extension responseExtension = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_response,
                 false, new DLSequence(OCSPObjectIdentifiers.id_pkix_ocsp_basic).getEncoded());
 
-        encodedNonce = new DEROctetString(new DEROctetString(create16BytesNonce()));
-        Extension nonceExtension = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false,
-                encodedNonce);
+        Extension[] extensions;
+        if (nonce != null)
+        {
+            Extension nonceExtension = new Extension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce, false,
+                    nonce);
+            extensions = new Extension[] { responseExtension, nonceExtension };
+        }
+        else
+        {
+            // a response to a request without nonce can be cached and shared (RFC 5019)
+            extensions = new Extension[] { responseExtension };
+        }
 
         OCSPReqBuilder builder = new OCSPReqBuilder();
-        builder.setRequestExtensions(
-                new Extensions(new Extension[] { responseExtension, nonceExtension }));
-        builder.addRequest(certId);
+        builder.setRequestExtensions(new Extensions(extensions));
+        for (CertificateID certId : certIds)
+        {
+            builder.addRequest(certId);
+        }
         return builder.build();
     }
 
-    private byte[] create16BytesNonce()
+    /**
+     * Creates the encoded value of a nonce extension with 16 random bytes.
+     *
+     * @return the nonce
+     */
+    static DEROctetString createEncodedNonce() throws IOException
     {
         byte[] nonce = new byte[16];
         RANDOM.nextBytes(nonce);
-        return nonce;
+        return new DEROctetString(new DEROctetString(nonce));
     }
 
     /**
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.util;
+
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The FailoverTSAClient sends timestamp requests to a list of TSA endpoints.
+ * <p>
+ * For each request the endpoints are ordered by the score of their
+ * TSAHttpTransport, so the fastest healthy endpoint is tried first. Endpoints
+ * with an open circuit breaker are skipped. If the request
+ * fails, the next endpoint is tried. If the request is slower than the hedge
+ * percentile of the endpoint latency, one hedged request is sent to the next
+ * endpoint and the first token received is returned.
+ * <p>
+ * The client supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_TSA_HEDGE_PERCENTILE - latency percentile of an endpoint after
+ * which a hedged request is sent, 0 disables hedging (default 95)</li>
+ * <li>SIGNATURE_TSA_REQUEST_THREADS - maximum number of threads sending
+ * timestamp requests for all clients (default 32)</li>
+ * </ul>
+ * The values are injected by the ConfigService when the application starts.
+ *
+ * @see TSAHttpTransport
+ * @see org.imixs.signature.service.ConfigService
+ * @author rsoika
+ * @version 1.0
+ */
+public class FailoverTSAClient extends TSAClient {
+
+    public final static String ENV_SIGNATURE_TSA_HEDGE_PERCENTILE = "signature.tsa.hedge.percentile";
+    public final static String ENV_SIGNATURE_TSA_REQUEST_THREADS = "signature.tsa.request.threads";
+
+    // requests are executed in a bounded pool of daemon threads, a request not
+    // needed anymore completes in the background and is recorded in the
+    // statistics. The pool is created with the first request.
+    private static ThreadPoolExecutor executor;
+    private static volatile int defaultHedgePercentile = 95;
+    private static volatile int requestThreads = 32;
+
+    private final List<TSAClient> clients = new ArrayList<TSAClient>();
+    private final int hedgePercentile;
+
+    private static Logger logger = Logger.getLogger(FailoverTSAClient.class.getName());
+
+    /**
+     * @param urls     list of TSA urls
+     * @param username user name of TSA
+     * @param password password of TSA
+     * @param digest   the message digest to use
+     */
+    public FailoverTSAClient(List<URL> urls, String username, String password, MessageDigest digest) {
+        super(urls.get(0), username, password, digest);
+        for (URL url : urls) {
+            clients.add(new TSAClient(url, username, password, digest));
+        }
+        hedgePercentile = defaultHedgePercentile;
+    }
+
+    /**
+     * Sets the configuration of the clients. The number of request threads
+     * applies only if no request was sent yet.
+     *
+     * @param hedgePercentile SIGNATURE_TSA_HEDGE_PERCENTILE
+     * @param threads         SIGNATURE_TSA_REQUEST_THREADS
+     */
+    public static void configure(int hedgePercentile, int threads) {
+        defaultHedgePercentile = hedgePercentile;
+        requestThreads = threads;
+    }
+
+    @Override
+    public byte[] getTimeStampTokenForDigest(byte[] hash) throws IOException {
+        List<TSAClient> ordered = getOrderedClients();
+        if (ordered.isEmpty()) {
+            throw new IOException("no TSA available - all circuit breakers are open");
+        }
+        CompletionService<byte[]> completionService = new ExecutorCompletionService<byte[]>(getExecutor());
+        int next = 0;
+        int running = 0;
+        boolean hedged = hedgePercentile <= 0;
+        IOException lastException = null;
+
+        if (!submit(completionService, ordered.get(next++), hash)) {
+            throw new IOException("too many pending TSA requests");
+        }
+        running++;
+        long hedgeDelay = TSAHttpTransport.getInstance(ordered.get(0).getURL()).getSlowThreshold(hedgePercentile);
+        try {
+            while (running > 0) {
+                Future<byte[]> future;
+                if (!hedged && next < ordered.size()) {
+                    future = completionService.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        // the request is slow - send a hedged request to the next endpoint
+                        logger.fine("......TSA request exceeds " + hedgeDelay + "ms - hedging to "
+                                + ordered.get(next).getURL().getHost());
+                        hedged = true;
+                        if (submit(completionService, ordered.get(next++), hash)) {
+                            running++;
+                        }
+                        continue;
+                    }
+                } else {
+                    future = completionService.take();
+                }
+                running--;
+                try {
+                    return future.get();
+                } catch (ExecutionException e) {
+                    lastException = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                            : new IOException(e.getCause());
+                    logger.warning("...TSA request failed: " + lastException.getMessage());
+                    if (running == 0 && next < ordered.size()) {
+                        // fail over to the next endpoint
+                        if (submit(completionService, ordered.get(next++), hash)) {
+                            running++;
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for TSA", e);
+        }
+        throw lastException;
+    }
+
+    /**
+     * Submits a request. Returns false if the request was rejected because the
+     * queue of the executor is full.
+     */
+    private boolean submit(CompletionService<byte[]> completionService, TSAClient client, byte[] hash) {
+        try {
+            completionService.submit(() -> client.getTimeStampTokenForDigest(hash));
+            return true;
+        } catch (RejectedExecutionException e) {
+            logger.warning("...TSA request to " + client.getURL().getHost() + " rejected - too many pending requests");
+            return false;
+        }
+    }
+
+    /**
+     * Returns the clients with a closed or half open circuit breaker ordered by
+     * the score of their transport
+     */
+    private List<TSAClient> getOrderedClients() {
+        List<TSAClient> result = new ArrayList<TSAClient>();
+        for (TSAClient client : clients) {
+            if (getTransport(client).isAvailable()) {
+                result.add(client);
+            }
+        }
+        result.sort(Comparator.comparingDouble(client -> getTransport(client).getScore()));
+        return result;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = createExecutor(requestThreads);
+        }
+        return executor;
+    }
+
+    /**
+     * Creates a pool of daemon threads with the given maximum size. Idle threads
+     * are terminated after one minute.
+     */
+    private static ThreadPoolExecutor createExecutor(int threads) {
+        threads = Math.max(1, threads);
+        ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 16), runnable -> {
+                    Thread thread = new Thread(runnable, "tsa-request");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    private static TSAHttpTransport getTransport(TSAClient client) {
+        return TSAHttpTransport.getInstance(client.getURL());
+    }
+}
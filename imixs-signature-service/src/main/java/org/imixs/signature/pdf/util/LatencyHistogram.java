@@ -0,0 +1,113 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram counts request latencies in fixed buckets. The buckets
+ * grow roughly exponentially from 5ms up to 60s, so a percentile is estimated
+ * with the upper bound of its bucket. Recording is lock free and can be called
+ * concurrently.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class LatencyHistogram {
+
+    // upper bounds of the buckets in milliseconds, the last bucket is unbounded
+    private static final long[] BOUNDS = { 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000 };
+
+    private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records the latency of a successful request
+     *
+     * @param millis latency in milliseconds
+     */
+    public void record(long millis) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) {
+            i++;
+        }
+        counts.incrementAndGet(i);
+        total.incrementAndGet();
+        long current;
+        while (millis > (current = max.get()) && !max.compareAndSet(current, millis)) {
+            // retry
+        }
+    }
+
+    /**
+     * Records a failed request
+     */
+    public void recordError() {
+        errors.incrementAndGet();
+    }
+
+    public long getCount() {
+        return total.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the estimated latency for the given percentile. The value is the
+     * upper bound of the bucket containing the percentile, or the maximum
+     * latency for the last bucket.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in milliseconds or 0 if no request was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = total.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long sum = 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            sum += counts.get(i);
+            if (sum >= rank) {
+                return Math.min(BOUNDS[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requests=" + getCount() + " errors=" + getErrors() + " p50=" + getPercentile(50) + "ms p95="
+                + getPercentile(95) + "ms p99=" + getPercentile(99) + "ms max=" + getMax() + "ms";
+    }
+}
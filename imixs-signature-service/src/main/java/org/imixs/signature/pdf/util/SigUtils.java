@@ -169,6 +169,21 @@ public class SigUtils {
 		permsDict.setNeedToBeUpdated(true);
 	}
 
+	/**
+	 * Creates the signature dictionary of a document timestamp (DocTimeStamp) as
+	 * used by PAdES B-LTA. The /Contents have to be filled with a RFC 3161
+	 * timestamp token of the byte range digest.
+	 *
+	 * @return the signature dictionary
+	 */
+	public static PDSignature createDocumentTimeStamp() {
+		PDSignature signature = new PDSignature();
+		signature.setType(COSName.DOC_TIME_STAMP);
+		signature.setFilter(PDSignature.FILTER_ADOBE_PPKLITE);
+		signature.setSubFilter(COSName.getPDFName("ETSI.RFC3161"));
+		return signature;
+	}
+
 	/**
 	 * Log if the certificate is not valid for signature usage. Doing this anyway
 	 * results in Adobe Reader failing to validate the PDF.
@@ -0,0 +1,362 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,
+ *  http://www.imixs.com
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ *  General Public License for more details.
+ *
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *
+ *  Contributors:
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.pdf.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The TSAHttpTransport sends timestamp requests to a TSA host.
+ * <p>
+ * One transport exists per TSA host and port. The number of concurrent
+ * requests to a host is bounded by a semaphore, and each request has a connect
+ * and a read timeout. So a slow or unreachable TSA fails a request after the
+ * timeout instead of blocking the signing threads. The response is always read
+ * completely and the stream is closed, so the JDK keeps the connection alive
+ * and reuses it for the next request to the same host.
+ * <p>
+ * The latency of each request is recorded in a LatencyHistogram per host. In
+ * addition a moving average of the latency and the error rate is computed,
+ * which is used to select the fastest healthy TSA if more than one TSA is
+ * configured. After a number of consecutive failures the circuit breaker of a
+ * host opens and requests to the host fail immediately until the cool down
+ * period has passed. Then the breaker is half open and a single probe request
+ * is let through, while other requests still fail immediately. A failure of
+ * the probe reopens the breaker, a success closes it.
+ * <p>
+ * The transport supports the following environment variables:
+ * <ul>
+ * <li>SIGNATURE_TSA_CONNECT_TIMEOUT - connect timeout in milliseconds (default
+ * 5000)</li>
+ * <li>SIGNATURE_TSA_READ_TIMEOUT - read timeout in milliseconds (default
+ * 30000)</li>
+ * <li>SIGNATURE_TSA_MAX_CONNECTIONS - maximum number of concurrent requests per
+ * TSA host (default 8)</li>
+ * <li>SIGNATURE_TSA_BREAKER_FAILURES - number of consecutive failures opening
+ * the circuit breaker of a host (default 5)</li>
+ * <li>SIGNATURE_TSA_BREAKER_COOLDOWN - time in milliseconds a host is skipped
+ * after the circuit breaker opened (default 30000)</li>
+ * </ul>
+ * The values are injected by the ConfigService when the application starts.
+ *
+ * @see TSAClient
+ * @see FailoverTSAClient
+ * @see org.imixs.signature.service.ConfigService
+ * @author rsoika
+ * @version 1.0
+ */
+public class TSAHttpTransport {
+
+    public final static String ENV_SIGNATURE_TSA_CONNECT_TIMEOUT = "signature.tsa.connect.timeout";
+    public final static String ENV_SIGNATURE_TSA_READ_TIMEOUT = "signature.tsa.read.timeout";
+    public final static String ENV_SIGNATURE_TSA_MAX_CONNECTIONS = "signature.tsa.max.connections";
+    public final static String ENV_SIGNATURE_TSA_BREAKER_FAILURES = "signature.tsa.breaker.failures";
+    public final static String ENV_SIGNATURE_TSA_BREAKER_COOLDOWN = "signature.tsa.breaker.cooldown";
+
+    // weight of a new sample in the moving averages
+    private static final double SMOOTHING = 0.2;
+
+    // timestamp responses are a few kilobytes
+    private static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+    private static final Map<String, TSAHttpTransport> transports = new ConcurrentHashMap<String, TSAHttpTransport>();
+
+    private static volatile int defaultConnectTimeout = 5000;
+    private static volatile int defaultReadTimeout = 30000;
+    private static volatile int defaultMaxConnections = 8;
+    private static volatile int defaultBreakerFailures = 5;
+    private static volatile long defaultBreakerCooldown = 30000;
+
+    private final String host;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final Semaphore connections;
+    private final int breakerFailures;
+    private final long breakerCooldown;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile long openUntil = 0;
+    private volatile double averageLatency = 0;
+    private volatile double errorRate = 0;
+
+    private static Logger logger = Logger.getLogger(TSAHttpTransport.class.getName());
+
+    TSAHttpTransport(String host, int connectTimeout, int readTimeout, int maxConnections, int breakerFailures,
+            long breakerCooldown) {
+        super();
+        this.host = host;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.connections = new Semaphore(Math.max(1, maxConnections), true);
+        this.breakerFailures = Math.max(1, breakerFailures);
+        this.breakerCooldown = breakerCooldown;
+    }
+
+    /**
+     * Sets the configuration of the transports. The configuration applies to the
+     * transports created afterwards.
+     *
+     * @param connectTimeout  SIGNATURE_TSA_CONNECT_TIMEOUT
+     * @param readTimeout     SIGNATURE_TSA_READ_TIMEOUT
+     * @param maxConnections  SIGNATURE_TSA_MAX_CONNECTIONS
+     * @param breakerFailures SIGNATURE_TSA_BREAKER_FAILURES
+     * @param breakerCooldown SIGNATURE_TSA_BREAKER_COOLDOWN
+     */
+    public static void configure(int connectTimeout, int readTimeout, int maxConnections, int breakerFailures,
+            long breakerCooldown) {
+        defaultConnectTimeout = connectTimeout;
+        defaultReadTimeout = readTimeout;
+        defaultMaxConnections = maxConnections;
+        defaultBreakerFailures = breakerFailures;
+        defaultBreakerCooldown = breakerCooldown;
+    }
+
+    /**
+     * Returns the transport for the host of the given url
+     *
+     * @param url the TSA url
+     * @return the TSAHttpTransport
+     */
+    public static TSAHttpTransport getInstance(URL url) {
+        return transports.computeIfAbsent(getHost(url), host -> new TSAHttpTransport(host, defaultConnectTimeout,
+                defaultReadTimeout, defaultMaxConnections, defaultBreakerFailures, defaultBreakerCooldown));
+    }
+
+    /**
+     * Returns the latency histograms of all TSA hosts
+     *
+     * @return map of host and LatencyHistogram
+     */
+    public static Map<String, LatencyHistogram> getHistograms() {
+        Map<String, LatencyHistogram> result = new ConcurrentHashMap<String, LatencyHistogram>();
+        for (TSAHttpTransport transport : transports.values()) {
+            result.put(transport.host, transport.histogram);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * Returns false if the circuit breaker of the host is open, or half open with
+     * a probe request in progress
+     *
+     * @return true if requests can be sent to the host
+     */
+    public boolean isAvailable() {
+        long until = openUntil;
+        return until == 0 || (System.currentTimeMillis() >= until && !probing.get());
+    }
+
+    /**
+     * Returns the score used to select the fastest healthy host. The score is
+     * the moving average of the latency weighted by the error rate. A host
+     * without requests has the score 0, so it is tried first.
+     *
+     * @return score - lower is better
+     */
+    public double getScore() {
+        double latency = averageLatency;
+        if (latency == 0 && errorRate > 0) {
+            // no successful request yet
+            latency = readTimeout;
+        }
+        return latency * (1 + 10 * errorRate);
+    }
+
+    /**
+     * Returns the latency in milliseconds after which a request to this host is
+     * considered slow. This is the given percentile of the latency histogram. If
+     * not enough requests were recorded, the read timeout is returned.
+     *
+     * @param percentile percentile between 0 and 100
+     * @return latency in milliseconds
+     */
+    public long getSlowThreshold(double percentile) {
+        if (histogram.getCount() < 20) {
+            return readTimeout;
+        }
+        return Math.max(10, histogram.getPercentile(percentile));
+    }
+
+    /**
+     * Posts an encoded timestamp request and returns the encoded response.
+     *
+     * @param url      the TSA url
+     * @param request  the encoded TimeStampRequest
+     * @param username optional user name for basic authentication
+     * @param password optional password for basic authentication
+     * @return the encoded TimeStampResponse
+     * @throws IOException if the circuit breaker is open, or the request fails
+     *                     or times out
+     */
+    public byte[] post(URL url, byte[] request, String username, String password) throws IOException {
+        boolean probe = checkBreaker();
+        try {
+            try {
+                if (!connections.tryAcquire(connectTimeout + readTimeout, TimeUnit.MILLISECONDS)) {
+                    histogram.recordError();
+                    throw new IOException("too many concurrent requests to TSA " + host);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for TSA " + host, e);
+            }
+            long l = System.currentTimeMillis();
+            try {
+                byte[] response = send(url, request, username, password);
+                recordSuccess(System.currentTimeMillis() - l);
+                return response;
+            } catch (IOException e) {
+                recordFailure();
+                throw e;
+            } finally {
+                connections.release();
+            }
+        } finally {
+            if (probe) {
+                probing.set(false);
+            }
+        }
+    }
+
+    /**
+     * Fails fast if the circuit breaker is open. After the cool down period only
+     * one probe request is let through.
+     *
+     * @return true if the request is the probe of a half open breaker
+     * @throws IOException if the breaker is open or a probe is in progress
+     */
+    private boolean checkBreaker() throws IOException {
+        long until = openUntil;
+        if (until == 0) {
+            return false;
+        }
+        if (System.currentTimeMillis() < until) {
+            throw new IOException("circuit breaker of TSA " + host + " is open");
+        }
+        if (!probing.compareAndSet(false, true)) {
+            throw new IOException("circuit breaker of TSA " + host + " is half open - probe in progress");
+        }
+        logger.fine("......sending probe request to TSA " + host);
+        return true;
+    }
+
+    private void recordSuccess(long millis) {
+        histogram.record(millis);
+        averageLatency = averageLatency == 0 ? millis : averageLatency * (1 - SMOOTHING) + millis * SMOOTHING;
+        errorRate = errorRate * (1 - SMOOTHING);
+        consecutiveFailures.set(0);
+        openUntil = 0;
+    }
+
+    private void recordFailure() {
+        histogram.recordError();
+        errorRate = errorRate * (1 - SMOOTHING) + SMOOTHING;
+        if (consecutiveFailures.incrementAndGet() >= breakerFailures) {
+            // open - or reopen after a failed request in half open state
+            openUntil = System.currentTimeMillis() + breakerCooldown;
+            logger.warning("...TSA " + host + " failed " + consecutiveFailures.get()
+                    + " times - circuit breaker open for " + breakerCooldown + "ms");
+        }
+    }
+
+    private byte[] send(URL url, byte[] request, String username, String password) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        connection.setUseCaches(false);
+        connection.setDoOutput(true);
+        connection.setDoInput(true);
+        connection.setRequestMethod("POST");
+        connection.setFixedLengthStreamingMode(request.length);
+        connection.setRequestProperty("Content-Type", "application/timestamp-query");
+        if (username != null && password != null && !username.isEmpty()) {
+            String credentials = username + ":" + password;
+            connection.setRequestProperty("Authorization",
+                    "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+        }
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(request);
+        }
+
+        int status = connection.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            // drain the error stream so the connection can be reused
+            try (InputStream error = connection.getErrorStream()) {
+                if (error != null) {
+                    readFully(error, -1);
+                }
+            }
+            throw new IOException("TSA " + host + " returned HTTP " + status + " " + connection.getResponseMessage());
+        }
+        try (InputStream input = connection.getInputStream()) {
+            return readFully(input, connection.getContentLength());
+        }
+    }
+
+    /**
+     * Reads the stream completely. The size of the response is limited.
+     */
+    private byte[] readFully(InputStream input, int contentLength) throws IOException {
+        if (contentLength > MAX_RESPONSE_SIZE) {
+            throw new IOException("TSA response from " + host + " exceeds " + MAX_RESPONSE_SIZE + " bytes");
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 8192);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            if (output.size() + n > MAX_RESPONSE_SIZE) {
+                throw new IOException("TSA response from " + host + " exceeds " + MAX_RESPONSE_SIZE + " bytes");
+            }
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private static String getHost(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+}
@@ -25,7 +25,6 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.pdfbox.io.IOUtils;
 import org.bouncycastle.asn1.ASN1Encodable;
 import org.bouncycastle.asn1.ASN1EncodableVector;
 import org.bouncycastle.asn1.ASN1ObjectIdentifier;
@@ -49,16 +48,28 @@ import org.bouncycastle.cms.SignerInformationStore;
  */
 public class ValidationTimeStamp {
 	private TSAClient tsaClient;
+	private MessageDigest digest;
 
 	/**
-	 * @param tsaUrl The url where TS-Request will be done.
+	 * @param tsaUrl The url where TS-Request will be done. A comma separated
+	 *               list of urls can be given to fail over to the next TSA.
 	 * @throws NoSuchAlgorithmException
 	 * @throws MalformedURLException
 	 */
 	public ValidationTimeStamp(String tsaUrl) throws NoSuchAlgorithmException, MalformedURLException {
 		if (tsaUrl != null) {
-			MessageDigest digest = MessageDigest.getInstance("SHA-256");
-			this.tsaClient = new TSAClient(new URL(tsaUrl), null, null, digest);
+			digest = MessageDigest.getInstance("SHA-256");
+			List<URL> urls = new ArrayList<URL>();
+			for (String url : tsaUrl.split(",")) {
+				if (!url.trim().isEmpty()) {
+					urls.add(new URL(url.trim()));
+				}
+			}
+			if (urls.size() > 1) {
+				this.tsaClient = new FailoverTSAClient(urls, null, null, digest);
+			} else {
+				this.tsaClient = new TSAClient(urls.isEmpty() ? new URL(tsaUrl) : urls.get(0), null, null, digest);
+			}
 		}
 	}
 
@@ -70,7 +81,26 @@ public class ValidationTimeStamp {
 	 * @throws IOException
 	 */
 	public byte[] getTimeStampToken(InputStream content) throws IOException {
-		return tsaClient.getTimeStampToken(IOUtils.toByteArray(content));
+		// the content is hashed while reading to avoid a copy of the full content
+		byte[] buffer = new byte[8192];
+		int n;
+		digest.reset();
+		while ((n = content.read(buffer)) != -1) {
+			digest.update(buffer, 0, n);
+		}
+		return tsaClient.getTimeStampTokenForDigest(digest.digest());
+	}
+
+	/**
+	 * Creates a signed timestamp token for an already computed SHA-256 hash of the
+	 * content, e.g. the byte range digest of a document timestamp.
+	 * 
+	 * @param hash SHA-256 hash of the content
+	 * @return the byte[] of the timestamp token
+	 * @throws IOException
+	 */
+	public byte[] getTimeStampTokenForDigest(byte[] hash) throws IOException {
+		return tsaClient.getTimeStampTokenForDigest(hash);
 	}
 
 	/**
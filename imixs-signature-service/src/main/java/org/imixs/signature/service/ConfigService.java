@@ -0,0 +1,115 @@
+/*******************************************************************************
+ *  Imixs Workflow Technology
+ *  Copyright (C) 2001, 2008 Imixs Software Solutions GmbH,  
+ *  http://www.imixs.com
+ *  
+ *  This program is free software; you can redistribute it and/or 
+ *  modify it under the terms of the GNU General Public License 
+ *  as published by the Free Software Foundation; either version 2 
+ *  of the License, or (at your option) any later version.
+ *  
+ *  This program is distributed in the hope that it will be useful, 
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of 
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU 
+ *  General Public License for more details.
+ *  
+ *  You can receive a copy of the GNU General Public
+ *  License at http://www.gnu.org/licenses/gpl.html
+ *  
+ *  Contributors:  
+ *  	Imixs Software Solutions GmbH - initial API and implementation
+ *  	Ralph Soika
+ *******************************************************************************/
+package org.imixs.signature.service;
+
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+
+import org.eclipse.microprofile.config.inject.ConfigProperty;
+import org.imixs.signature.pdf.cert.CRLCache;
+import org.imixs.signature.pdf.cert.OcspBatchClient;
+import org.imixs.signature.pdf.cert.OcspCache;
+import org.imixs.signature.pdf.util.FailoverTSAClient;
+import org.imixs.signature.pdf.util.TSAHttpTransport;
+
+/**
+ * The ConfigService passes the configuration of the network clients to the
+ * TSAHttpTransport, the FailoverTSAClient, the CRLCache, the OcspCache and the
+ * OcspBatchClient.
+ * <p>
+ * These clients are shared by all requests and are not managed by the
+ * container. The values are injected into this service and set when the
+ * application starts. Without the service, e.g. in a unit test, the clients use
+ * their default values.
+ * 
+ * @author rsoika
+ * @version 1.0
+ */
+@Startup
+@Singleton
+public class ConfigService {
+
+    @Inject
+    @ConfigProperty(name = TSAHttpTransport.ENV_SIGNATURE_TSA_CONNECT_TIMEOUT, defaultValue = "5000")
+    int tsaConnectTimeout;
+
+    @Inject
+    @ConfigProperty(name = TSAHttpTransport.ENV_SIGNATURE_TSA_READ_TIMEOUT, defaultValue = "30000")
+    int tsaReadTimeout;
+
+    @Inject
+    @ConfigProperty(name = TSAHttpTransport.ENV_SIGNATURE_TSA_MAX_CONNECTIONS, defaultValue = "8")
+    int tsaMaxConnections;
+
+    @Inject
+    @ConfigProperty(name = TSAHttpTransport.ENV_SIGNATURE_TSA_BREAKER_FAILURES, defaultValue = "5")
+    int tsaBreakerFailures;
+
+    @Inject
+    @ConfigProperty(name = TSAHttpTransport.ENV_SIGNATURE_TSA_BREAKER_COOLDOWN, defaultValue = "30000")
+    long tsaBreakerCooldown;
+
+    @Inject
+    @ConfigProperty(name = FailoverTSAClient.ENV_SIGNATURE_TSA_HEDGE_PERCENTILE, defaultValue = "95")
+    int tsaHedgePercentile;
+
+    @Inject
+    @ConfigProperty(name = FailoverTSAClient.ENV_SIGNATURE_TSA_REQUEST_THREADS, defaultValue = "32")
+    int tsaRequestThreads;
+
+    @Inject
+    @ConfigProperty(name = CRLCache.ENV_SIGNATURE_CRL_CACHE_TTL, defaultValue = "3600")
+    long crlCacheTTL;
+
+    @Inject
+    @ConfigProperty(name = OcspCache.ENV_SIGNATURE_OCSP_NONCE, defaultValue = "true")
+    boolean ocspNonce;
+
+    @Inject
+    @ConfigProperty(name = OcspBatchClient.ENV_SIGNATURE_OCSP_BATCH_WINDOW, defaultValue = "0")
+    long ocspBatchWindow;
+
+    @Inject
+    @ConfigProperty(name = OcspBatchClient.ENV_SIGNATURE_OCSP_BATCH_SIZE, defaultValue = "50")
+    int ocspBatchSize;
+
+    private static Logger logger = Logger.getLogger(ConfigService.class.getName());
+
+    /**
+     * Passes the injected values to the clients
+     */
+    @PostConstruct
+    public void init() {
+        logger.fine("......configure network clients");
+        TSAHttpTransport.configure(tsaConnectTimeout, tsaReadTimeout, tsaMaxConnections, tsaBreakerFailures,
+                tsaBreakerCooldown);
+        FailoverTSAClient.configure(tsaHedgePercentile, tsaRequestThreads);
+        CRLCache.setTTL(crlCacheTTL);
+        OcspCache.setNonceEnabled(ocspNonce);
+        OcspBatchClient.configure(ocspBatchWindow, ocspBatchSize);
+    }
+}
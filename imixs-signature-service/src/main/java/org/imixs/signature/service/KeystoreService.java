@@ -27,6 +27,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -34,6 +35,10 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.ejb.Singleton;
@@ -144,6 +149,54 @@ public class KeystoreService {
         return certificateChain;
     }
 
+    /**
+     * Loads the trusted root certificates of the keystore. These are all
+     * self-signed certificates of the trusted certificate entries and the root
+     * certificates at the end of the certificate chains of the key entries.
+     * <p>
+     * The trusted certificates are used as trust anchors to verify signatures.
+     * 
+     * @return set of trusted root certificates, empty if the keystore can not be
+     *         read
+     */
+    public Set<X509Certificate> loadTrustedCertificates() {
+        Set<X509Certificate> result = new HashSet<X509Certificate>();
+        try {
+            KeyStore keyStore = openKeyStore();
+            Enumeration<String> aliases = keyStore.aliases();
+            while (aliases.hasMoreElements()) {
+                String alias = aliases.nextElement();
+                Certificate certificate = null;
+                if (keyStore.isCertificateEntry(alias)) {
+                    certificate = keyStore.getCertificate(alias);
+                } else {
+                    Certificate[] certificateChain = keyStore.getCertificateChain(alias);
+                    if (certificateChain != null && certificateChain.length > 0) {
+                        certificate = certificateChain[certificateChain.length - 1];
+                    }
+                }
+                if (certificate instanceof X509Certificate && isSelfSigned((X509Certificate) certificate)) {
+                    result.add((X509Certificate) certificate);
+                }
+            }
+        } catch (KeyStoreException | NoSuchAlgorithmException | CertificateException | IOException e) {
+            logger.warning("Failed to load trusted certificates - " + e.getMessage());
+        }
+        return result;
+    }
+
+    private static boolean isSelfSigned(X509Certificate certificate) {
+        if (!certificate.getSubjectX500Principal().equals(certificate.getIssuerX500Principal())) {
+            return false;
+        }
+        try {
+            certificate.verify(certificate.getPublicKey());
+            return true;
+        } catch (GeneralSecurityException e) {
+            return false;
+        }
+    }
+
     /**
      * Loads a private key by a given alias name and password. The password can be
      * null if the key was stored into the keystore with an empty password.
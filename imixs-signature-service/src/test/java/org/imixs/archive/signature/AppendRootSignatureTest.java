@@ -0,0 +1,121 @@
+package org.imixs.archive.signature;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.SignatureReport;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.pdf.util.SigUtils;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This class tests a user signature followed by an appended root signature in
+ * one call. The user signature certifies the document and the root signature
+ * is an approval signature.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class AppendRootSignatureTest {
+
+    File directory;
+    SigningService signingService;
+    byte[] pdf;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-root").toFile();
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate root = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        KeyPair aliceKeyPair = generator.generateKeyPair();
+        X509Certificate[] aliceChain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(),
+                aliceKeyPair, "alice", "Imixs", Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+
+        KeystoreService keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("alice")).thenReturn(aliceChain);
+        Mockito.when(keystoreService.loadPrivateKey("alice", "")).thenReturn(aliceKeyPair.getPrivate());
+        Mockito.when(keystoreService.loadCertificate("root")).thenReturn(new Certificate[] { root });
+        Mockito.when(keystoreService.loadPrivateKey("root", "")).thenReturn(rootKeyPair.getPrivate());
+        Mockito.when(keystoreService.loadTrustedCertificates()).thenReturn(Collections.singleton(root));
+        signingService = new SigningService(keystoreService, directory.getAbsolutePath(), 3600);
+
+        try (PDDocument doc = new PDDocument()) {
+            // certification requires PDF 1.5
+            doc.setVersion(1.7f);
+            doc.addPage(new PDPage());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            doc.save(bos);
+            pdf = bos.toByteArray();
+        }
+    }
+
+    @After
+    public void teardown() {
+        directory.delete();
+    }
+
+    /**
+     * Test that the appended root signature does not certify the document and
+     * both signatures are valid
+     */
+    @Test
+    public void testAppendRootSignature() throws Exception {
+        byte[] signed = signingService.signPDF(pdf,
+                Arrays.asList(
+                        new SignatureSpec("alice", "").setSignatureFieldName("Signature1")
+                                .setHumanRect(new Rectangle2D.Double(50, 50, 200, 50)).setPage(1),
+                        SignatureSpec.createRootSignature("root", "", "RootSignature1")));
+
+        try (PDDocument doc = PDDocument.load(signed)) {
+            List<PDSignature> signatures = doc.getSignatureDictionaries();
+            Assert.assertEquals(2, signatures.size());
+            COSName reference = COSName.getPDFName("Reference");
+            // the user signature certifies the document
+            Assert.assertEquals(SignatureSpec.CERTIFICATION_FORM_FILLING, SigUtils.getMDPPermission(doc));
+            Assert.assertNotNull(signatures.get(0).getCOSObject().getDictionaryObject(reference));
+            // the root signature is an approval signature
+            Assert.assertNull(signatures.get(1).getCOSObject().getDictionaryObject(reference));
+        }
+
+        List<SignatureReport> reports = signingService.verifyPDF(signed);
+        Assert.assertEquals(2, reports.size());
+        Assert.assertEquals("Signature1", reports.get(0).getFieldName());
+        Assert.assertEquals("RootSignature1", reports.get(1).getFieldName());
+        for (SignatureReport report : reports) {
+            Assert.assertTrue(report.getErrors().toString(), report.isValid());
+        }
+    }
+
+    /**
+     * Test that the spec of a root signature is an approval signature
+     */
+    @Test
+    public void testRootSignatureSpec() {
+        SignatureSpec spec = SignatureSpec.createRootSignature("root", "secret", "RootSignature2");
+        Assert.assertEquals("root", spec.getCertAlias());
+        Assert.assertEquals("secret", spec.getCertPassword());
+        Assert.assertEquals("RootSignature2", spec.getSignatureFieldName());
+        Assert.assertEquals(SignatureSpec.CERTIFICATION_NONE, spec.getCertificationLevel());
+        Assert.assertNull(spec.getHumanRect());
+    }
+}
@@ -0,0 +1,136 @@
+package org.imixs.archive.signature;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.cert.CRLCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class tests the CRLCache with a local HTTP server providing a CRL with
+ * an ETag.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class CRLCacheTest {
+
+    HttpServer server;
+    KeyPair keyPair;
+    byte[] crl;
+    AtomicInteger requests = new AtomicInteger();
+    AtomicInteger downloads = new AtomicInteger();
+
+    @Before
+    public void setup() throws Exception {
+        keyPair = new X509CertificateGenerator().generateKeyPair();
+        // the CRL expires after one second
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), new Date());
+        builder.setNextUpdate(new Date(System.currentTimeMillis() + 1000));
+        crl = builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())).getEncoded();
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            if ("\"v1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            downloads.incrementAndGet();
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.getResponseHeaders().add("ETag", "\"v1\"");
+            exchange.sendResponseHeaders(200, crl.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(crl);
+            }
+        });
+        server.start();
+        CRLCache.clear();
+        // a CRL downloaded after its nextUpdate also expires after one second
+        CRLCache.setTTL(1);
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+        CRLCache.setTTL(3600);
+    }
+
+    /**
+     * Test that an expired CRL is refreshed with a conditional request
+     */
+    @Test
+    public void testConditionalRefresh() throws Exception {
+        String url = "http://localhost:" + server.getAddress().getPort() + "/ca.crl";
+        CRLCache.Entry entry = CRLCache.getEntry(url);
+        Assert.assertSame(entry, CRLCache.getEntry(url));
+        Assert.assertEquals(1, requests.get());
+
+        Thread.sleep(1100);
+        Assert.assertTrue(entry.isExpired());
+        Assert.assertSame(entry, CRLCache.getEntry(url));
+        Assert.assertFalse(entry.isExpired());
+        Assert.assertEquals(2, requests.get());
+        Assert.assertEquals(1, downloads.get());
+
+        entry.verify(keyPair.getPublic());
+        try {
+            entry.verify(new X509CertificateGenerator().generateKeyPair().getPublic());
+            Assert.fail("CRL verified with a wrong key");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that concurrent requests for the same URL are collapsed into one
+     * download
+     */
+    @Test
+    public void testConcurrentMisses() throws Exception {
+        final String url = "http://localhost:" + server.getAddress().getPort() + "/concurrent.crl";
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<CRLCache.Entry>> futures = new ArrayList<Future<CRLCache.Entry>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<CRLCache.Entry>() {
+                    @Override
+                    public CRLCache.Entry call() throws Exception {
+                        return CRLCache.getEntry(url);
+                    }
+                }));
+            }
+            CRLCache.Entry entry = futures.get(0).get();
+            for (Future<CRLCache.Entry> future : futures) {
+                Assert.assertSame(entry, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, downloads.get());
+    }
+}
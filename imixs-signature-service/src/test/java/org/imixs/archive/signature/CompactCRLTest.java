@@ -0,0 +1,261 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.Date;
+import java.util.Random;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.ExtensionsGenerator;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.cert.CompactCRL;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * This class tests the CompactCRL with CRLs signed with RSA and EC keys.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class CompactCRLTest {
+
+    /**
+     * Test the lookup of revoked serial numbers and the signature of a RSA signed
+     * CRL
+     */
+    @Test
+    public void testRSA() throws Exception {
+        KeyPair keyPair = new X509CertificateGenerator().generateKeyPair();
+        byte[] encoded = createCRL(keyPair, "SHA256withRSA", 2000);
+        X509CRL x509CRL = (X509CRL) CertificateFactory.getInstance("X.509")
+                .generateCRL(new ByteArrayInputStream(encoded));
+        CompactCRL crl = CompactCRL.parse(new ByteArrayInputStream(encoded));
+
+        Assert.assertEquals(2000, crl.size());
+        Assert.assertEquals(x509CRL.getIssuerX500Principal(), crl.getIssuerX500Principal());
+        Assert.assertEquals(x509CRL.getThisUpdate(), crl.getThisUpdate());
+        Assert.assertEquals(x509CRL.getNextUpdate(), crl.getNextUpdate());
+        Assert.assertArrayEquals(x509CRL.getExtensionValue(Extension.cRLNumber.getId()),
+                crl.getExtensionValue(Extension.cRLNumber.getId()));
+        for (X509CRLEntry entry : x509CRL.getRevokedCertificates()) {
+            Assert.assertEquals(entry.getRevocationDate(), crl.getRevocationDate(entry.getSerialNumber()));
+        }
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            BigInteger serial = new BigInteger(64, random).add(BigInteger.valueOf(1000000));
+            Assert.assertEquals(x509CRL.getRevokedCertificate(serial) != null, crl.getRevocationDate(serial) != null);
+        }
+
+        crl.verify(keyPair.getPublic());
+        try {
+            crl.verify(new X509CertificateGenerator().generateKeyPair().getPublic());
+            Assert.fail("CRL verified with a wrong key");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the signature of an EC signed CRL
+     */
+    @Test
+    public void testEC() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(256);
+        KeyPair keyPair = generator.generateKeyPair();
+        byte[] encoded = createCRL(keyPair, "SHA256withECDSA", 100);
+        CompactCRL crl = CompactCRL.parse(new ByteArrayInputStream(encoded));
+        Assert.assertEquals(100, crl.size());
+        Assert.assertNotNull(crl.getRevocationDate(BigInteger.valueOf(42)));
+        Assert.assertNull(crl.getRevocationDate(BigInteger.valueOf(100)));
+        crl.verify(keyPair.getPublic());
+    }
+
+    /**
+     * Test that a modified CRL is not verified
+     */
+    @Test
+    public void testTamperedCRL() throws Exception {
+        KeyPair keyPair = new X509CertificateGenerator().generateKeyPair();
+        byte[] encoded = createCRL(keyPair, "SHA256withRSA", 10);
+        // change the serial number 9 into 11 (INTEGER followed by the UTCTime of the entry)
+        int pos = indexOf(encoded, new byte[] { 0x02, 0x01, 0x09, 0x17, 0x0d });
+        Assert.assertTrue(pos > 0);
+        encoded[pos + 2] = 0x0b;
+        CompactCRL crl = CompactCRL.parse(new ByteArrayInputStream(encoded));
+        Assert.assertNotNull(crl.getRevocationDate(BigInteger.valueOf(11)));
+        try {
+            crl.verify(keyPair.getPublic());
+            Assert.fail("tampered CRL verified");
+        } catch (GeneralSecurityException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test the merge of a delta CRL onto a complete CRL
+     */
+    @Test
+    public void testDeltaCRL() throws Exception {
+        KeyPair keyPair = new X509CertificateGenerator().generateKeyPair();
+        CompactCRL base = CompactCRL.parse(new ByteArrayInputStream(createCRL(keyPair, "SHA256withRSA", 10)));
+        Assert.assertFalse(base.isDeltaCRL());
+        Assert.assertEquals(BigInteger.ONE, base.getCRLNumber());
+
+        Date now = new Date(System.currentTimeMillis() / 1000 * 1000);
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.setNextUpdate(new Date(now.getTime() + 600000));
+        builder.addCRLEntry(BigInteger.valueOf(3), now, CRLReason.removeFromCRL);
+        builder.addCRLEntry(BigInteger.valueOf(20), now, CRLReason.keyCompromise);
+        builder.addExtension(Extension.cRLNumber, false, new CRLNumber(BigInteger.valueOf(2)));
+        builder.addExtension(Extension.deltaCRLIndicator, true, new CRLNumber(BigInteger.ONE));
+        CompactCRL delta = CompactCRL.parse(new ByteArrayInputStream(
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())).getEncoded()));
+        Assert.assertTrue(delta.isDeltaCRL());
+        Assert.assertFalse(delta.hasUnsupportedCriticalExtension());
+        delta.verify(keyPair.getPublic());
+        Assert.assertNull(delta.getRevocationDate(BigInteger.valueOf(3)));
+
+        CompactCRL merged = base.applyDelta(delta);
+        Assert.assertEquals(10, merged.size());
+        Assert.assertNull(merged.getRevocationDate(BigInteger.valueOf(3)));
+        Assert.assertNotNull(merged.getRevocationDate(BigInteger.valueOf(4)));
+        Assert.assertEquals(now, merged.getRevocationDate(BigInteger.valueOf(20)));
+        Assert.assertEquals(delta.getNextUpdate(), merged.getNextUpdate());
+
+        // a delta CRL for a newer complete CRL can not be applied
+        builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.addExtension(Extension.deltaCRLIndicator, true, new CRLNumber(BigInteger.valueOf(2)));
+        delta = CompactCRL.parse(new ByteArrayInputStream(
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())).getEncoded()));
+        try {
+            base.applyDelta(delta);
+            Assert.fail("delta CRL applied to an older complete CRL");
+        } catch (CRLException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that indirect CRLs are detected
+     */
+    @Test
+    public void testIndirectCRL() throws Exception {
+        KeyPair keyPair = new X509CertificateGenerator().generateKeyPair();
+        Assert.assertFalse(CompactCRL.parse(new ByteArrayInputStream(createCRL(keyPair, "SHA256withRSA", 10)))
+                .isIndirectCRL());
+
+        // entry of another issuer
+        Date now = new Date(System.currentTimeMillis() / 1000 * 1000);
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.addCRLEntry(BigInteger.valueOf(1), now, CRLReason.keyCompromise);
+        ExtensionsGenerator entryExtensions = new ExtensionsGenerator();
+        entryExtensions.addExtension(Extension.certificateIssuer, true,
+                new GeneralNames(new GeneralName(new X500Name("CN=Other CA"))));
+        builder.addCRLEntry(BigInteger.valueOf(2), now, entryExtensions.generate());
+        CompactCRL crl = CompactCRL.parse(new ByteArrayInputStream(build(builder, keyPair)));
+        Assert.assertTrue(crl.isIndirectCRL());
+        Assert.assertFalse(crl.hasUnsupportedCriticalExtension());
+
+        // indirectCRL flag of the issuing distribution point
+        builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.addCRLEntry(BigInteger.valueOf(1), now, CRLReason.keyCompromise);
+        builder.addExtension(Extension.issuingDistributionPoint, true,
+                new IssuingDistributionPoint(null, false, false, null, true, false));
+        crl = CompactCRL.parse(new ByteArrayInputStream(build(builder, keyPair)));
+        Assert.assertTrue(crl.isIndirectCRL());
+        Assert.assertFalse(crl.hasUnsupportedCriticalExtension());
+    }
+
+    /**
+     * Test that unknown critical extensions of the CRL and its entries are
+     * reported
+     */
+    @Test
+    public void testUnsupportedCriticalExtension() throws Exception {
+        KeyPair keyPair = new X509CertificateGenerator().generateKeyPair();
+        Date now = new Date(System.currentTimeMillis() / 1000 * 1000);
+        ASN1ObjectIdentifier unknown = new ASN1ObjectIdentifier("1.2.3.4");
+
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.addCRLEntry(BigInteger.valueOf(1), now, CRLReason.keyCompromise);
+        builder.addExtension(unknown, false, DERNull.INSTANCE);
+        Assert.assertFalse(
+                CompactCRL.parse(new ByteArrayInputStream(build(builder, keyPair))).hasUnsupportedCriticalExtension());
+
+        builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.addCRLEntry(BigInteger.valueOf(1), now, CRLReason.keyCompromise);
+        builder.addExtension(unknown, true, DERNull.INSTANCE);
+        Assert.assertTrue(
+                CompactCRL.parse(new ByteArrayInputStream(build(builder, keyPair))).hasUnsupportedCriticalExtension());
+
+        builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        ExtensionsGenerator entryExtensions = new ExtensionsGenerator();
+        entryExtensions.addExtension(unknown, true, DERNull.INSTANCE);
+        builder.addCRLEntry(BigInteger.valueOf(1), now, entryExtensions.generate());
+        CompactCRL crl = CompactCRL.parse(new ByteArrayInputStream(build(builder, keyPair)));
+        Assert.assertTrue(crl.hasUnsupportedCriticalExtension());
+        Assert.assertFalse(crl.isIndirectCRL());
+    }
+
+    private byte[] build(X509v2CRLBuilder builder, KeyPair keyPair) throws Exception {
+        return builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())).getEncoded();
+    }
+
+    /**
+     * Creates a CRL revoking the serial numbers 0 to count-1 in random order
+     */
+    private byte[] createCRL(KeyPair keyPair, String algorithm, int count) throws Exception {
+        Date now = new Date(System.currentTimeMillis() / 1000 * 1000);
+        X509v2CRLBuilder builder = new X509v2CRLBuilder(new X500Name("CN=Test CA"), now);
+        builder.setNextUpdate(new Date(now.getTime() + 3600000));
+        Random random = new Random(count);
+        int[] serials = new int[count];
+        for (int i = 0; i < count; i++) {
+            serials[i] = i;
+        }
+        for (int i = count - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = serials[i];
+            serials[i] = serials[j];
+            serials[j] = swap;
+        }
+        for (int serial : serials) {
+            builder.addCRLEntry(BigInteger.valueOf(serial), new Date(now.getTime() - serial * 1000L),
+                    CRLReason.keyCompromise);
+        }
+        builder.addExtension(Extension.cRLNumber, false, new CRLNumber(BigInteger.ONE));
+        return builder.build(new JcaContentSignerBuilder(algorithm).build(keyPair.getPrivate())).getEncoded();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < pattern.length && match; j++) {
+                match = data[i + j] == pattern[j];
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
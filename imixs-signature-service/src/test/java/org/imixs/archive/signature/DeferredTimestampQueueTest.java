@@ -0,0 +1,180 @@
+package org.imixs.archive.signature;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.util.encoders.Hex;
+import org.imixs.signature.pdf.DeferredTimestampQueue;
+import org.imixs.signature.pdf.Signature;
+import org.imixs.signature.pdf.SignatureSizeEstimator;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the DeferredTimestampQueue with a local TSA. The CMS
+ * signature is patched into the reserved placeholder of a test document.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class DeferredTimestampQueueTest {
+
+    LocalTSA tsa;
+    KeyPair keyPair;
+    X509Certificate certificate;
+    DeferredTimestampQueue queue;
+
+    @Before
+    public void setup() throws Exception {
+        keyPair = LocalTSA.generateKeyPair();
+        certificate = LocalTSA.createCertificate(keyPair);
+        tsa = new LocalTSA(keyPair.getPrivate(), certificate);
+        tsa.start();
+        queue = new DeferredTimestampQueue(new SignatureSizeEstimator(), 2, 3600, 1);
+    }
+
+    @After
+    public void teardown() {
+        if (tsa != null) {
+            tsa.stop();
+        }
+    }
+
+    /**
+     * Test that the timestamped signature is written into the placeholder and the
+     * signed byte range is not changed
+     */
+    @Test
+    public void testFlush() throws Exception {
+        String tsaUrl = tsa.getURL();
+        byte[] content = createDocument(16384);
+        int[] byteRange = getByteRange(content);
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+        Signature signature = new Signature(new Certificate[] { certificate }, keyPair.getPrivate(), tsaUrl);
+        byte[] cmsSignature = signature.signDigest(digest, false);
+        Assert.assertNull(new CMSSignedData(cmsSignature).getSignerInfos().getSigners().iterator().next()
+                .getUnsignedAttributes());
+
+        queue.submit("doc1", content, byteRange, cmsSignature, tsaUrl);
+        byte[] result = queue.flush("doc1", 30000);
+        Assert.assertFalse(queue.contains("doc1"));
+        Assert.assertEquals(content.length, result.length);
+        // the signed byte range is unchanged
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 0, byteRange[1]),
+                Arrays.copyOfRange(result, 0, byteRange[1]));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, byteRange[2], content.length),
+                Arrays.copyOfRange(result, byteRange[2], result.length));
+
+        String hex = new String(result, byteRange[1] + 1, byteRange[2] - byteRange[1] - 2, StandardCharsets.US_ASCII);
+        SignerInformation signer = new CMSSignedData(Hex.decode(hex)).getSignerInfos().getSigners().iterator()
+                .next();
+        Assert.assertNotNull(
+                signer.getUnsignedAttributes().get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken));
+    }
+
+    /**
+     * Test that a timestamp not fitting into the placeholder fails and the
+     * document is removed from the queue
+     */
+    @Test
+    public void testNotEnoughSpace() throws Exception {
+        String tsaUrl = tsa.getURL();
+        byte[] content = createDocument(16);
+        Signature signature = new Signature(new Certificate[] { certificate }, keyPair.getPrivate(), tsaUrl);
+        byte[] cmsSignature = signature.signDigest(MessageDigest.getInstance("SHA-256").digest(content), false);
+
+        queue.submit("doc2", content, getByteRange(content), cmsSignature, tsaUrl);
+        try {
+            queue.flush("doc2", 30000);
+            Assert.fail();
+        } catch (SigningException e) {
+            // expected
+        }
+        Assert.assertFalse(queue.contains("doc2"));
+        try {
+            queue.flush("unknown", 0);
+            Assert.fail();
+        } catch (SigningException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that documents beyond the max size of the queue are rejected until
+     * queued documents are flushed
+     */
+    @Test
+    public void testQueueFull() throws Exception {
+        String tsaUrl = tsa.getURL();
+        // two documents of 400 KB fit into the queue of 1 MB
+        byte[] content = createDocument(200 * 1024);
+        Signature signature = new Signature(new Certificate[] { certificate }, keyPair.getPrivate(), tsaUrl);
+        byte[] cmsSignature = signature.signDigest(MessageDigest.getInstance("SHA-256").digest(content), false);
+        queue.submit("doc1", content, getByteRange(content), cmsSignature, tsaUrl);
+        queue.submit("doc2", content, getByteRange(content), cmsSignature, tsaUrl);
+        Assert.assertFalse(queue.hasCapacity(content.length));
+        try {
+            queue.submit("doc3", content, getByteRange(content), cmsSignature, tsaUrl);
+            Assert.fail();
+        } catch (SigningException e) {
+            // expected
+        }
+        Assert.assertFalse(queue.contains("doc3"));
+
+        queue.flush("doc1", 30000);
+        Assert.assertTrue(queue.hasCapacity(content.length));
+        queue.submit("doc3", content, getByteRange(content), cmsSignature, tsaUrl);
+        Assert.assertTrue(queue.contains("doc3"));
+    }
+
+    /**
+     * Test that the size of the timestamp token is passed to the
+     * SignatureSizeEstimator
+     */
+    @Test
+    public void testTimestampSize() throws Exception {
+        String tsaUrl = tsa.getURL();
+        SignatureSizeEstimator estimator = new SignatureSizeEstimator();
+        DeferredTimestampQueue sizeQueue = new DeferredTimestampQueue(estimator, 1, 3600, 1);
+        byte[] content = createDocument(16384);
+        int[] byteRange = getByteRange(content);
+        Signature signature = new Signature(new Certificate[] { certificate }, keyPair.getPrivate(), tsaUrl);
+        byte[] cmsSignature = signature.signDigest(MessageDigest.getInstance("SHA-256").digest(content), false);
+        sizeQueue.submit("doc1", content, byteRange, cmsSignature, tsaUrl);
+        byte[] result = sizeQueue.flush("doc1", 30000);
+
+        String hex = new String(result, byteRange[1] + 1, byteRange[2] - byteRange[1] - 2, StandardCharsets.US_ASCII);
+        SignerInformation signer = new CMSSignedData(Hex.decode(hex)).getSignerInfos().getSigners().iterator()
+                .next();
+        int tokenSize = signer.getUnsignedAttributes().get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken)
+                .getAttrValues().getObjectAt(0).toASN1Primitive().getEncoded().length;
+        Assert.assertEquals(tokenSize + tokenSize / 10 + 512, estimator.estimateTimestamp());
+    }
+
+    /**
+     * Creates a test document with a hex placeholder of the given size
+     */
+    private byte[] createDocument(int placeholderSize) {
+        char[] zeros = new char[placeholderSize * 2];
+        Arrays.fill(zeros, '0');
+        return ("%PDF-1.7\n/Contents <" + new String(zeros) + "> /ByteRange []\n%%EOF\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private int[] getByteRange(byte[] content) {
+        String text = new String(content, StandardCharsets.US_ASCII);
+        int start = text.indexOf('<');
+        int end = text.indexOf('>') + 1;
+        return new int[] { 0, start, end, content.length - end };
+    }
+}
@@ -0,0 +1,143 @@
+package org.imixs.archive.signature;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.imixs.signature.pdf.DocumentTimestampJob;
+import org.imixs.signature.pdf.SignatureSizeEstimator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the journal and the archive root of the
+ * DocumentTimestampJob. The TSA is not reachable, so no document is
+ * timestamped.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class DocumentTimestampJobTest {
+
+    File directory;
+    File journal;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-timestamp").toFile();
+        journal = new File(directory, "test.journal");
+        new File(directory, "sub").mkdir();
+        for (String name : new String[] { "a.pdf", "b.pdf", "sub/c.pdf" }) {
+            try (PDDocument doc = new PDDocument()) {
+                doc.addPage(new PDPage());
+                doc.save(new File(directory, name));
+            }
+        }
+        Files.write(new File(directory, "readme.txt").toPath(), "test".getBytes());
+    }
+
+    @After
+    public void teardown() {
+        for (String name : new String[] { "a.pdf", "b.pdf", "sub/c.pdf", "sub", "readme.txt", "test.journal" }) {
+            new File(directory, name).delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Test that only PDF files are listed
+     */
+    @Test
+    public void testListDocuments() {
+        List<File> documents = DocumentTimestampJob.listDocuments(directory);
+        Assert.assertEquals(3, documents.size());
+        Assert.assertEquals("a.pdf", documents.get(0).getName());
+        Assert.assertEquals("c.pdf", documents.get(2).getName());
+    }
+
+    /**
+     * Test that only documents within the archive root are listed
+     */
+    @Test
+    public void testArchiveRoot() throws Exception {
+        Path root = new File(directory, "sub").toPath();
+        Assert.assertEquals(1, DocumentTimestampJob.listDocuments(root, ".").size());
+        Assert.assertEquals(1, DocumentTimestampJob.listDocuments(root, "c.pdf").size());
+        Assert.assertEquals(1,
+                DocumentTimestampJob.listDocuments(root, new File(directory, "sub/c.pdf").getAbsolutePath()).size());
+        for (String path : new String[] { "..", "../a.pdf", new File(directory, "a.pdf").getAbsolutePath(),
+                "missing.pdf" }) {
+            try {
+                DocumentTimestampJob.listDocuments(root, path);
+                Assert.fail("path " + path + " accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+
+        // a symbolic link pointing outside of the root is skipped
+        Path link = root.resolve("link.pdf");
+        Files.createSymbolicLink(link, new File(directory, "a.pdf").toPath());
+        try {
+            Assert.assertEquals(1, DocumentTimestampJob.listDocuments(root, ".").size());
+            try {
+                DocumentTimestampJob.listDocuments(root, "link.pdf");
+                Assert.fail("symbolic link accepted");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            Files.delete(link);
+        }
+    }
+
+    /**
+     * Test that documents marked as OK in the journal are skipped and failed
+     * documents are left untouched
+     */
+    @Test
+    public void testResumeJob() throws Exception {
+        File a = new File(directory, "a.pdf");
+        File b = new File(directory, "b.pdf");
+        byte[] content = Files.readAllBytes(b.toPath());
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(journal), StandardCharsets.UTF_8)) {
+            writer.write(DocumentTimestampJob.JOURNAL_OK + "\t" + a.getAbsolutePath() + "\n");
+        }
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        DocumentTimestampJob.Result result;
+        try {
+            DocumentTimestampJob job = new DocumentTimestampJob("http://localhost:1/tsa",
+                    new SignatureSizeEstimator(), 2, 2, journal, executor);
+            result = job.run(Arrays.asList(a, b));
+            Assert.assertSame(result, job.getResult());
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertTrue(result.isDone());
+        Assert.assertEquals(2, result.getTotal());
+        Assert.assertEquals(1, result.getSkipped());
+        Assert.assertEquals(1, result.getFailed());
+        Assert.assertEquals(0, result.getTimestamped());
+        Assert.assertArrayEquals(content, Files.readAllBytes(b.toPath()));
+        // the temporary file is removed
+        Assert.assertEquals(5, directory.list().length);
+
+        List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(2, lines.size());
+        Assert.assertEquals(DocumentTimestampJob.JOURNAL_FAILED + "\t" + b.getAbsolutePath(), lines.get(1));
+    }
+}
@@ -0,0 +1,144 @@
+package org.imixs.archive.signature;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.ers.EvidenceRecord;
+import org.imixs.signature.ers.EvidenceRecordVerifier;
+import org.imixs.signature.ers.HashTree;
+import org.imixs.signature.pdf.cert.CertificateVerificationException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the HashTree and the EvidenceRecord. The timestamp tokens
+ * are created by a local TimeStampTokenGenerator with a self-signed TSA
+ * certificate, which is the trusted root of the verification.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class EvidenceRecordTest {
+
+    TimeStampTokenGenerator tokenGenerator;
+    Set<X509Certificate> trustedCertificates;
+
+    @Before
+    public void setup() throws Exception {
+        KeyPair keyPair = LocalTSA.generateKeyPair();
+        X509Certificate certificate = LocalTSA.createCertificate(keyPair);
+        tokenGenerator = LocalTSA.createTokenGenerator(keyPair.getPrivate(), certificate);
+        trustedCertificates = Collections.singleton(certificate);
+    }
+
+    /**
+     * Test that the root can be computed from the reduced hash tree of each leaf
+     */
+    @Test
+    public void testHashTree() throws Exception {
+        for (int size = 1; size <= 17; size++) {
+            List<byte[]> leaves = createDigests(size);
+            HashTree hashTree = new HashTree(leaves);
+            for (int i = 0; i < size; i++) {
+                Assert.assertArrayEquals(hashTree.getRoot(),
+                        HashTree.computeRoot(leaves.get(i), hashTree.getReducedHashtree(i)));
+            }
+        }
+        // reduced hash tree size is logarithmic
+        HashTree hashTree = new HashTree(createDigests(1024));
+        Assert.assertEquals(10, hashTree.getReducedHashtree(517).size());
+        Assert.assertNull(HashTree.computeRoot(createDigests(1).get(0), hashTree.getReducedHashtree(517)));
+    }
+
+    /**
+     * Test encoding and verification of evidence records
+     */
+    @Test
+    public void testEvidenceRecord() throws Exception {
+        List<byte[]> leaves = createDigests(5);
+        HashTree hashTree = new HashTree(leaves);
+        byte[] token = createToken(hashTree.getRoot());
+
+        for (int i = 0; i < leaves.size(); i++) {
+            byte[] encoded = new EvidenceRecord(hashTree.getReducedHashtree(i), token).getEncoded();
+            EvidenceRecord evidenceRecord = EvidenceRecord.getInstance(encoded);
+            Assert.assertNotNull(EvidenceRecordVerifier.verify(evidenceRecord, leaves.get(i), trustedCertificates));
+        }
+
+        EvidenceRecord evidenceRecord = EvidenceRecord
+                .getInstance(new EvidenceRecord(hashTree.getReducedHashtree(0), token).getEncoded());
+        try {
+            EvidenceRecordVerifier.verify(evidenceRecord, leaves.get(2), trustedCertificates);
+            Assert.fail();
+        } catch (CertificateVerificationException e) {
+            // expected - the digest is not part of the first partial hash tree
+        }
+    }
+
+    /**
+     * Test that an evidence record is only valid if the TSA certificate is issued
+     * by a trusted root certificate
+     */
+    @Test
+    public void testTrustedTSA() throws Exception {
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate rootCertificate = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        KeyPair tsaKeyPair = generator.generateKeyPair();
+        X509Certificate[] tsaChain = generator.generateTimeStampingCertificate(rootCertificate,
+                rootKeyPair.getPrivate(), tsaKeyPair, "Test TSA");
+        tokenGenerator = LocalTSA.createTokenGenerator(tsaKeyPair.getPrivate(), tsaChain);
+
+        List<byte[]> leaves = createDigests(3);
+        HashTree hashTree = new HashTree(leaves);
+        EvidenceRecord evidenceRecord = new EvidenceRecord(hashTree.getReducedHashtree(1),
+                createToken(hashTree.getRoot()));
+        Assert.assertNotNull(
+                EvidenceRecordVerifier.verify(evidenceRecord, leaves.get(1), Collections.singleton(rootCertificate)));
+
+        // the root embedded in the token is not trusted
+        X509Certificate otherRoot = generator.generateRootCertificate(generator.generateKeyPair(), "Other CA");
+        try {
+            EvidenceRecordVerifier.verify(evidenceRecord, leaves.get(1), Collections.singleton(otherRoot));
+            Assert.fail();
+        } catch (CertificateVerificationException e) {
+            // expected
+        }
+        try {
+            EvidenceRecordVerifier.verify(evidenceRecord, leaves.get(1), trustedCertificates);
+            Assert.fail();
+        } catch (CertificateVerificationException e) {
+            // expected
+        }
+    }
+
+    private byte[] createToken(byte[] hash) throws Exception {
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        // the TSA certificate is required to verify the token
+        requestGenerator.setCertReq(true);
+        TimeStampRequest request = requestGenerator.generate(TSPAlgorithms.SHA256, hash);
+        return tokenGenerator.generate(request, BigInteger.ONE, new Date()).getEncoded();
+    }
+
+    private List<byte[]> createDigests(int count) throws Exception {
+        List<byte[]> result = new ArrayList<byte[]>();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < count; i++) {
+            result.add(md.digest(("document " + i).getBytes()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,246 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSSignedDataGenerator;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.ExternalSigningSession;
+import org.imixs.signature.pdf.Signature;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This class tests the prepare and complete phase of the external signing
+ * process. The signatures are created with the keys of the certificates
+ * 'alice' and 'bob'. Only 'alice' is used as the alias of the sessions.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class ExternalSigningTest {
+
+    File directory;
+    SigningService signingService;
+    KeyPair aliceKeyPair;
+    X509Certificate[] aliceChain;
+    KeyPair bobKeyPair;
+    X509Certificate[] bobChain;
+    byte[] pdf;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-external").toFile();
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate root = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        aliceKeyPair = generator.generateKeyPair();
+        aliceChain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(), aliceKeyPair, "alice",
+                "Imixs", Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+        bobKeyPair = generator.generateKeyPair();
+        bobChain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(), bobKeyPair, "bob", "Imixs",
+                Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+
+        KeystoreService keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("alice")).thenReturn(aliceChain);
+        signingService = new SigningService(keystoreService, directory.getAbsolutePath(), 3600);
+
+        try (PDDocument doc = new PDDocument()) {
+            doc.addPage(new PDPage());
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            doc.save(bos);
+            pdf = bos.toByteArray();
+        }
+    }
+
+    @After
+    public void teardown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /**
+     * Test a CMS signature of the prepared digest
+     */
+    @Test
+    public void testCompleteCMS() throws Exception {
+        ExternalSigningSession session = prepare();
+        byte[] cmsSignature = new Signature(aliceChain, aliceKeyPair.getPrivate())
+                .signDigest(session.getContentDigest(), false);
+        byte[] signedContent = signingService.completeExternalSigning(
+                signingService.consumeExternalSigningSession(session.getToken()), cmsSignature, false);
+        verify(signedContent);
+        Assert.assertEquals(0, directory.listFiles().length);
+    }
+
+    /**
+     * Test a raw signature value of the signed attributes
+     */
+    @Test
+    public void testCompleteRaw() throws Exception {
+        ExternalSigningSession session = prepare();
+        byte[] signedContent = signingService.completeExternalSigning(
+                signingService.consumeExternalSigningSession(session.getToken()),
+                signRaw(session.getSignedAttributes(), aliceKeyPair), true);
+        verify(signedContent);
+    }
+
+    /**
+     * Test that a session can be consumed only once
+     */
+    @Test
+    public void testConsumeOnce() throws Exception {
+        ExternalSigningSession session = prepare();
+        Assert.assertNotNull(signingService.consumeExternalSigningSession(session.getToken()));
+        assertRejected(session.getToken());
+    }
+
+    /**
+     * Test that a CMS signature of another digest is rejected and the session is
+     * removed
+     */
+    @Test
+    public void testTamperedDigest() throws Exception {
+        ExternalSigningSession session = prepare();
+        byte[] digest = session.getContentDigest().clone();
+        digest[0] ^= 1;
+        byte[] cmsSignature = new Signature(aliceChain, aliceKeyPair.getPrivate()).signDigest(digest, false);
+        assertRejected(session, cmsSignature, false);
+        assertRejected(session.getToken());
+    }
+
+    /**
+     * Test that a modified signature value is rejected
+     */
+    @Test
+    public void testTamperedSignature() throws Exception {
+        ExternalSigningSession session = prepare();
+        CMSSignedData signedData = new CMSSignedData(new Signature(aliceChain, aliceKeyPair.getPrivate())
+                .signDigest(session.getContentDigest(), false));
+        byte[] cmsSignature = signedData.getEncoded();
+        byte[] signatureValue = signedData.getSignerInfos().getSigners().iterator().next().getSignature();
+        cmsSignature[indexOf(cmsSignature, signatureValue) + 10] ^= 1;
+        assertRejected(session, cmsSignature, false);
+
+        session = prepare();
+        byte[] rawSignature = signRaw(session.getSignedAttributes(), aliceKeyPair);
+        rawSignature[10] ^= 1;
+        assertRejected(session, rawSignature, true);
+    }
+
+    /**
+     * Test that a signature of another certificate is rejected
+     */
+    @Test
+    public void testWrongSigner() throws Exception {
+        ExternalSigningSession session = prepare();
+        byte[] cmsSignature = new Signature(bobChain, bobKeyPair.getPrivate())
+                .signDigest(session.getContentDigest(), false);
+        assertRejected(session, cmsSignature, false);
+
+        session = prepare();
+        assertRejected(session, signRaw(session.getSignedAttributes(), bobKeyPair), true);
+    }
+
+    /**
+     * Test that a CMS signature without signed attributes is rejected
+     */
+    @Test
+    public void testMissingSignedAttributes() throws Exception {
+        ExternalSigningSession session = prepare();
+        CMSSignedDataGenerator gen = new CMSSignedDataGenerator();
+        gen.addSignerInfoGenerator(new JcaSignerInfoGeneratorBuilder(new JcaDigestCalculatorProviderBuilder().build())
+                .setDirectSignature(true)
+                .build(new JcaContentSignerBuilder("SHA256withRSA").build(aliceKeyPair.getPrivate()), aliceChain[0]));
+        gen.addCertificates(new JcaCertStore(Arrays.asList(aliceChain)));
+        byte[] cmsSignature = gen.generate(new CMSProcessableByteArray(pdf), false).getEncoded();
+        assertRejected(session, cmsSignature, false);
+    }
+
+    private ExternalSigningSession prepare() throws Exception {
+        ExternalSigningSession session = signingService.prepareExternalSigning(pdf, "alice", null, 0, null, null,
+                "test", "test.pdf");
+        Assert.assertNotNull(session.getToken());
+        Assert.assertEquals(32, session.getContentDigest().length);
+        return session;
+    }
+
+    private void assertRejected(ExternalSigningSession session, byte[] signature, boolean raw) throws Exception {
+        try {
+            signingService.completeExternalSigning(signingService.consumeExternalSigningSession(session.getToken()),
+                    signature, raw);
+            Assert.fail("invalid signature accepted");
+        } catch (SigningException e) {
+            // expected
+        }
+    }
+
+    private void assertRejected(String token) {
+        try {
+            signingService.consumeExternalSigningSession(token);
+            Assert.fail("session consumed twice");
+        } catch (SigningException e) {
+            // expected
+        }
+    }
+
+    private byte[] signRaw(byte[] signedAttributes, KeyPair keyPair) throws Exception {
+        java.security.Signature signer = java.security.Signature.getInstance(Signature.SIGNATURE_ALGORITHM);
+        signer.initSign(keyPair.getPrivate());
+        signer.update(signedAttributes);
+        return signer.sign();
+    }
+
+    /**
+     * Verifies the signature of the signed PDF with the certificate of alice
+     */
+    private void verify(byte[] signedContent) throws Exception {
+        try (PDDocument doc = PDDocument.load(signedContent)) {
+            PDSignature pdSignature = doc.getSignatureDictionaries().get(0);
+            CMSSignedData signedData = new CMSSignedData(
+                    new CMSProcessableByteArray(pdSignature.getSignedContent(signedContent)),
+                    pdSignature.getContents(signedContent));
+            SignerInformation signer = signedData.getSignerInfos().getSigners().iterator().next();
+            Assert.assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(aliceChain[0])));
+        }
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern) {
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            boolean match = true;
+            for (int j = 0; j < pattern.length && match; j++) {
+                match = data[i + j] == pattern[j];
+            }
+            if (match) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
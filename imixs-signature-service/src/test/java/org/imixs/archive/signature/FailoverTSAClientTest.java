@@ -0,0 +1,74 @@
+package org.imixs.archive.signature;
+
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.imixs.signature.pdf.util.FailoverTSAClient;
+import org.imixs.signature.pdf.util.TSAHttpTransport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class tests the FailoverTSAClient with a failing and a working local
+ * TSA.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class FailoverTSAClientTest {
+
+    HttpServer failingServer;
+    LocalTSA tsa;
+
+    @Before
+    public void setup() throws Exception {
+        KeyPair keyPair = LocalTSA.generateKeyPair();
+        tsa = new LocalTSA(keyPair.getPrivate(), LocalTSA.createCertificate(keyPair));
+        tsa.start();
+
+        failingServer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        failingServer.createContext("/tsa", exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        failingServer.start();
+    }
+
+    @After
+    public void teardown() {
+        if (failingServer != null) {
+            failingServer.stop(0);
+        }
+        if (tsa != null) {
+            tsa.stop();
+        }
+    }
+
+    /**
+     * Test that a failing TSA is skipped after the first failure
+     */
+    @Test
+    public void testFailover() throws Exception {
+        URL failingURL = new URL("http://localhost:" + failingServer.getAddress().getPort() + "/tsa");
+        URL url = new URL(tsa.getURL());
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        FailoverTSAClient client = new FailoverTSAClient(Arrays.asList(failingURL, url), null, null, md);
+
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest("document".getBytes());
+        for (int i = 0; i < 6; i++) {
+            TimeStampToken token = new TimeStampToken(new CMSSignedData(client.getTimeStampTokenForDigest(hash)));
+            Assert.assertArrayEquals(hash, token.getTimeStampInfo().getMessageImprintDigest());
+        }
+        Assert.assertEquals(1, TSAHttpTransport.getInstance(failingURL).getHistogram().getErrors());
+        Assert.assertEquals(6, TSAHttpTransport.getInstance(url).getHistogram().getCount());
+    }
+}
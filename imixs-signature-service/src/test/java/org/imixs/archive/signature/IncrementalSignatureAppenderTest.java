@@ -0,0 +1,254 @@
+package org.imixs.archive.signature;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.IncrementalPdfReader;
+import org.imixs.signature.pdf.IncrementalSignatureAppender;
+import org.imixs.signature.pdf.PdfInspection;
+import org.imixs.signature.pdf.Signature;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.UnsupportedPdfException;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the IncrementalSignatureAppender. The signed documents are
+ * verified with PDFBox.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class IncrementalSignatureAppenderTest {
+
+    X509Certificate certificate;
+    Signature signature;
+
+    @Before
+    public void setup() throws Exception {
+        X509CertificateGenerator x509CertificateGenerator = new X509CertificateGenerator();
+        KeyPair keyPair = x509CertificateGenerator.generateKeyPair();
+        certificate = x509CertificateGenerator.generateRootCertificate(keyPair, "alice");
+        signature = new Signature(new Certificate[] { certificate }, keyPair.getPrivate());
+    }
+
+    /**
+     * Test a visual and an invisible signature appended to a document written by
+     * PDFBox
+     */
+    @Test
+    public void testSignDocument() throws Exception {
+        byte[] content;
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage());
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+
+        byte[] signed = sign(content, new SignatureSpec("alice", null)
+                .setHumanRect(new Rectangle2D.Float(30, 30, 170, 100)).setPage(2).setReason("approved"));
+        // the original bytes are untouched
+        Assert.assertArrayEquals(content, Arrays.copyOf(signed, content.length));
+        signed = sign(signed, new SignatureSpec("alice", null));
+
+        try (PDDocument doc = PDDocument.load(signed)) {
+            List<PDSignature> signatures = doc.getSignatureDictionaries();
+            Assert.assertEquals(2, signatures.size());
+            Assert.assertEquals("approved", signatures.get(0).getReason());
+            Assert.assertEquals(1, doc.getPage(1).getAnnotations().size());
+            Assert.assertEquals(1, doc.getPage(0).getAnnotations().size());
+            Assert.assertEquals(3, doc.getDocumentCatalog().getAcroForm().getCOSObject().getInt("SigFlags"));
+            for (PDSignature pdSignature : signatures) {
+                verify(signed, pdSignature);
+            }
+        }
+    }
+
+    /**
+     * Test a document with a cross reference stream
+     */
+    @Test
+    public void testSignXrefStreamDocument() throws Exception {
+        byte[] content = createXrefStreamDocument();
+        IncrementalPdfReader reader = new IncrementalPdfReader(ByteBuffer.wrap(content));
+        Assert.assertTrue(reader.isXrefStream());
+
+        byte[] signed = sign(content, new SignatureSpec("alice", null)
+                .setHumanRect(new Rectangle2D.Float(30, 30, 170, 100)).setPage(1));
+        Assert.assertTrue(new IncrementalPdfReader(ByteBuffer.wrap(signed)).isXrefStream());
+        try (PDDocument doc = PDDocument.load(signed)) {
+            List<PDSignature> signatures = doc.getSignatureDictionaries();
+            Assert.assertEquals(1, signatures.size());
+            verify(signed, signatures.get(0));
+        }
+    }
+
+    /**
+     * Test that a certified document with access permission 1 can not be signed
+     */
+    @Test(expected = SigningException.class)
+    public void testNoChangesPermitted() throws Exception {
+        byte[] content;
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.setVersion(1.7f);
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+        byte[] signed = sign(content, new SignatureSpec("alice", null)
+                .setCertificationLevel(SignatureSpec.CERTIFICATION_NO_CHANGES));
+        sign(signed, new SignatureSpec("alice", null));
+    }
+
+    /**
+     * Test the pre-flight inspection of a certified and an encrypted document
+     */
+    @Test
+    public void testInspection() throws Exception {
+        byte[] content;
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.setVersion(1.7f);
+            doc.addPage(new PDPage());
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+        PdfInspection inspection = PdfInspection.inspect(content);
+        Assert.assertTrue(inspection.isIncremental());
+        Assert.assertNull(inspection.getRejectReason());
+        Assert.assertEquals(2, inspection.getPageCount());
+        Assert.assertEquals(0, inspection.getMDPPermission());
+
+        byte[] signed = sign(content, new SignatureSpec("alice", null)
+                .setCertificationLevel(SignatureSpec.CERTIFICATION_NO_CHANGES));
+        inspection = PdfInspection.inspect(signed);
+        Assert.assertEquals(1, inspection.getMDPPermission());
+        Assert.assertNotNull(inspection.getRejectReason());
+        Assert.assertEquals(1, inspection.getSignedFields().size());
+        Assert.assertTrue(inspection.getEmptySignatureFields().isEmpty());
+
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage());
+            doc.protect(new StandardProtectionPolicy("owner", "", new AccessPermission()));
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+        inspection = PdfInspection.inspect(content);
+        Assert.assertTrue(inspection.isEncrypted());
+        Assert.assertFalse(inspection.isIncremental());
+    }
+
+    private byte[] sign(byte[] content, SignatureSpec signatureSpec) throws Exception {
+        IncrementalSignatureAppender appender = new IncrementalSignatureAppender(
+                new IncrementalPdfReader(ByteBuffer.wrap(content)));
+        appender.prepare(signatureSpec, new Certificate[] { certificate }, 8192, Calendar.getInstance());
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(content);
+        appender.updateDigest(md);
+        Assert.assertTrue(appender.setSignature(signature.signDigest(md.digest())));
+        return appender.toByteArray();
+    }
+
+    private void verify(byte[] signed, PDSignature pdSignature) throws Exception {
+        byte[] signedContent = pdSignature.getSignedContent(new ByteArrayInputStream(signed));
+        CMSSignedData cms = new CMSSignedData(new CMSProcessableByteArray(signedContent),
+                pdSignature.getContents(signed));
+        SignerInformation signerInformation = cms.getSignerInfos().getSigners().iterator().next();
+        Assert.assertTrue(signerInformation.verify(new JcaSimpleSignerInfoVerifierBuilder().build(certificate)));
+    }
+
+    /**
+     * Test that a malformed object is reported by an UnsupportedPdfException.
+     * Object 6 is stored in an object stream with a negative /First offset.
+     */
+    @Test
+    public void testMalformedObject() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<Integer>();
+        write(bos, "%PDF-1.7\n");
+        offsets.add(bos.size());
+        write(bos, "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+        offsets.add(bos.size());
+        write(bos, "2 0 obj\n<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+        offsets.add(bos.size());
+        write(bos, "3 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] >>\nendobj\n");
+        int objectStreamOffset = bos.size();
+        write(bos, "5 0 obj\n<< /Type /ObjStm /N 1 /First -100 /Length 4 >>\nstream\n6 0 \nendstream\nendobj\n");
+        offsets.add(bos.size());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(new byte[] { 0, 0, 0, (byte) 0xff });
+        for (int offset : offsets) {
+            data.write(new byte[] { 1, (byte) (offset >> 8), (byte) offset, 0 });
+        }
+        data.write(new byte[] { 1, (byte) (objectStreamOffset >> 8), (byte) objectStreamOffset, 0 });
+        data.write(new byte[] { 2, 0, 5, 0 });
+        write(bos, "4 0 obj\n<< /Type /XRef /Size 7 /W [1 2 1] /Root 1 0 R /Length " + data.size()
+                + " >>\nstream\n");
+        bos.write(data.toByteArray());
+        write(bos, "\nendstream\nendobj\nstartxref\n" + offsets.get(3) + "\n%%EOF\n");
+
+        IncrementalPdfReader reader = new IncrementalPdfReader(ByteBuffer.wrap(bos.toByteArray()));
+        Assert.assertNotNull(reader.getCatalog());
+        try {
+            reader.getObject(6);
+            Assert.fail("malformed object accepted");
+        } catch (UnsupportedPdfException e) {
+            Assert.assertTrue(e.getCause() instanceof RuntimeException);
+        }
+    }
+
+    /**
+     * Creates a minimal PDF document with an uncompressed cross reference stream
+     */
+    private byte[] createXrefStreamDocument() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        List<Integer> offsets = new ArrayList<Integer>();
+        write(bos, "%PDF-1.7\n");
+        offsets.add(bos.size());
+        write(bos, "1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+        offsets.add(bos.size());
+        write(bos, "2 0 obj\n<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+        offsets.add(bos.size());
+        write(bos, "3 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 595 842] >>\nendobj\n");
+        offsets.add(bos.size());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(new byte[] { 0, 0, 0, (byte) 0xff });
+        for (int offset : offsets) {
+            data.write(new byte[] { 1, (byte) (offset >> 8), (byte) offset, 0 });
+        }
+        write(bos, "4 0 obj\n<< /Type /XRef /Size 5 /W [1 2 1] /Root 1 0 R /Length " + data.size()
+                + " >>\nstream\n");
+        bos.write(data.toByteArray());
+        write(bos, "\nendstream\nendobj\nstartxref\n" + offsets.get(3) + "\n%%EOF\n");
+        return bos.toByteArray();
+    }
+
+    private void write(ByteArrayOutputStream bos, String text) throws IOException {
+        bos.write(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
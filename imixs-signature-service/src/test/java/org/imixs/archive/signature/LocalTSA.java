@@ -0,0 +1,153 @@
+package org.imixs.archive.signature;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.oiw.OIWObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.ExtendedKeyUsage;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyPurposeId;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequest;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local RFC 3161 timestamp authority used by the tests. The tokens are issued
+ * by a TimeStampTokenGenerator and the requests are served by a HttpServer on a
+ * free port of localhost. A number of requests can be configured to fail.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class LocalTSA {
+
+    public static final String POLICY = "1.2.3";
+
+    private final TimeStampTokenGenerator tokenGenerator;
+    private final AtomicInteger failures = new AtomicInteger();
+    private HttpServer server;
+
+    /**
+     * Creates a TSA issuing tokens with the given key. The first certificate of
+     * the chain is the TSA certificate.
+     */
+    public LocalTSA(PrivateKey privateKey, X509Certificate... chain) throws Exception {
+        tokenGenerator = createTokenGenerator(privateKey, chain);
+    }
+
+    /**
+     * Generates a RSA key pair
+     */
+    public static KeyPair generateKeyPair() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        return keyPairGenerator.generateKeyPair();
+    }
+
+    /**
+     * Creates a self-signed TSA certificate with a critical timeStamping extended
+     * key usage
+     */
+    public static X509Certificate createCertificate(KeyPair keyPair) throws Exception {
+        X500Name name = new X500Name("CN=Test TSA");
+        JcaX509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+                new Date(System.currentTimeMillis() - 60000), new Date(System.currentTimeMillis() + 3600000), name,
+                keyPair.getPublic());
+        builder.addExtension(Extension.extendedKeyUsage, true, new ExtendedKeyUsage(KeyPurposeId.id_kp_timeStamping));
+        return new JcaX509CertificateConverter().getCertificate(
+                builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    }
+
+    /**
+     * Creates a TimeStampTokenGenerator signing with the given key. The ESSCertID
+     * of the TSA certificate is computed with SHA-1, as required by the
+     * TimeStampTokenGenerator.
+     */
+    public static TimeStampTokenGenerator createTokenGenerator(PrivateKey privateKey, X509Certificate... chain)
+            throws Exception {
+        TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", privateKey, chain[0]),
+                new JcaDigestCalculatorProviderBuilder().build()
+                        .get(new AlgorithmIdentifier(OIWObjectIdentifiers.idSHA1)),
+                new ASN1ObjectIdentifier(POLICY));
+        tokenGenerator.addCertificates(new JcaCertStore(Arrays.asList(chain)));
+        return tokenGenerator;
+    }
+
+    public TimeStampTokenGenerator getTokenGenerator() {
+        return tokenGenerator;
+    }
+
+    /**
+     * Sets the number of following requests answered with status 503
+     */
+    public void setFailures(int count) {
+        failures.set(count);
+    }
+
+    /**
+     * Starts the HttpServer
+     *
+     * @return the url of the TSA
+     */
+    public String start() throws Exception {
+        final TimeStampResponseGenerator responseGenerator = new TimeStampResponseGenerator(tokenGenerator,
+                TSPAlgorithms.ALLOWED);
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/tsa", exchange -> {
+            byte[] response;
+            try (InputStream input = exchange.getRequestBody()) {
+                TimeStampRequest request = new TimeStampRequest(IOUtils.toByteArray(input));
+                if (failures.getAndDecrement() > 0) {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                response = responseGenerator.generate(request, BigInteger.valueOf(System.nanoTime()), new Date())
+                        .getEncoded();
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(response);
+            }
+        });
+        server.start();
+        return getURL();
+    }
+
+    public String getURL() {
+        return "http://localhost:" + server.getAddress().getPort() + "/tsa";
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.ocsp.OCSPObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.cert.OcspBatchClient;
+import org.imixs.signature.pdf.cert.OcspCache;
+import org.imixs.signature.pdf.cert.OcspHelper;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class tests the OcspCache and the OcspBatchClient with a local OCSP
+ * responder. The responses are signed by the CA certificate.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class OcspCacheTest {
+
+    HttpServer server;
+    KeyPair caKeyPair;
+    X509Certificate caCertificate;
+    X509Certificate certificate;
+    String ocspURL;
+    volatile boolean echoNonce = false;
+    volatile int maxResponses = Integer.MAX_VALUE;
+    AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void setup() throws Exception {
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        caKeyPair = generator.generateKeyPair();
+        caCertificate = generator.generateRootCertificate(caKeyPair, "Test CA");
+        certificate = generator.generateSignedCertificate(caCertificate, caKeyPair.getPrivate(),
+                generator.generateKeyPair(), "alice", "Imixs", Arrays.asList("Test"), "Munich", "Bavaria", "DE")[0];
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            requests.incrementAndGet();
+            try (InputStream in = exchange.getRequestBody()) {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    bos.write(buffer, 0, n);
+                }
+                byte[] response = createResponse(new OCSPReq(bos.toByteArray()));
+                exchange.getResponseHeaders().add("Content-Type", "application/ocsp-response");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(response);
+                }
+            } catch (Exception e) {
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+        ocspURL = "http://localhost:" + server.getAddress().getPort() + "/ocsp";
+        OcspCache.clear();
+        OcspBatchClient.clear();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+    }
+
+    /**
+     * Test that a response without nonce is served from the cache
+     */
+    @Test
+    public void testCachedResponse() throws Exception {
+        OcspHelper helper = new OcspHelper(certificate, new Date(), caCertificate,
+                Collections.singleton(caCertificate), ocspURL);
+        helper.getResponseOcsp();
+        Assert.assertEquals(caCertificate, helper.getOcspResponderCertificate());
+        new OcspHelper(certificate, new Date(), caCertificate, Collections.singleton(caCertificate), ocspURL)
+                .getResponseOcsp();
+        Assert.assertEquals(1, requests.get());
+        Assert.assertEquals(1, OcspCache.getHitCount());
+        Assert.assertEquals(1, OcspCache.getMissCount());
+        Assert.assertEquals(0.5, OcspCache.getHitRate(), 0.001);
+    }
+
+    /**
+     * Test that a response echoing the nonce of the request is not cached
+     */
+    @Test
+    public void testNonceResponse() throws Exception {
+        echoNonce = true;
+        for (int i = 0; i < 2; i++) {
+            new OcspHelper(certificate, new Date(), caCertificate, Collections.singleton(caCertificate), ocspURL)
+                    .getResponseOcsp();
+        }
+        Assert.assertEquals(2, requests.get());
+        Assert.assertEquals(0, OcspCache.getCachedResponseCount());
+    }
+
+    /**
+     * Test that concurrent shared requests for the same certificate are collapsed
+     */
+    @Test
+    public void testCollapsedRequests() throws Exception {
+        final CertificateID certId = new CertificateID(
+                new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                new JcaX509CertificateHolder(caCertificate), certificate.getSerialNumber());
+        final AtomicInteger calls = new AtomicInteger();
+        final Callable<OCSPResp> request = () -> {
+            calls.incrementAndGet();
+            Thread.sleep(200);
+            return new OCSPResp(createResponse(new OCSPReqBuilder()
+                    .addRequest(certId).build()));
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<OCSPResp>> futures = new ArrayList<Future<OCSPResp>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> OcspCache.getResponse(certId, true, request)));
+            }
+            OCSPResp response = futures.get(0).get();
+            for (Future<OCSPResp> future : futures) {
+                Assert.assertSame(response, future.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, calls.get());
+        Assert.assertEquals(1, OcspCache.getMissCount());
+        Assert.assertEquals(7, OcspCache.getCollapsedCount());
+    }
+
+    /**
+     * Test that concurrent requests for the same responder are sent in one
+     * request and each request receives its single response
+     */
+    @Test
+    public void testBatchRequest() throws Exception {
+        echoNonce = true;
+        final X509CertificateGenerator generator = new X509CertificateGenerator();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<OcspBatchClient.Result>> futures = new ArrayList<Future<OcspBatchClient.Result>>();
+            final List<CertificateID> certIds = new ArrayList<CertificateID>();
+            for (int i = 0; i < 8; i++) {
+                X509Certificate cert = generator.generateSignedCertificate(caCertificate, caKeyPair.getPrivate(),
+                        generator.generateKeyPair(), "user" + i, "Imixs", Arrays.asList("Test"), "Munich",
+                        "Bavaria", "DE")[0];
+                certIds.add(new CertificateID(
+                        new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                        new JcaX509CertificateHolder(caCertificate), cert.getSerialNumber()));
+            }
+            for (final CertificateID certId : certIds) {
+                futures.add(executor.submit(() -> OcspBatchClient.request(ocspURL, certId, true, 1000, 50)));
+            }
+            for (int i = 0; i < 8; i++) {
+                OcspBatchClient.Result result = futures.get(i).get();
+                BasicOCSPResp basicResponse = (BasicOCSPResp) result.getResponse().getResponseObject();
+                Assert.assertEquals(8, basicResponse.getResponses().length);
+                Assert.assertEquals(result.getNonce(),
+                        basicResponse.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce).getExtnValue());
+                boolean found = false;
+                for (SingleResp singleResp : basicResponse.getResponses()) {
+                    found |= certIds.get(i).equals(singleResp.getCertID());
+                }
+                Assert.assertTrue(found);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, requests.get());
+        Assert.assertEquals(1, OcspBatchClient.getRequestCount());
+        Assert.assertEquals(8, OcspBatchClient.getCertificateCount());
+    }
+
+    /**
+     * Test that the CertificateIDs missing in the response of a responder
+     * answering only the first request are requested again with single requests
+     */
+    @Test
+    public void testPartialBatchResponse() throws Exception {
+        echoNonce = true;
+        maxResponses = 1;
+        final X509CertificateGenerator generator = new X509CertificateGenerator();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<CertificateID> certIds = new ArrayList<CertificateID>();
+            for (int i = 0; i < 4; i++) {
+                X509Certificate cert = generator.generateSignedCertificate(caCertificate, caKeyPair.getPrivate(),
+                        generator.generateKeyPair(), "user" + i, "Imixs", Arrays.asList("Test"), "Munich",
+                        "Bavaria", "DE")[0];
+                certIds.add(new CertificateID(
+                        new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1),
+                        new JcaX509CertificateHolder(caCertificate), cert.getSerialNumber()));
+            }
+            List<Future<OcspBatchClient.Result>> futures = new ArrayList<Future<OcspBatchClient.Result>>();
+            for (final CertificateID certId : certIds) {
+                futures.add(executor.submit(() -> OcspBatchClient.request(ocspURL, certId, true, 1000, 4)));
+            }
+            for (int i = 0; i < 4; i++) {
+                OcspBatchClient.Result result = futures.get(i).get();
+                BasicOCSPResp basicResponse = (BasicOCSPResp) result.getResponse().getResponseObject();
+                Assert.assertEquals(1, basicResponse.getResponses().length);
+                Assert.assertEquals(certIds.get(i), basicResponse.getResponses()[0].getCertID());
+                Assert.assertEquals(result.getNonce(),
+                        basicResponse.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce).getExtnValue());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // one batch request and a single request for each missing certificate
+        Assert.assertEquals(4, requests.get());
+        Assert.assertEquals(4, OcspBatchClient.getRequestCount());
+        Assert.assertEquals(4, OcspBatchClient.getCertificateCount());
+    }
+
+    /**
+     * Creates a signed response with the status GOOD for all requests. A
+     * responder answering only the first requests is simulated by maxResponses.
+     */
+    private byte[] createResponse(OCSPReq request) throws Exception {
+        BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(
+                new RespID(new X500Name(caCertificate.getSubjectX500Principal().getName())));
+        Date now = new Date();
+        Req[] requestList = request.getRequestList();
+        for (int i = 0; i < requestList.length && i < maxResponses; i++) {
+            Req req = requestList[i];
+            builder.addResponse(req.getCertID(), CertificateStatus.GOOD, new Date(now.getTime() - 1000),
+                    new Date(now.getTime() + 60000), null);
+        }
+        Extension nonce = request.getExtension(OCSPObjectIdentifiers.id_pkix_ocsp_nonce);
+        if (echoNonce && nonce != null) {
+            builder.setResponseExtensions(new Extensions(nonce));
+        }
+        BasicOCSPResp basicResponse = builder.build(
+                new JcaContentSignerBuilder("SHA256withRSA").build(caKeyPair.getPrivate()), null, now);
+        return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basicResponse).getEncoded();
+    }
+}
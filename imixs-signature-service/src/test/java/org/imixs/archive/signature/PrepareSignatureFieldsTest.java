@@ -0,0 +1,182 @@
+package org.imixs.archive.signature;
+
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDSignatureField;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.SignatureReport;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This class tests the preparation of empty signature fields. The fields are
+ * added as an incremental update and are filled by later signatures.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class PrepareSignatureFieldsTest {
+
+    File directory;
+    SigningService signingService;
+    byte[] pdf;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-fields").toFile();
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate root = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        KeyPair keyPair = generator.generateKeyPair();
+        X509Certificate[] chain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(), keyPair,
+                "alice", "Imixs", Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+        KeystoreService keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("alice")).thenReturn(chain);
+        Mockito.when(keystoreService.loadPrivateKey("alice", "")).thenReturn(keyPair.getPrivate());
+        Mockito.when(keystoreService.loadTrustedCertificates()).thenReturn(Collections.singleton(root));
+        signingService = new SigningService(keystoreService, directory.getAbsolutePath(), 3600);
+
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            pdf = bos.toByteArray();
+        }
+    }
+
+    @After
+    public void teardown() {
+        directory.delete();
+    }
+
+    /**
+     * Test that the fields are appended to the unchanged original document and
+     * existing fields are not added again
+     */
+    @Test
+    public void testIncrementalUpdate() throws Exception {
+        byte[] prepared = prepare(pdf, 1);
+        Assert.assertTrue(prepared.length > pdf.length);
+        Assert.assertArrayEquals(pdf, Arrays.copyOf(prepared, pdf.length));
+        try (PDDocument doc = PDDocument.load(prepared)) {
+            PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
+            Assert.assertEquals(2, acroForm.getFields().size());
+            for (String fieldName : Arrays.asList("Signature1", "Signature2")) {
+                PDSignatureField field = (PDSignatureField) acroForm.getField(fieldName);
+                Assert.assertNotNull(field);
+                Assert.assertNull(field.getSignature());
+                Assert.assertTrue(doc.getPage(0).getAnnotations().contains(field.getWidgets().get(0)));
+            }
+        }
+
+        // the prepared fields already exist
+        Assert.assertSame(prepared, prepare(prepared, 1));
+        byte[] extended = prepare(prepared, 2);
+        Assert.assertArrayEquals(prepared, Arrays.copyOf(extended, prepared.length));
+        try (PDDocument doc = PDDocument.load(extended)) {
+            Assert.assertEquals(3, doc.getDocumentCatalog().getAcroForm().getFields().size());
+        }
+    }
+
+    /**
+     * Test that the signatures fill the prepared fields and keep their widget
+     * rectangles
+     */
+    @Test
+    public void testSignPreparedFields() throws Exception {
+        byte[] prepared = prepare(pdf, 1);
+        PDRectangle rect;
+        try (PDDocument doc = PDDocument.load(prepared)) {
+            rect = doc.getDocumentCatalog().getAcroForm().getField("Signature2").getWidgets().get(0)
+                    .getRectangle();
+        }
+
+        byte[] signed = signingService.signPDF(prepared,
+                Collections.singletonList(new SignatureSpec("alice", "").setSignatureFieldName("Signature1")));
+        signed = signingService.signPDF(signed,
+                Collections.singletonList(new SignatureSpec("alice", "").setSignatureFieldName("Signature2")));
+
+        try (PDDocument doc = PDDocument.load(signed)) {
+            PDAcroForm acroForm = doc.getDocumentCatalog().getAcroForm();
+            Assert.assertEquals(2, acroForm.getFields().size());
+            PDSignatureField field = (PDSignatureField) acroForm.getField("Signature2");
+            Assert.assertNotNull(field.getSignature());
+            PDRectangle signedRect = field.getWidgets().get(0).getRectangle();
+            Assert.assertEquals(rect.getLowerLeftX(), signedRect.getLowerLeftX(), 0.01);
+            Assert.assertEquals(rect.getLowerLeftY(), signedRect.getLowerLeftY(), 0.01);
+            Assert.assertEquals(rect.getWidth(), signedRect.getWidth(), 0.01);
+            Assert.assertEquals(rect.getHeight(), signedRect.getHeight(), 0.01);
+        }
+        List<SignatureReport> reports = signingService.verifyPDF(signed);
+        Assert.assertEquals(2, reports.size());
+        Assert.assertEquals("Signature1", reports.get(0).getFieldName());
+        Assert.assertEquals("Signature2", reports.get(1).getFieldName());
+        for (SignatureReport report : reports) {
+            Assert.assertTrue(report.getErrors().toString(), report.isValid());
+        }
+    }
+
+    /**
+     * Test that the widget rectangle is computed from the rotation and the crop
+     * box of the target page and not of the first page
+     */
+    @Test
+    public void testRotatedTargetPage() throws Exception {
+        byte[] content;
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage(PDRectangle.A4));
+            PDPage rotated = new PDPage(PDRectangle.A3);
+            rotated.setRotation(90);
+            doc.addPage(rotated);
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+        byte[] prepared = signingService.prepareSignatureFields(content,
+                Arrays.asList((Rectangle2D) new Rectangle2D.Double(50, 60, 200, 50)), 2, 1);
+        try (PDDocument doc = PDDocument.load(prepared)) {
+            PDSignatureField field = (PDSignatureField) doc.getDocumentCatalog().getAcroForm()
+                    .getField("Signature1");
+            Assert.assertTrue(doc.getPage(1).getAnnotations().contains(field.getWidgets().get(0)));
+            // on a page rotated by 90 degrees x and y are swapped
+            PDRectangle rect = field.getWidgets().get(0).getRectangle();
+            Assert.assertEquals(60, rect.getLowerLeftX(), 0.01);
+            Assert.assertEquals(50, rect.getLowerLeftY(), 0.01);
+            Assert.assertEquals(50, rect.getWidth(), 0.01);
+            Assert.assertEquals(200, rect.getHeight(), 0.01);
+        }
+    }
+
+    /**
+     * Test that no fields can be added to a signed document
+     */
+    @Test(expected = SigningException.class)
+    public void testSignedDocument() throws Exception {
+        byte[] signed = signingService.signPDF(pdf, "alice", "");
+        prepare(signed, 1);
+    }
+
+    private byte[] prepare(byte[] content, int firstIndex) throws SigningException {
+        return signingService.prepareSignatureFields(content,
+                Arrays.asList((Rectangle2D) new Rectangle2D.Double(50, 50, 200, 50),
+                        new Rectangle2D.Double(300, 50, 200, 50)),
+                1, firstIndex);
+    }
+}
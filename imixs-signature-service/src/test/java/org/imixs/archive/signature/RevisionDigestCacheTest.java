@@ -0,0 +1,130 @@
+package org.imixs.archive.signature;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.imixs.signature.pdf.RevisionDigestCache;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the RevisionDigestCache
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class RevisionDigestCacheTest {
+
+    RevisionDigestCache revisionDigestCache;
+
+    @Before
+    public void setup() {
+        revisionDigestCache = new RevisionDigestCache(10);
+    }
+
+    /**
+     * Test that a resumed digest state results in the same digest as hashing the
+     * full content
+     */
+    @Test
+    public void testResumeDigest() throws NoSuchAlgorithmException {
+        byte[] revision = randomContent(200000);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(revision);
+        String token = revisionDigestCache.putDigest(revision, md);
+        Assert.assertNotNull(token);
+
+        // append an incremental update
+        byte[] update = randomContent(3000);
+        byte[] content = Arrays.copyOf(revision, revision.length + update.length);
+        System.arraycopy(update, 0, content, revision.length, update.length);
+
+        MessageDigest resumed = revisionDigestCache.getDigest(token, revision);
+        Assert.assertNotNull(resumed);
+        resumed.update(update);
+
+        byte[] expected = MessageDigest.getInstance("SHA-256").digest(content);
+        Assert.assertArrayEquals(expected, resumed.digest());
+        // the cached state is not modified
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(revision),
+                revisionDigestCache.getDigest(token, revision).digest());
+    }
+
+    /**
+     * Test that a revision is only resumed with its token and length
+     */
+    @Test
+    public void testUnknownRevision() throws NoSuchAlgorithmException {
+        byte[] revision = randomContent(1000);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(revision);
+        String token = revisionDigestCache.putDigest(revision, md);
+
+        Assert.assertNull(revisionDigestCache.getDigest(null, revision));
+        Assert.assertNull(revisionDigestCache.getDigest("", revision));
+        Assert.assertNull(revisionDigestCache.getDigest(token, Arrays.copyOf(revision, revision.length - 1)));
+        // each revision gets a new token
+        Assert.assertNotEquals(token, revisionDigestCache.putDigest(revision, md));
+        Assert.assertEquals(2, revisionDigestCache.getCachedRevisionCount());
+    }
+
+    /**
+     * Test that a document with the same length and the same tail as a cached
+     * revision but a modified byte before the tail is not resumed. The old cache
+     * key was computed from the last 64 KB only.
+     */
+    @Test
+    public void testModifiedRevision() throws NoSuchAlgorithmException {
+        byte[] revision = randomContent(200000);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(revision);
+        String token = revisionDigestCache.putDigest(revision, md);
+
+        byte[] modified = revision.clone();
+        modified[1000]++;
+        // a document without token is hashed completely
+        Assert.assertNull(revisionDigestCache.getDigest(null, modified));
+        Assert.assertFalse(Arrays.equals(MessageDigest.getInstance("SHA-256").digest(revision),
+                MessageDigest.getInstance("SHA-256").digest(modified)));
+        // a modified first block does not match the fingerprint of the token
+        Assert.assertNull(revisionDigestCache.getDigest(token, modified));
+        modified = revision.clone();
+        modified[revision.length - 10]++;
+        Assert.assertNull(revisionDigestCache.getDigest(token, modified));
+    }
+
+    /**
+     * Test that a revision with a modified cross reference table is not resumed.
+     * The block at the startxref offset is part of the fingerprint.
+     */
+    @Test
+    public void testModifiedCrossReference() throws NoSuchAlgorithmException {
+        byte[] body = randomContent(100000);
+        byte[] trailer = ("xref\n0 1\n0000000000 65535 f \ntrailer\n<<>>\nstartxref\n" + 50000 + "\n%%EOF\n")
+                .getBytes(StandardCharsets.US_ASCII);
+        byte[] revision = Arrays.copyOf(body, body.length + trailer.length);
+        System.arraycopy(trailer, 0, revision, body.length, trailer.length);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(revision);
+        String token = revisionDigestCache.putDigest(revision, md);
+        Assert.assertNotNull(revisionDigestCache.getDigest(token, revision));
+
+        byte[] modified = revision.clone();
+        modified[50000]++;
+        Assert.assertNull(revisionDigestCache.getDigest(token, modified));
+        // a byte outside of the fingerprint blocks is not detected
+        modified = revision.clone();
+        modified[30000]++;
+        Assert.assertNotNull(revisionDigestCache.getDigest(token, modified));
+    }
+
+    private byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,155 @@
+package org.imixs.archive.signature;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bouncycastle.asn1.ASN1OctetString;
+import org.bouncycastle.asn1.cms.CMSAttributes;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.cms.CMSAlgorithm;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.Signature;
+import org.imixs.signature.pdf.SignedDigest;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This class tests the signing of a batch of digests. The results must be in
+ * the order of the digests and a failed digest must not fail the batch. The
+ * timestamps are requested from a local TSA failing the first requests.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignDigestsTest {
+
+    File directory;
+    LocalTSA tsa;
+    KeyPair keyPair;
+    X509Certificate[] chain;
+    SigningService signingService;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-digests").toFile();
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate root = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        keyPair = generator.generateKeyPair();
+        chain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(), keyPair, "alice", "Imixs",
+                Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+        KeystoreService keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("alice")).thenReturn(chain);
+        Mockito.when(keystoreService.loadPrivateKey("alice", "")).thenReturn(keyPair.getPrivate());
+        signingService = new SigningService(keystoreService, directory.getAbsolutePath(), 3600);
+
+        KeyPair tsaKeyPair = generator.generateKeyPair();
+        X509Certificate tsaCertificate = generator.generateTimeStampingCertificate(root, rootKeyPair.getPrivate(),
+                tsaKeyPair, "Test TSA")[0];
+        tsa = new LocalTSA(tsaKeyPair.getPrivate(), tsaCertificate);
+        tsa.start();
+    }
+
+    @After
+    public void teardown() {
+        if (tsa != null) {
+            tsa.stop();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Test that the signatures are returned in the order of the digests and an
+     * invalid digest only fails its own entry
+     */
+    @Test
+    public void testOrdering() throws Exception {
+        List<byte[]> digests = createDigests(6);
+        digests.set(2, new byte[10]);
+        digests.set(4, null);
+        List<SignedDigest> result = signingService.signDigests(digests, "alice", "");
+        Assert.assertEquals(6, result.size());
+        for (int i = 0; i < digests.size(); i++) {
+            if (i == 2 || i == 4) {
+                Assert.assertNull(result.get(i).getCmsSignature());
+                Assert.assertEquals("invalid SHA-256 digest", result.get(i).getError());
+            } else {
+                Assert.assertNull(result.get(i).getError());
+                verify(result.get(i).getCmsSignature(), digests.get(i), false);
+            }
+        }
+    }
+
+    /**
+     * Test that failed timestamp requests only fail their digests and the other
+     * signatures are timestamped and returned in order
+     */
+    @Test
+    public void testTimestampFailures() throws Exception {
+        tsa.setFailures(2);
+        String tsaUrl = tsa.getURL();
+        Signature signature = new Signature(chain, keyPair.getPrivate(), tsaUrl);
+        List<byte[]> digests = createDigests(8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<SignedDigest> result;
+        try {
+            result = signature.signDigests(digests, 3, executor);
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(8, result.size());
+        int failed = 0;
+        for (int i = 0; i < digests.size(); i++) {
+            SignedDigest signedDigest = result.get(i);
+            if (signedDigest.getError() != null) {
+                Assert.assertNull(signedDigest.getCmsSignature());
+                Assert.assertTrue(signedDigest.getError().startsWith("Failed to add timestamp"));
+                failed++;
+            } else {
+                verify(signedDigest.getCmsSignature(), digests.get(i), true);
+            }
+        }
+        Assert.assertEquals(2, failed);
+    }
+
+    /**
+     * Verifies that the CMS signature signs the given digest
+     */
+    private void verify(byte[] cmsSignature, byte[] digest, boolean timestamp) throws Exception {
+        SignerInformation signer = new CMSSignedData(Collections.singletonMap(CMSAlgorithm.SHA256, digest),
+                cmsSignature).getSignerInfos().getSigners().iterator().next();
+        byte[] messageDigest = ASN1OctetString.getInstance(
+                signer.getSignedAttributes().get(CMSAttributes.messageDigest).getAttrValues().getObjectAt(0))
+                .getOctets();
+        Assert.assertArrayEquals(digest, messageDigest);
+        Assert.assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(chain[0])));
+        Assert.assertEquals(timestamp, signer.getUnsignedAttributes() != null && signer.getUnsignedAttributes()
+                .get(PKCSObjectIdentifiers.id_aa_signatureTimeStampToken) != null);
+    }
+
+    private List<byte[]> createDigests(int count) throws Exception {
+        List<byte[]> result = new ArrayList<byte[]>();
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (int i = 0; i < count; i++) {
+            result.add(md.digest(("document " + i).getBytes()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,152 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.apache.pdfbox.pdmodel.interactive.form.PDAcroForm;
+import org.apache.pdfbox.pdmodel.interactive.form.PDTextField;
+import org.bouncycastle.cms.CMSProcessableByteArray;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.PdfInspection;
+import org.imixs.signature.pdf.SignatureReport;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.pdf.cert.SigningException;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This class tests that the signatures created by signPDF from the
+ * precomputed byte range digest are valid. The second document can not be
+ * signed on byte level and is signed with the external signing support of
+ * PDFBox. A signed signature field can not be signed again.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignPDFTest {
+
+    File directory;
+    SigningService signingService;
+    X509Certificate[] chain;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-sign").toFile();
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate root = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        KeyPair keyPair = generator.generateKeyPair();
+        chain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(), keyPair, "alice", "Imixs",
+                Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+        KeystoreService keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("alice")).thenReturn(chain);
+        Mockito.when(keystoreService.loadPrivateKey("alice", "")).thenReturn(keyPair.getPrivate());
+        Mockito.when(keystoreService.loadTrustedCertificates()).thenReturn(Collections.singleton(root));
+        signingService = new SigningService(keystoreService, directory.getAbsolutePath(), 3600);
+    }
+
+    @After
+    public void teardown() {
+        directory.delete();
+    }
+
+    /**
+     * Test a signature appended on byte level
+     */
+    @Test
+    public void testSignPDF() throws Exception {
+        byte[] signed = signingService.signPDF(createDocument(false), "alice", "");
+        verify(signed);
+    }
+
+    /**
+     * Test a signature created with the external signing support of PDFBox. The
+     * form requires new appearances, so the document is not signed on byte
+     * level.
+     */
+    @Test
+    public void testSignPDFBox() throws Exception {
+        byte[] signed = signingService.signPDF(createDocument(true), "alice", "");
+        verify(signed);
+    }
+
+    /**
+     * Test that a document is rejected if the target signature field is already
+     * signed
+     */
+    @Test
+    public void testSignedFieldRejected() throws Exception {
+        byte[] signed = signingService.signPDF(createDocument(false), "alice", "");
+        PdfInspection inspection = signingService.inspectPDF(signed);
+        Assert.assertEquals(Arrays.asList("Signature1"), inspection.getSignedFields());
+        Assert.assertNull(inspection.getRejectReason());
+        Assert.assertNull(inspection.getRejectReason("Signature2"));
+        Assert.assertNotNull(inspection.getRejectReason("Signature1"));
+        try {
+            signingService.signPDF(signed, "alice", "");
+            Assert.fail("signed field accepted");
+        } catch (SigningException e) {
+            Assert.assertEquals(inspection.getRejectReason("Signature1"), e.getMessage());
+        }
+        signed = signingService.signPDF(signed,
+                Collections.singletonList(new SignatureSpec("alice", "").setSignatureFieldName("Signature2")));
+        Assert.assertEquals(2, signingService.verifyPDF(signed).size());
+    }
+
+    /**
+     * Verifies the CMS signature of the signed PDF and the report of the
+     * SignatureVerifier
+     */
+    private void verify(byte[] signed) throws Exception {
+        try (PDDocument doc = PDDocument.load(signed)) {
+            List<PDSignature> signatures = doc.getSignatureDictionaries();
+            Assert.assertEquals(1, signatures.size());
+            PDSignature pdSignature = signatures.get(0);
+            CMSSignedData signedData = new CMSSignedData(
+                    new CMSProcessableByteArray(pdSignature.getSignedContent(signed)),
+                    pdSignature.getContents(signed));
+            SignerInformation signer = signedData.getSignerInfos().getSigners().iterator().next();
+            Assert.assertTrue(signer.verify(new JcaSimpleSignerInfoVerifierBuilder().build(chain[0])));
+        }
+        List<SignatureReport> reports = signingService.verifyPDF(signed);
+        Assert.assertEquals(1, reports.size());
+        Assert.assertTrue(reports.get(0).getErrors().toString(), reports.get(0).isValid());
+        Assert.assertTrue(reports.get(0).isCoversDocument());
+    }
+
+    private byte[] createDocument(boolean needAppearances) throws Exception {
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            if (needAppearances) {
+                PDAcroForm acroForm = new PDAcroForm(doc);
+                doc.getDocumentCatalog().setAcroForm(acroForm);
+                PDTextField textField = new PDTextField(acroForm);
+                textField.setPartialName("name");
+                textField.getWidgets().get(0).setPage(page);
+                page.getAnnotations().add(textField.getWidgets().get(0));
+                acroForm.getFields().add(textField);
+                acroForm.setNeedAppearances(true);
+            }
+            doc.save(bos);
+            return bos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package org.imixs.archive.signature;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.imixs.signature.pdf.SignatureImageService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the SignatureImageService
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignatureImageServiceTest {
+
+    SignatureImageService signatureImageService;
+
+    @Before
+    public void setup() {
+        // 144 dpi => 2 pixel per point
+        signatureImageService = new SignatureImageService(144, 10);
+    }
+
+    /**
+     * Test downsampling of a large png image into a signature rect of 170x60
+     * points
+     */
+    @Test
+    public void testDownsampleImage() throws IOException {
+        byte[] imageFile = createImage(4000, 3000, "png", true);
+        try (PDDocument doc = new PDDocument()) {
+            PDImageXObject img = signatureImageService.createImage(doc, imageFile, 170, 60);
+            Assert.assertEquals(120, img.getHeight());
+            Assert.assertEquals(160, img.getWidth());
+            Assert.assertNotNull(img.getCOSObject().getItem("SMask"));
+        }
+        Assert.assertEquals(1, signatureImageService.getCachedImageCount());
+    }
+
+    /**
+     * Test that a second request for the same image reuses the cached stream
+     */
+    @Test
+    public void testImageCache() throws IOException {
+        byte[] imageFile = createImage(2000, 1000, "jpg", false);
+        try (PDDocument doc1 = new PDDocument(); PDDocument doc2 = new PDDocument()) {
+            PDImageXObject img1 = signatureImageService.createImage(doc1, imageFile, 170, 60);
+            PDImageXObject img2 = signatureImageService.createImage(doc2, imageFile, 170, 60);
+            Assert.assertEquals(1, signatureImageService.getCachedImageCount());
+            Assert.assertEquals(img1.getWidth(), img2.getWidth());
+            Assert.assertEquals(img1.getCOSObject().getLength(), img2.getCOSObject().getLength());
+            // a different target size results in a new cache entry
+            signatureImageService.createImage(doc2, imageFile, 100, 40);
+            Assert.assertEquals(2, signatureImageService.getCachedImageCount());
+        }
+    }
+
+    /**
+     * Small images are not upscaled
+     */
+    @Test
+    public void testSmallImage() throws IOException {
+        byte[] imageFile = createImage(50, 20, "png", false);
+        try (PDDocument doc = new PDDocument()) {
+            PDImageXObject img = signatureImageService.createImage(doc, imageFile, 170, 60);
+            Assert.assertEquals(50, img.getWidth());
+            Assert.assertEquals(20, img.getHeight());
+        }
+    }
+
+    private byte[] createImage(int width, int height, String format, boolean alpha) throws IOException {
+        BufferedImage image = new BufferedImage(width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        if (!alpha) {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+        }
+        g.setColor(Color.BLUE);
+        g.drawLine(0, height / 2, width, height / 3);
+        g.dispose();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ImageIO.write(image, format, bos);
+        return bos.toByteArray();
+    }
+}
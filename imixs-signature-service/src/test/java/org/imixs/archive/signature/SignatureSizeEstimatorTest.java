@@ -0,0 +1,131 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.SignatureReport;
+import org.imixs.signature.pdf.SignatureSizeEstimator;
+import org.imixs.signature.pdf.SigningService;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This class tests the size of the /Contents placeholder reserved for a CMS
+ * signature. The reserved size shrinks to the observed CMS size of an alias
+ * and the signature still fits into the smaller placeholder.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignatureSizeEstimatorTest {
+
+    File directory;
+    SigningService signingService;
+    X509Certificate[] chain;
+    byte[] pdf;
+
+    @Before
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("imixs-size").toFile();
+        X509CertificateGenerator generator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = generator.generateKeyPair();
+        X509Certificate root = generator.generateRootCertificate(rootKeyPair, "Test CA");
+        KeyPair keyPair = generator.generateKeyPair();
+        chain = generator.generateSignedCertificate(root, rootKeyPair.getPrivate(), keyPair, "alice", "Imixs",
+                Arrays.asList("Test"), "Munich", "Bavaria", "DE");
+        KeystoreService keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("alice")).thenReturn(chain);
+        Mockito.when(keystoreService.loadPrivateKey("alice", "")).thenReturn(keyPair.getPrivate());
+        Mockito.when(keystoreService.loadTrustedCertificates()).thenReturn(Collections.singleton(root));
+        signingService = new SigningService(keystoreService, directory.getAbsolutePath(), 3600);
+
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            pdf = bos.toByteArray();
+        }
+    }
+
+    @After
+    public void teardown() {
+        directory.delete();
+    }
+
+    /**
+     * Test that the estimate of an alias shrinks to the observed CMS size and
+     * the observed timestamp token size replaces the default token size
+     */
+    @Test
+    public void testEstimate() {
+        SignatureSizeEstimator estimator = new SignatureSizeEstimator();
+        int initial = estimator.estimate("alice", chain, false);
+        int initialTimestamp = estimator.estimate("alice", chain, true);
+        Assert.assertTrue(initialTimestamp > initial);
+
+        int chainSize = estimator.estimate("bob", chain, false);
+        estimator.update("alice", chain, false, 2000);
+        int estimate = estimator.estimate("alice", chain, false);
+        Assert.assertTrue(estimate < initial);
+        Assert.assertTrue(estimate >= 2000);
+        // other aliases keep their estimate
+        Assert.assertEquals(chainSize, estimator.estimate("bob", chain, false));
+
+        // a smaller timestamp token is used for all aliases
+        int timestampEstimate = estimator.estimateTimestamp();
+        estimator.update("alice", chain, true, initial + 3000);
+        Assert.assertTrue(estimator.estimateTimestamp() < timestampEstimate);
+        Assert.assertTrue(estimator.estimate("bob", chain, true) < initialTimestamp);
+        Assert.assertTrue(estimator.estimate("alice", chain, true) >= initial + 3000);
+
+        // a larger signature raises the estimate
+        estimator.update("alice", chain, false, 5000);
+        Assert.assertTrue(estimator.estimate("alice", chain, false) >= 5000);
+    }
+
+    /**
+     * Test that the placeholder of a following signature is smaller than the
+     * first one and the CMS signature still fits
+     */
+    @Test
+    public void testReservedSizeShrinks() throws Exception {
+        byte[] first = signingService.signPDF(pdf, "alice", "");
+        byte[] second = signingService.signPDF(pdf, "alice", "");
+        int firstSize = getReservedSize(first);
+        int secondSize = getReservedSize(second);
+        Assert.assertTrue(secondSize < firstSize);
+        Assert.assertTrue(second.length < first.length);
+
+        try (PDDocument doc = PDDocument.load(second)) {
+            PDSignature pdSignature = doc.getSignatureDictionaries().get(0);
+            Assert.assertTrue(pdSignature.getContents(second).length * 2 <= secondSize);
+        }
+        List<SignatureReport> reports = signingService.verifyPDF(second);
+        Assert.assertEquals(1, reports.size());
+        Assert.assertTrue(reports.get(0).getErrors().toString(), reports.get(0).isValid());
+    }
+
+    /**
+     * Returns the number of hex digits reserved for the CMS signature
+     */
+    private int getReservedSize(byte[] signed) throws Exception {
+        try (PDDocument doc = PDDocument.load(signed)) {
+            int[] byteRange = doc.getSignatureDictionaries().get(0).getByteRange();
+            // the placeholder is hex encoded and enclosed by '<' and '>'
+            return byteRange[2] - byteRange[1] - 2;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.IncrementalPdfReader;
+import org.imixs.signature.pdf.IncrementalSignatureAppender;
+import org.imixs.signature.pdf.Signature;
+import org.imixs.signature.pdf.SignatureReport;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.SignatureVerifier;
+import org.imixs.signature.pdf.VerificationState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the SignatureVerifier with documents signed by the
+ * IncrementalSignatureAppender.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class SignatureVerifierTest {
+
+    X509Certificate rootCertificate;
+    Certificate[] certificateChain;
+    Set<X509Certificate> trustedCertificates;
+    Signature signature;
+    byte[] content;
+
+    @Before
+    public void setup() throws Exception {
+        X509CertificateGenerator x509CertificateGenerator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = x509CertificateGenerator.generateKeyPair();
+        rootCertificate = x509CertificateGenerator.generateRootCertificate(rootKeyPair, "Test CA");
+        trustedCertificates = Collections.singleton(rootCertificate);
+        KeyPair keyPair = x509CertificateGenerator.generateKeyPair();
+        certificateChain = x509CertificateGenerator.generateSignedCertificate(rootCertificate,
+                rootKeyPair.getPrivate(), keyPair, "alice", "Imixs", Arrays.asList("Test"), "Munich", "Bavaria",
+                "DE");
+        signature = new Signature(certificateChain, keyPair.getPrivate());
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+    }
+
+    /**
+     * Test two signatures verified from a byte array and from a memory-mapped file
+     */
+    @Test
+    public void testVerify() throws Exception {
+        byte[] signed = sign(sign(content));
+
+        List<SignatureReport> reports = new SignatureVerifier(false, trustedCertificates).verify(signed);
+        Assert.assertEquals(2, reports.size());
+        Assert.assertFalse(reports.get(0).isCoversDocument());
+        Assert.assertTrue(reports.get(1).isCoversDocument());
+        Assert.assertEquals(signed.length, reports.get(1).getRevisionLength());
+        for (SignatureReport report : reports) {
+            Assert.assertTrue(report.getErrors().toString(), report.isValid());
+            Assert.assertTrue(report.isByteRangeValid());
+            Assert.assertTrue(report.isCmsValid());
+            Assert.assertTrue(report.isChainValid());
+            Assert.assertEquals(SignatureReport.TYPE_SIGNATURE, report.getType());
+            Assert.assertEquals(SignatureReport.REVOCATION_NOT_CHECKED, report.getRevocationStatus());
+            Assert.assertTrue(report.getSigner().contains("alice"));
+        }
+
+        File file = File.createTempFile("imixs-verify-", ".pdf");
+        try {
+            Files.write(file.toPath(), signed);
+            reports = new SignatureVerifier(true, trustedCertificates).verify(file);
+            Assert.assertEquals(2, reports.size());
+            Assert.assertTrue(reports.get(1).isValid());
+            // the test certificate has no OCSP or CRL url
+            Assert.assertEquals(SignatureReport.REVOCATION_UNAVAILABLE, reports.get(1).getRevocationStatus());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that the parallel verification of several revisions on a shared
+     * executor returns the reports in the order of the revisions. The executor
+     * is reused by the next verification.
+     */
+    @Test
+    public void testParallelVerify() throws Exception {
+        byte[] signed = content;
+        for (int i = 0; i < 6; i++) {
+            signed = sign(signed);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SignatureVerifier verifier = new SignatureVerifier(false, 4, 0, executor, trustedCertificates);
+            for (int run = 0; run < 2; run++) {
+                List<SignatureReport> reports = verifier.verify(signed);
+                Assert.assertEquals(6, reports.size());
+                long revisionLength = 0;
+                for (SignatureReport report : reports) {
+                    Assert.assertTrue(report.getErrors().toString(), report.isValid());
+                    Assert.assertTrue(report.getRevisionLength() > revisionLength);
+                    revisionLength = report.getRevisionLength();
+                }
+                Assert.assertEquals(signed.length, revisionLength);
+                Assert.assertTrue(reports.get(5).isCoversDocument());
+            }
+            Assert.assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Test the re-verification of a document with a new revision based on the
+     * VerificationState of the last verification
+     */
+    @Test
+    public void testIncrementalVerify() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(false, 2, trustedCertificates);
+        byte[] signed = sign(sign(content));
+        VerificationState state = verifier.verify(signed, null);
+        Assert.assertEquals(2, state.getReports().size());
+        Assert.assertEquals(signed.length, state.getRevisionLength());
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(signed), state.getRevisionHash());
+
+        // only the new signature is verified
+        byte[] resigned = sign(signed);
+        VerificationState newState = verifier.verify(resigned, state);
+        Assert.assertEquals(3, newState.getReports().size());
+        for (int i = 0; i < 2; i++) {
+            Assert.assertNotSame(state.getReports().get(i), newState.getReports().get(i));
+            Assert.assertArrayEquals(state.getReports().get(i).getDigest(), newState.getReports().get(i).getDigest());
+        }
+        // the reused report is computed against the new revision
+        Assert.assertTrue(state.getReports().get(1).isCoversDocument());
+        Assert.assertFalse(newState.getReports().get(1).isCoversDocument());
+        Assert.assertEquals(resigned.length, newState.getRevisionLength());
+        Assert.assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(resigned),
+                newState.getRevisionHash());
+        SignatureReport report = newState.getReports().get(2);
+        Assert.assertTrue(report.getErrors().toString(), report.isValid());
+        // the resumed digest matches a full digest of the byte range
+        Assert.assertArrayEquals(new SignatureVerifier(false, trustedCertificates).verify(resigned).get(2).getDigest(),
+                report.getDigest());
+
+        // a changed revision is verified completely
+        resigned[10] = (byte) (resigned[10] ^ 0x01);
+        newState = verifier.verify(resigned, state);
+        Assert.assertNotSame(state.getReports().get(0), newState.getReports().get(0));
+        Assert.assertFalse(newState.getReports().get(0).isValid());
+    }
+
+    /**
+     * Test that the reports of a VerificationState older than the max report age
+     * are not reused
+     */
+    @Test
+    public void testExpiredReports() throws Exception {
+        SignatureVerifier verifier = new SignatureVerifier(false, 2, 0, trustedCertificates);
+        byte[] signed = sign(content);
+        VerificationState state = verifier.verify(signed, null);
+        byte[] resigned = sign(signed);
+        VerificationState newState = verifier.verify(resigned, state);
+        Assert.assertEquals(2, newState.getReports().size());
+        SignatureReport report = newState.getReports().get(0);
+        Assert.assertTrue(report.getErrors().toString(), report.isValid());
+        Assert.assertFalse(report.isCoversDocument());
+        Assert.assertTrue(report.getVerified() >= state.getReports().get(0).getVerified());
+    }
+
+    /**
+     * Test that a modified byte within the signed byte range invalidates the CMS
+     * signature
+     */
+    @Test
+    public void testTamperedContent() throws Exception {
+        byte[] signed = sign(content);
+        // modify the binary comment in the header
+        signed[10] = (byte) (signed[10] ^ 0x01);
+
+        List<SignatureReport> reports = new SignatureVerifier(false, trustedCertificates).verify(signed);
+        Assert.assertEquals(1, reports.size());
+        Assert.assertTrue(reports.get(0).isByteRangeValid());
+        Assert.assertFalse(reports.get(0).isCmsValid());
+        Assert.assertFalse(reports.get(0).isValid());
+        Assert.assertFalse(reports.get(0).getErrors().isEmpty());
+    }
+
+    /**
+     * Test that a signature with an embedded self-signed certificate is not
+     * trusted, although the CMS signature is valid
+     */
+    @Test
+    public void testUntrustedRoot() throws Exception {
+        X509CertificateGenerator x509CertificateGenerator = new X509CertificateGenerator();
+        KeyPair keyPair = x509CertificateGenerator.generateKeyPair();
+        X509Certificate forgedRoot = x509CertificateGenerator.generateRootCertificate(keyPair, "Test CA");
+        byte[] signed = sign(content, new Certificate[] { forgedRoot },
+                new Signature(new Certificate[] { forgedRoot }, keyPair.getPrivate()));
+
+        List<SignatureReport> reports = new SignatureVerifier(false, trustedCertificates).verify(signed);
+        Assert.assertEquals(1, reports.size());
+        Assert.assertTrue(reports.get(0).isCmsValid());
+        Assert.assertFalse(reports.get(0).isChainValid());
+        Assert.assertFalse(reports.get(0).isValid());
+
+        // a chain up to a forged root with the same name is not trusted either
+        KeyPair leafKeyPair = x509CertificateGenerator.generateKeyPair();
+        Certificate[] forgedChain = x509CertificateGenerator.generateSignedCertificate(forgedRoot,
+                keyPair.getPrivate(), leafKeyPair, "alice", "Imixs", Arrays.asList("Test"), "Munich", "Bavaria",
+                "DE");
+        signed = sign(content, forgedChain, new Signature(forgedChain, leafKeyPair.getPrivate()));
+        reports = new SignatureVerifier(false, trustedCertificates).verify(signed);
+        Assert.assertTrue(reports.get(0).isCmsValid());
+        Assert.assertFalse(reports.get(0).isChainValid());
+        Assert.assertFalse(reports.get(0).isValid());
+
+        // without trusted certificates no chain is valid
+        reports = new SignatureVerifier(false, Collections.<X509Certificate>emptySet()).verify(sign(content));
+        Assert.assertFalse(reports.get(0).isChainValid());
+    }
+
+    private byte[] sign(byte[] content) throws Exception {
+        return sign(content, certificateChain, signature);
+    }
+
+    private byte[] sign(byte[] content, Certificate[] chain, Signature signature) throws Exception {
+        IncrementalSignatureAppender appender = new IncrementalSignatureAppender(
+                new IncrementalPdfReader(ByteBuffer.wrap(content)));
+        appender.prepare(new SignatureSpec("alice", null), chain, 8192, Calendar.getInstance());
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(content);
+        appender.updateDigest(md);
+        Assert.assertTrue(appender.setSignature(signature.signDigest(md.digest())));
+        return appender.toByteArray();
+    }
+}
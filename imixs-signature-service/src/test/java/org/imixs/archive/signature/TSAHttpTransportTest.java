@@ -0,0 +1,135 @@
+package org.imixs.archive.signature;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.pdfbox.io.IOUtils;
+import org.imixs.signature.pdf.util.LatencyHistogram;
+import org.imixs.signature.pdf.util.TSAHttpTransport;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * This class tests the TSAHttpTransport against a local http server echoing
+ * the request.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class TSAHttpTransportTest {
+
+    HttpServer server;
+    String authorization;
+
+    @Before
+    public void setup() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/tsa", exchange -> {
+            authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            byte[] request;
+            try (InputStream input = exchange.getRequestBody()) {
+                request = IOUtils.toByteArray(input);
+            }
+            exchange.sendResponseHeaders(200, request.length);
+            try (OutputStream output = exchange.getResponseBody()) {
+                output.write(request);
+            }
+        });
+        server.createContext("/error", exchange -> {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @After
+    public void teardown() {
+        server.stop(0);
+    }
+
+    /**
+     * Test basic authentication and the latency histogram
+     */
+    @Test
+    public void testPost() throws Exception {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/tsa");
+        TSAHttpTransport transport = TSAHttpTransport.getInstance(url);
+        byte[] request = "request".getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(request, transport.post(url, request, "alice", "se:cret"));
+        Assert.assertEquals(
+                "Basic " + Base64.getEncoder().encodeToString("alice:se:cret".getBytes(StandardCharsets.UTF_8)),
+                authorization);
+
+        Assert.assertArrayEquals(request, transport.post(url, request, null, null));
+        Assert.assertNull(authorization);
+
+        URL errorURL = new URL("http://localhost:" + server.getAddress().getPort() + "/error");
+        try {
+            transport.post(errorURL, request, null, null);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        LatencyHistogram histogram = transport.getHistogram();
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(1, histogram.getErrors());
+        Assert.assertSame(histogram, TSAHttpTransport.getHistograms()
+                .get("http://localhost:" + server.getAddress().getPort()));
+    }
+
+    /**
+     * Test that requests fail fast while the circuit breaker is open
+     */
+    @Test
+    public void testCircuitBreaker() throws Exception {
+        URL url = new URL("http://localhost:" + server.getAddress().getPort() + "/tsa");
+        URL errorURL = new URL("http://localhost:" + server.getAddress().getPort() + "/error");
+        TSAHttpTransport transport = TSAHttpTransport.getInstance(url);
+        byte[] request = "request".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(transport.isAvailable());
+            try {
+                transport.post(errorURL, request, null, null);
+                Assert.fail();
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        Assert.assertFalse(transport.isAvailable());
+        try {
+            transport.post(url, request, null, null);
+            Assert.fail("request sent to a host with an open circuit breaker");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("circuit breaker"));
+        }
+        // the rejected request was not sent
+        Assert.assertEquals(5, transport.getHistogram().getErrors());
+        Assert.assertEquals(0, transport.getHistogram().getCount());
+    }
+
+    /**
+     * Test the percentile estimation
+     */
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(20);
+        }
+        histogram.record(400);
+        histogram.record(7000);
+        Assert.assertEquals(25, histogram.getPercentile(50));
+        Assert.assertEquals(500, histogram.getPercentile(99));
+        Assert.assertEquals(7000, histogram.getPercentile(100));
+        Assert.assertEquals(7000, histogram.getMax());
+    }
+}
@@ -0,0 +1,182 @@
+package org.imixs.archive.signature;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cmp.PKIFailureInfo;
+import org.bouncycastle.asn1.cmp.PKIStatus;
+import org.bouncycastle.asn1.nist.NISTObjectIdentifiers;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.cert.jcajce.JcaCertStore;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoGeneratorBuilder;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+import org.bouncycastle.tsp.TSPAlgorithms;
+import org.bouncycastle.tsp.TimeStampRequestGenerator;
+import org.bouncycastle.tsp.TimeStampResponse;
+import org.bouncycastle.tsp.TimeStampResponseGenerator;
+import org.bouncycastle.tsp.TimeStampToken;
+import org.bouncycastle.tsp.TimeStampTokenGenerator;
+import org.imixs.signature.ca.CAService;
+import org.imixs.signature.ca.TimeStampAuthority;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.service.KeystoreService;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * This test class tests the generation of a TSA certificate with the
+ * X509CertificateGenerator and the issuing of timestamp tokens by the embedded
+ * TimeStampAuthority. The TSA certificate is issued by a mocked CAService.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class TimeStampingCertificateTest {
+
+    static final String POLICY = "0.4.0.2023.1.1";
+
+    KeyPair tsaKeyPair;
+    X509Certificate[] certChain;
+    KeystoreService keystoreService;
+    CAService caService;
+    TimeStampAuthority timeStampAuthority;
+
+    @Before
+    public void setup() throws Exception {
+        X509CertificateGenerator x509CertificateGenerator = new X509CertificateGenerator();
+        KeyPair rootKeyPair = x509CertificateGenerator.generateKeyPair();
+        X509Certificate rootCert = x509CertificateGenerator.generateRootCertificate(rootKeyPair, "root-cert");
+        tsaKeyPair = x509CertificateGenerator.generateKeyPair();
+        certChain = x509CertificateGenerator.generateTimeStampingCertificate(rootCert, rootKeyPair.getPrivate(),
+                tsaKeyPair, "imixs-tsa");
+
+        // the TSA certificate does not exist in the keystore
+        keystoreService = Mockito.mock(KeystoreService.class);
+        Mockito.when(keystoreService.loadCertificate("imixs-tsa")).thenReturn(null);
+        Mockito.when(keystoreService.loadPrivateKey("imixs-tsa")).thenReturn(tsaKeyPair.getPrivate());
+        caService = Mockito.mock(CAService.class);
+        Mockito.when(caService.createTimeStampingCertificate("imixs-tsa", "imixs-tsa")).thenReturn(certChain);
+        timeStampAuthority = new TimeStampAuthority(keystoreService, caService, "imixs-tsa", POLICY);
+    }
+
+    /**
+     * Test that the generated certificate is accepted by the
+     * TimeStampTokenGenerator and the issued token can be verified
+     */
+    @Test
+    public void testTimeStampingCertificate() throws Exception {
+        Assert.assertEquals(2, certChain.length);
+        Assert.assertTrue(certChain[0].getCriticalExtensionOIDs().contains("2.5.29.37"));
+
+        // the TimeStampTokenGenerator rejects certificates without a critical
+        // timeStamping extended key usage
+        TimeStampTokenGenerator tokenGenerator = new TimeStampTokenGenerator(
+                new JcaSimpleSignerInfoGeneratorBuilder().build("SHA256withRSA", tsaKeyPair.getPrivate(),
+                        certChain[0]),
+                new JcaDigestCalculatorProviderBuilder().build()
+                        .get(new AlgorithmIdentifier(NISTObjectIdentifiers.id_sha256)),
+                new ASN1ObjectIdentifier(POLICY));
+        tokenGenerator.addCertificates(new JcaCertStore(Arrays.asList(certChain)));
+
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest("document".getBytes());
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        TimeStampResponse response = new TimeStampResponseGenerator(tokenGenerator, TSPAlgorithms.ALLOWED)
+                .generate(requestGenerator.generate(TSPAlgorithms.SHA256, hash, BigInteger.ONE), BigInteger.TEN,
+                        new Date());
+        Assert.assertNotNull(response.getTimeStampToken());
+        Assert.assertArrayEquals(hash, response.getTimeStampToken().getTimeStampInfo().getMessageImprintDigest());
+        response.getTimeStampToken()
+                .validate(new JcaSimpleSignerInfoVerifierBuilder().build(certChain[0]));
+    }
+
+    /**
+     * Test that a missing TSA certificate is issued by the CAService once and
+     * the token is signed with it
+     */
+    @Test
+    public void testAutoIssue() throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest("document".getBytes());
+        TimeStampToken token = timestamp(hash);
+        Assert.assertArrayEquals(hash, token.getTimeStampInfo().getMessageImprintDigest());
+        Assert.assertEquals(POLICY, token.getTimeStampInfo().getPolicy().getId());
+        token.validate(new JcaSimpleSignerInfoVerifierBuilder().build(certChain[0]));
+        timestamp(hash);
+        Mockito.verify(caService, Mockito.times(1)).createTimeStampingCertificate("imixs-tsa", "imixs-tsa");
+    }
+
+    /**
+     * Test that concurrent requests share the pooled generators and each token
+     * has a unique serial number
+     */
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        final byte[] hash = MessageDigest.getInstance("SHA-256").digest("document".getBytes());
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<BigInteger> serials = new HashSet<BigInteger>();
+        try {
+            List<Future<TimeStampToken>> futures = new ArrayList<Future<TimeStampToken>>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(executor.submit(() -> timestamp(hash)));
+            }
+            for (Future<TimeStampToken> future : futures) {
+                TimeStampToken token = future.get();
+                token.validate(new JcaSimpleSignerInfoVerifierBuilder().build(certChain[0]));
+                Assert.assertTrue(serials.add(token.getTimeStampInfo().getSerialNumber()));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(64, serials.size());
+        // the key is loaded once, the generators are reused
+        Mockito.verify(keystoreService, Mockito.times(1)).loadPrivateKey("imixs-tsa");
+
+        // serial numbers are allocated in ascending order
+        BigInteger first = timestamp(hash).getTimeStampInfo().getSerialNumber();
+        BigInteger second = timestamp(hash).getTimeStampInfo().getSerialNumber();
+        Assert.assertEquals(first.add(BigInteger.ONE), second);
+    }
+
+    /**
+     * Test that an invalid request and an unsupported hash algorithm are
+     * rejected
+     */
+    @Test
+    public void testBadRequest() throws Exception {
+        TimeStampResponse response = new TimeStampResponse(timeStampAuthority.timestamp(new byte[] { 1, 2, 3 }));
+        Assert.assertEquals(PKIStatus.REJECTION, response.getStatus());
+        Assert.assertNull(response.getTimeStampToken());
+        Assert.assertEquals(PKIFailureInfo.badDataFormat, response.getFailInfo().intValue());
+
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        byte[] request = requestGenerator.generate(new ASN1ObjectIdentifier("1.2.3.4"), new byte[32]).getEncoded();
+        response = new TimeStampResponse(timeStampAuthority.timestamp(request));
+        Assert.assertEquals(PKIStatus.REJECTION, response.getStatus());
+        Assert.assertNull(response.getTimeStampToken());
+        Assert.assertEquals(PKIFailureInfo.badAlg, response.getFailInfo().intValue());
+    }
+
+    private TimeStampToken timestamp(byte[] hash) throws Exception {
+        TimeStampRequestGenerator requestGenerator = new TimeStampRequestGenerator();
+        requestGenerator.setCertReq(true);
+        byte[] request = requestGenerator.generate(TSPAlgorithms.SHA256, hash).getEncoded();
+        TimeStampResponse response = new TimeStampResponse(timeStampAuthority.timestamp(request));
+        Assert.assertEquals(PKIStatus.GRANTED, response.getStatus());
+        return response.getTimeStampToken();
+    }
+}
@@ -0,0 +1,92 @@
+package org.imixs.archive.signature;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Calendar;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.imixs.signature.ca.X509CertificateGenerator;
+import org.imixs.signature.pdf.IncrementalPdfReader;
+import org.imixs.signature.pdf.IncrementalSignatureAppender;
+import org.imixs.signature.pdf.Signature;
+import org.imixs.signature.pdf.SignatureSpec;
+import org.imixs.signature.pdf.ValidationDataCache;
+import org.imixs.signature.pdf.ValidationInformation;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * This class tests the ValidationInformation. The test uses a self-signed
+ * certificate, so no revocation data is fetched.
+ *
+ * @author rsoika
+ * @version 1.0
+ */
+public class ValidationInformationTest {
+
+    X509Certificate certificate;
+    Signature signature;
+    ValidationDataCache validationDataCache;
+
+    @Before
+    public void setup() throws Exception {
+        X509CertificateGenerator x509CertificateGenerator = new X509CertificateGenerator();
+        KeyPair keyPair = x509CertificateGenerator.generateKeyPair();
+        certificate = x509CertificateGenerator.generateRootCertificate(keyPair, "alice");
+        signature = new Signature(new Certificate[] { certificate }, keyPair.getPrivate());
+        validationDataCache = new ValidationDataCache(3600);
+    }
+
+    /**
+     * Test that the DSS is added once for each signature
+     */
+    @Test
+    public void testAddValidationInformation() throws Exception {
+        byte[] content;
+        try (PDDocument doc = new PDDocument(); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            doc.addPage(new PDPage());
+            doc.save(bos);
+            content = bos.toByteArray();
+        }
+        byte[] signed = sign(content);
+
+        byte[] ltv;
+        try (PDDocument doc = PDDocument.load(signed); ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+            Assert.assertTrue(new ValidationInformation(validationDataCache).addValidationInformation(doc));
+            doc.saveIncremental(bos);
+            ltv = bos.toByteArray();
+        }
+        // the signed revision is untouched
+        Assert.assertArrayEquals(signed, Arrays.copyOf(ltv, signed.length));
+
+        try (PDDocument doc = PDDocument.load(ltv)) {
+            COSDictionary dss = (COSDictionary) doc.getDocumentCatalog().getCOSObject().getDictionaryObject("DSS");
+            Assert.assertNotNull(dss);
+            Assert.assertEquals(1, ((COSArray) dss.getDictionaryObject("Certs")).size());
+            Assert.assertEquals(1, ((COSDictionary) dss.getDictionaryObject("VRI")).size());
+            // all signatures are already covered
+            Assert.assertFalse(new ValidationInformation(validationDataCache).addValidationInformation(doc));
+        }
+    }
+
+    private byte[] sign(byte[] content) throws Exception {
+        IncrementalSignatureAppender appender = new IncrementalSignatureAppender(
+                new IncrementalPdfReader(ByteBuffer.wrap(content)));
+        appender.prepare(new SignatureSpec("alice", null), new Certificate[] { certificate }, 8192,
+                Calendar.getInstance());
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        md.update(content);
+        appender.updateDigest(md);
+        Assert.assertTrue(appender.setSignature(signature.signDigest(md.digest())));
+        return appender.toByteArray();
+    }
+}